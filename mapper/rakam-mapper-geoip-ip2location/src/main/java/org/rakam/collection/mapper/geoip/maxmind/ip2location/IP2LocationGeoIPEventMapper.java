@@ -19,7 +19,6 @@ import org.rakam.plugin.user.ISingleUserBatchOperation;
 import org.rakam.plugin.user.UserPropertyMapper;
 import org.rakam.util.MapProxyGenericRecord;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
@@ -51,8 +50,8 @@ public class IP2LocationGeoIPEventMapper
     private IPReader getReader(String url)
     {
         try {
-            FileInputStream cityDatabase = new FileInputStream(downloadOrGetFile(url));
-            return IPReader.build(cityDatabase);
+            // the index is built next to the database once and memory-mapped on the restarts
+            return IPReader.build(downloadOrGetFile(url).getPath());
         }
         catch (Exception e) {
             throw Throwables.propagate(e);
@@ -159,6 +158,10 @@ public class IP2LocationGeoIPEventMapper
     private void setGeoFields(InetAddress address, GenericRecord properties)
     {
         GeoLocation city = lookup.lookup(address);
+        if (city == null) {
+            return;
+        }
+
         properties.put("_country_code", city.country);
         properties.put("_region", city.stateProv);
         properties.put("_city", city.city);
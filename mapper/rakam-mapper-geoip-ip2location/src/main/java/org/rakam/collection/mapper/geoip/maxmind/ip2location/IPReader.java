@@ -1,45 +1,202 @@
 package org.rakam.collection.mapper.geoip.maxmind.ip2location;
 
-import org.rakam.collection.mapper.geoip.maxmind.ip2location.utils.IP4Converter;
-
-import java.io.*;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.NavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.Objects;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
+/**
+ * Lookup index of an IP2Location database. The CSV database is converted to a binary index file once and the
+ * index file is memory-mapped, so the ranges are not kept in the heap and the restarts don't parse the CSV file.
+ * The ranges are stored as 128 bit numbers sorted by the range start, IPv4 addresses are stored as IPv4-mapped
+ * IPv6 addresses so that the IPv4 and IPv6 databases share the same format. The locations and the strings are
+ * deduplicated, the ranges only keep the index of the location.
+ */
 public class IPReader
 {
-    private final NavigableMap<Long, CSV> ipLookup;
+    private static final int MAGIC = 0x49504C43;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 36;
+    // start (high, low), end (high, low), location index
+    private static final int RANGE_SIZE = 36;
+    // country, state, city string indexes, latitude, longitude
+    private static final int LOCATION_SIZE = 28;
+    private static final long IPV4_MAPPED_PREFIX = 0xFFFF00000000L;
+    private static final BigInteger IPV4_LIMIT = BigInteger.ONE.shiftLeft(32);
 
-    private IPReader(NavigableMap<Long, CSV> ipLookup)
+    private final ByteBuffer ranges;
+    private final ByteBuffer locations;
+    private final String[] strings;
+    private final int rangeCount;
+
+    private IPReader(ByteBuffer buffer)
     {
-        this.ipLookup = ipLookup;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Not a valid IP2Location index file");
+        }
+        rangeCount = buffer.getInt(8);
+        int locationCount = buffer.getInt(12);
+        int stringCount = buffer.getInt(16);
+        int locationsOffset = buffer.getInt(24);
+        int stringsOffset = buffer.getInt(28);
+
+        ranges = slice(buffer, HEADER_SIZE, rangeCount * RANGE_SIZE);
+        locations = slice(buffer, locationsOffset, locationCount * LOCATION_SIZE);
+
+        strings = new String[stringCount];
+        ByteBuffer stringBuffer = slice(buffer, stringsOffset, buffer.capacity() - stringsOffset);
+        for (int i = 0; i < stringCount; i++) {
+            byte[] bytes = new byte[stringBuffer.getInt()];
+            stringBuffer.get(bytes);
+            strings[i] = new String(bytes, UTF_8);
+        }
     }
 
+    /**
+     * Opens the index of the CSV database, the index file is created next to the database if it doesn't
+     * exist or it's older than the database.
+     */
     public static IPReader build(String dbPath)
             throws IOException
     {
-        File ipdb = new File(dbPath);
-        InputStream inputStream = new FileInputStream(ipdb);
-        return build(inputStream);
+        File database = new File(dbPath);
+        File index = new File(database.getPath() + ".index");
+
+        if (!index.exists() || index.lastModified() < database.lastModified()) {
+            File tempFile = File.createTempFile(index.getName(), ".tmp", index.getAbsoluteFile().getParentFile());
+            try (InputStream inputStream = new FileInputStream(database)) {
+                writeIndex(inputStream, tempFile);
+                Files.move(tempFile.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally {
+                tempFile.delete();
+            }
+        }
+
+        return open(index);
     }
 
     public static IPReader build(InputStream inputStream)
             throws IOException
     {
-        NavigableMap<Long, CSV> lookup = new ConcurrentSkipListMap<>();
+        File tempFile = File.createTempFile("ip2location", ".index");
+        try {
+            writeIndex(inputStream, tempFile);
+            // the mapping is valid after the file is deleted
+            return open(tempFile);
+        }
+        finally {
+            tempFile.delete();
+        }
+    }
+
+    public static IPReader open(File index)
+            throws IOException
+    {
+        try (RandomAccessFile file = new RandomAccessFile(index, "r")) {
+            return new IPReader(file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()));
+        }
+    }
+
+    public static void writeIndex(InputStream inputStream, File index)
+            throws IOException
+    {
+        Map<String, Integer> stringIndexes = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        Map<Location, Integer> locationIndexes = new HashMap<>();
+        List<Location> locations = new ArrayList<>();
+
+        int rangeCount = 0;
+        long lastStartHigh = 0;
+        long lastStartLow = 0;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, UTF_8));
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index)))) {
+            output.write(new byte[HEADER_SIZE]);
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                CSV csv = CSV.parse(line);
+
+                // the rows of the IPv4 databases, the IPv6 databases already contain the IPv4-mapped ranges
+                boolean ipv4 = csv.ipEnd.compareTo(IPV4_LIMIT) < 0;
+                long startHigh = high(csv.ipStart, ipv4);
+                long startLow = low(csv.ipStart, ipv4);
+                if (rangeCount > 0 && compare(startHigh, startLow, lastStartHigh, lastStartLow) < 0) {
+                    throw new IllegalArgumentException("The database must be sorted by the start of the ranges: " + line);
+                }
+                lastStartHigh = startHigh;
+                lastStartLow = startLow;
+
+                Location location = new Location(
+                        stringIndexes.computeIfAbsent(csv.country, s -> add(strings, s)),
+                        stringIndexes.computeIfAbsent(csv.stateProv, s -> add(strings, s)),
+                        stringIndexes.computeIfAbsent(csv.city, s -> add(strings, s)),
+                        csv.latitude, csv.longitude);
+
+                output.writeLong(startHigh);
+                output.writeLong(startLow);
+                output.writeLong(high(csv.ipEnd, ipv4));
+                output.writeLong(low(csv.ipEnd, ipv4));
+                output.writeInt(locationIndexes.computeIfAbsent(location, l -> add(locations, l)));
+                rangeCount++;
+            }
+
+            for (Location location : locations) {
+                output.writeInt(location.country);
+                output.writeInt(location.state);
+                output.writeInt(location.city);
+                output.writeDouble(location.latitude);
+                output.writeDouble(location.longitude);
+            }
+
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(UTF_8);
+                output.writeInt(bytes.length);
+                output.write(bytes);
+            }
+        }
 
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-        while (reader.ready()) {
-            CSV csv = CSV.parse(reader.readLine());
-            lookup.put(csv.ipStart, csv);
+        long locationsOffset = HEADER_SIZE + (long) rangeCount * RANGE_SIZE;
+        long stringsOffset = locationsOffset + (long) locations.size() * LOCATION_SIZE;
+        if (stringsOffset > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The database is too big");
         }
-        reader.close();
 
-        return new IPReader(lookup);
+        try (RandomAccessFile file = new RandomAccessFile(index, "rw")) {
+            file.writeInt(MAGIC);
+            file.writeInt(VERSION);
+            file.writeInt(rangeCount);
+            file.writeInt(locations.size());
+            file.writeInt(strings.size());
+            file.writeInt(0);
+            file.writeInt((int) locationsOffset);
+            file.writeInt((int) stringsOffset);
+            file.writeInt(0);
+        }
     }
 
     public GeoLocation lookup(String ipAddress)
@@ -51,26 +208,124 @@ public class IPReader
 
     public GeoLocation lookup(InetAddress inetAddress)
     {
-        return lookup(IP4Converter.toLong(inetAddress.getAddress()));
+        byte[] address = inetAddress.getAddress();
+        if (address.length == 4) {
+            return lookup(0, IPV4_MAPPED_PREFIX | toLong(address, 0, 4));
+        }
+        return lookup(toLong(address, 0, 8), toLong(address, 8, 8));
     }
 
-    private GeoLocation lookup(Long address)
+    private GeoLocation lookup(long high, long low)
     {
-        Map.Entry<Long, CSV> entry = ipLookup.lowerEntry(address);
-        if (entry == null) {
+        // find the last range that starts before the address
+        int left = 0;
+        int right = rangeCount - 1;
+        int found = -1;
+        while (left <= right) {
+            int mid = (left + right) >>> 1;
+            int position = mid * RANGE_SIZE;
+            if (compare(ranges.getLong(position), ranges.getLong(position + 8), high, low) <= 0) {
+                found = mid;
+                left = mid + 1;
+            }
+            else {
+                right = mid - 1;
+            }
+        }
+
+        if (found == -1) {
             return null;
         }
 
-        CSV csv = entry.getValue();
-        if (csv.ipEnd < address) {
+        int position = found * RANGE_SIZE;
+        if (compare(ranges.getLong(position + 16), ranges.getLong(position + 24), high, low) < 0) {
             return null;
         }
 
-        return GeoLocation.of(csv.country, csv.stateProv, csv.city, Coordination.of(csv.latitude, csv.longitude));
+        int location = ranges.getInt(position + 32) * LOCATION_SIZE;
+        return GeoLocation.of(
+                strings[locations.getInt(location)],
+                strings[locations.getInt(location + 4)],
+                strings[locations.getInt(location + 8)],
+                Coordination.of(locations.getDouble(location + 12), locations.getDouble(location + 20)));
+    }
+
+    private static int compare(long high1, long low1, long high2, long low2)
+    {
+        int compare = Long.compareUnsigned(high1, high2);
+        return compare != 0 ? compare : Long.compareUnsigned(low1, low2);
+    }
+
+    private static long high(BigInteger value, boolean ipv4)
+    {
+        return ipv4 ? 0 : value.shiftRight(64).longValue();
+    }
+
+    private static long low(BigInteger value, boolean ipv4)
+    {
+        return ipv4 ? IPV4_MAPPED_PREFIX | value.longValue() : value.longValue();
+    }
+
+    private static long toLong(byte[] address, int offset, int length)
+    {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            value = (value << 8) | (address[i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length)
+    {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice();
+    }
+
+    private static <T> int add(List<T> list, T value)
+    {
+        list.add(value);
+        return list.size() - 1;
     }
 
-    private Long toLong(byte[] address)
+    private static class Location
     {
-        return new BigInteger(address).longValue();
+        private final int country;
+        private final int state;
+        private final int city;
+        private final double latitude;
+        private final double longitude;
+
+        private Location(int country, int state, int city, double latitude, double longitude)
+        {
+            this.country = country;
+            this.state = state;
+            this.city = city;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Location)) {
+                return false;
+            }
+
+            Location location = (Location) o;
+            return country == location.country && state == location.state && city == location.city &&
+                    Double.compare(location.latitude, latitude) == 0 &&
+                    Double.compare(location.longitude, longitude) == 0;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(country, state, city, latitude, longitude);
+        }
     }
 }
@@ -0,0 +1,57 @@
+package org.rakam.collection.mapper.geoip.maxmind.ip2location;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class TestIPReader
+{
+    @Test
+    public void testIPv4()
+            throws IOException
+    {
+        IPReader reader = IPReader.build(new ByteArrayInputStream((
+                "\"16777216\",\"16777471\",\"AU\",\"Australia\",\"Queensland\",\"Brisbane\",\"-27.467940\",\"153.028090\"\n" +
+                "\"16777472\",\"16778239\",\"CN\",\"China\",\"Fujian\",\"Fuzhou\",\"26.061390\",\"119.306110\"\n" +
+                "\"16778240\",\"16779263\",\"AU\",\"Australia\",\"Victoria\",\"Melbourne\",\"-37.814000\",\"144.963320\"\n" +
+                "\"16781312\",\"16785407\",\"JP\",\"Japan\",\"Tokyo\",\"Tokyo\",\"35.689500\",\"139.691710\"\n").getBytes(UTF_8)));
+
+        GeoLocation location = reader.lookup("1.0.0.1");
+        assertEquals(location.country, "Australia");
+        assertEquals(location.stateProv, "Queensland");
+        assertEquals(location.city, "Brisbane");
+        assertEquals(location.coordination.latitude, -27.467940);
+        assertEquals(location.coordination.longitude, 153.028090);
+
+        assertEquals(reader.lookup("1.0.1.255").city, "Fuzhou");
+        assertEquals(reader.lookup("1.0.4.0").city, "Melbourne");
+        assertEquals(reader.lookup("1.0.16.0").city, "Tokyo");
+
+        assertNull(reader.lookup("0.255.255.255"));
+        // gap between the ranges
+        assertNull(reader.lookup("1.0.8.0"));
+        assertNull(reader.lookup("1.0.32.0"));
+        assertNull(reader.lookup(InetAddress.getByName("2001:200::1")));
+    }
+
+    @Test
+    public void testIPv6()
+            throws IOException
+    {
+        IPReader reader = IPReader.build(new ByteArrayInputStream((
+                "\"0\",\"281470681743359\",\"-\",\"-\",\"-\",\"-\",\"0.000000\",\"0.000000\"\n" +
+                "\"281470698520576\",\"281470698520831\",\"AU\",\"Australia\",\"Queensland\",\"Brisbane\",\"-27.467940\",\"153.028090\"\n" +
+                "\"42540528726795050063891204319802818560\",\"42540528806023212578155541913346768895\",\"JP\",\"Japan\",\"Tokyo\",\"Tokyo\",\"35.689500\",\"139.691710\"\n").getBytes(UTF_8)));
+
+        assertEquals(reader.lookup("1.0.0.1").city, "Brisbane");
+        assertEquals(reader.lookup("2001:200::1").city, "Tokyo");
+        assertEquals(reader.lookup("::1").city, "-");
+        assertNull(reader.lookup("2001:300::1"));
+    }
+}
@@ -1,16 +1,21 @@
 package org.rakam.collection.mapper.geoip.maxmind;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
+import com.google.common.net.InetAddresses;
 import com.maxmind.db.Reader;
 import com.maxmind.geoip2.DatabaseReader;
 import com.maxmind.geoip2.exception.AddressNotFoundException;
 import com.maxmind.geoip2.model.CityResponse;
 import com.maxmind.geoip2.model.ConnectionTypeResponse;
-import com.maxmind.geoip2.model.IspResponse;
 import io.airlift.log.Logger;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.cookie.Cookie;
@@ -27,10 +32,8 @@ import org.rakam.util.MapProxyGenericRecord;
 
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.URL;
-import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -54,6 +57,7 @@ public class MaxmindGeoIPEventMapper
     private final DatabaseReader ispLookup;
     private final DatabaseReader cityLookup;
     private final boolean attachIp;
+    private final LoadingCache<InetAddress, LookupResult> cache;
 
     public MaxmindGeoIPEventMapper(MaxmindGeoIPModuleConfig config)
             throws IOException
@@ -122,6 +126,27 @@ public class MaxmindGeoIPEventMapper
         this.cityLookup = cityLookup;
         this.ispLookup = ispLookup;
         this.connectionTypeLookup = connectionTypeLookup;
+
+        // the result of the three databases is cached together so that the repeating addresses skip the lookups
+        if (config.getCacheSize() > 0) {
+            this.cache = CacheBuilder.newBuilder()
+                    .maximumSize(config.getCacheSize())
+                    .recordStats()
+                    .build(CacheLoader.from(this::lookup));
+        }
+        else {
+            this.cache = null;
+        }
+    }
+
+    public MaxmindGeoIPHttpService.GeoIPCacheStatistics getCacheStatistics()
+    {
+        if (cache == null) {
+            return new MaxmindGeoIPHttpService.GeoIPCacheStatistics(0, 0, 1.0, 0, 0);
+        }
+        CacheStats stats = cache.stats();
+        return new MaxmindGeoIPHttpService.GeoIPCacheStatistics(stats.hitCount(), stats.missCount(), stats.hitRate(),
+                stats.evictionCount(), cache.size());
     }
 
     private DatabaseReader getReader(URL url)
@@ -142,24 +167,12 @@ public class MaxmindGeoIPEventMapper
 
         InetAddress addr;
         if ((ip instanceof String)) {
-            try {
-                // it may be slow because java performs reverse hostname lookup.
-                addr = Inet4Address.getByName((String) ip);
-            }
-            catch (UnknownHostException e) {
-                return null;
-            }
+            addr = parseAddress((String) ip);
         }
         else if (Boolean.TRUE == ip) {
             String forwardedFor = extraProperties.headers().get("X-Forwarded-For");
             if (forwardedFor != null && (forwardedFor = findNonPrivateIpAddress(forwardedFor)) != null) {
-                try {
-                    // it may be slow because java performs reverse hostname lookup.
-                    addr = Inet4Address.getByName(forwardedFor);
-                }
-                catch (UnknownHostException e) {
-                    return null;
-                }
+                addr = parseAddress(forwardedFor);
             } else {
                 addr = sourceAddress;
             }
@@ -184,17 +197,7 @@ public class MaxmindGeoIPEventMapper
             event.properties().put("__ip", addr.getHostAddress());
         }
 
-        if (connectionTypeLookup != null) {
-            setConnectionType(addr, event.properties());
-        }
-
-        if (ispLookup != null) {
-            setIsp(addr, event.properties());
-        }
-
-        if (cityLookup != null) {
-            setGeoFields(addr, event.properties());
-        }
+        setFields(addr, event.properties());
 
         return null;
     }
@@ -216,38 +219,34 @@ public class MaxmindGeoIPEventMapper
 
     public void mapInternal(ObjectNode data, InetAddress sourceAddress)
     {
-        Object ip = data.get("_ip");
+        JsonNode ip = data.get("_ip");
 
         if (ip == null) {
             return;
         }
 
-        if ((ip instanceof String)) {
-            try {
-                // it may be slow because java performs reverse hostname lookup.
-                sourceAddress = Inet4Address.getByName((String) ip);
-            }
-            catch (UnknownHostException e) {
-                return;
-            }
+        if (ip.isTextual()) {
+            sourceAddress = parseAddress(ip.textValue());
         }
 
         if (sourceAddress == null) {
             return;
         }
 
-        GenericRecord record = new MapProxyGenericRecord(data);
-
-        if (connectionTypeLookup != null) {
-            setConnectionType(sourceAddress, record);
-        }
+        setFields(sourceAddress, new MapProxyGenericRecord(data));
+    }
 
-        if (ispLookup != null) {
-            setIsp(sourceAddress, record);
+    /**
+     * Parses the IPv4 and IPv6 literals, unlike {@link InetAddress#getByName(String)} the hostnames are not
+     * resolved so an event can't trigger a DNS lookup.
+     */
+    private static InetAddress parseAddress(String ip)
+    {
+        try {
+            return InetAddresses.forString(ip);
         }
-
-        if (cityLookup != null) {
-            setGeoFields(sourceAddress, record);
+        catch (IllegalArgumentException e) {
+            return null;
         }
     }
 
@@ -288,80 +287,115 @@ public class MaxmindGeoIPEventMapper
         }
     }
 
-    private void setConnectionType(InetAddress address, GenericRecord properties)
+    private void setFields(InetAddress address, GenericRecord properties)
     {
-        ConnectionTypeResponse connectionType;
-        try {
-            connectionType = connectionTypeLookup.connectionType(address);
-        }
-        catch (AddressNotFoundException e) {
-            return;
+        LookupResult result = cache != null ? cache.getUnchecked(address) : lookup(address);
+
+        if (result.connectionType != null) {
+            properties.put("_connection_type", result.connectionType);
         }
-        catch (Exception e) {
-            LOGGER.error(e, "Error while searching for location information.");
-            return;
+
+        if (result.isp != null) {
+            properties.put("_isp", result.isp);
         }
 
-        ConnectionTypeResponse.ConnectionType connType = connectionType.getConnectionType();
-        if (connType != null) {
-            properties.put("_connection_type", connType.name());
+        if (result.geoValues != null) {
+            for (int i = 0; i < attributes.length; i++) {
+                if (result.geoValues[i] != null) {
+                    properties.put("_" + attributes[i], result.geoValues[i]);
+                }
+            }
         }
     }
 
-    private void setIsp(InetAddress address, GenericRecord properties)
+    private LookupResult lookup(InetAddress address)
     {
-        IspResponse isp;
-        try {
-            isp = ispLookup.isp(address);
+        String connectionType = null;
+        if (connectionTypeLookup != null) {
+            try {
+                ConnectionTypeResponse.ConnectionType connType = connectionTypeLookup.connectionType(address).getConnectionType();
+                if (connType != null) {
+                    connectionType = connType.name();
+                }
+            }
+            catch (AddressNotFoundException e) {
+                // ignore
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Error while searching for location information.");
+            }
         }
-        catch (AddressNotFoundException e) {
-            return;
+
+        String isp = null;
+        if (ispLookup != null) {
+            try {
+                isp = ispLookup.isp(address).getIsp();
+            }
+            catch (AddressNotFoundException e) {
+                // ignore
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Error while searching for location information.");
+            }
         }
-        catch (Exception e) {
-            LOGGER.error(e, "Error while searching for location information.");
-            return;
+
+        Object[] geoValues = null;
+        if (cityLookup != null) {
+            try {
+                geoValues = getGeoValues(cityLookup.city(address));
+            }
+            catch (AddressNotFoundException e) {
+                // ignore
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Error while searching for location information.");
+            }
         }
 
-        properties.put("_isp", isp.getIsp());
+        return new LookupResult(connectionType, isp, geoValues);
     }
 
-    private void setGeoFields(InetAddress address, GenericRecord properties)
+    private Object[] getGeoValues(CityResponse city)
     {
-        CityResponse city;
-
-        try {
-            city = cityLookup.city(address);
-        }
-        catch (AddressNotFoundException e) {
-            return;
-        }
-        catch (Exception e) {
-            LOGGER.error(e, "Error while searching for location information.");
-            return;
-        }
-
-        for (String attribute : attributes) {
-            switch (attribute) {
+        // the values are in the same order with the attributes
+        Object[] values = new Object[attributes.length];
+        for (int i = 0; i < attributes.length; i++) {
+            switch (attributes[i]) {
                 case "country_code":
-                    properties.put("_country_code", city.getCountry().getIsoCode());
+                    values[i] = city.getCountry().getIsoCode();
                     break;
                 case "region":
-                    properties.put("_region", city.getContinent().getName());
+                    values[i] = city.getContinent().getName();
                     break;
                 case "city":
-                    properties.put("_city", city.getCity().getName());
+                    values[i] = city.getCity().getName();
                     break;
                 case "latitude":
-                    properties.put("_latitude", city.getLocation().getLatitude());
+                    values[i] = city.getLocation().getLatitude();
                     break;
                 case "longitude":
-                    properties.put("_longitude", city.getLocation().getLongitude());
+                    values[i] = city.getLocation().getLongitude();
                     break;
                 case "timezone":
-                    properties.put("_timezone", city.getLocation().getTimeZone());
+                    values[i] = city.getLocation().getTimeZone();
                     break;
             }
         }
+        return values;
+    }
+
+    private static class LookupResult
+    {
+        private final String connectionType;
+        private final String isp;
+        private final Object[] geoValues;
+
+        private LookupResult(String connectionType, String isp, Object[] geoValues)
+        {
+            this.connectionType = connectionType;
+            this.isp = isp;
+            this.geoValues = geoValues;
+        }
     }
 
     private static final String IP_ADDRESS_REGEX = "([0-9]{1,3}\\.[0-9]{1,3}\\.[0-9]{1,3}\\.[0-9]{1,3})";
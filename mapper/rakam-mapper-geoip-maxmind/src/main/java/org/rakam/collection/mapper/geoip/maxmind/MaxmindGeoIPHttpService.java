@@ -0,0 +1,52 @@
+package org.rakam.collection.mapper.geoip.maxmind;
+
+import org.rakam.server.http.HttpService;
+import org.rakam.server.http.annotations.Api;
+import org.rakam.server.http.annotations.ApiOperation;
+import org.rakam.server.http.annotations.Authorization;
+import org.rakam.server.http.annotations.JsonRequest;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.ws.rs.Path;
+
+@Path("/geoip")
+@Api(value = "/geoip", nickname = "geoip", description = "GeoIP event mapper", tags = "geoip")
+public class MaxmindGeoIPHttpService
+        extends HttpService
+{
+    private final MaxmindGeoIPEventMapper mapper;
+
+    @Inject
+    public MaxmindGeoIPHttpService(MaxmindGeoIPEventMapper mapper)
+    {
+        this.mapper = mapper;
+    }
+
+    @ApiOperation(value = "Get lookup cache statistics", authorizations = @Authorization(value = "master_key"))
+    @Path("/cache/stats")
+    @JsonRequest
+    public GeoIPCacheStatistics getCacheStats(@Named("project") String project)
+    {
+        // the cache is shared by all the projects
+        return mapper.getCacheStatistics();
+    }
+
+    public static class GeoIPCacheStatistics
+    {
+        public final long hitCount;
+        public final long missCount;
+        public final double hitRate;
+        public final long evictionCount;
+        public final long size;
+
+        public GeoIPCacheStatistics(long hitCount, long missCount, double hitRate, long evictionCount, long size)
+        {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.hitRate = hitRate;
+            this.evictionCount = evictionCount;
+            this.size = size;
+        }
+    }
+}
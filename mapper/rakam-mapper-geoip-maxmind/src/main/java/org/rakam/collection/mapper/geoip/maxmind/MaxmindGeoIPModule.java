@@ -13,6 +13,7 @@ import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.RakamModule;
 import org.rakam.plugin.user.UserPropertyMapper;
+import org.rakam.server.http.HttpService;
 import org.rakam.util.ConditionalModule;
 
 import java.io.File;
@@ -41,6 +42,9 @@ public class MaxmindGeoIPModule
         }
         Multibinder.newSetBinder(binder, UserPropertyMapper.class).addBinding().toInstance(geoIPEventMapper);
         Multibinder.newSetBinder(binder, EventMapper.class).addBinding().toInstance(geoIPEventMapper);
+
+        binder.bind(MaxmindGeoIPEventMapper.class).toInstance(geoIPEventMapper);
+        Multibinder.newSetBinder(binder, HttpService.class).addBinding().to(MaxmindGeoIPHttpService.class);
     }
 
     @Override
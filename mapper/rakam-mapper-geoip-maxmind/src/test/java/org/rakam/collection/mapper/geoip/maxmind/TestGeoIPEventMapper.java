@@ -186,6 +186,44 @@ public class TestGeoIPEventMapper
         }
     }
 
+    @Test
+    public void testHostnameIsNotResolved()
+            throws Exception
+    {
+        MaxmindGeoIPEventMapper mapper = new MaxmindGeoIPEventMapper(new MaxmindGeoIPModuleConfig().setAttributes("_ip"));
+
+        Record properties = new Record(Schema.createRecord(ImmutableList.of(
+                new Schema.Field("_ip", Schema.create(STRING), null, null),
+                new Schema.Field("__ip", Schema.create(STRING), null, null))));
+        properties.put("_ip", "localhost");
+
+        Event event = new Event("testproject", "testcollection", null, null, properties);
+        mapper.map(event, EventMapper.RequestParams.EMPTY_PARAMS, InetAddress.getLocalHost(), null);
+
+        assertNull(event.getAttribute("__ip"));
+    }
+
+    @Test
+    public void testLookupCache()
+            throws Exception
+    {
+        MaxmindGeoIPEventMapper mapper = new MaxmindGeoIPEventMapper(new MaxmindGeoIPModuleConfig().setAttributes("_ip"));
+
+        for (int i = 0; i < 3; i++) {
+            Record properties = new Record(Schema.createRecord(ImmutableList.of(
+                    new Schema.Field("_ip", Schema.create(STRING), null, null),
+                    new Schema.Field("__ip", Schema.create(STRING), null, null))));
+            properties.put("_ip", "2001:db8::1");
+
+            Event event = new Event("testproject", "testcollection", null, null, properties);
+            mapper.map(event, EventMapper.RequestParams.EMPTY_PARAMS, InetAddress.getLocalHost(), null);
+            assertEquals(event.getAttribute("__ip"), "2001:db8:0:0:0:0:0:1");
+        }
+
+        assertEquals(mapper.getCacheStatistics().missCount, 1);
+        assertEquals(mapper.getCacheStatistics().hitCount, 2);
+    }
+
     @Test
     public void testFieldDependency()
             throws Exception
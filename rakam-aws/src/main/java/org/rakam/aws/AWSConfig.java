@@ -7,6 +7,12 @@ import com.amazonaws.internal.StaticCredentialsProvider;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.DataSize;
+import io.airlift.units.Duration;
+
+import static io.airlift.units.DataSize.Unit.MEGABYTE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 public class AWSConfig {
     private String accessKey;
@@ -18,6 +24,11 @@ public class AWSConfig {
     private String kinesisEndpoint;
     private String dynamodbEndpoint;
     private String lambdaEndpoint;
+    private int bulkUploadThreads = 4;
+    private DataSize bulkUploadPartSize = new DataSize(8, MEGABYTE);
+    private int bulkUploadMaxRetries = 3;
+    private boolean bulkUploadCompression;
+    private Duration kinesisMaxBufferedTime = new Duration(100, MILLISECONDS);
 
     public String getEventStoreStreamName() {
         return eventStoreStreamName;
@@ -39,6 +50,59 @@ public class AWSConfig {
         return eventStoreBulkS3Bucket;
     }
 
+    @Config("event.store.kinesis.max-buffered-time")
+    @ConfigDescription("The maximum time that the events wait in the producer to be aggregated with the other events")
+    public AWSConfig setKinesisMaxBufferedTime(Duration kinesisMaxBufferedTime) {
+        this.kinesisMaxBufferedTime = kinesisMaxBufferedTime;
+        return this;
+    }
+
+    public Duration getKinesisMaxBufferedTime() {
+        return kinesisMaxBufferedTime;
+    }
+
+    @Config("event.store.bulk.upload-threads")
+    public AWSConfig setBulkUploadThreads(int bulkUploadThreads) {
+        this.bulkUploadThreads = bulkUploadThreads;
+        return this;
+    }
+
+    public int getBulkUploadThreads() {
+        return bulkUploadThreads;
+    }
+
+    @Config("event.store.bulk.upload-part-size")
+    @ConfigDescription("The size of the parts of the multipart uploads, S3 requires at least 5MB")
+    public AWSConfig setBulkUploadPartSize(DataSize bulkUploadPartSize) {
+        this.bulkUploadPartSize = bulkUploadPartSize;
+        return this;
+    }
+
+    public DataSize getBulkUploadPartSize() {
+        return bulkUploadPartSize;
+    }
+
+    @Config("event.store.bulk.upload-max-retries")
+    public AWSConfig setBulkUploadMaxRetries(int bulkUploadMaxRetries) {
+        this.bulkUploadMaxRetries = bulkUploadMaxRetries;
+        return this;
+    }
+
+    public int getBulkUploadMaxRetries() {
+        return bulkUploadMaxRetries;
+    }
+
+    @Config("event.store.bulk.compression")
+    @ConfigDescription("Compresses the bulk files with gzip, the consumers must support the compressed files")
+    public AWSConfig setBulkUploadCompression(boolean bulkUploadCompression) {
+        this.bulkUploadCompression = bulkUploadCompression;
+        return this;
+    }
+
+    public boolean getBulkUploadCompression() {
+        return bulkUploadCompression;
+    }
+
     @Config("aws.access-key")
     public AWSConfig setAccessKey(String accessKey) {
         this.accessKey = accessKey;
@@ -108,7 +108,8 @@ public class DynamodbMetastore
     @Override
     public List<SchemaField> getOrCreateCollectionFields(String project, String collection, Set<SchemaField> newFields)
     {
-        List<SchemaField> fields = getCollection(project, collection);
+        List<SchemaField> fields = loadCollection(project, collection);
+        List<SchemaField> addedFields = new ArrayList<>();
         int i = 0;
         for (SchemaField newField : newFields) {
             Optional<SchemaField> existing = fields.stream().filter(e -> e.getName().equals(newField.getName())).findAny();
@@ -132,6 +133,7 @@ public class DynamodbMetastore
                                 .put("type", new AttributeValue(newField.getType().name())).build())
                 );
                 fields.add(newField);
+                addedFields.add(newField);
             }
             catch (ConditionalCheckFailedException e) {
                 boolean isDone = false;
@@ -154,6 +156,7 @@ public class DynamodbMetastore
                     }
 
                     fields.add(newField);
+                    addedFields.add(newField);
                     isDone = true;
                     break;
                 }
@@ -164,7 +167,11 @@ public class DynamodbMetastore
             }
         }
 
-        return getCollection(project, collection);
+        if (!addedFields.isEmpty()) {
+            super.onCreateCollectionField(project, collection, addedFields);
+        }
+
+        return loadCollection(project, collection);
     }
 
     @Override
@@ -223,7 +230,7 @@ public class DynamodbMetastore
     }
 
     @Override
-    public List<SchemaField> getCollection(String project, String collection)
+    protected List<SchemaField> loadCollection(String project, String collection)
     {
         QueryResult query = dynamoDBClient.query(new QueryRequest()
                 .withTableName(tableConfig.getTableName())
@@ -1,16 +1,22 @@
 package org.rakam.aws.kinesis;
 
-import com.amazonaws.handlers.AsyncHandler;
 import com.amazonaws.services.kinesis.AmazonKinesisAsyncClient;
-import com.amazonaws.services.kinesis.model.PutRecordRequest;
-import com.amazonaws.services.kinesis.model.PutRecordResult;
-import com.amazonaws.services.kinesis.model.ResourceNotFoundException;
+import com.amazonaws.services.kinesis.producer.Attempt;
 import com.amazonaws.services.kinesis.producer.KinesisProducer;
 import com.amazonaws.services.kinesis.producer.KinesisProducerConfiguration;
+import com.amazonaws.services.kinesis.producer.UserRecordFailedException;
+import com.amazonaws.services.kinesis.producer.UserRecordResult;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import io.airlift.log.Logger;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufOutputStream;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import org.apache.avro.Schema;
 import org.apache.avro.generic.FilteredRecordWriter;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.io.BinaryEncoder;
@@ -21,9 +27,8 @@ import org.rakam.aws.AWSConfig;
 import org.rakam.aws.s3.S3BulkEventStore;
 import org.rakam.collection.Event;
 import org.rakam.collection.FieldDependencyBuilder.FieldDependency;
+import org.rakam.plugin.BatchStoreResult;
 import org.rakam.plugin.EventStore;
-import org.rakam.report.QueryExecution;
-import org.rakam.report.QueryResult;
 import org.rakam.util.RakamException;
 
 import javax.inject.Inject;
@@ -33,21 +38,29 @@ import java.net.URL;
 import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static io.netty.buffer.PooledByteBufAllocator.DEFAULT;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
-import static io.netty.handler.codec.http.HttpResponseStatus.valueOf;
 
 public class AWSKinesisEventStore
         implements EventStore
 {
     private final static Logger LOGGER = Logger.get(AWSKinesisEventStore.class);
+    private static final int MAX_RECORD_SIZE = 1048576;
 
     private final AmazonKinesisAsyncClient kinesis;
     private final AWSConfig config;
     private final S3BulkEventStore bulkClient;
     private final KinesisProducer producer;
+    private final AtomicBoolean creatingStream = new AtomicBoolean();
+    // the writers are stateless, the event schemas are shared by the events of the same collection
+    private final LoadingCache<Schema, DatumWriter> writers = CacheBuilder.newBuilder()
+            .weakKeys()
+            .build(CacheLoader.from(schema -> new FilteredRecordWriter(schema, GenericData.get())));
+    private final ThreadLocal<BinaryEncoder> encoders = new ThreadLocal<>();
 
     @Inject
     public AWSKinesisEventStore(AWSConfig config,
@@ -64,7 +77,9 @@ public class AWSKinesisEventStore
 
         KinesisProducerConfiguration producerConfiguration = new KinesisProducerConfiguration()
                 .setRegion(config.getRegion())
-                .setCredentialsProvider(config.getCredentials());
+                .setCredentialsProvider(config.getCredentials())
+                .setAggregationEnabled(true)
+                .setRecordMaxBufferedTime(config.getKinesisMaxBufferedTime().toMillis());
         if (config.getKinesisEndpoint() != null) {
             try {
                 URL url = new URL(config.getKinesisEndpoint());
@@ -81,39 +96,43 @@ public class AWSKinesisEventStore
 
     public CompletableFuture<int[]> storeBatchInline(List<Event> events)
     {
-        ByteBuf[] byteBufs = new ByteBuf[events.size()];
+        BatchStoreResult batch = new BatchStoreResult(events.size());
+        for (int i = 0; i < events.size(); i++) {
+            int index = i;
+            ListenableFuture<UserRecordResult> future;
+            try {
+                future = addUserRecord(events.get(i));
+            }
+            catch (RakamException e) {
+                // the other events of the batch are still stored
+                LOGGER.warn(e.getMessage());
+                batch.complete(index, false);
+                continue;
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Unable to add the event to Kinesis producer");
+                batch.complete(index, false);
+                continue;
+            }
 
-        try {
-            for (int i = 0; i < events.size(); i++) {
-                Event event = events.get(i);
-                ByteBuf buffer = getBuffer(event);
-                ByteBuffer data = buffer.nioBuffer();
-                try {
-                    producer.addUserRecord(config.getEventStoreStreamName(),
-                            getPartitionKey(event),
-                            data);
-                }
-                catch (IllegalArgumentException e) {
-                    if (data.remaining() > 1048576) {
-                        throw new RakamException("Too many event properties, the total size of an event must be less than or equal to 1MB, got " + data.remaining(),
-                                BAD_REQUEST);
-                    }
+            Futures.addCallback(future, new FutureCallback<UserRecordResult>()
+            {
+                @Override
+                public void onSuccess(UserRecordResult result)
+                {
+                    batch.complete(index, result.isSuccessful());
                 }
-                byteBufs[i] = buffer;
-            }
 
-            // TODO: async callback?
-            producer.flush();
-        }
-        finally {
-            for (ByteBuf byteBuf : byteBufs) {
-                if (byteBuf != null) {
-                    byteBuf.release();
+                @Override
+                public void onFailure(Throwable t)
+                {
+                    handleFailure(t);
+                    batch.complete(index, false);
                 }
-            }
+            });
         }
 
-        return EventStore.COMPLETED_FUTURE_BATCH;
+        return batch.getFuture();
     }
 
     @Override
@@ -124,7 +143,7 @@ public class AWSKinesisEventStore
         }
         String project = events.get(0).project();
         try {
-            bulkClient.upload(project, events, 3);
+            bulkClient.upload(project, events);
         }
         catch (OutOfMemoryError e) {
             LOGGER.error(e, "OOM error while uploading bulk");
@@ -146,7 +165,29 @@ public class AWSKinesisEventStore
     public CompletableFuture<Void> storeAsync(Event event)
     {
         CompletableFuture<Void> future = new CompletableFuture<>();
-        store(event, future, 3);
+
+        // the producer buffers the records and aggregates them, so the single events don't need a request each
+        Futures.addCallback(addUserRecord(event), new FutureCallback<UserRecordResult>()
+        {
+            @Override
+            public void onSuccess(UserRecordResult result)
+            {
+                if (result.isSuccessful()) {
+                    future.complete(null);
+                }
+                else {
+                    future.completeExceptionally(new RakamException(INTERNAL_SERVER_ERROR));
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t)
+            {
+                handleFailure(t);
+                future.completeExceptionally(new RakamException(INTERNAL_SERVER_ERROR));
+            }
+        });
+
         return future;
     }
 
@@ -156,69 +197,66 @@ public class AWSKinesisEventStore
         return event.project() + "|" + (user == null ? event.collection() : user.toString());
     }
 
-    public void store(Event event, CompletableFuture<Void> future, int tryCount)
+    private ListenableFuture<UserRecordResult> addUserRecord(Event event)
     {
-        store(getBuffer(event), getPartitionKey(event), future, tryCount);
+        ByteBuf buffer = getBuffer(event);
+        try {
+            ByteBuffer data = buffer.nioBuffer();
+            if (data.remaining() > MAX_RECORD_SIZE) {
+                throw new RakamException("Too many event properties, the total size of an event must be less than or equal to 1MB, got " + data.remaining(),
+                        BAD_REQUEST);
+            }
+            // the producer copies the data, the buffer can be released once the record is added
+            return producer.addUserRecord(config.getEventStoreStreamName(), getPartitionKey(event), data);
+        }
+        finally {
+            buffer.release();
+        }
     }
 
-    public void store(ByteBuf buffer, String partitionKey, CompletableFuture<Void> future, int tryCount)
+    private void handleFailure(Throwable t)
     {
-        try {
-            kinesis.putRecordAsync(config.getEventStoreStreamName(), buffer.nioBuffer(), partitionKey, new AsyncHandler<PutRecordRequest, PutRecordResult>()
-            {
-                @Override
-                public void onError(Exception e)
-                {
-                    try {
-                        if (e instanceof ResourceNotFoundException) {
-                            try {
-                                KinesisUtils.createAndWaitForStreamToBecomeAvailable(kinesis, config.getEventStoreStreamName(), 1);
-                            }
-                            catch (Exception e1) {
-                                throw new RuntimeException("Couldn't send event to Amazon Kinesis", e);
-                            }
-                        }
-
-                        LOGGER.error(e);
-                        if (tryCount > 0) {
-                            store(buffer, partitionKey, future, tryCount - 1);
-                        }
-                        else {
-                            buffer.release();
-                            future.completeExceptionally(new RakamException(INTERNAL_SERVER_ERROR));
-                        }
-                    }
-                    catch (Throwable e1) {
-                        buffer.release();
-                        LOGGER.error(e1);
-                    }
-                }
-
-                @Override
-                public void onSuccess(PutRecordRequest request, PutRecordResult putRecordResult)
-                {
-                    try {
-                        buffer.release();
-                    }
-                    finally {
-                        future.complete(null);
-                    }
-                }
-            });
+        if (t instanceof UserRecordFailedException) {
+            List<Attempt> attempts = ((UserRecordFailedException) t).getResult().getAttempts();
+            Attempt last = attempts.isEmpty() ? null : attempts.get(attempts.size() - 1);
+            if (last != null && "ResourceNotFoundException".equals(last.getErrorCode())) {
+                createStream();
+            }
+            LOGGER.error("Error while sending event to Amazon Kinesis: %s", last == null ? "" : last.getErrorMessage());
         }
-        catch (Exception e) {
-            buffer.release();
+        else {
+            LOGGER.error(t, "Error while sending event to Amazon Kinesis");
         }
     }
 
+    private void createStream()
+    {
+        if (!creatingStream.compareAndSet(false, true)) {
+            return;
+        }
+
+        ForkJoinPool.commonPool().execute(() -> {
+            try {
+                KinesisUtils.createAndWaitForStreamToBecomeAvailable(kinesis, config.getEventStoreStreamName(), 1);
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Couldn't create Amazon Kinesis stream");
+            }
+            finally {
+                creatingStream.set(false);
+            }
+        });
+    }
+
     private ByteBuf getBuffer(Event event)
     {
-        DatumWriter writer = new FilteredRecordWriter(event.properties().getSchema(), GenericData.get());
+        DatumWriter writer = writers.getUnchecked(event.properties().getSchema());
         ByteBuf buffer = DEFAULT.buffer(100);
         buffer.writeByte(2);
 
         BinaryEncoder encoder = EncoderFactory.get()
-                .directBinaryEncoder(new ByteBufOutputStream(buffer), null);
+                .directBinaryEncoder(new ByteBufOutputStream(buffer), encoders.get());
+        encoders.set(encoder);
 
         try {
             encoder.writeString(event.collection());
@@ -226,9 +264,10 @@ public class AWSKinesisEventStore
             writer.write(event.properties(), encoder);
         }
         catch (Exception e) {
+            buffer.release();
             throw new RuntimeException("Couldn't serialize event", e);
         }
 
         return buffer;
     }
-}
\ No newline at end of file
+}
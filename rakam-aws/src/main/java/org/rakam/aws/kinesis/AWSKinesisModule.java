@@ -9,6 +9,7 @@ import org.rakam.aws.AWSConfig;
 import org.rakam.util.ConditionalModule;
 import org.rakam.plugin.EventStore;
 import org.rakam.plugin.RakamModule;
+import org.rakam.plugin.RawEventStore;
 
 import static io.airlift.configuration.ConfigBinder.configBinder;
 
@@ -19,7 +20,7 @@ public class AWSKinesisModule extends RakamModule {
     protected void setup(Binder binder) {
         configBinder(binder).bindConfig(AWSConfig.class);
         configBinder(binder).bindConfig(PrestoStreamConfig.class);
-        binder.bind(EventStore.class).to(AWSKinesisEventStore.class).in(Scopes.SINGLETON);
+        binder.bind(EventStore.class).annotatedWith(RawEventStore.class).to(AWSKinesisEventStore.class).in(Scopes.SINGLETON);
     }
 
     @Override
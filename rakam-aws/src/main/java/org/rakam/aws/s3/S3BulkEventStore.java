@@ -1,18 +1,19 @@
 package org.rakam.aws.s3;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchAsync;
 import com.amazonaws.services.cloudwatch.AmazonCloudWatchAsyncClient;
 import com.amazonaws.services.cloudwatch.model.Dimension;
 import com.amazonaws.services.cloudwatch.model.MetricDatum;
 import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.kinesis.AmazonKinesis;
 import com.amazonaws.services.kinesis.AmazonKinesisClient;
+import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.airlift.log.Logger;
-import io.airlift.slice.BasicSliceInput;
-import io.airlift.slice.DynamicSliceOutput;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.FilteredRecordWriter;
 import org.apache.avro.generic.GenericData;
@@ -27,7 +28,8 @@ import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.SchemaField;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -35,136 +37,206 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
 
 import static org.rakam.util.AvroUtil.convertAvroSchema;
 
+/**
+ * Uploads the bulk events to S3 and publishes the locations of the files to Kinesis. The collections of a batch
+ * are encoded and uploaded in parallel, the files are streamed with multipart uploads so that the whole file is
+ * not kept in memory. The metadata records are published after all the files of the batch are uploaded.
+ */
 public class S3BulkEventStore
 {
     private final static Logger LOGGER = Logger.get(S3BulkEventStore.class);
+    private static final byte BULK_FILE = 1;
+    private static final byte COMPRESSED_BULK_FILE = 3;
+
     private final Metastore metastore;
-    private final AmazonS3Client s3Client;
+    private final AmazonS3 s3Client;
     private final AWSConfig config;
     private final int conditionalMagicFieldsSize;
-    private final AmazonCloudWatchAsyncClient cloudWatchClient;
-    private final AmazonKinesisClient kinesis;
+    private final AmazonCloudWatchAsync cloudWatchClient;
+    private final AmazonKinesis kinesis;
+    private final ExecutorService encoderExecutor;
+    private final ExecutorService partExecutor;
+    private final S3MultipartUploader uploader;
 
     public S3BulkEventStore(Metastore metastore, AWSConfig config, FieldDependencyBuilder.FieldDependency fieldDependency)
+    {
+        this(metastore, config, fieldDependency, createS3Client(config), createKinesisClient(config), createCloudWatchClient(config));
+    }
+
+    public S3BulkEventStore(Metastore metastore, AWSConfig config, FieldDependencyBuilder.FieldDependency fieldDependency,
+            AmazonS3 s3Client, AmazonKinesis kinesis, AmazonCloudWatchAsync cloudWatchClient)
     {
         this.metastore = metastore;
         this.config = config;
-        this.s3Client = new AmazonS3Client(config.getCredentials());
+        this.s3Client = s3Client;
+        this.kinesis = kinesis;
+        this.cloudWatchClient = cloudWatchClient;
+        this.conditionalMagicFieldsSize = fieldDependency.dependentFields.size();
+
+        this.encoderExecutor = Executors.newFixedThreadPool(config.getBulkUploadThreads(),
+                new ThreadFactoryBuilder().setNameFormat("s3-bulk-encoder-%d").setDaemon(true).build());
+        this.partExecutor = Executors.newFixedThreadPool(config.getBulkUploadThreads(),
+                new ThreadFactoryBuilder().setNameFormat("s3-bulk-uploader-%d").setDaemon(true).build());
+        this.uploader = new S3MultipartUploader(s3Client, partExecutor,
+                (int) config.getBulkUploadPartSize().toBytes(), config.getBulkUploadMaxRetries());
+    }
+
+    private static AmazonS3 createS3Client(AWSConfig config)
+    {
+        AmazonS3Client s3Client = new AmazonS3Client(config.getCredentials());
         s3Client.setRegion(config.getAWSRegion());
         if (config.getS3Endpoint() != null) {
             s3Client.setEndpoint(config.getS3Endpoint());
         }
+        return s3Client;
+    }
 
-        kinesis = new AmazonKinesisClient(config.getCredentials());
+    private static AmazonKinesis createKinesisClient(AWSConfig config)
+    {
+        AmazonKinesisClient kinesis = new AmazonKinesisClient(config.getCredentials());
         kinesis.setRegion(config.getAWSRegion());
         if (config.getKinesisEndpoint() != null) {
             kinesis.setEndpoint(config.getKinesisEndpoint());
         }
+        return kinesis;
+    }
 
-        cloudWatchClient = new AmazonCloudWatchAsyncClient(config.getCredentials());
+    private static AmazonCloudWatchAsync createCloudWatchClient(AWSConfig config)
+    {
+        AmazonCloudWatchAsyncClient cloudWatchClient = new AmazonCloudWatchAsyncClient(config.getCredentials());
         cloudWatchClient.setRegion(config.getAWSRegion());
-
-        this.conditionalMagicFieldsSize = fieldDependency.dependentFields.size();
+        return cloudWatchClient;
     }
 
-    public void upload(String project, List<Event> events, int tryCount)
+    public void upload(String project, List<Event> events)
     {
-        GenericData data = GenericData.get();
-
-        DynamicSliceOutput buffer = new DynamicSliceOutput(events.size() * 30);
-
         Map<String, List<Event>> map = new HashMap<>();
         events.forEach(event -> map.computeIfAbsent(event.collection(),
                 (col) -> new ArrayList<>()).add(event));
 
-        BinaryEncoder encoder = null;
-
         String batchId = UUID.randomUUID().toString();
 
-        List<String> uploadedFiles = new ArrayList<>();
-        try {
-            for (Map.Entry<String, List<Event>> entry : map.entrySet()) {
-                buffer.reset();
-
-                List<SchemaField> collection = metastore.getCollection(project, entry.getKey());
+        List<CompletableFuture<UploadedFile>> futures = new ArrayList<>(map.size());
+        for (Map.Entry<String, List<Event>> entry : map.entrySet()) {
+            futures.add(CompletableFuture.supplyAsync(() ->
+                    uploadCollection(project, entry.getKey(), entry.getValue(), batchId), encoderExecutor));
+        }
 
-                Schema avroSchema = convertAvroSchema(collection);
-                DatumWriter writer = new FilteredRecordWriter(avroSchema, data);
-                encoder = EncoderFactory.get().directBinaryEncoder(buffer, encoder);
+        List<UploadedFile> uploadedFiles = new ArrayList<>(futures.size());
+        Throwable failure = null;
+        for (CompletableFuture<UploadedFile> future : futures) {
+            try {
+                uploadedFiles.add(future.join());
+            }
+            catch (CompletionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
 
-                encoder.writeInt(collection.size());
-                for (SchemaField schemaField : collection) {
-                    encoder.writeString(schemaField.getName());
+        if (failure != null) {
+            for (UploadedFile uploadedFile : uploadedFiles) {
+                try {
+                    s3Client.deleteObject(config.getEventStoreBulkS3Bucket(), uploadedFile.key);
+                }
+                catch (AmazonClientException e) {
+                    LOGGER.error(e, "Unable to delete bulk file '%s'", uploadedFile.key);
                 }
+            }
+            throw Throwables.propagate(failure);
+        }
 
-                encoder.writeInt(entry.getValue().size());
+        for (UploadedFile uploadedFile : uploadedFiles) {
+            byte[] key = uploadedFile.key.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer allocate = ByteBuffer.allocate(key.length + 1 + 8);
+            allocate.put(config.getBulkUploadCompression() ? COMPRESSED_BULK_FILE : BULK_FILE);
+            allocate.putLong(uploadedFile.size);
+            allocate.put(key);
+            allocate.clear();
 
-                int expectedSchemaSize = collection.size() + conditionalMagicFieldsSize;
-                for (Event event : entry.getValue()) {
-                    GenericRecord properties = event.properties();
+            putMetadataToKinesis(allocate, project, uploadedFile.collection, config.getBulkUploadMaxRetries());
+        }
 
-                    List<Schema.Field> existingFields = properties.getSchema().getFields();
-                    if (existingFields.size() != expectedSchemaSize) {
-                        GenericData.Record record = new GenericData.Record(avroSchema);
-                        for (int i = 0; i < existingFields.size(); i++) {
-                            if (existingFields.get(i).schema().getType() != Schema.Type.NULL) {
-                                record.put(i, properties.get(i));
-                            }
-                        }
-                        properties = record;
-                    }
-                    writer.write(properties, encoder);
-                }
+        LOGGER.debug("Stored batch file '%s', %d events in %d collection.", batchId, events.size(), map.size());
 
-                ObjectMetadata objectMetadata = new ObjectMetadata();
-                int bulkSize = buffer.size();
-                objectMetadata.setContentLength(bulkSize);
-                String key = events.get(0).project() + "/" + entry.getKey() + "/" + batchId;
-                PutObjectRequest putObjectRequest = new PutObjectRequest(config.getEventStoreBulkS3Bucket(),
-                        key,
-                        new SafeSliceInputStream(new BasicSliceInput(buffer.slice())), objectMetadata);
-                putObjectRequest.getRequestClientOptions().setReadLimit(bulkSize);
-
-                s3Client.putObject(putObjectRequest);
-
-                ByteBuffer allocate = ByteBuffer.allocate(key.length() + 1 + 8);
-                allocate.put((byte) 1);
-                allocate.putLong(bulkSize);
-                allocate.put(key.getBytes(StandardCharsets.UTF_8));
-                allocate.clear();
-
-                putMetadataToKinesis(allocate, events.get(0).project(), entry.getKey(), 3);
-                uploadedFiles.add(key);
-            }
+        cloudWatchClient.putMetricDataAsync(new PutMetricDataRequest()
+                .withNamespace("rakam-middleware-collection")
+                .withMetricData(new MetricDatum()
+                        .withMetricName("bulk")
+                        .withValue(((Number) events.size()).doubleValue())
+                        .withDimensions(new Dimension().withName("project").withValue(project))));
+    }
 
-            LOGGER.debug("Stored batch file '%s', %d events in %d collection.", batchId, events.size(), map.size());
+    private UploadedFile uploadCollection(String project, String collectionName, List<Event> events, String batchId)
+    {
+        List<SchemaField> collection = metastore.getCollection(project, collectionName);
+
+        Schema avroSchema = convertAvroSchema(collection);
+        DatumWriter writer = new FilteredRecordWriter(avroSchema, GenericData.get());
 
-            cloudWatchClient.putMetricDataAsync(new PutMetricDataRequest()
-                    .withNamespace("rakam-middleware-collection")
-                    .withMetricData(new MetricDatum()
-                            .withMetricName("bulk")
-                            .withValue(((Number) events.size()).doubleValue())
-                            .withDimensions(new Dimension().withName("project").withValue(project))));
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        if (config.getBulkUploadCompression()) {
+            objectMetadata.setContentEncoding("gzip");
         }
-        catch (IOException | AmazonClientException e) {
-            for (String uploadedFile : uploadedFiles) {
-                s3Client.deleteObject(config.getEventStoreBulkS3Bucket(), uploadedFile);
+
+        String key = project + "/" + collectionName + "/" + batchId;
+        S3MultipartUploader.UploadOutputStream upload = uploader.create(config.getEventStoreBulkS3Bucket(), key, objectMetadata);
+        try {
+            OutputStream output = config.getBulkUploadCompression() ? new GZIPOutputStream(upload, 65536) : upload;
+            BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(output, null);
+
+            encoder.writeInt(collection.size());
+            for (SchemaField schemaField : collection) {
+                encoder.writeString(schemaField.getName());
             }
-            if(tryCount <= 0) {
-                throw Throwables.propagate(e);
+
+            encoder.writeInt(events.size());
+
+            int expectedSchemaSize = collection.size() + conditionalMagicFieldsSize;
+            for (Event event : events) {
+                GenericRecord properties = event.properties();
+
+                List<Schema.Field> existingFields = properties.getSchema().getFields();
+                if (existingFields.size() != expectedSchemaSize) {
+                    GenericData.Record record = new GenericData.Record(avroSchema);
+                    for (int i = 0; i < existingFields.size(); i++) {
+                        if (existingFields.get(i).schema().getType() != Schema.Type.NULL) {
+                            record.put(i, properties.get(i));
+                        }
+                    }
+                    properties = record;
+                }
+                writer.write(properties, encoder);
             }
 
-            upload(project, events, tryCount - 1);
+            encoder.flush();
+            output.close();
+        }
+        catch (IOException e) {
+            upload.abort();
+            throw new UncheckedIOException(e);
         }
+        catch (RuntimeException e) {
+            upload.abort();
+            throw e;
+        }
+
+        return new UploadedFile(collectionName, key, upload.getSize());
     }
 
     private void putMetadataToKinesis(ByteBuffer allocate, String project, String collection, int tryCount)
     {
         try {
-            kinesis.putRecord(config.getEventStoreStreamName(), allocate,
+            kinesis.putRecord(config.getEventStoreStreamName(), allocate.duplicate(),
                     project + "|" + collection);
         }
         catch (Exception e) {
@@ -176,75 +248,17 @@ public class S3BulkEventStore
         }
     }
 
-    private class SafeSliceInputStream
-            extends InputStream
+    private static class UploadedFile
     {
-        private final BasicSliceInput sliceInput;
-
-        public SafeSliceInputStream(BasicSliceInput sliceInput)
-        {
-            this.sliceInput = sliceInput;
-        }
-
-        @Override
-        public int read()
-                throws IOException
-        {
-            return sliceInput.read();
-        }
-
-        @Override
-        public int read(byte[] b)
-                throws IOException
-        {
-            return sliceInput.read(b);
-        }
-
-        @Override
-        public int read(byte[] b, int off, int len)
-                throws IOException
-        {
-            return sliceInput.read(b, off, len);
-        }
-
-        @Override
-        public long skip(long n)
-                throws IOException
-        {
-            return sliceInput.skip(n);
-        }
-
-        @Override
-        public int available()
-                throws IOException
-        {
-            return sliceInput.available();
-        }
-
-        @Override
-        public void close()
-                throws IOException
-        {
-            sliceInput.close();
-        }
-
-        @Override
-        public synchronized void mark(int readlimit)
-        {
-            throw new RuntimeException("mark/reset not supported");
-        }
-
-        @Override
-        public synchronized void reset()
-                throws IOException
-        {
-            throw new IOException("mark/reset not supported");
-        }
+        private final String collection;
+        private final String key;
+        private final long size;
 
-        @Override
-        public boolean markSupported()
+        private UploadedFile(String collection, String key, long size)
         {
-            return false;
+            this.collection = collection;
+            this.key = key;
+            this.size = size;
         }
     }
 }
@@ -0,0 +1,319 @@
+package org.rakam.aws.s3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import io.airlift.log.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Streams the objects to S3 in fixed size parts. The parts are uploaded in the background while the next part
+ * is being written and only a few parts can be in flight for an object, so the memory usage of an upload is
+ * bounded by the part size. Objects that fit into a single part are uploaded with a single request.
+ * The failed requests are retried individually, the multipart upload is aborted if a part can't be uploaded.
+ */
+public class S3MultipartUploader
+{
+    private final static Logger LOGGER = Logger.get(S3MultipartUploader.class);
+    // S3 doesn't accept parts smaller than 5MB except the last part
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    private static final int MAX_IN_FLIGHT_PARTS = 2;
+    // most of the objects are small, the buffer of the first part grows up to the part size
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private final AmazonS3 s3Client;
+    private final Executor executor;
+    private final int partSize;
+    private final int maxRetries;
+
+    public S3MultipartUploader(AmazonS3 s3Client, Executor executor, int partSize, int maxRetries)
+    {
+        checkArgument(partSize >= MIN_PART_SIZE, "part size must be at least %s bytes", MIN_PART_SIZE);
+        checkArgument(maxRetries >= 0, "max retries must not be negative");
+        this.s3Client = s3Client;
+        this.executor = executor;
+        this.partSize = partSize;
+        this.maxRetries = maxRetries;
+    }
+
+    public UploadOutputStream create(String bucket, String key, ObjectMetadata metadata)
+    {
+        return new UploadOutputStream(bucket, key, metadata);
+    }
+
+    private <T> T retry(String operation, String key, Supplier<T> action)
+    {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return action.get();
+            }
+            catch (AmazonClientException e) {
+                if (attempt >= maxRetries) {
+                    throw e;
+                }
+                LOGGER.warn(e, "%s of '%s' failed, retrying (%d/%d)", operation, key, attempt + 1, maxRetries);
+                try {
+                    Thread.sleep(Math.min(100L << attempt, 5000));
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    public class UploadOutputStream
+            extends OutputStream
+    {
+        private final String bucket;
+        private final String key;
+        private final ObjectMetadata metadata;
+        private final Semaphore inFlightParts = new Semaphore(MAX_IN_FLIGHT_PARTS);
+        private final Deque<byte[]> freeBuffers = new ArrayDeque<>();
+        private final List<CompletableFuture<PartETag>> parts = new ArrayList<>();
+
+        private byte[] buffer;
+        private int position;
+        private long size;
+        private String uploadId;
+        private boolean closed;
+
+        private UploadOutputStream(String bucket, String key, ObjectMetadata metadata)
+        {
+            this.bucket = bucket;
+            this.key = key;
+            this.metadata = metadata;
+            this.buffer = new byte[Math.min(INITIAL_BUFFER_SIZE, partSize)];
+        }
+
+        @Override
+        public void write(int b)
+                throws IOException
+        {
+            if (position == buffer.length) {
+                growOrFlush();
+            }
+            buffer[position++] = (byte) b;
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException
+        {
+            while (len > 0) {
+                if (position == buffer.length) {
+                    growOrFlush();
+                }
+                int length = Math.min(len, buffer.length - position);
+                System.arraycopy(b, off, buffer, position, length);
+                position += length;
+                size += length;
+                off += length;
+                len -= length;
+            }
+        }
+
+        /**
+         * The number of the bytes that are written to the object.
+         */
+        public long getSize()
+        {
+            return size;
+        }
+
+        public String getKey()
+        {
+            return key;
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            try {
+                if (uploadId == null) {
+                    ObjectMetadata objectMetadata = metadata.clone();
+                    objectMetadata.setContentLength(position);
+                    retry("Upload", key, () -> s3Client.putObject(new PutObjectRequest(bucket, key,
+                            new ByteArrayInputStream(buffer, 0, position), objectMetadata)));
+                }
+                else {
+                    if (position > 0) {
+                        uploadPart();
+                    }
+
+                    List<PartETag> eTags = new ArrayList<>(parts.size());
+                    for (CompletableFuture<PartETag> part : parts) {
+                        eTags.add(part.join());
+                    }
+
+                    retry("Completing upload", key, () -> s3Client.completeMultipartUpload(
+                            new CompleteMultipartUploadRequest(bucket, key, uploadId, eTags)));
+                }
+            }
+            catch (CompletionException e) {
+                abort();
+                throw new IOException("Unable to upload " + key, e.getCause());
+            }
+            catch (AmazonClientException e) {
+                abort();
+                throw new IOException("Unable to upload " + key, e);
+            }
+            catch (IOException | RuntimeException e) {
+                abort();
+                throw e;
+            }
+            finally {
+                buffer = null;
+                synchronized (freeBuffers) {
+                    freeBuffers.clear();
+                }
+            }
+        }
+
+        /**
+         * Discards the parts that are uploaded so far, the object is not created.
+         */
+        public void abort()
+        {
+            closed = true;
+            if (uploadId == null) {
+                return;
+            }
+
+            // wait for the in-flight parts, otherwise they may be stored after the upload is aborted
+            for (CompletableFuture<PartETag> part : parts) {
+                try {
+                    part.join();
+                }
+                catch (CompletionException e) {
+                    // ignore, the upload is aborted anyway
+                }
+            }
+
+            try {
+                s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+            }
+            catch (AmazonClientException e) {
+                LOGGER.error(e, "Unable to abort the multipart upload of '%s'", key);
+            }
+            uploadId = null;
+        }
+
+        private void growOrFlush()
+                throws IOException
+        {
+            if (buffer.length < partSize) {
+                buffer = Arrays.copyOf(buffer, (int) Math.min(partSize, buffer.length * 2L));
+            }
+            else {
+                flushPart();
+            }
+        }
+
+        private void flushPart()
+                throws IOException
+        {
+            if (closed) {
+                throw new IOException("The upload is closed");
+            }
+
+            if (uploadId == null) {
+                try {
+                    uploadId = retry("Starting upload", key, () -> s3Client.initiateMultipartUpload(
+                            new InitiateMultipartUploadRequest(bucket, key, metadata)).getUploadId());
+                }
+                catch (AmazonClientException e) {
+                    throw new IOException("Unable to upload " + key, e);
+                }
+            }
+
+            // fail early instead of encoding the rest of the object
+            for (CompletableFuture<PartETag> part : parts) {
+                if (part.isCompletedExceptionally()) {
+                    try {
+                        part.join();
+                    }
+                    catch (CompletionException e) {
+                        throw new IOException("Unable to upload " + key, e.getCause());
+                    }
+                }
+            }
+
+            uploadPart();
+
+            synchronized (freeBuffers) {
+                buffer = freeBuffers.poll();
+            }
+            if (buffer == null) {
+                buffer = new byte[partSize];
+            }
+            position = 0;
+        }
+
+        private void uploadPart()
+                throws IOException
+        {
+            try {
+                inFlightParts.acquire();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+
+            String id = uploadId;
+            byte[] data = buffer;
+            int length = position;
+            int partNumber = parts.size() + 1;
+
+            CompletableFuture<PartETag> future = CompletableFuture.supplyAsync(() ->
+                    retry("Uploading part " + partNumber, key, () -> s3Client.uploadPart(new UploadPartRequest()
+                            .withBucketName(bucket)
+                            .withKey(key)
+                            .withUploadId(id)
+                            .withPartNumber(partNumber)
+                            .withPartSize(length)
+                            .withInputStream(new ByteArrayInputStream(data, 0, length)))
+                            .getPartETag()), executor);
+
+            future.whenComplete((result, ex) -> {
+                synchronized (freeBuffers) {
+                    freeBuffers.add(data);
+                }
+                inFlightParts.release();
+            });
+
+            parts.add(future);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package org.rakam.aws.s3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.google.common.io.ByteStreams;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.rakam.aws.s3.S3MultipartUploader.MIN_PART_SIZE;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestS3MultipartUploader
+{
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @AfterClass
+    public void tearDown()
+    {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testSinglePartUpload()
+            throws IOException
+    {
+        InMemoryS3 s3 = new InMemoryS3(0);
+        S3MultipartUploader uploader = new S3MultipartUploader(s3.client(), executor, MIN_PART_SIZE, 3);
+
+        byte[] data = randomBytes(1000);
+        try (S3MultipartUploader.UploadOutputStream output = uploader.create("bucket", "key", new ObjectMetadata())) {
+            output.write(data);
+        }
+
+        assertEquals(s3.objects.get("key"), data);
+        assertEquals(s3.multipartUploads.get(), 0);
+    }
+
+    @Test
+    public void testSinglePartUploadGrowsBuffer()
+            throws IOException
+    {
+        InMemoryS3 s3 = new InMemoryS3(0);
+        S3MultipartUploader uploader = new S3MultipartUploader(s3.client(), executor, MIN_PART_SIZE, 3);
+
+        // the buffer starts small and grows up to the part size while the bytes are written one by one
+        byte[] data = randomBytes(MIN_PART_SIZE);
+        try (S3MultipartUploader.UploadOutputStream output = uploader.create("bucket", "key", new ObjectMetadata())) {
+            for (byte b : data) {
+                output.write(b);
+            }
+        }
+
+        assertEquals(s3.objects.get("key"), data);
+        assertEquals(s3.multipartUploads.get(), 0);
+    }
+
+    @Test
+    public void testMultipartUpload()
+            throws IOException
+    {
+        InMemoryS3 s3 = new InMemoryS3(2);
+        S3MultipartUploader uploader = new S3MultipartUploader(s3.client(), executor, MIN_PART_SIZE, 3);
+
+        byte[] data = randomBytes(MIN_PART_SIZE * 3 + 100);
+        S3MultipartUploader.UploadOutputStream output = uploader.create("bucket", "key", new ObjectMetadata());
+        // write in chunks that don't align with the part size
+        for (int i = 0; i < data.length; i += 7919) {
+            output.write(data, i, Math.min(7919, data.length - i));
+        }
+        output.close();
+
+        assertEquals(output.getSize(), data.length);
+        assertEquals(s3.objects.get("key"), data);
+        assertEquals(s3.multipartUploads.get(), 1);
+        assertTrue(s3.openUploads.isEmpty());
+    }
+
+    @Test
+    public void testAbortWhenPartFails()
+            throws IOException
+    {
+        InMemoryS3 s3 = new InMemoryS3(Integer.MAX_VALUE);
+        S3MultipartUploader uploader = new S3MultipartUploader(s3.client(), executor, MIN_PART_SIZE, 1);
+
+        S3MultipartUploader.UploadOutputStream output = uploader.create("bucket", "key", new ObjectMetadata());
+        try {
+            output.write(randomBytes(MIN_PART_SIZE * 2 + 1));
+            output.close();
+            fail("the upload must fail");
+        }
+        catch (IOException e) {
+            // expected
+        }
+
+        assertFalse(s3.objects.containsKey("key"));
+        assertTrue(s3.openUploads.isEmpty());
+    }
+
+    private static byte[] randomBytes(int size)
+    {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * A stand-in for the S3 client that keeps the objects in memory, it fails the first part uploads.
+     */
+    private static class InMemoryS3
+    {
+        private final Map<String, byte[]> objects = new HashMap<>();
+        private final Map<String, Map<Integer, byte[]>> openUploads = new HashMap<>();
+        private final AtomicInteger multipartUploads = new AtomicInteger();
+        private final int failingPartUploads;
+        private int failures;
+
+        private InMemoryS3(int failingPartUploads)
+        {
+            this.failingPartUploads = failingPartUploads;
+        }
+
+        private AmazonS3 client()
+        {
+            return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class[] {AmazonS3.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "putObject":
+                                return putObject((PutObjectRequest) args[0]);
+                            case "initiateMultipartUpload":
+                                return initiateMultipartUpload();
+                            case "uploadPart":
+                                return uploadPart((UploadPartRequest) args[0]);
+                            case "completeMultipartUpload":
+                                return completeMultipartUpload((CompleteMultipartUploadRequest) args[0]);
+                            case "abortMultipartUpload":
+                                return abortMultipartUpload((AbortMultipartUploadRequest) args[0]);
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+
+        private synchronized PutObjectResult putObject(PutObjectRequest request)
+                throws IOException
+        {
+            objects.put(request.getKey(), ByteStreams.toByteArray(request.getInputStream()));
+            return new PutObjectResult();
+        }
+
+        private synchronized InitiateMultipartUploadResult initiateMultipartUpload()
+        {
+            String uploadId = "upload-" + multipartUploads.incrementAndGet();
+            openUploads.put(uploadId, new TreeMap<>());
+            InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId(uploadId);
+            return result;
+        }
+
+        private synchronized UploadPartResult uploadPart(UploadPartRequest request)
+                throws IOException
+        {
+            byte[] bytes = ByteStreams.toByteArray(request.getInputStream());
+            assertEquals(bytes.length, request.getPartSize());
+            if (failures < failingPartUploads) {
+                failures++;
+                throw new AmazonClientException("Connection reset");
+            }
+
+            openUploads.get(request.getUploadId()).put(request.getPartNumber(), bytes);
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag(String.valueOf(request.getPartNumber()));
+            return result;
+        }
+
+        private synchronized CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request)
+        {
+            Map<Integer, byte[]> parts = openUploads.remove(request.getUploadId());
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            for (PartETag partETag : request.getPartETags()) {
+                byte[] part = parts.get(partETag.getPartNumber());
+                output.write(part, 0, part.length);
+            }
+            objects.put(request.getKey(), output.toByteArray());
+            return new CompleteMultipartUploadResult();
+        }
+
+        private synchronized Object abortMultipartUpload(AbortMultipartUploadRequest request)
+        {
+            openUploads.remove(request.getUploadId());
+            return null;
+        }
+    }
+}
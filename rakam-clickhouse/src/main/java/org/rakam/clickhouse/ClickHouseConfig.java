@@ -2,12 +2,23 @@ package org.rakam.clickhouse;
 
 import java.net.URI;
 import io.airlift.configuration.Config;
+import io.airlift.units.DataSize;
+import io.airlift.units.Duration;
+
+import static io.airlift.units.DataSize.Unit.MEGABYTE;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class ClickHouseConfig
 {
     private URI address = URI.create("http://127.0.0.1:8123");
     private String hotStoragePrefix;
     private String coldStoragePrefix;
+    private int bufferMaxRows = 100000;
+    private DataSize bufferMaxBatchSize = new DataSize(16, MEGABYTE);
+    private DataSize bufferMaxTotalSize = new DataSize(256, MEGABYTE);
+    private Duration bufferFlushInterval = new Duration(1, SECONDS);
+    private int bufferFlushThreads = Runtime.getRuntime().availableProcessors();
+    private boolean insertCompression;
 
     @Config("clickhouse.address")
     public ClickHouseConfig setAddress(URI address)
@@ -44,4 +55,76 @@ public class ClickHouseConfig
         this.coldStoragePrefix = coldStoragePrefix;
         return this;
     }
+
+    @Config("clickhouse.buffer.max-rows")
+    public ClickHouseConfig setBufferMaxRows(int bufferMaxRows)
+    {
+        this.bufferMaxRows = bufferMaxRows;
+        return this;
+    }
+
+    public int getBufferMaxRows()
+    {
+        return bufferMaxRows;
+    }
+
+    @Config("clickhouse.buffer.max-batch-size")
+    public ClickHouseConfig setBufferMaxBatchSize(DataSize bufferMaxBatchSize)
+    {
+        this.bufferMaxBatchSize = bufferMaxBatchSize;
+        return this;
+    }
+
+    public DataSize getBufferMaxBatchSize()
+    {
+        return bufferMaxBatchSize;
+    }
+
+    @Config("clickhouse.buffer.max-total-size")
+    public ClickHouseConfig setBufferMaxTotalSize(DataSize bufferMaxTotalSize)
+    {
+        this.bufferMaxTotalSize = bufferMaxTotalSize;
+        return this;
+    }
+
+    public DataSize getBufferMaxTotalSize()
+    {
+        return bufferMaxTotalSize;
+    }
+
+    @Config("clickhouse.buffer.flush-interval")
+    public ClickHouseConfig setBufferFlushInterval(Duration bufferFlushInterval)
+    {
+        this.bufferFlushInterval = bufferFlushInterval;
+        return this;
+    }
+
+    public Duration getBufferFlushInterval()
+    {
+        return bufferFlushInterval;
+    }
+
+    @Config("clickhouse.buffer.flush-threads")
+    public ClickHouseConfig setBufferFlushThreads(int bufferFlushThreads)
+    {
+        this.bufferFlushThreads = bufferFlushThreads;
+        return this;
+    }
+
+    public int getBufferFlushThreads()
+    {
+        return bufferFlushThreads;
+    }
+
+    @Config("clickhouse.insert-compression")
+    public ClickHouseConfig setInsertCompression(boolean insertCompression)
+    {
+        this.insertCompression = insertCompression;
+        return this;
+    }
+
+    public boolean getInsertCompression()
+    {
+        return insertCompression;
+    }
 }
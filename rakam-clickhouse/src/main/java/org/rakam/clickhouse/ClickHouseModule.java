@@ -21,6 +21,7 @@ import org.rakam.config.MetadataConfig;
 import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.EventStore;
 import org.rakam.plugin.RakamModule;
+import org.rakam.plugin.RawEventStore;
 import org.rakam.plugin.TimestampEventMapper;
 import org.rakam.plugin.user.AbstractUserService;
 import org.rakam.plugin.user.UserPluginConfig;
@@ -53,7 +54,7 @@ public class ClickHouseModule
         binder.bind(char.class).annotatedWith(EscapeIdentifier.class).toInstance('`');
 
         binder.bind(QueryExecutor.class).to(ClickHouseQueryExecutor.class);
-        binder.bind(EventStore.class).to(AWSKinesisClickhouseEventStore.class);
+        binder.bind(EventStore.class).annotatedWith(RawEventStore.class).to(AWSKinesisClickhouseEventStore.class);
         binder.bind(ContinuousQueryService.class).to(ClickHouseContinuousQueryService.class);
         binder.bind(MaterializedViewService.class).to(ClickHouseMaterializedViewService.class);
         binder.bind(String.class).annotatedWith(TimestampToEpochFunction.class)
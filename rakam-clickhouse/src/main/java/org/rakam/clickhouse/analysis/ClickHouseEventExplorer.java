@@ -1,6 +1,5 @@
 package org.rakam.clickhouse.analysis;
 
-import com.facebook.presto.sql.parser.SqlParser;
 import com.facebook.presto.sql.tree.Expression;
 import com.google.common.collect.ImmutableMap;
 import org.rakam.analysis.EventExplorer;
@@ -12,6 +11,7 @@ import org.rakam.report.QueryExecutorService;
 import org.rakam.report.QueryResult;
 import org.rakam.report.realtime.AggregationType;
 import org.rakam.util.RakamException;
+import org.rakam.util.SqlUtil;
 import org.rakam.util.ValidationUtil;
 
 import javax.inject.Inject;
@@ -75,7 +75,6 @@ public class ClickHouseEventExplorer
             .build();
     private final QueryExecutor executor;
     private final QueryExecutorService service;
-    private static final SqlParser sqlParser = new SqlParser();
     private final ProjectConfig projectConfig;
 
     @Inject
@@ -112,10 +111,8 @@ public class ClickHouseEventExplorer
                 DATE_TIME_FORMATTER.format(startDate), DATE_TIME_FORMATTER.format(endDate.plus(1, DAYS)));
 
         if (filterExpression != null) {
-            synchronized (sqlParser) {
-                Expression expression = sqlParser.createExpression(filterExpression);
-                filterExpression = formatExpression(expression);
-            }
+            Expression expression = SqlUtil.parseExpression(filterExpression);
+            filterExpression = formatExpression(expression);
         }
 
         String where = timeFilter + (filterExpression == null ? "" : (" AND " + filterExpression));
@@ -91,7 +91,7 @@ public class ClickHouseMetastore
     }
 
     @Override
-    public List<SchemaField> getCollection(String project, String collection)
+    protected List<SchemaField> loadCollection(String project, String collection)
     {
         List<List<Object>> data = new ClickHouseQueryExecution(config, format("select name, type from system.columns where database = '%s' and table = '%s' and name not like '$%%'",
                 project, collection)).getResult().join().getResult();
@@ -112,7 +112,7 @@ public class ClickHouseMetastore
             throws NotExistsException
     {
         String query;
-        List<SchemaField> schemaFields = getCollection(project, collection);
+        List<SchemaField> schemaFields = loadCollection(project, collection);
         List<SchemaField> lastFields;
         if (schemaFields.isEmpty()) {
             List<SchemaField> currentFields = new ArrayList<>();
@@ -178,13 +178,13 @@ public class ClickHouseMetastore
 
                         StringResponse join = ClickHouseQueryExecution.runStatementSafe(config, q);
                         if (join.getStatusCode() != 200) {
-                            if (!getCollection(project, collection).stream().anyMatch(e -> e.getName().equals(f.getName()))) {
+                            if (!loadCollection(project, collection).stream().anyMatch(e -> e.getName().equals(f.getName()))) {
                                 throw new IllegalStateException(join.getBody());
                             }
                         }
                     });
 
-            lastFields = getCollection(project, collection);
+            lastFields = loadCollection(project, collection);
         }
 
         super.onCreateCollection(project, collection, schemaFields);
@@ -0,0 +1,204 @@
+package org.rakam.clickhouse.collection;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.apache.avro.generic.GenericRecord;
+import org.rakam.clickhouse.ClickHouseConfig;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.ProjectCollection;
+import org.rakam.util.RakamException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+
+/**
+ * Buffers the encoded rows per (project, collection) and flushes them when the batch reaches the row or byte
+ * threshold, or when the flush interval passes. The total size of the buffered data is bounded;
+ * when the limit is exceeded the events are rejected until the flush workers catch up.
+ */
+public class ClickHouseEventBuffer
+{
+    private final static Logger LOGGER = Logger.get(ClickHouseEventBuffer.class);
+
+    private final ConcurrentHashMap<ProjectCollection, Batch> buffers;
+    private final AtomicLong bufferedBytes;
+    private final RowWriter rowWriter;
+    private final BatchFlusher flusher;
+    private final ExecutorService flushExecutor;
+    private final ScheduledExecutorService scheduler;
+
+    private final int maxRows;
+    private final long maxBatchBytes;
+    private final long maxTotalBytes;
+
+    public ClickHouseEventBuffer(ClickHouseConfig config, RowWriter rowWriter, BatchFlusher flusher)
+    {
+        this.rowWriter = rowWriter;
+        this.flusher = flusher;
+        this.maxRows = config.getBufferMaxRows();
+        this.maxBatchBytes = config.getBufferMaxBatchSize().toBytes();
+        this.maxTotalBytes = config.getBufferMaxTotalSize().toBytes();
+        this.buffers = new ConcurrentHashMap<>();
+        this.bufferedBytes = new AtomicLong();
+
+        this.flushExecutor = Executors.newFixedThreadPool(config.getBufferFlushThreads(), new ThreadFactoryBuilder()
+                .setNameFormat("clickhouse-flush-worker-%d").setDaemon(true).build());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("clickhouse-flush-scheduler").setDaemon(true).build());
+
+        long interval = config.getBufferFlushInterval().toMillis();
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                flushAll();
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Error while flushing ClickHouse buffers");
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Appends the records to the buffer of the collection as a single unit, the returned future is completed
+     * when the batch that contains the records is written to ClickHouse.
+     */
+    public CompletableFuture<Void> add(ProjectCollection collection, List<SchemaField> schema, List<GenericRecord> records)
+    {
+        checkCapacity();
+
+        List<Batch> sealed = new ArrayList<>(2);
+        CompletableFuture<Void>[] future = new CompletableFuture[1];
+
+        buffers.compute(collection, (key, batch) -> {
+            // the rows in a batch must share the same columns, the new fields are only appended to the schema
+            // so the events with older schema can be written using the latest one.
+            if (batch != null && schema.size() > batch.schema.size()) {
+                sealed.add(batch);
+                batch = null;
+            }
+            boolean created = batch == null;
+            if (created) {
+                batch = new Batch(schema);
+            }
+
+            int sizeBefore = batch.buffer.writerIndex();
+            try {
+                for (GenericRecord record : records) {
+                    rowWriter.write(record, batch.plan, batch.buffer);
+                }
+            }
+            catch (RuntimeException e) {
+                // the mapping is not changed when the function throws, the partially written rows must be discarded
+                // since a single corrupt row breaks the RowBinary stream of the whole batch
+                if (created) {
+                    batch.buffer.release();
+                }
+                else {
+                    batch.buffer.writerIndex(sizeBefore);
+                }
+                throw e;
+            }
+            batch.rows += records.size();
+            bufferedBytes.addAndGet(batch.buffer.writerIndex() - sizeBefore);
+            future[0] = batch.future;
+
+            if (batch.rows >= maxRows || batch.buffer.writerIndex() >= maxBatchBytes) {
+                sealed.add(batch);
+                return null;
+            }
+
+            return batch;
+        });
+
+        for (Batch batch : sealed) {
+            submit(collection, batch);
+        }
+
+        return future[0];
+    }
+
+    /**
+     * Rejects the events if the buffers are full.
+     */
+    public void checkCapacity()
+    {
+        if (bufferedBytes.get() >= maxTotalBytes) {
+            throw new RakamException("The server is busy, please try again later", SERVICE_UNAVAILABLE);
+        }
+    }
+
+    public long getBufferedBytes()
+    {
+        return bufferedBytes.get();
+    }
+
+    public void flushAll()
+    {
+        for (ProjectCollection collection : buffers.keySet()) {
+            Batch[] sealed = new Batch[1];
+            buffers.computeIfPresent(collection, (key, batch) -> {
+                sealed[0] = batch;
+                return null;
+            });
+
+            if (sealed[0] != null) {
+                submit(collection, sealed[0]);
+            }
+        }
+    }
+
+    private void submit(ProjectCollection collection, Batch batch)
+    {
+        flushExecutor.execute(() -> {
+            try {
+                flusher.flush(collection, batch.schema, batch.buffer, batch.rows);
+                batch.future.complete(null);
+            }
+            catch (Throwable e) {
+                batch.future.completeExceptionally(e);
+            }
+            finally {
+                bufferedBytes.addAndGet(-batch.buffer.writerIndex());
+                batch.buffer.release();
+            }
+        });
+    }
+
+    public interface RowWriter
+    {
+        void write(GenericRecord record, RowBinaryEncoder.RowPlan plan, ByteBuf out);
+    }
+
+    public interface BatchFlusher
+    {
+        void flush(ProjectCollection collection, List<SchemaField> schema, ByteBuf rows, int rowCount)
+                throws Exception;
+    }
+
+    private static class Batch
+    {
+        private final List<SchemaField> schema;
+        private final RowBinaryEncoder.RowPlan plan;
+        private final ByteBuf buffer;
+        private final CompletableFuture<Void> future;
+        private int rows;
+
+        private Batch(List<SchemaField> schema)
+        {
+            this.schema = schema;
+            this.plan = RowBinaryEncoder.getPlan(schema);
+            this.buffer = PooledByteBufAllocator.DEFAULT.directBuffer();
+            this.future = new CompletableFuture<>();
+        }
+    }
+}
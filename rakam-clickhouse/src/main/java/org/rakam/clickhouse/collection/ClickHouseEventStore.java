@@ -3,11 +3,9 @@ package org.rakam.clickhouse.collection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.io.LittleEndianDataOutputStream;
 import com.google.common.primitives.Ints;
 import com.google.inject.Inject;
 import io.airlift.http.client.BodyGenerator;
-import io.airlift.http.client.HttpClient.HttpResponseFuture;
 import io.airlift.http.client.HttpClientConfig;
 import io.airlift.http.client.Request;
 import io.airlift.http.client.StringResponseHandler.StringResponse;
@@ -16,6 +14,7 @@ import io.airlift.http.client.jetty.JettyIoPool;
 import io.airlift.http.client.jetty.JettyIoPoolConfig;
 import io.airlift.log.Logger;
 import io.airlift.units.Duration;
+import io.netty.buffer.ByteBuf;
 import org.apache.avro.generic.GenericRecord;
 import org.rakam.clickhouse.ClickHouseConfig;
 import org.rakam.collection.Event;
@@ -23,38 +22,30 @@ import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
 import org.rakam.config.ProjectConfig;
 import org.rakam.plugin.EventStore;
-import org.rakam.report.QueryExecution;
 import org.rakam.util.ProjectCollection;
 
 import javax.ws.rs.core.UriBuilder;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
 import static io.airlift.http.client.StringResponseHandler.createStringResponseHandler;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static javax.ws.rs.core.HttpHeaders.CONTENT_ENCODING;
 import static java.lang.String.format;
-import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.rakam.clickhouse.analysis.ClickHouseQueryExecution.getSystemSocksProxy;
-import static org.rakam.collection.FieldType.DATE;
 import static org.rakam.collection.FieldType.STRING;
 import static org.rakam.util.ValidationUtil.checkCollection;
 
@@ -64,75 +55,54 @@ public class ClickHouseEventStore
     private final static Logger LOGGER = Logger.get(ClickHouseEventStore.class);
 
     private static final byte[] EMPTY_ARRAY = new byte[]{};
-    private static final String EMPTY_STRING = "";
     final JettyHttpClient HTTP_CLIENT = new JettyHttpClient(
             new HttpClientConfig()
                     .setConnectTimeout(new Duration(10, SECONDS))
                     .setSocksProxy(getSystemSocksProxy()), new JettyIoPool("rakam-clickhouse", new JettyIoPoolConfig()),
             ImmutableSet.of());
 
-    final Map<ProjectCollection, List<Event>> queuedEvents;
     private final ClickHouseConfig config;
     private final ProjectConfig projectConfig;
-    Map<ProjectCollection, CompletableFuture<Void>> currentFutureSingle;
+    private final ClickHouseEventBuffer buffer;
 
     @Inject
     public ClickHouseEventStore(ProjectConfig projectConfig, ClickHouseConfig config)
     {
         this.config = config;
         this.projectConfig = projectConfig;
-        queuedEvents = new ConcurrentHashMap<>();
-        currentFutureSingle = new ConcurrentHashMap<>();
-
-        Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(() -> {
-            try {
-                Iterator<Map.Entry<ProjectCollection, List<Event>>> iterator = queuedEvents.entrySet().iterator();
-                while (iterator.hasNext()) {
-                    Map.Entry<ProjectCollection, List<Event>> next = iterator.next();
-                    List<Event> value = next.getValue();
-                    iterator.remove();
-                    CompletableFuture<Void> remove = currentFutureSingle.remove(next.getKey());
-
-                    List<SchemaField> schema = value.get(0).schema();
-
-                    executeRequest(next.getKey(), schema, next.getValue(), remove, false);
-                }
-            }
-            catch (Exception e) {
-                e.printStackTrace();
-            }
-        }, 1, 1, TimeUnit.SECONDS);
+        this.buffer = new ClickHouseEventBuffer(config, this::writeRow, this::executeRequest);
     }
 
-    private void executeRequest(ProjectCollection collection, List<SchemaField> schema, List<Event> events, CompletableFuture<Void> future, boolean tried) {
-        HttpResponseFuture<StringResponse> f = HTTP_CLIENT.executeAsync(Request.builder()
+    private void executeRequest(ProjectCollection collection, List<SchemaField> schema, ByteBuf rows, int rowCount)
+            throws Exception
+    {
+        Request.Builder builder = Request.builder()
                 .setUri(buildInsertUri(collection, schema))
                 .setMethod("POST")
-                .setBodyGenerator(new BinaryRawGenerator(events, schema))
-                .build(), createStringResponseHandler());
+                .setBodyGenerator(new ByteBufBodyGenerator(rows, config.getInsertCompression()));
+        if (config.getInsertCompression()) {
+            builder.setHeader(CONTENT_ENCODING, "gzip");
+        }
+        Request request = builder.build();
 
-        f.addListener(() -> {
-            try {
-                StringResponse stringResponse = f.get(1L, MINUTES);
-                if (stringResponse.getStatusCode() == 200) {
-                    future.complete(null);
-                }
-                else {
-                    RuntimeException ex = new RuntimeException(stringResponse.getStatusMessage() + " : "
-                            + stringResponse.getBody().split("\n", 2)[0]);
-                    future.completeExceptionally(ex);
-                }
-            }
-            catch (InterruptedException|ExecutionException|TimeoutException e) {
-                if(!tried) {
-                    executeRequest(collection, schema, events, future, true);
-                } else {
-                    future.completeExceptionally(e);
-                    LOGGER.error(e);
-                }
+        StringResponse response;
+        try {
+            response = HTTP_CLIENT.execute(request, createStringResponseHandler());
+        }
+        catch (RuntimeException e) {
+            LOGGER.warn(e, "Error while sending %d rows to ClickHouse, retrying", rowCount);
+            response = HTTP_CLIENT.execute(request, createStringResponseHandler());
+        }
 
-            }
-        }, Runnable::run);
+        if (response.getStatusCode() != 200) {
+            throw new RuntimeException(response.getStatusMessage() + " : " + response.getBody().split("\n", 2)[0]);
+        }
+    }
+
+    private void writeRow(GenericRecord record, RowBinaryEncoder.RowPlan plan, ByteBuf out)
+    {
+        Object time = record.get(projectConfig.getTimeColumn());
+        plan.write(record, time == null ? 0 : ((int) (((long) time) / 86400000)), out);
     }
 
     private URI buildInsertUri(ProjectCollection collection, List<SchemaField> schema)
@@ -148,40 +118,67 @@ public class ClickHouseEventStore
     @Override
     public CompletableFuture<int[]> storeBatchAsync(List<Event> events)
     {
-        CompletableFuture[] futures = new CompletableFuture[events.size()];
+        // reject the whole batch before any of the collections is enqueued, so the client can safely retry it
+        buffer.checkCapacity();
 
+        Map<ProjectCollection, List<Integer>> indexes = new HashMap<>();
         for (int i = 0; i < events.size(); i++) {
-            futures[i] = storeAsync(events.get(i));
+            Event event = events.get(i);
+            indexes.computeIfAbsent(new ProjectCollection(event.project(), event.collection()), k -> new ArrayList<>()).add(i);
         }
 
-        return CompletableFuture.allOf(futures).thenApply(v -> {
-            List<Integer> ints = null;
-            for (int i = 0; i < futures.length; i++) {
-                if (futures[i].isCompletedExceptionally()) {
-                    if (ints == null) {
-                        ints = new ArrayList();
-                        ints.add(i);
-                    }
+        Map<ProjectCollection, CompletableFuture<Void>> futures = new HashMap<>(indexes.size());
+        for (Map.Entry<ProjectCollection, List<Integer>> entry : indexes.entrySet()) {
+            List<SchemaField> schema = null;
+            List<GenericRecord> records = new ArrayList<>(entry.getValue().size());
+            for (Integer index : entry.getValue()) {
+                Event event = events.get(index);
+                // the event with the most fields has the latest schema
+                if (schema == null || event.schema().size() > schema.size()) {
+                    schema = event.schema();
                 }
+                records.add(event.properties());
             }
 
-            if (ints == null) {
-                return SUCCESSFUL_BATCH;
+            CompletableFuture<Void> future;
+            try {
+                future = buffer.add(entry.getKey(), schema, records);
             }
-            else {
-                return Ints.toArray(ints);
+            catch (RuntimeException e) {
+                // the buffers may become full while the collections are being enqueued,
+                // only the events of the rejected collections are reported as failed
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
             }
-        });
+            futures.put(entry.getKey(), future);
+        }
+
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[futures.size()]))
+                .handle((result, ex) -> {
+                    List<Integer> failed = null;
+                    for (Map.Entry<ProjectCollection, CompletableFuture<Void>> entry : futures.entrySet()) {
+                        if (entry.getValue().isCompletedExceptionally()) {
+                            if (failed == null) {
+                                failed = new ArrayList<>();
+                            }
+                            failed.addAll(indexes.get(entry.getKey()));
+                        }
+                    }
+
+                    if (failed == null) {
+                        return SUCCESSFUL_BATCH;
+                    }
+
+                    Collections.sort(failed);
+                    return Ints.toArray(failed);
+                });
     }
 
     @Override
     public CompletableFuture<Void> storeAsync(Event event)
     {
-        ProjectCollection tuple = new ProjectCollection(event.project(), event.collection());
-        CompletableFuture<Void> future = currentFutureSingle.computeIfAbsent(tuple, (k) -> new CompletableFuture<>());
-
-        queuedEvents.computeIfAbsent(tuple, (k) -> Collections.synchronizedList(new ArrayList<>())).add(event);
-        return future;
+        return buffer.add(new ProjectCollection(event.project(), event.collection()),
+                event.schema(), ImmutableList.of(event.properties()));
     }
 
     public static void writeValue(Object value, FieldType type, DataOutput out)
@@ -189,9 +186,9 @@ public class ClickHouseEventStore
     {
         switch (type) {
             case STRING:
-                String str = value == null ? EMPTY_STRING : value.toString();
-                writeVarInt(str.length(), out);
-                out.writeBytes(str);
+                byte[] str = value == null ? EMPTY_ARRAY : value.toString().getBytes(UTF_8);
+                writeVarInt(str.length, out);
+                out.write(str);
                 break;
             case DATE:
                 out.writeShort(value == null ? 0 :(Integer) value);
@@ -263,32 +260,30 @@ public class ClickHouseEventStore
         output.write((byte) value);
     }
 
-    private class BinaryRawGenerator
+    private static class ByteBufBodyGenerator
             implements BodyGenerator
     {
-        private final List<Event> value;
-        private final List<SchemaField> schema;
+        private final ByteBuf rows;
+        private final boolean compress;
 
-        public BinaryRawGenerator(List<Event> value, List<SchemaField> schema)
+        public ByteBufBodyGenerator(ByteBuf rows, boolean compress)
         {
-            this.value = value;
-            this.schema = schema;
+            this.rows = rows;
+            this.compress = compress;
         }
 
         @Override
-        public void write(OutputStream outputStream)
+        public void write(OutputStream out)
                 throws Exception
         {
-            LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(outputStream);
-
-            for (Event event : value) {
-                GenericRecord record = event.properties();
-                Object time = record.get(projectConfig.getTimeColumn());
-                writeValue(time == null ? 0 : ((int) (((long) time) / 86400)), DATE, out);
-
-                for (int i = 0; i < schema.size(); i++) {
-                    writeValue(record.get(i), schema.get(i).getType(), out);
-                }
+            // the buffer is not consumed so that the request can be retried
+            if (compress) {
+                GZIPOutputStream gzip = new GZIPOutputStream(out, 8192);
+                rows.getBytes(rows.readerIndex(), gzip, rows.readableBytes());
+                gzip.finish();
+            }
+            else {
+                rows.getBytes(rows.readerIndex(), out, rows.readableBytes());
             }
         }
     }
@@ -0,0 +1,246 @@
+package org.rakam.clickhouse.collection;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import io.netty.buffer.ByteBuf;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.AvroUtil;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes Avro records in ClickHouse RowBinary format directly into Netty buffers.
+ * The column writers of a schema are resolved once and cached, so encoding a row doesn't dispatch on the field types.
+ */
+public final class RowBinaryEncoder
+{
+    private static final LoadingCache<List<SchemaField>, RowPlan> PLANS = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .build(new CacheLoader<List<SchemaField>, RowPlan>()
+            {
+                @Override
+                public RowPlan load(List<SchemaField> key)
+                {
+                    return new RowPlan(key);
+                }
+            });
+
+    private RowBinaryEncoder()
+    {
+    }
+
+    public static RowPlan getPlan(List<SchemaField> schema)
+    {
+        return PLANS.getUnchecked(schema);
+    }
+
+    public static final class RowPlan
+    {
+        private final String[] names;
+        private final Schema[] types;
+        private final ColumnWriter[] writers;
+        // the last record schemas that are compared with the plan, the records usually share the schema instances
+        private volatile Schema sameLayoutSchema;
+        private volatile Schema differentLayoutSchema;
+
+        private RowPlan(List<SchemaField> schema)
+        {
+            this.names = new String[schema.size()];
+            this.types = new Schema[schema.size()];
+            this.writers = new ColumnWriter[schema.size()];
+            for (int i = 0; i < schema.size(); i++) {
+                names[i] = schema.get(i).getName();
+                types[i] = AvroUtil.generateAvroSchema(schema.get(i).getType());
+                writers[i] = createWriter(schema.get(i).getType());
+            }
+        }
+
+        public void write(GenericRecord record, int date, ByteBuf out)
+        {
+            out.writeShort(Short.reverseBytes((short) date));
+
+            boolean sameLayout = hasSameLayout(record.getSchema());
+            for (int i = 0; i < names.length; i++) {
+                writers[i].write(sameLayout ? record.get(i) : record.get(names[i]), out);
+            }
+        }
+
+        // the fields can be read by their positions if the record has the same fields in the same order
+        private boolean hasSameLayout(Schema schema)
+        {
+            if (schema == sameLayoutSchema) {
+                return true;
+            }
+            if (schema == differentLayoutSchema) {
+                return false;
+            }
+
+            List<Schema.Field> fields = schema.getFields();
+            boolean sameLayout = fields.size() == names.length;
+            for (int i = 0; sameLayout && i < names.length; i++) {
+                Schema.Field field = fields.get(i);
+                sameLayout = field.name().equals(names[i]) && field.schema().equals(types[i]);
+            }
+
+            if (sameLayout) {
+                sameLayoutSchema = schema;
+            }
+            else {
+                differentLayoutSchema = schema;
+            }
+            return sameLayout;
+        }
+    }
+
+    public interface ColumnWriter
+    {
+        void write(Object value, ByteBuf out);
+    }
+
+    public static ColumnWriter createWriter(FieldType type)
+    {
+        switch (type) {
+            case STRING:
+                return (value, out) -> writeString(value == null ? "" : value.toString(), out);
+            case DATE:
+                return (value, out) -> out.writeShort(Short.reverseBytes(value == null ? 0 : ((Number) value).shortValue()));
+            case TIMESTAMP:
+                return (value, out) -> out.writeInt(Integer.reverseBytes(value == null ? 0 : (int) (((Number) value).longValue() / 1000)));
+            case TIME:
+            case INTEGER:
+                return (value, out) -> out.writeInt(Integer.reverseBytes(value == null ? 0 : ((Number) value).intValue()));
+            case DECIMAL:
+            case DOUBLE:
+                return (value, out) -> out.writeLong(Long.reverseBytes(Double.doubleToRawLongBits(value == null ? .0 : ((Number) value).doubleValue())));
+            case LONG:
+                return (value, out) -> out.writeLong(Long.reverseBytes(value == null ? 0L : ((Number) value).longValue()));
+            case BOOLEAN:
+                return (value, out) -> out.writeByte(Boolean.TRUE.equals(value) ? 1 : 0);
+            case BINARY:
+                return (value, out) -> {
+                    if (value instanceof ByteBuffer) {
+                        ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+                        writeVarInt(buffer.remaining(), out);
+                        out.writeBytes(buffer);
+                    }
+                    else {
+                        byte[] bytes = value == null ? new byte[0] : (byte[]) value;
+                        writeVarInt(bytes.length, out);
+                        out.writeBytes(bytes);
+                    }
+                };
+            default:
+                if (type.isArray()) {
+                    ColumnWriter elementWriter = createWriter(type.getArrayElementType());
+                    return (value, out) -> {
+                        List list = value == null ? ImmutableList.of() : (List) value;
+                        writeVarInt(list.size(), out);
+                        for (Object item : list) {
+                            elementWriter.write(item, out);
+                        }
+                    };
+                }
+                if (type.isMap()) {
+                    // maps are stored as Nested columns, the keys and the values are written as separate arrays
+                    ColumnWriter valueWriter = createWriter(type.getMapValueType());
+                    return (value, out) -> {
+                        if (value == null) {
+                            writeVarInt(0, out);
+                            writeVarInt(0, out);
+                            return;
+                        }
+
+                        Map<String, Object> map = (Map<String, Object>) value;
+                        writeVarInt(map.size(), out);
+                        for (String key : map.keySet()) {
+                            writeString(key, out);
+                        }
+                        writeVarInt(map.size(), out);
+                        for (Object item : map.values()) {
+                            valueWriter.write(item, out);
+                        }
+                    };
+                }
+                throw new IllegalStateException("Unsupported type: " + type);
+        }
+    }
+
+    public static void writeString(CharSequence value, ByteBuf out)
+    {
+        int length = value.length();
+        writeVarInt(utf8Length(value), out);
+
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                out.writeByte(c);
+            }
+            else if (c < 0x800) {
+                out.writeByte(0xC0 | (c >> 6));
+                out.writeByte(0x80 | (c & 0x3F));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out.writeByte(0xF0 | (codePoint >> 18));
+                out.writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+                out.writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+                out.writeByte(0x80 | (codePoint & 0x3F));
+            }
+            else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, same replacement as String.getBytes
+                out.writeByte('?');
+            }
+            else {
+                out.writeByte(0xE0 | (c >> 12));
+                out.writeByte(0x80 | ((c >> 6) & 0x3F));
+                out.writeByte(0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    static int utf8Length(CharSequence value)
+    {
+        int length = value.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            }
+            else if (c < 0x800) {
+                bytes += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            }
+            else if (Character.isSurrogate(c)) {
+                bytes += 1;
+            }
+            else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    public static void writeVarInt(int value, ByteBuf out)
+    {
+        // VarInts don't support negative values
+        if (value < 0) {
+            value = 0;
+        }
+        while (value > 0x7f) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+}
@@ -0,0 +1,130 @@
+package org.rakam.clickhouse.collection;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.LittleEndianDataOutputStream;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.AvroUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.rakam.clickhouse.collection.ClickHouseEventStore.writeValue;
+import static org.rakam.collection.FieldType.ARRAY_STRING;
+import static org.rakam.collection.FieldType.BOOLEAN;
+import static org.rakam.collection.FieldType.DATE;
+import static org.rakam.collection.FieldType.DOUBLE;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.MAP_STRING;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(2)
+@Warmup(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+public class BenchmarkRowBinaryEncoder
+{
+    private static final int ROWS = 1000;
+
+    private final List<SchemaField> schema = ImmutableList.of(
+            new SchemaField("_time", TIMESTAMP),
+            new SchemaField("_user", STRING),
+            new SchemaField("url", STRING),
+            new SchemaField("title", STRING),
+            new SchemaField("amount", DOUBLE),
+            new SchemaField("count", LONG),
+            new SchemaField("active", BOOLEAN),
+            new SchemaField("tags", ARRAY_STRING),
+            new SchemaField("attributes", MAP_STRING));
+
+    private GenericRecord[] records;
+    private ByteBuf buffer;
+
+    @Setup
+    public void setup()
+    {
+        records = new GenericRecord[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            GenericData.Record record = new GenericData.Record(AvroUtil.convertAvroSchema(schema));
+            record.put("_time", 1483228800000L + i);
+            record.put("_user", "user" + i);
+            record.put("url", "https://rakam.io/doc/page/" + i);
+            record.put("title", "Çağrı Merkezi " + i);
+            record.put("amount", i * 1.5);
+            record.put("count", (long) i);
+            record.put("active", i % 2 == 0);
+            record.put("tags", ImmutableList.of("tag1", "tag2"));
+            record.put("attributes", ImmutableMap.of("key", "value" + i));
+            records[i] = record;
+        }
+        buffer = PooledByteBufAllocator.DEFAULT.directBuffer();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        buffer.release();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public int writeValueDataOutput()
+            throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(bytes);
+        for (GenericRecord record : records) {
+            writeValue((int) ((long) record.get(0) / 86400000), DATE, out);
+            for (int i = 0; i < schema.size(); i++) {
+                writeValue(record.get(i), schema.get(i).getType(), out);
+            }
+        }
+        return bytes.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public int rowBinaryEncoder()
+    {
+        buffer.clear();
+        RowBinaryEncoder.RowPlan plan = RowBinaryEncoder.getPlan(schema);
+        for (GenericRecord record : records) {
+            plan.write(record, (int) ((long) record.get(0) / 86400000), buffer);
+        }
+        return buffer.writerIndex();
+    }
+
+    public static void main(String[] args)
+            throws RunnerException
+    {
+        new Runner(new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkRowBinaryEncoder.class.getSimpleName() + ".*")
+                .build()).run();
+    }
+}
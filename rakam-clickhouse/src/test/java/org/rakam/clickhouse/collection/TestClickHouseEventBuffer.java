@@ -0,0 +1,106 @@
+package org.rakam.clickhouse.collection;
+
+import com.google.common.collect.ImmutableList;
+import io.airlift.units.Duration;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.rakam.clickhouse.ClickHouseConfig;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.ProjectCollection;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.rakam.collection.FieldType.LONG;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+public class TestClickHouseEventBuffer
+{
+    private static final List<SchemaField> SCHEMA = ImmutableList.of(new SchemaField("test", LONG));
+    private static final Schema RECORD_SCHEMA = Schema.createRecord("test", null, null, false, ImmutableList.of());
+    private static final ProjectCollection COLLECTION = new ProjectCollection("test", "test");
+
+    // writes the first byte of the row and fails before the second one when the record is null
+    private static final ClickHouseEventBuffer.RowWriter WRITER = (record, plan, out) -> {
+        out.writeByte(1);
+        if (record == null) {
+            throw new IllegalStateException();
+        }
+        out.writeByte(2);
+    };
+
+    @Test
+    public void testFailedRowIsDiscarded()
+            throws Exception
+    {
+        List<byte[]> flushed = Collections.synchronizedList(new ArrayList<>());
+        ClickHouseEventBuffer buffer = new ClickHouseEventBuffer(config(), WRITER, (collection, schema, rows, rowCount) -> {
+            byte[] bytes = new byte[rows.readableBytes()];
+            rows.getBytes(rows.readerIndex(), bytes);
+            flushed.add(bytes);
+            assertEquals(rowCount, 2);
+        });
+
+        buffer.add(COLLECTION, SCHEMA, records(1));
+        try {
+            buffer.add(COLLECTION, SCHEMA, records(1, null));
+            fail();
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(buffer.getBufferedBytes(), 2);
+
+        CompletableFuture<Void> future = buffer.add(COLLECTION, SCHEMA, records(1));
+        buffer.flushAll();
+        future.join();
+
+        assertEquals(flushed.size(), 1);
+        assertEquals(flushed.get(0), new byte[] {1, 2, 1, 2});
+    }
+
+    @Test
+    public void testFailedNewBatchIsReleased()
+            throws Exception
+    {
+        List<byte[]> flushed = Collections.synchronizedList(new ArrayList<>());
+        ClickHouseEventBuffer buffer = new ClickHouseEventBuffer(config(), WRITER,
+                (collection, schema, rows, rowCount) -> flushed.add(new byte[rows.readableBytes()]));
+
+        try {
+            buffer.add(COLLECTION, SCHEMA, records((Integer) null));
+            fail();
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+
+        assertEquals(buffer.getBufferedBytes(), 0);
+        buffer.flushAll();
+        assertEquals(flushed.size(), 0);
+    }
+
+    private static ClickHouseConfig config()
+    {
+        return new ClickHouseConfig()
+                .setBufferMaxRows(1000)
+                .setBufferFlushThreads(1)
+                .setBufferFlushInterval(new Duration(1, HOURS));
+    }
+
+    // the writer only checks whether the records are null
+    private static List<GenericRecord> records(Integer... values)
+    {
+        List<GenericRecord> records = new ArrayList<>();
+        for (Integer value : values) {
+            records.add(value == null ? null : new GenericData.Record(RECORD_SCHEMA));
+        }
+        return records;
+    }
+}
@@ -0,0 +1,59 @@
+package org.rakam.clickhouse.collection;
+
+import com.google.common.collect.ImmutableList;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.AvroUtil;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.rakam.collection.FieldType.DOUBLE;
+import static org.rakam.collection.FieldType.LONG;
+import static org.testng.Assert.assertEquals;
+
+public class TestRowBinaryEncoder
+{
+    private static final List<SchemaField> SCHEMA = ImmutableList.of(new SchemaField("a", LONG), new SchemaField("b", LONG));
+
+    @Test
+    public void testDifferentFieldOrder()
+    {
+        GenericRecord record = new GenericData.Record(AvroUtil.convertAvroSchema(SCHEMA));
+        record.put("a", 1L);
+        record.put("b", 2L);
+
+        GenericRecord reordered = new GenericData.Record(AvroUtil.convertAvroSchema(ImmutableList.of(SCHEMA.get(1), SCHEMA.get(0))));
+        reordered.put("a", 1L);
+        reordered.put("b", 2L);
+
+        assertEquals(encode(reordered), encode(record));
+    }
+
+    @Test
+    public void testDifferentFieldsWithSameSize()
+    {
+        // the record has the same number of fields but the positions must not be used since the fields are different
+        GenericRecord other = new GenericData.Record(AvroUtil.convertAvroSchema(ImmutableList.of(
+                new SchemaField("c", DOUBLE), new SchemaField("b", LONG))));
+        other.put("c", 3.0);
+        other.put("b", 2L);
+
+        GenericRecord expected = new GenericData.Record(AvroUtil.convertAvroSchema(SCHEMA));
+        expected.put("b", 2L);
+
+        assertEquals(encode(other), encode(expected));
+    }
+
+    private static byte[] encode(GenericRecord record)
+    {
+        ByteBuf buffer = Unpooled.buffer();
+        RowBinaryEncoder.getPlan(SCHEMA).write(record, 0, buffer);
+        byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.readBytes(bytes);
+        return bytes;
+    }
+}
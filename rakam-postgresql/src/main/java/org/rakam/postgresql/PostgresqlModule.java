@@ -32,6 +32,7 @@ import org.rakam.config.MetadataConfig;
 import org.rakam.config.ProjectConfig;
 import org.rakam.plugin.EventStore;
 import org.rakam.plugin.RakamModule;
+import org.rakam.plugin.RawEventStore;
 import org.rakam.plugin.SystemEvents;
 import org.rakam.plugin.user.AbstractUserService;
 import org.rakam.plugin.user.UserPluginConfig;
@@ -104,7 +105,7 @@ public class PostgresqlModule
         }
 
         if (metadataConfig.getEventStore() == null) {
-            binder.bind(EventStore.class).to(PostgresqlEventStore.class).in(Scopes.SINGLETON);
+            binder.bind(EventStore.class).annotatedWith(RawEventStore.class).to(PostgresqlEventStore.class).in(Scopes.SINGLETON);
         }
 
         // use same jdbc pool if report.metadata.store is not set explicitly.
@@ -6,6 +6,8 @@ public class PostgresqlConfig {
 
     private boolean autoIndexColumns = true;
     private boolean enableEventStore = true;
+    private boolean copyProtocolEnabled = true;
+    private int maxConcurrentMaterializedViewRefreshes = 4;
 
     @Config("postgresql.auto-index-columns")
     public PostgresqlConfig setAutoIndexColumns(boolean indexColumns)
@@ -17,4 +19,28 @@ public class PostgresqlConfig {
     public boolean isAutoIndexColumns() {
         return autoIndexColumns;
     }
+
+    @Config("postgresql.copy-protocol.enabled")
+    public PostgresqlConfig setCopyProtocolEnabled(boolean copyProtocolEnabled)
+    {
+        this.copyProtocolEnabled = copyProtocolEnabled;
+        return this;
+    }
+
+    public boolean isCopyProtocolEnabled()
+    {
+        return copyProtocolEnabled;
+    }
+
+    @Config("postgresql.materialized-view.max-concurrent-refreshes")
+    public PostgresqlConfig setMaxConcurrentMaterializedViewRefreshes(int maxConcurrentMaterializedViewRefreshes)
+    {
+        this.maxConcurrentMaterializedViewRefreshes = maxConcurrentMaterializedViewRefreshes;
+        return this;
+    }
+
+    public int getMaxConcurrentMaterializedViewRefreshes()
+    {
+        return maxConcurrentMaterializedViewRefreshes;
+    }
 }
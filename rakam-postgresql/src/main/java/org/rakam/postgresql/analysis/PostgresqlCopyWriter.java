@@ -0,0 +1,323 @@
+package org.rakam.postgresql.analysis;
+
+import org.apache.avro.generic.GenericRecord;
+import org.postgresql.copy.CopyIn;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.JsonHelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkProject;
+import static org.rakam.util.ValidationUtil.checkTableColumn;
+
+/**
+ * Encodes Avro records into the binary format of Postgresql COPY protocol and streams it to the server.
+ * See https://www.postgresql.org/docs/current/static/sql-copy.html for the file format.
+ */
+public class PostgresqlCopyWriter
+{
+    private static final byte[] HEADER = new byte[] {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0,
+            // flags
+            0, 0, 0, 0,
+            // header extension length
+            0, 0, 0, 0};
+    private static final int FLUSH_SIZE = 1 << 16;
+
+    private static final long POSTGRES_EPOCH_MILLIS = 946684800000L;
+    private static final int POSTGRES_EPOCH_DAYS = 10957;
+
+    private final CopyIn copyIn;
+    private final List<SchemaField> fields;
+    private final ByteArrayOutputStream buffer;
+    private final DataOutputStream out;
+    // reused for variable length values since the length must be written before the value
+    private final ByteArrayOutputStream valueBuffer;
+    private final DataOutputStream valueOut;
+
+    public PostgresqlCopyWriter(CopyIn copyIn, List<SchemaField> fields)
+            throws SQLException
+    {
+        this.copyIn = copyIn;
+        this.fields = fields;
+        this.buffer = new ByteArrayOutputStream(FLUSH_SIZE + 1024);
+        this.out = new DataOutputStream(buffer);
+        this.valueBuffer = new ByteArrayOutputStream(256);
+        this.valueOut = new DataOutputStream(valueBuffer);
+
+        copyIn.writeToCopy(HEADER, 0, HEADER.length);
+    }
+
+    public static String getCopyQuery(String project, String collection, List<SchemaField> fields)
+    {
+        return getCopyQuery(checkProject(project, '"') + "." + checkCollection(collection), fields);
+    }
+
+    public static String getCopyQuery(String table, List<SchemaField> fields)
+    {
+        StringBuilder query = new StringBuilder("COPY ")
+                .append(table)
+                .append(" (");
+
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0) {
+                query.append(", ");
+            }
+            query.append(checkTableColumn(fields.get(i).getName()));
+        }
+
+        return query.append(") FROM STDIN WITH (FORMAT BINARY)").toString();
+    }
+
+    public void write(GenericRecord record)
+            throws SQLException
+    {
+        try {
+            out.writeShort(fields.size());
+            for (SchemaField field : fields) {
+                writeValue(out, field.getType(), record.get(field.getName()));
+            }
+        }
+        catch (IOException e) {
+            throw new SQLException(e);
+        }
+
+        if (buffer.size() >= FLUSH_SIZE) {
+            flush();
+        }
+    }
+
+    public long finish()
+            throws SQLException
+    {
+        try {
+            out.writeShort(-1);
+        }
+        catch (IOException e) {
+            throw new SQLException(e);
+        }
+        flush();
+        return copyIn.endCopy();
+    }
+
+    public void cancel()
+    {
+        try {
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+        }
+        catch (SQLException e) {
+            // the connection will be discarded anyway
+        }
+    }
+
+    private void flush()
+            throws SQLException
+    {
+        copyIn.writeToCopy(buffer.toByteArray(), 0, buffer.size());
+        buffer.reset();
+    }
+
+    private void writeValue(DataOutputStream out, FieldType type, Object value)
+            throws IOException
+    {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        switch (type) {
+            case STRING:
+                writeBytes(out, value.toString().getBytes(StandardCharsets.UTF_8));
+                break;
+            case LONG:
+                out.writeInt(8);
+                out.writeLong(((Number) value).longValue());
+                break;
+            case INTEGER:
+                out.writeInt(4);
+                out.writeInt(((Number) value).intValue());
+                break;
+            case DECIMAL:
+                valueBuffer.reset();
+                writeNumeric(valueOut, BigDecimal.valueOf(((Number) value).doubleValue()));
+                writeBytes(out, valueBuffer.toByteArray());
+                break;
+            case DOUBLE:
+                out.writeInt(8);
+                out.writeDouble(((Number) value).doubleValue());
+                break;
+            case TIMESTAMP:
+                long millis = ((Number) value).longValue();
+                if (millis < 0) {
+                    out.writeInt(-1);
+                }
+                else {
+                    out.writeInt(8);
+                    out.writeLong((millis - POSTGRES_EPOCH_MILLIS) * 1000);
+                }
+                break;
+            case TIME:
+                out.writeInt(8);
+                out.writeLong(((Number) value).intValue() * 1000000L);
+                break;
+            case DATE:
+                out.writeInt(4);
+                out.writeInt(((Number) value).intValue() - POSTGRES_EPOCH_DAYS);
+                break;
+            case BOOLEAN:
+                out.writeInt(1);
+                out.writeByte(((Boolean) value) ? 1 : 0);
+                break;
+            case BINARY:
+                if (value instanceof ByteBuffer) {
+                    ByteBuffer byteBuffer = ((ByteBuffer) value).duplicate();
+                    byte[] bytes = new byte[byteBuffer.remaining()];
+                    byteBuffer.get(bytes);
+                    writeBytes(out, bytes);
+                }
+                else {
+                    writeBytes(out, (byte[]) value);
+                }
+                break;
+            default:
+                if (type.isArray()) {
+                    // arrays may contain nested variable length values, encode them into a separate buffer
+                    ByteArrayOutputStream arrayBuffer = new ByteArrayOutputStream();
+                    writeArray(new DataOutputStream(arrayBuffer), type.getArrayElementType(), (List) value);
+                    writeBytes(out, arrayBuffer.toByteArray());
+                }
+                else if (type.isMap()) {
+                    byte[] json = JsonHelper.encode(value).getBytes(StandardCharsets.UTF_8);
+                    // jsonb binary format is the version number followed by the json text
+                    out.writeInt(json.length + 1);
+                    out.writeByte(1);
+                    out.write(json);
+                }
+                else {
+                    throw new UnsupportedOperationException();
+                }
+        }
+    }
+
+    private void writeArray(DataOutputStream out, FieldType elementType, List values)
+            throws IOException
+    {
+        boolean hasNull = false;
+        for (Object value : values) {
+            if (value == null) {
+                hasNull = true;
+                break;
+            }
+        }
+
+        // number of dimensions
+        out.writeInt(1);
+        out.writeInt(hasNull ? 1 : 0);
+        out.writeInt(getTypeOid(elementType));
+        out.writeInt(values.size());
+        // lower bound
+        out.writeInt(1);
+
+        for (Object value : values) {
+            writeValue(out, elementType, value);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes)
+            throws IOException
+    {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static void writeNumeric(DataOutputStream out, BigDecimal value)
+            throws IOException
+    {
+        BigDecimal abs = value.abs();
+        if (abs.scale() < 0) {
+            abs = abs.setScale(0);
+        }
+
+        String plain = abs.toPlainString();
+        int dot = plain.indexOf('.');
+        String integerPart = dot == -1 ? plain : plain.substring(0, dot);
+        String fractionPart = dot == -1 ? "" : plain.substring(dot + 1);
+
+        // numeric digits are base 10000, align both parts to groups of four decimal digits
+        StringBuilder digitString = new StringBuilder();
+        for (int i = 0; i < (4 - integerPart.length() % 4) % 4; i++) {
+            digitString.append('0');
+        }
+        digitString.append(integerPart);
+        int integerGroups = digitString.length() / 4;
+        digitString.append(fractionPart);
+        while (digitString.length() % 4 != 0) {
+            digitString.append('0');
+        }
+
+        short[] digits = new short[digitString.length() / 4];
+        for (int i = 0; i < digits.length; i++) {
+            digits[i] = Short.parseShort(digitString.substring(i * 4, i * 4 + 4));
+        }
+
+        int start = 0;
+        int end = digits.length;
+        int weight = integerGroups - 1;
+        while (start < end && digits[start] == 0) {
+            start++;
+            weight--;
+        }
+        while (end > start && digits[end - 1] == 0) {
+            end--;
+        }
+        if (start == end) {
+            weight = 0;
+        }
+
+        out.writeShort(end - start);
+        out.writeShort(weight);
+        out.writeShort(value.signum() < 0 ? 0x4000 : 0x0000);
+        out.writeShort(Math.max(abs.scale(), 0));
+        for (int i = start; i < end; i++) {
+            out.writeShort(digits[i]);
+        }
+    }
+
+    private static int getTypeOid(FieldType type)
+    {
+        switch (type) {
+            case BOOLEAN:
+                return 16;
+            case BINARY:
+                return 17;
+            case LONG:
+                return 20;
+            case INTEGER:
+                return 23;
+            case STRING:
+                return 25;
+            case DOUBLE:
+                return 701;
+            case DATE:
+                return 1082;
+            case TIME:
+                return 1083;
+            case TIMESTAMP:
+                return 1114;
+            case DECIMAL:
+                return 1700;
+            default:
+                throw new IllegalStateException("Array element type is not supported: " + type);
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package org.rakam.postgresql.analysis;
 
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import io.airlift.log.Logger;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericRecord;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
 import org.postgresql.util.PGobject;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.collection.Event;
@@ -14,8 +17,9 @@ import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
 import org.rakam.plugin.EventStore;
 import org.rakam.plugin.SyncEventStore;
+import org.rakam.postgresql.report.IncrementalContinuousQuery;
+import org.rakam.postgresql.report.PostgresqlContinuousQueryUpdater;
 import org.rakam.util.JsonHelper;
-import org.rakam.util.ValidationUtil;
 
 import javax.inject.Inject;
 
@@ -24,6 +28,7 @@ import java.sql.Connection;
 import java.sql.Date;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.time.LocalDate;
@@ -31,6 +36,7 @@ import java.time.LocalTime;
 import java.time.ZoneId;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -38,6 +44,8 @@ import java.util.TimeZone;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
+import static java.lang.String.format;
+import static org.rakam.util.ValidationUtil.checkCollection;
 import static org.rakam.util.ValidationUtil.checkProject;
 import static org.rakam.util.ValidationUtil.checkTableColumn;
 
@@ -46,25 +54,48 @@ public class PostgresqlEventStore
         implements SyncEventStore
 {
     private final static Logger LOGGER = Logger.get(PostgresqlEventStore.class);
+    // the events of the collections that have incremental continuous queries are stored in this table first
+    private static final String BATCH_TABLE = "\"$continuous_batch\"";
 
     private final Set<String> sourceFields;
     private final JDBCPoolDataSource connectionPool;
+    private final boolean copyProtocolEnabled;
+    private PostgresqlContinuousQueryUpdater continuousQueryUpdater;
     public static final Calendar UTC_CALENDAR = Calendar.getInstance(TimeZone.getTimeZone(ZoneId.of("UTC")));
 
+    public PostgresqlEventStore(JDBCPoolDataSource connectionPool, FieldDependency fieldDependency)
+    {
+        this(connectionPool, fieldDependency, new PostgresqlConfig());
+    }
+
     @Inject
-    public PostgresqlEventStore(@Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool, FieldDependency fieldDependency)
+    public PostgresqlEventStore(@Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool, FieldDependency fieldDependency, PostgresqlConfig config)
     {
         this.connectionPool = connectionPool;
         this.sourceFields = fieldDependency.dependentFields.keySet();
+        this.copyProtocolEnabled = config.isCopyProtocolEnabled();
+    }
+
+    @Inject
+    public void setContinuousQueryUpdater(PostgresqlContinuousQueryUpdater continuousQueryUpdater)
+    {
+        this.continuousQueryUpdater = continuousQueryUpdater;
     }
 
     @Override
     public void store(Event event)
     {
+        if (!getContinuousQueries(event.project(), event.collection()).isEmpty()) {
+            if (storeBatch(ImmutableList.of(event)).length > 0) {
+                throw new RuntimeException("Unable to store event");
+            }
+            return;
+        }
+
         GenericRecord record = event.properties();
         try (Connection connection = connectionPool.getConnection()) {
             Schema schema = event.properties().getSchema();
-            PreparedStatement ps = connection.prepareStatement(getQuery(event.project(), event.collection(), schema));
+            PreparedStatement ps = connection.prepareStatement(getQuery(getTableReference(event.project(), event.collection()), schema));
             bindParam(connection, ps, event.schema(), record);
             ps.executeUpdate();
         }
@@ -76,6 +107,10 @@ public class PostgresqlEventStore
     @Override
     public int[] storeBatch(List<Event> events)
     {
+        if (copyProtocolEnabled) {
+            return storeBatchWithCopy(events);
+        }
+
         Map<String, List<Event>> groupedByCollection = events.stream()
                 .collect(Collectors.groupingBy(Event::collection));
 
@@ -87,8 +122,14 @@ public class PostgresqlEventStore
                 List<Event> eventsForCollection = entry.getValue();
                 Event lastEvent = getLastEvent(eventsForCollection);
 
-                PreparedStatement ps = connection.prepareStatement(getQuery(lastEvent.project(),
-                        entry.getKey(), lastEvent.properties().getSchema()));
+                String table = getTableReference(lastEvent.project(), entry.getKey());
+                List<IncrementalContinuousQuery> continuousQueries = getContinuousQueries(lastEvent.project(), entry.getKey());
+                if (!continuousQueries.isEmpty()) {
+                    createBatchTable(connection, table);
+                }
+
+                PreparedStatement ps = connection.prepareStatement(getQuery(continuousQueries.isEmpty() ? table : BATCH_TABLE,
+                        lastEvent.properties().getSchema()));
 
                 for (int i = 0; i < eventsForCollection.size(); i++) {
                     Event event = eventsForCollection.get(i);
@@ -108,6 +149,9 @@ public class PostgresqlEventStore
                 }
 
                 ps.executeBatch();
+                if (!continuousQueries.isEmpty()) {
+                    mergeBatch(connection, table, continuousQueries);
+                }
 
                 connection.commit();
                 successfulCollections.compute(entry.getKey(), (k, v) -> eventsForCollection.size());
@@ -131,6 +175,118 @@ public class PostgresqlEventStore
         }
     }
 
+    private int[] storeBatchWithCopy(List<Event> events)
+    {
+        Map<String, List<Event>> groupedByCollection = events.stream()
+                .collect(Collectors.groupingBy(Event::collection));
+
+        Set<String> failedCollections = new HashSet<>();
+        // the collections whose events are committed, they must not be retried even if the connection fails later
+        Set<String> storedCollections = new HashSet<>();
+        try (Connection connection = connectionPool.getConnection()) {
+            CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+
+            for (Map.Entry<String, List<Event>> entry : groupedByCollection.entrySet()) {
+                List<Event> eventsForCollection = entry.getValue();
+                Event lastEvent = getLastEvent(eventsForCollection);
+                List<SchemaField> fields = lastEvent.schema().stream()
+                        .filter(field -> !sourceFields.contains(field.getName()))
+                        .collect(Collectors.toList());
+
+                String table = getTableReference(lastEvent.project(), entry.getKey());
+                List<IncrementalContinuousQuery> continuousQueries = getContinuousQueries(lastEvent.project(), entry.getKey());
+
+                // COPY is atomic, either all the events of the collection are stored or none of them.
+                PostgresqlCopyWriter writer = null;
+                try {
+                    if (!continuousQueries.isEmpty()) {
+                        connection.setAutoCommit(false);
+                        createBatchTable(connection, table);
+                    }
+
+                    writer = new PostgresqlCopyWriter(copyManager.copyIn(
+                            PostgresqlCopyWriter.getCopyQuery(continuousQueries.isEmpty() ? table : BATCH_TABLE, fields)), fields);
+                    for (Event event : eventsForCollection) {
+                        writer.write(event.properties());
+                    }
+                    writer.finish();
+
+                    if (!continuousQueries.isEmpty()) {
+                        mergeBatch(connection, table, continuousQueries);
+                        connection.commit();
+                    }
+                    storedCollections.add(entry.getKey());
+                }
+                // the writer may also fail with a runtime exception if a value doesn't match the type of its field
+                catch (SQLException | RuntimeException e) {
+                    if (writer != null) {
+                        writer.cancel();
+                    }
+                    if (!continuousQueries.isEmpty()) {
+                        connection.rollback();
+                    }
+                    if (!storedCollections.contains(entry.getKey())) {
+                        failedCollections.add(entry.getKey());
+                    }
+
+                    List<Event> sample = eventsForCollection.size() > 5 ? eventsForCollection.subList(0, 5) : eventsForCollection;
+                    LOGGER.error(e, "Error while storing events in Postgresql using COPY: " + sample);
+                }
+                finally {
+                    if (!continuousQueries.isEmpty()) {
+                        connection.setAutoCommit(true);
+                    }
+                }
+            }
+        }
+        catch (SQLException e) {
+            List<Event> sample = events.size() > 5 ? events.subList(0, 5) : events;
+            LOGGER.error(e, "Error while storing events in Postgresql using COPY: " + sample);
+            return IntStream.range(0, events.size())
+                    .filter(idx -> !storedCollections.contains(events.get(idx).collection()))
+                    .toArray();
+        }
+
+        if (failedCollections.isEmpty()) {
+            return EventStore.SUCCESSFUL_BATCH;
+        }
+
+        return IntStream.range(0, events.size())
+                .filter(idx -> failedCollections.contains(events.get(idx).collection()))
+                .toArray();
+    }
+
+    private List<IncrementalContinuousQuery> getContinuousQueries(String project, String collection)
+    {
+        if (continuousQueryUpdater == null) {
+            return ImmutableList.of();
+        }
+        return continuousQueryUpdater.getQueries(project, collection);
+    }
+
+    private void createBatchTable(Connection connection, String table)
+            throws SQLException
+    {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(format("CREATE TEMPORARY TABLE %s (LIKE %s INCLUDING DEFAULTS) ON COMMIT DROP", BATCH_TABLE, table));
+        }
+    }
+
+    // moves the events to the collection table and updates the continuous queries in the same transaction
+    private void mergeBatch(Connection connection, String table, List<IncrementalContinuousQuery> continuousQueries)
+            throws SQLException
+    {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(format("INSERT INTO %s SELECT * FROM %s", table, BATCH_TABLE));
+        }
+        continuousQueryUpdater.update(connection, continuousQueries, BATCH_TABLE);
+    }
+
+    private static String getTableReference(String project, String collection)
+    {
+        return checkProject(project, '"') + "." + checkCollection(collection);
+    }
+
     // get the event with the last schema
     private Event getLastEvent(List<Event> eventsForCollection)
     {
@@ -213,12 +369,10 @@ public class PostgresqlEventStore
         }
     }
 
-    private String getQuery(String project, String collection, Schema schema)
+    private String getQuery(String table, Schema schema)
     {
         StringBuilder query = new StringBuilder("INSERT INTO ")
-                .append(checkProject(project, '"'))
-                .append(".")
-                .append(ValidationUtil.checkCollection(collection));
+                .append(table);
         StringBuilder params = new StringBuilder();
         List<Schema.Field> fields = schema.getFields();
 
@@ -6,13 +6,15 @@ import com.facebook.presto.sql.tree.QualifiedName;
 import com.facebook.presto.sql.tree.Query;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.inject.name.Named;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.analysis.MaterializedViewRefreshScheduler;
 import org.rakam.analysis.MaterializedViewService;
 import org.rakam.analysis.datasource.CustomDataSource;
 import org.rakam.analysis.metadata.QueryMetadataStore;
 import org.rakam.config.ProjectConfig;
 import org.rakam.plugin.MaterializedView;
 import org.rakam.postgresql.report.PostgresqlQueryExecutor;
-import org.rakam.report.DelegateQueryExecution;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryResult;
 import org.rakam.util.AlreadyExistsException;
@@ -20,6 +22,7 @@ import org.rakam.util.JsonHelper;
 import org.rakam.util.NotExistsException;
 import org.rakam.util.RakamException;
 import org.rakam.util.SqlUtil;
+import org.rakam.util.lock.PostgresqlLockService;
 
 import javax.inject.Inject;
 
@@ -41,12 +44,16 @@ import static org.rakam.util.ValidationUtil.checkProject;
 public class PostgresqlMaterializedViewService extends MaterializedViewService {
     private final PostgresqlQueryExecutor queryExecutor;
     private final QueryMetadataStore database;
+    private final MaterializedViewRefreshScheduler refreshScheduler;
 
     @Inject
-    public PostgresqlMaterializedViewService(PostgresqlQueryExecutor queryExecutor, QueryMetadataStore database) {
+    public PostgresqlMaterializedViewService(PostgresqlQueryExecutor queryExecutor, QueryMetadataStore database, @Named("store.adapter.postgresql") JDBCPoolDataSource dataSource, PostgresqlConfig config) {
         super(database, queryExecutor, '"');
         this.queryExecutor = queryExecutor;
         this.database = database;
+        // the views are stored in the same database so its advisory locks are visible to all the nodes that refresh them
+        this.refreshScheduler = new MaterializedViewRefreshScheduler(new PostgresqlLockService(dataSource),
+                config.getMaxConcurrentMaterializedViewRefreshes());
     }
 
     @Override
@@ -125,73 +132,85 @@ public class PostgresqlMaterializedViewService extends MaterializedViewService {
 
     @Override
     public MaterializedViewExecution lockAndUpdateView(String project, MaterializedView materializedView) {
-        CompletableFuture<Instant> f = new CompletableFuture<>();
-
         String tableName = queryExecutor.formatTableReference(project,
                 QualifiedName.of("materialized", materializedView.tableName), Optional.empty(), ImmutableMap.of());
-        Query statement = (Query) SqlUtil.parseSql(materializedView.query);
 
-        Map<String, String> sessionProperties = new HashMap<>();
-        if (!materializedView.incremental) {
-            if (!materializedView.needsUpdate(Clock.systemUTC()) || !database.updateMaterializedView(project, materializedView, f)) {
-                return new MaterializedViewExecution(null, tableName);
-            }
+        // the view doesn't have any data until it's refreshed for the first time so the query waits for it
+        if (materializedView.lastUpdate == null) {
+            Instant now = Instant.now();
+            QueryExecution execution = refresh(project, materializedView, now);
+            // if an other node is running the first refresh, the query reads the data that it committed so far
+            return new MaterializedViewExecution(execution, readReference(project, materializedView, tableName, now));
+        }
 
-            String collection = checkCollection( MATERIALIZED_VIEW_PREFIX + materializedView.tableName);
-            QueryExecution execution = queryExecutor.executeRawStatement(format("REFRESH MATERIALIZED VIEW %s.%s ",
-                    project, collection));
-            DelegateQueryExecution delegateQueryExecution = new DelegateQueryExecution(execution, result -> {
-                f.complete(!result.isFailed() ? Instant.now() : null);
-                return result;
-            });
-            return new MaterializedViewExecution(delegateQueryExecution, tableName);
+        // the refresh updates the view in the background, the query reads the last refreshed data
+        Instant lastUpdate = materializedView.lastUpdate;
+        if (materializedView.needsUpdate(Clock.systemUTC())) {
+            refreshScheduler.schedule(project, materializedView, () -> refresh(project, materializedView, Instant.now()));
         }
-        else {
-            String materializedTableReference = tableName;
 
-            boolean willBeUpdated = database.updateMaterializedView(project, materializedView, f);
+        return new MaterializedViewExecution(null, readReference(project, materializedView, tableName, lastUpdate));
+    }
 
-            QueryExecution queryExecution;
-            Instant now = Instant.now();
-            if (willBeUpdated) {
-                String query = formatSql(statement,
-                        name -> {
-                            String predicate =  materializedView.lastUpdate != null ? format("between timezone('UTC', to_timestamp(%d)) and  timezone('UTC', to_timestamp(%d))",
-                                    materializedView.lastUpdate.getEpochSecond(), now.getEpochSecond()) :
-                                    format(" < timezone('UTC', to_timestamp(%d))", now.getEpochSecond());
+    private String readReference(String project, MaterializedView materializedView, String tableName, Instant lastUpdate) {
+        if (!materializedView.incremental || !materializedView.realTime) {
+            return tableName;
+        }
 
-                            String collection = queryExecutor.formatTableReference(project, name, Optional.empty(),
-                                    ImmutableMap.of());
-                            return format("(SELECT * FROM %s WHERE \"$server_time\" %s) data", collection, predicate);
-                        }, '"');
+        // the events that are collected after the last refresh are read from the collections
+        Query statement = (Query) SqlUtil.parseSql(materializedView.query);
+        String query = formatSql(statement,
+                name -> format("(SELECT * FROM %s WHERE \"$server_time\" > to_timestamp(%d)) data",
+                        queryExecutor.formatTableReference(project, name, Optional.empty(), ImmutableMap.of()),
+                        lastUpdate.getEpochSecond()), '"');
 
-                queryExecution = queryExecutor.executeRawStatement(format("INSERT INTO %s %s", materializedTableReference, query), sessionProperties);
-                queryExecution.getResult().thenAccept(result -> f.complete(!result.isFailed() ? now : null));
+        return format("(SELECT * from %s UNION ALL %s) data", tableName, query);
+    }
 
-            }
-            else {
-                queryExecution = QueryExecution.completedQueryExecution("", QueryResult.empty());
-                f.complete(materializedView.lastUpdate);
-            }
+    /**
+     * Starts the refresh of the view if it's not refreshed by an other node in the meantime, the last update time
+     * of the view is set when the refresh query is committed.
+     */
+    private QueryExecution refresh(String project, MaterializedView materializedView, Instant now) {
+        CompletableFuture<Instant> f = new CompletableFuture<>();
+        if (!database.updateMaterializedView(project, materializedView, f)) {
+            return null;
+        }
+        Instant lastUpdate = materializedView.lastUpdate;
 
-            String reference;
-            if (!willBeUpdated && !materializedView.realTime) {
-                reference = materializedTableReference;
+        QueryExecution execution;
+        try {
+            String collection = checkCollection(MATERIALIZED_VIEW_PREFIX + materializedView.tableName);
+            if (!materializedView.incremental) {
+                execution = queryExecutor.executeRawStatement(format("REFRESH MATERIALIZED VIEW %s.%s ",
+                        checkProject(project, '"'), collection));
             }
             else {
+                Query statement = (Query) SqlUtil.parseSql(materializedView.query);
                 String query = formatSql(statement,
                         name -> {
-                            String collection = format("(SELECT * FROM %s %s) data",
-                                    queryExecutor.formatTableReference(project, name, Optional.empty(), ImmutableMap.of()),
-                                    format("WHERE \"$server_time\" > to_timestamp(%d)",
-                                            ( materializedView.lastUpdate != null ?  materializedView.lastUpdate : now).getEpochSecond()));
-                            return collection;
+                            String predicate = lastUpdate != null ? format("between timezone('UTC', to_timestamp(%d)) and  timezone('UTC', to_timestamp(%d))",
+                                    lastUpdate.getEpochSecond(), now.getEpochSecond()) :
+                                    format(" < timezone('UTC', to_timestamp(%d))", now.getEpochSecond());
+
+                            String reference = queryExecutor.formatTableReference(project, name, Optional.empty(),
+                                    ImmutableMap.of());
+                            return format("(SELECT * FROM %s WHERE \"$server_time\" %s) data", reference, predicate);
                         }, '"');
 
-                reference = format("(SELECT * from %s UNION ALL %s) data", materializedTableReference, query);
+                execution = queryExecutor.executeRawStatement(format("INSERT INTO %s.%s %s",
+                        checkProject(project, '"'), collection, query));
             }
-
-            return new MaterializedViewExecution(queryExecution, reference);
         }
+        catch (RuntimeException e) {
+            // releases the row lock of the view
+            f.complete(null);
+            throw e;
+        }
+
+        Instant updateTime = materializedView.incremental ? now : null;
+        execution.getResult().whenComplete((result, ex) ->
+                f.complete(ex == null && !result.isFailed() ? (updateTime != null ? updateTime : Instant.now()) : null));
+        return execution;
     }
 }
@@ -15,7 +15,6 @@ import org.rakam.analysis.metadata.AbstractMetastore;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
 import org.rakam.util.NotExistsException;
-import org.rakam.util.ProjectCollection;
 import org.rakam.util.RakamException;
 import org.rakam.util.ValidationUtil;
 
@@ -50,7 +49,6 @@ import static org.rakam.util.ValidationUtil.stripName;
 public class PostgresqlMetastore
         extends AbstractMetastore
 {
-    private LoadingCache<ProjectCollection, List<SchemaField>> schemaCache;
     private LoadingCache<String, Set<String>> collectionCache;
     private final JDBCPoolDataSource connectionPool;
 
@@ -60,22 +58,6 @@ public class PostgresqlMetastore
         super(eventBus);
         this.connectionPool = connectionPool;
 
-        schemaCache = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES).build(new CacheLoader<ProjectCollection, List<SchemaField>>()
-        {
-            @Override
-            public List<SchemaField> load(ProjectCollection key)
-                    throws Exception
-            {
-                try (Connection conn = connectionPool.getConnection()) {
-                    List<SchemaField> schema = getSchema(conn, key.project, key.collection);
-                    if (schema == null) {
-                        return ImmutableList.of();
-                    }
-                    return schema;
-                }
-            }
-        });
-
         collectionCache = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES).build(new CacheLoader<String, Set<String>>()
         {
             @Override
@@ -166,12 +148,16 @@ public class PostgresqlMetastore
     }
 
     @Override
-    public List<SchemaField> getCollection(String project, String collection)
+    protected List<SchemaField> loadCollection(String project, String collection)
     {
-        try {
-            return schemaCache.get(new ProjectCollection(project, collection));
+        try (Connection conn = connectionPool.getConnection()) {
+            List<SchemaField> schema = getSchema(conn, project, collection);
+            if (schema == null) {
+                return ImmutableList.of();
+            }
+            return schema;
         }
-        catch (ExecutionException e) {
+        catch (SQLException e) {
             throw Throwables.propagate(e);
         }
     }
@@ -307,6 +293,8 @@ public class PostgresqlMetastore
                         .map(f -> format("ADD COLUMN %s %s NULL", checkTableColumn(f.getName()), toSql(f.getType())))
                         .collect(Collectors.joining(", "));
                 if (queryEnd.isEmpty()) {
+                    // the fields may be created by the other nodes, the cached schema of this node may not have them
+                    super.invalidateCollection(project, collection);
                     return currentFields;
                 }
                 query = format("ALTER TABLE \"%s\".\"%s\" %s", project, collection, queryEnd);
@@ -318,7 +306,6 @@ public class PostgresqlMetastore
             statement.close();
             connection.commit();
             connection.setAutoCommit(true);
-            schemaCache.put(new ProjectCollection(project, collection), currentFields);
         }
         catch (SQLException e) {
             // syntax error exception
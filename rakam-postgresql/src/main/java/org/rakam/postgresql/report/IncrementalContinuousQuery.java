@@ -0,0 +1,357 @@
+package org.rakam.postgresql.report;
+
+import com.facebook.presto.sql.tree.AliasedRelation;
+import com.facebook.presto.sql.tree.DefaultTraversalVisitor;
+import com.facebook.presto.sql.tree.ExistsPredicate;
+import com.facebook.presto.sql.tree.Expression;
+import com.facebook.presto.sql.tree.FunctionCall;
+import com.facebook.presto.sql.tree.GroupingElement;
+import com.facebook.presto.sql.tree.Identifier;
+import com.facebook.presto.sql.tree.LongLiteral;
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.facebook.presto.sql.tree.Query;
+import com.facebook.presto.sql.tree.QuerySpecification;
+import com.facebook.presto.sql.tree.Relation;
+import com.facebook.presto.sql.tree.SelectItem;
+import com.facebook.presto.sql.tree.SimpleGroupBy;
+import com.facebook.presto.sql.tree.SingleColumn;
+import com.facebook.presto.sql.tree.SubqueryExpression;
+import com.facebook.presto.sql.tree.Table;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.rakam.plugin.ContinuousQuery;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.facebook.presto.sql.RakamSqlFormatter.formatExpression;
+import static java.lang.String.format;
+import static org.rakam.postgresql.report.PostgresqlQueryExecutor.CONTINUOUS_QUERY_PREFIX;
+import static org.rakam.postgresql.report.PostgresqlQueryExecutor.CONTINUOUS_QUERY_STATE_PREFIX;
+import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkProject;
+import static org.rakam.util.ValidationUtil.checkTableColumn;
+
+/**
+ * A continuous query whose result is maintained in a state table that is keyed by the GROUP BY columns of the query.
+ * Each batch of events is aggregated separately and merged into the state table, so only the queries
+ * in the form of {@code SELECT keys, aggregates FROM collection [WHERE ..] [GROUP BY keys]} with decomposable
+ * aggregates (count, sum, min, max and avg) are supported. The continuous query view reads the final values
+ * from the state table.
+ */
+public class IncrementalContinuousQuery
+{
+    private static final String GROUP_KEY_COLUMN = "\"$group_key\"";
+    private static final Set<String> AGGREGATIONS = ImmutableSet.of("count", "sum", "min", "max", "avg");
+    private static final Function<QualifiedName, String> NO_TABLES = name -> {
+        throw new IllegalStateException();
+    };
+
+    public final String project;
+    public final String tableName;
+    public final String collection;
+    private final String alias;
+    private final List<String> keys;
+    private final List<String> keyColumns;
+    private final List<String> partialColumns;
+    private final List<String> mergeExpressions;
+    private final List<String> finalColumns;
+    private final Optional<String> where;
+
+    private IncrementalContinuousQuery(String project, String tableName, String collection, String alias, List<String> keys, List<String> keyColumns, List<String> partialColumns, List<String> mergeExpressions, List<String> finalColumns, Optional<String> where)
+    {
+        this.project = project;
+        this.tableName = tableName;
+        this.collection = collection;
+        this.alias = alias;
+        this.keys = keys;
+        this.keyColumns = keyColumns;
+        this.partialColumns = partialColumns;
+        this.mergeExpressions = mergeExpressions;
+        this.finalColumns = finalColumns;
+        this.where = where;
+    }
+
+    /**
+     * Returns empty if the query can't be maintained incrementally.
+     */
+    public static Optional<IncrementalContinuousQuery> compile(String project, ContinuousQuery continuousQuery)
+    {
+        Query query = continuousQuery.getQuery();
+        if (query.getWith().isPresent() || query.getOrderBy().isPresent() || query.getLimit().isPresent()
+                || !(query.getQueryBody() instanceof QuerySpecification)) {
+            return Optional.empty();
+        }
+
+        QuerySpecification specification = (QuerySpecification) query.getQueryBody();
+        if (specification.getSelect().isDistinct() || specification.getHaving().isPresent()
+                || specification.getOrderBy().isPresent() || specification.getLimit().isPresent()
+                || !specification.getFrom().isPresent() || hasSubquery(query)) {
+            return Optional.empty();
+        }
+
+        Relation relation = specification.getFrom().get();
+        String alias = null;
+        if (relation instanceof AliasedRelation) {
+            alias = ((AliasedRelation) relation).getAlias();
+            relation = ((AliasedRelation) relation).getRelation();
+        }
+        if (!(relation instanceof Table)) {
+            return Optional.empty();
+        }
+
+        QualifiedName name = ((Table) relation).getName();
+        if (name.getPrefix().isPresent() && !name.getPrefix().get().toString().equals("collection")) {
+            return Optional.empty();
+        }
+        String collection = name.getSuffix();
+        if (collection.startsWith("_")) {
+            // _all, _users etc.
+            return Optional.empty();
+        }
+
+        List<Expression> keyExpressions = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        List<String> keyColumns = new ArrayList<>();
+        List<String> partialColumns = new ArrayList<>();
+        List<String> mergeExpressions = new ArrayList<>();
+        List<String> finalColumns = new ArrayList<>();
+
+        List<SelectItem> selectItems = specification.getSelect().getSelectItems();
+        for (SelectItem selectItem : selectItems) {
+            if (!(selectItem instanceof SingleColumn)) {
+                return Optional.empty();
+            }
+
+            SingleColumn column = (SingleColumn) selectItem;
+            String columnName;
+            if (column.getAlias().isPresent()) {
+                columnName = column.getAlias().get();
+            }
+            else if (column.getExpression() instanceof Identifier) {
+                columnName = ((Identifier) column.getExpression()).getValue();
+            }
+            else {
+                return Optional.empty();
+            }
+
+            String output = checkTableColumn(columnName);
+            Expression expression = column.getExpression();
+            // the other functions are either scalar functions or the aggregations that are not in GROUP BY
+            if (expression instanceof FunctionCall && AGGREGATIONS.contains(((FunctionCall) expression).getName().toString().toLowerCase(Locale.ENGLISH))) {
+                if (!addAggregation((FunctionCall) expression, output, partialColumns, mergeExpressions, finalColumns)) {
+                    return Optional.empty();
+                }
+            }
+            else {
+                keyExpressions.add(expression);
+                keys.add(formatExpression(expression, NO_TABLES, '"'));
+                keyColumns.add(output);
+                finalColumns.add(output);
+            }
+        }
+
+        // the rows must be grouped by the keys in the select list, otherwise the state table doesn't have one row
+        // for each row in the result
+        Set<Expression> groupBy = new HashSet<>();
+        if (specification.getGroupBy().isPresent()) {
+            if (specification.getGroupBy().get().isDistinct()) {
+                return Optional.empty();
+            }
+            for (GroupingElement element : specification.getGroupBy().get().getGroupingElements()) {
+                if (!(element instanceof SimpleGroupBy)) {
+                    return Optional.empty();
+                }
+                for (Expression expression : ((SimpleGroupBy) element).getColumnExpressions()) {
+                    if (expression instanceof LongLiteral) {
+                        long index = ((LongLiteral) expression).getValue();
+                        if (index < 1 || index > selectItems.size()) {
+                            return Optional.empty();
+                        }
+                        expression = ((SingleColumn) selectItems.get((int) index - 1)).getExpression();
+                    }
+                    groupBy.add(expression);
+                }
+            }
+        }
+        if (!groupBy.equals(new HashSet<>(keyExpressions)) || partialColumns.isEmpty()) {
+            return Optional.empty();
+        }
+
+        Optional<String> where = specification.getWhere().map(expression -> formatExpression(expression, NO_TABLES, '"'));
+
+        return Optional.of(new IncrementalContinuousQuery(project, continuousQuery.tableName, collection,
+                alias != null ? alias : collection, keys, keyColumns, partialColumns, mergeExpressions, finalColumns, where));
+    }
+
+    private static boolean addAggregation(FunctionCall call, String output, List<String> partialColumns, List<String> mergeExpressions, List<String> finalColumns)
+    {
+        if (call.isDistinct() || call.getWindow().isPresent() || call.getFilter().isPresent()
+                || call.getName().getParts().size() > 1 || call.getArguments().size() > 1) {
+            return false;
+        }
+
+        String function = call.getName().getSuffix().toLowerCase(Locale.ENGLISH);
+        String argument;
+        if (call.getArguments().isEmpty()) {
+            if (!function.equals("count")) {
+                return false;
+            }
+            argument = "*";
+        }
+        else {
+            argument = formatExpression(call.getArguments().get(0), NO_TABLES, '"');
+        }
+
+        String state = "\"$agg_" + partialColumns.size() + "\"";
+        switch (function) {
+            case "count":
+                partialColumns.add(format("count(%s) AS %s", argument, state));
+                mergeExpressions.add(format("%s = s.%s + excluded.%s", state, state, state));
+                finalColumns.add(format("%s AS %s", state, output));
+                return true;
+            case "sum":
+                partialColumns.add(format("sum(%s) AS %s", argument, state));
+                mergeExpressions.add(format("%s = coalesce(s.%s + excluded.%s, s.%s, excluded.%s)", state, state, state, state, state));
+                finalColumns.add(format("%s AS %s", state, output));
+                return true;
+            case "min":
+            case "max":
+                partialColumns.add(format("%s(%s) AS %s", function, argument, state));
+                mergeExpressions.add(format("%s = %s(s.%s, excluded.%s)", state, function.equals("min") ? "least" : "greatest", state, state));
+                finalColumns.add(format("%s AS %s", state, output));
+                return true;
+            case "avg":
+                String count = "\"$agg_" + (partialColumns.size() + 1) + "\"";
+                partialColumns.add(format("sum(%s) AS %s", argument, state));
+                partialColumns.add(format("count(%s) AS %s", argument, count));
+                mergeExpressions.add(format("%s = coalesce(s.%s + excluded.%s, s.%s, excluded.%s)", state, state, state, state, state));
+                mergeExpressions.add(format("%s = s.%s + excluded.%s", count, count, count));
+                // the same types as avg: numeric for the integers and double for the floating point numbers
+                finalColumns.add(format("%s / nullif(%s, 0)::numeric AS %s", state, count, output));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean hasSubquery(Query query)
+    {
+        boolean[] found = new boolean[1];
+        new DefaultTraversalVisitor<Void, Void>()
+        {
+            @Override
+            protected Void visitSubqueryExpression(SubqueryExpression node, Void context)
+            {
+                found[0] = true;
+                return null;
+            }
+
+            @Override
+            protected Void visitExists(ExistsPredicate node, Void context)
+            {
+                found[0] = true;
+                return null;
+            }
+        }.process(query.getQueryBody(), null);
+        return found[0];
+    }
+
+    public String getStateTable()
+    {
+        return checkProject(project, '"') + "." + checkCollection(CONTINUOUS_QUERY_STATE_PREFIX + tableName);
+    }
+
+    public String getCollectionTable()
+    {
+        return checkProject(project, '"') + "." + checkCollection(collection);
+    }
+
+    /**
+     * Creates the state table and the view that reads the state table in a single transaction. If the historical
+     * data is replayed, the existing events are aggregated into the state table.
+     */
+    public String createStatements(boolean replayHistoricalData)
+    {
+        String source = replayHistoricalData ? getCollectionTable() : format("(SELECT * FROM %s LIMIT 0)", getCollectionTable());
+        return ImmutableList.of(
+                format("CREATE TABLE %s AS %s WITH NO DATA", getStateTable(), partialQuery(format("(SELECT * FROM %s LIMIT 0)", getCollectionTable()))),
+                format("ALTER TABLE %s ADD PRIMARY KEY (%s)", getStateTable(), GROUP_KEY_COLUMN),
+                // the queries without GROUP BY have a single row even if there are no events
+                format("INSERT INTO %s %s", getStateTable(), partialQuery(source)),
+                format("CREATE VIEW %s.%s AS SELECT %s FROM %s", checkProject(project, '"'),
+                        checkCollection(CONTINUOUS_QUERY_PREFIX + tableName), finalColumns.stream().collect(Collectors.joining(", ")), getStateTable()))
+                .stream().collect(Collectors.joining(";\n"));
+    }
+
+    /**
+     * Aggregates the events of the collection into the state table again. The writes to the collection are blocked
+     * until the transaction is committed, so the state table is consistent with the events that are stored
+     * by the nodes that didn't merge them into the state table.
+     *
+     * @param since the events that are collected before this time are not aggregated, empty if the historical
+     * data is replayed
+     */
+    public String rebuildStatements(Optional<Instant> since)
+    {
+        String source = since.map(time -> format("(SELECT * FROM %s WHERE \"$server_time\" >= to_timestamp(%d))",
+                getCollectionTable(), time.getEpochSecond()))
+                .orElse(getCollectionTable());
+        return ImmutableList.of(
+                format("LOCK TABLE %s IN SHARE MODE", getCollectionTable()),
+                format("DELETE FROM %s", getStateTable()),
+                format("INSERT INTO %s %s", getStateTable(), partialQuery(source)))
+                .stream().collect(Collectors.joining(";\n"));
+    }
+
+    /**
+     * Aggregates the events in the table and merges them into the state table.
+     */
+    public String mergeStatement(String table)
+    {
+        return format("INSERT INTO %s AS s %s ORDER BY 1 ON CONFLICT (%s) DO UPDATE SET %s",
+                getStateTable(), partialQuery(table), GROUP_KEY_COLUMN,
+                mergeExpressions.stream().collect(Collectors.joining(", ")));
+    }
+
+    private String partialQuery(String source)
+    {
+        StringBuilder builder = new StringBuilder("SELECT ");
+        if (keys.isEmpty()) {
+            builder.append("'()'::text");
+        }
+        else {
+            // the text representation of the row distinguishes the null values so it can be used as primary key
+            builder.append("ROW(").append(keys.stream().collect(Collectors.joining(", "))).append(")::text");
+        }
+        builder.append(" AS ").append(GROUP_KEY_COLUMN);
+
+        for (int i = 0; i < keys.size(); i++) {
+            builder.append(", ").append(keys.get(i)).append(" AS ").append(keyColumns.get(i));
+        }
+        for (String column : partialColumns) {
+            builder.append(", ").append(column);
+        }
+
+        builder.append(" FROM ").append(source).append(' ').append(checkCollection(alias));
+        where.ifPresent(where -> builder.append(" WHERE ").append(where));
+
+        if (!keys.isEmpty()) {
+            builder.append(" GROUP BY ");
+            for (int i = 0; i < keys.size(); i++) {
+                if (i > 0) {
+                    builder.append(", ");
+                }
+                builder.append(i + 2);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -11,6 +11,7 @@ import org.rakam.collection.SchemaField;
 import org.rakam.report.QueryError;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryResult;
+import org.rakam.report.QueryResultSink;
 import org.rakam.report.QueryStats;
 import org.rakam.util.JsonHelper;
 import org.rakam.util.LogUtil;
@@ -53,15 +54,28 @@ public class JDBCQueryExecution
 {
     private final static Logger LOGGER = Logger.get(JDBCQueryExecution.class);
     private static final ZoneId UTC = ZoneId.of("UTC");
+    // the number of rows that are fetched from the database at once when the rows are streamed
+    private static final int STREAMING_FETCH_SIZE = 1000;
 
     private final CompletableFuture<QueryResult> result;
     private final String query;
     private final ZoneId zoneId;
-    private Statement statement;
+    private final QueryResultSink sink;
+    private volatile Statement statement;
 
     public JDBCQueryExecution(ConnectionFactory connectionPool, String query, boolean update, Optional<ZoneId> optionalZoneId, boolean applyZone)
+    {
+        this(connectionPool, query, update, optionalZoneId, applyZone, null);
+    }
+
+    /**
+     * If the sink is not null, the rows are fetched from the database in batches and passed to the sink
+     * instead of the result.
+     */
+    public JDBCQueryExecution(ConnectionFactory connectionPool, String query, boolean update, Optional<ZoneId> optionalZoneId, boolean applyZone, QueryResultSink sink)
     {
         this.query = query;
+        this.sink = sink;
         zoneId = applyZone ? optionalZoneId.map(v -> v == ZoneOffset.UTC ? UTC : v).orElse(UTC) : null;
 
         this.result = CompletableFuture.supplyAsync(() -> {
@@ -76,22 +90,36 @@ public class JDBCQueryExecution
                             ImmutableList.of(ImmutableList.of(true)));
                 }
                 else {
-                    long beforeExecuted = System.currentTimeMillis();
-                    String finalQuery;
-                    if(applyZone) {
-                        finalQuery = format("set time zone '%s'",
-                                checkLiteral(zoneId.getDisplayName(NARROW, ENGLISH))) + "; " + query;
-                    } else {
-                        finalQuery = query;
+                    if (sink != null) {
+                        // Postgresql driver fetches the rows using a cursor only inside a transaction
+                        connection.setAutoCommit(false);
+                        statement.setFetchSize(STREAMING_FETCH_SIZE);
                     }
 
-                    statement.execute(finalQuery);
-                    if(applyZone) {
-                        statement.getMoreResults();
+                    try {
+                        long beforeExecuted = System.currentTimeMillis();
+                        String finalQuery;
+                        if(applyZone) {
+                            finalQuery = format("set time zone '%s'",
+                                    checkLiteral(zoneId.getDisplayName(NARROW, ENGLISH))) + "; " + query;
+                        } else {
+                            finalQuery = query;
+                        }
+
+                        statement.execute(finalQuery);
+                        if(applyZone) {
+                            statement.getMoreResults();
+                        }
+                        ResultSet resultSet = statement.getResultSet();
+                        queryResult = resultSetToQueryResult(resultSet, System.currentTimeMillis() - beforeExecuted, connection);
+                    }
+                    finally {
+                        statement = null;
+                        if (sink != null) {
+                            connection.rollback();
+                            connection.setAutoCommit(true);
+                        }
                     }
-                    ResultSet resultSet = statement.getResultSet();
-                    statement = null;
-                    queryResult = resultSetToQueryResult(resultSet, System.currentTimeMillis() - beforeExecuted, connection);
                 }
             }
             catch (Exception e) {
@@ -171,6 +199,10 @@ public class JDBCQueryExecution
                 columns.add(new SchemaField(metaData.getColumnName(i), type));
             }
 
+            if (sink != null) {
+                sink.columns(columns);
+            }
+
             ImmutableList.Builder<List<Object>> builder = ImmutableList.builder();
             while (resultSet.next()) {
                 List<Object> rowBuilder = Arrays.asList(new Object[columnCount]);
@@ -267,9 +299,17 @@ public class JDBCQueryExecution
 
                     rowBuilder.set(i, object);
                 }
-                builder.add(rowBuilder);
+                if (sink != null) {
+                    sink.row(rowBuilder);
+                }
+                else {
+                    builder.add(rowBuilder);
+                }
             }
             data = builder.build();
+            if (sink != null) {
+                sink.finish();
+            }
 
             for (int i = 0; i < columns.size(); i++) {
                 if (columns.get(i) == null) {
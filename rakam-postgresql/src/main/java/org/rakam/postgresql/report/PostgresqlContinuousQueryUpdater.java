@@ -0,0 +1,191 @@
+package org.rakam.postgresql.report;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import io.airlift.log.Logger;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.analysis.metadata.QueryMetadataStore;
+import org.rakam.plugin.ContinuousQuery;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.rakam.postgresql.report.PostgresqlQueryExecutor.CONTINUOUS_QUERY_STATE_PREFIX;
+
+/**
+ * Merges the batches of events into the state tables of the incremental continuous queries in the transaction
+ * that stores the events, so the state tables are consistent with the collections.
+ * <p>
+ * The continuous queries of the projects are cached, the queries that are created on the other nodes start
+ * receiving the events of this node after {@link #CACHE_DURATION_SECONDS}. The node that creates the query
+ * rebuilds its state table after all the nodes load the query, see {@link #scheduleReconciliation}.
+ */
+@Singleton
+public class PostgresqlContinuousQueryUpdater
+{
+    private final static Logger LOGGER = Logger.get(PostgresqlContinuousQueryUpdater.class);
+    private static final int CACHE_DURATION_SECONDS = 10;
+    private static final String UNDEFINED_TABLE = "42P01";
+
+    private final JDBCPoolDataSource connectionPool;
+    private final QueryMetadataStore database;
+    private final LoadingCache<String, List<IncrementalContinuousQuery>> queries;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("continuous-query-reconciliation").setDaemon(true).build());
+
+    @Inject
+    public PostgresqlContinuousQueryUpdater(@Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool, QueryMetadataStore database)
+    {
+        this.connectionPool = connectionPool;
+        this.database = database;
+        this.queries = CacheBuilder.newBuilder()
+                .expireAfterWrite(CACHE_DURATION_SECONDS, SECONDS)
+                .build(new CacheLoader<String, List<IncrementalContinuousQuery>>()
+                {
+                    @Override
+                    public List<IncrementalContinuousQuery> load(String project)
+                            throws Exception
+                    {
+                        return loadQueries(project);
+                    }
+                });
+    }
+
+    public List<IncrementalContinuousQuery> getQueries(String project, String collection)
+    {
+        return queries.getUnchecked(project).stream()
+                .filter(query -> query.collection.equals(collection))
+                .collect(Collectors.toList());
+    }
+
+    public void invalidate(String project)
+    {
+        queries.invalidate(project);
+    }
+
+    /**
+     * The events that are stored by the other nodes until their caches expire are not merged into the state table of
+     * a new continuous query, so the state table is rebuilt from the collection when the caches of all
+     * the nodes contain the query. The events that are stored while the state table is rebuilt wait for it.
+     *
+     * @param since the creation time of the continuous query, empty if the historical data is replayed
+     */
+    public void scheduleReconciliation(IncrementalContinuousQuery query, Optional<Instant> since)
+    {
+        executor.schedule(() -> reconcile(query, since), CACHE_DURATION_SECONDS * 2, SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    private void reconcile(IncrementalContinuousQuery query, Optional<Instant> since)
+    {
+        try (Connection connection = connectionPool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(query.rebuildStatements(since));
+                connection.commit();
+            }
+            catch (SQLException e) {
+                connection.rollback();
+                // the continuous query is deleted in the meantime
+                if (!UNDEFINED_TABLE.equals(e.getSQLState())) {
+                    throw e;
+                }
+            }
+            finally {
+                connection.setAutoCommit(true);
+            }
+        }
+        catch (SQLException e) {
+            LOGGER.error(e, "Unable to rebuild the state of continuous query %s.%s", query.project, query.tableName);
+        }
+    }
+
+    /**
+     * Aggregates the events in the batch table and merges them into the state tables. The continuous queries that
+     * are deleted in the meantime are skipped.
+     */
+    public void update(Connection connection, List<IncrementalContinuousQuery> continuousQueries, String batchTable)
+            throws SQLException
+    {
+        for (IncrementalContinuousQuery query : continuousQueries) {
+            Savepoint savepoint = connection.setSavepoint();
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(query.mergeStatement(batchTable));
+                connection.releaseSavepoint(savepoint);
+            }
+            catch (SQLException e) {
+                if (!UNDEFINED_TABLE.equals(e.getSQLState())) {
+                    throw e;
+                }
+
+                connection.rollback(savepoint);
+                invalidate(query.project);
+            }
+        }
+    }
+
+    private List<IncrementalContinuousQuery> loadQueries(String project)
+            throws SQLException
+    {
+        List<ContinuousQuery> continuousQueries = database.getContinuousQueries(project);
+        if (continuousQueries.isEmpty()) {
+            return ImmutableList.of();
+        }
+
+        // the continuous queries that can't be maintained incrementally are plain views and don't have state tables
+        Set<String> stateTables = new HashSet<>();
+        try (Connection connection = connectionPool.getConnection()) {
+            PreparedStatement ps = connection.prepareStatement("SELECT c.relname FROM pg_class c " +
+                    "JOIN pg_namespace n ON (n.oid = c.relnamespace) WHERE n.nspname = ? AND c.relkind = 'r'");
+            ps.setString(1, project);
+            ResultSet resultSet = ps.executeQuery();
+            while (resultSet.next()) {
+                stateTables.add(resultSet.getString(1));
+            }
+        }
+
+        ImmutableList.Builder<IncrementalContinuousQuery> builder = ImmutableList.builder();
+        for (ContinuousQuery continuousQuery : continuousQueries) {
+            if (!stateTables.contains(CONTINUOUS_QUERY_STATE_PREFIX + continuousQuery.tableName)) {
+                continue;
+            }
+
+            Optional<IncrementalContinuousQuery> query;
+            try {
+                query = IncrementalContinuousQuery.compile(project, continuousQuery);
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Unable to compile continuous query %s.%s", project, continuousQuery.tableName);
+                continue;
+            }
+            query.ifPresent(builder::add);
+        }
+        return builder.build();
+    }
+}
@@ -16,6 +16,7 @@ import org.rakam.report.QueryExecutorService;
 import org.rakam.report.QueryResult;
 import org.rakam.util.RakamException;
 
+import java.time.Instant;
 import java.time.ZoneOffset;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.HashMap;
@@ -31,6 +32,7 @@ import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
 import static io.netty.handler.codec.http.HttpResponseStatus.NOT_IMPLEMENTED;
 import static org.rakam.postgresql.report.PostgresqlQueryExecutor.CONTINUOUS_QUERY_PREFIX;
+import static org.rakam.postgresql.report.PostgresqlQueryExecutor.CONTINUOUS_QUERY_STATE_PREFIX;
 import static org.rakam.util.ValidationUtil.checkCollection;
 import static org.rakam.util.ValidationUtil.checkProject;
 
@@ -39,6 +41,7 @@ public class PostgresqlPseudoContinuousQueryService
 {
     private final PostgresqlQueryExecutor executor;
     private final QueryExecutorService service;
+    private PostgresqlContinuousQueryUpdater updater;
 
     @Inject
     public PostgresqlPseudoContinuousQueryService(QueryMetadataStore database, QueryExecutorService service, PostgresqlQueryExecutor executor)
@@ -48,14 +51,39 @@ public class PostgresqlPseudoContinuousQueryService
         this.service = service;
     }
 
+    @Inject
+    public void setUpdater(PostgresqlContinuousQueryUpdater updater)
+    {
+        this.updater = updater;
+    }
+
+    /**
+     * The queries that only use decomposable aggregations are maintained in a state table that is updated
+     * when the events are stored, the other queries are created as views.
+     */
     @Override
     public QueryExecution create(String project, ContinuousQuery report, boolean replayHistoricalData)
     {
-        String query = service.buildQuery(project, report.query, Optional.empty(), "collection", null, new HashMap<>(), new HashMap<>());
-        String format = String.format("CREATE VIEW %s.%s AS %s", checkProject(project, '"'), checkCollection(CONTINUOUS_QUERY_PREFIX + report.tableName), query);
+        Optional<IncrementalContinuousQuery> incremental = IncrementalContinuousQuery.compile(project, report);
+        Instant createdAt = Instant.now();
+
+        String format;
+        if (incremental.isPresent()) {
+            format = incremental.get().createStatements(replayHistoricalData);
+        }
+        else {
+            String query = service.buildQuery(project, report.query, Optional.empty(), "collection", null, new HashMap<>(), new HashMap<>());
+            format = String.format("CREATE VIEW %s.%s AS %s", checkProject(project, '"'), checkCollection(CONTINUOUS_QUERY_PREFIX + report.tableName), query);
+        }
+
         return new DelegateQueryExecution(executor.executeRawStatement(format), result -> {
             if (!result.isFailed()) {
                 database.createContinuousQuery(project, report);
+                if (updater != null) {
+                    updater.invalidate(project);
+                    incremental.ifPresent(query -> updater.scheduleReconciliation(query,
+                            replayHistoricalData ? Optional.empty() : Optional.of(createdAt)));
+                }
             }
             else {
                 throw new RakamException(result.getError().toString(), BAD_REQUEST);
@@ -67,9 +95,14 @@ public class PostgresqlPseudoContinuousQueryService
     @Override
     public CompletableFuture<Boolean> delete(String project, String name)
     {
-        return executor.executeRawStatement(String.format("DROP VIEW %s.%s", checkProject(project), checkCollection(CONTINUOUS_QUERY_PREFIX + name))).getResult().thenApply(result -> {
+        String query = String.format("DROP VIEW %s.%s;\nDROP TABLE IF EXISTS %s.%s", checkProject(project), checkCollection(CONTINUOUS_QUERY_PREFIX + name),
+                checkProject(project), checkCollection(CONTINUOUS_QUERY_STATE_PREFIX + name));
+        return executor.executeRawStatement(query).getResult().thenApply(result -> {
             if (!result.isFailed()) {
                 database.deleteContinuousQuery(project, name);
+                if (updater != null) {
+                    updater.invalidate(project);
+                }
             }
             else {
                 throw new RakamException(result.getError().toString(), INTERNAL_SERVER_ERROR);
@@ -16,8 +16,10 @@ import org.rakam.analysis.datasource.SupportedCustomDatabase;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.collection.SchemaField;
 import org.rakam.config.ProjectConfig;
+import org.rakam.report.BufferedStreamingQueryExecution;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutor;
+import org.rakam.report.QueryResultSink;
 import org.rakam.report.QuerySampling;
 import org.rakam.util.JsonHelper;
 import org.rakam.util.RakamException;
@@ -59,6 +61,7 @@ public class PostgresqlQueryExecutor
     private final static Logger LOGGER = Logger.get(PostgresqlQueryExecutor.class);
     public final static String MATERIALIZED_VIEW_PREFIX = "$materialized_";
     public final static String CONTINUOUS_QUERY_PREFIX = "$view_";
+    public final static String CONTINUOUS_QUERY_STATE_PREFIX = "$state_";
 
     private final JDBCPoolDataSource connectionPool;
     protected static final ExecutorService QUERY_EXECUTOR = new ThreadPoolExecutor(0, 1000,
@@ -107,6 +110,15 @@ public class PostgresqlQueryExecutor
         return new JDBCQueryExecution(connectionPool::getConnection, query, false, Optional.ofNullable(zoneId), true);
     }
 
+    @Override
+    public QueryExecution executeRawQuery(String query, ZoneId zoneId, Map<String, String> sessionParameters, String apiKey, QueryResultSink sink)
+    {
+        if (sessionParameters.containsKey("remotedb")) {
+            return new BufferedStreamingQueryExecution(executeRawQuery(query, zoneId, sessionParameters, apiKey), sink);
+        }
+        return new JDBCQueryExecution(connectionPool::getConnection, query, false, Optional.ofNullable(zoneId), true, sink);
+    }
+
     @Override
     public QueryExecution executeRawQuery(String query, Map<String, String> sessionParameters)
     {
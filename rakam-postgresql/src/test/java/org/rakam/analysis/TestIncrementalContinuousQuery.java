@@ -0,0 +1,164 @@
+package org.rakam.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.rakam.plugin.ContinuousQuery;
+import org.rakam.postgresql.report.IncrementalContinuousQuery;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.time.Instant;
+import java.util.Optional;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestIncrementalContinuousQuery
+{
+    @DataProvider
+    public static Object[][] supportedQueries()
+    {
+        return new Object[][] {
+                {"select country, count(*) as total from pageview group by country"},
+                {"select country, count(*) as total from pageview group by 1"},
+                {"select country, city, sum(amount) as revenue from collection.purchase where amount > 0 group by 1, 2"},
+                {"select count(*) as total, sum(amount) as revenue from purchase"},
+                {"select p.country as country, avg(p.amount) as average from purchase p group by 1"},
+                {"select min(amount) as minimum, max(amount) as maximum from purchase"},
+        };
+    }
+
+    @DataProvider
+    public static Object[][] unsupportedQueries()
+    {
+        return new Object[][] {
+                // the group is not unique in the state table
+                {"select country, count(*) as total from pageview"},
+                {"select country, count(*) as total from pageview group by country, city"},
+                {"select count(*) as total from pageview group by country"},
+                // no aggregation
+                {"select country from pageview group by 1"},
+                // the output column doesn't have a name
+                {"select count(*) from pageview"},
+                // the aggregations that can't be merged
+                {"select count(distinct user_id) as users from pageview"},
+                {"select approx_distinct(user_id) as users from pageview"},
+                {"select country, count(*) over (partition by country) as total from pageview"},
+                // the results that depend on the whole data
+                {"select distinct country, count(*) as total from pageview group by 1"},
+                {"select country, count(*) as total from pageview group by 1 having count(*) > 10"},
+                {"select country, count(*) as total from pageview group by 1 order by 2 desc"},
+                {"select country, count(*) as total from pageview group by 1 limit 10"},
+                {"select country, count(*) as total from pageview where user_id in (select user_id from purchase) group by 1"},
+                // the relations other than a single collection
+                {"select count(*) as total from pageview join purchase on (pageview.user_id = purchase.user_id)"},
+                {"select count(*) as total from _all"},
+                {"select count(*) as total from materialized.daily"},
+                {"select count(*) as total from (select * from pageview) data"},
+        };
+    }
+
+    @Test(dataProvider = "supportedQueries")
+    public void testSupported(String query)
+    {
+        assertTrue(compile(query).isPresent(), query);
+    }
+
+    @Test(dataProvider = "unsupportedQueries")
+    public void testUnsupported(String query)
+    {
+        assertFalse(compile(query).isPresent(), query);
+    }
+
+    @Test
+    public void testCreateStatements()
+    {
+        IncrementalContinuousQuery query = compile("select country, count(*) as total from pageview group by 1").get();
+
+        assertEquals(query.collection, "pageview");
+        assertEquals(query.getStateTable(), "\"test\".\"$state_test\"");
+
+        String statements = query.createStatements(true);
+        assertTrue(statements.startsWith("CREATE TABLE \"test\".\"$state_test\" AS SELECT ROW("), statements);
+        assertTrue(statements.contains("ALTER TABLE \"test\".\"$state_test\" ADD PRIMARY KEY (\"$group_key\")"), statements);
+        assertTrue(statements.contains("INSERT INTO \"test\".\"$state_test\" SELECT ROW("), statements);
+        assertTrue(statements.contains("count(*) AS \"$agg_0\" FROM \"test\".\"pageview\" \"pageview\" GROUP BY 2"), statements);
+        assertTrue(statements.contains("CREATE VIEW \"test\".\"$view_test\" AS SELECT \"country\", \"$agg_0\" AS \"total\" FROM \"test\".\"$state_test\""), statements);
+
+        // the state table is empty if the historical data is not replayed
+        assertTrue(query.createStatements(false).contains("FROM (SELECT * FROM \"test\".\"pageview\" LIMIT 0) \"pageview\" GROUP BY 2"));
+    }
+
+    @Test
+    public void testQueryWithoutGroupBy()
+    {
+        IncrementalContinuousQuery query = compile("select count(*) as total from pageview where amount > 10").get();
+
+        // the state table has a single row
+        String merge = query.mergeStatement("batch");
+        assertTrue(merge.startsWith("INSERT INTO \"test\".\"$state_test\" AS s SELECT '()'::text AS \"$group_key\", count(*) AS \"$agg_0\" FROM batch \"pageview\" WHERE "), merge);
+        assertFalse(merge.contains("GROUP BY"), merge);
+    }
+
+    @Test
+    public void testMergeCount()
+    {
+        String merge = compile("select country, count(*) as total from pageview group by 1").get().mergeStatement("batch");
+
+        assertTrue(merge.contains(" FROM batch \"pageview\" GROUP BY 2 ORDER BY 1 ON CONFLICT (\"$group_key\") DO UPDATE SET "), merge);
+        assertTrue(merge.endsWith("DO UPDATE SET \"$agg_0\" = s.\"$agg_0\" + excluded.\"$agg_0\""), merge);
+    }
+
+    @Test
+    public void testMergeSum()
+    {
+        String merge = compile("select sum(amount) as revenue from purchase").get().mergeStatement("batch");
+
+        // the sum of a batch without any non-null values is null
+        assertTrue(merge.endsWith("DO UPDATE SET \"$agg_0\" = coalesce(s.\"$agg_0\" + excluded.\"$agg_0\", s.\"$agg_0\", excluded.\"$agg_0\")"), merge);
+    }
+
+    @Test
+    public void testMergeMinMax()
+    {
+        String merge = compile("select min(amount) as minimum, max(amount) as maximum from purchase").get().mergeStatement("batch");
+
+        assertTrue(merge.endsWith("DO UPDATE SET \"$agg_0\" = least(s.\"$agg_0\", excluded.\"$agg_0\"), " +
+                "\"$agg_1\" = greatest(s.\"$agg_1\", excluded.\"$agg_1\")"), merge);
+    }
+
+    @Test
+    public void testMergeAvg()
+    {
+        IncrementalContinuousQuery query = compile("select avg(amount) as average, count(*) as total from purchase").get();
+
+        // avg is kept as a sum and a count
+        String merge = query.mergeStatement("batch");
+        assertTrue(merge.contains("sum(\"amount\") AS \"$agg_0\", count(\"amount\") AS \"$agg_1\", count(*) AS \"$agg_2\""), merge);
+        assertTrue(merge.endsWith("DO UPDATE SET \"$agg_0\" = coalesce(s.\"$agg_0\" + excluded.\"$agg_0\", s.\"$agg_0\", excluded.\"$agg_0\"), " +
+                "\"$agg_1\" = s.\"$agg_1\" + excluded.\"$agg_1\", " +
+                "\"$agg_2\" = s.\"$agg_2\" + excluded.\"$agg_2\""), merge);
+
+        String statements = query.createStatements(true);
+        assertTrue(statements.contains("AS SELECT \"$agg_0\" / nullif(\"$agg_1\", 0)::numeric AS \"average\", \"$agg_2\" AS \"total\" FROM"), statements);
+    }
+
+    @Test
+    public void testRebuildStatements()
+    {
+        IncrementalContinuousQuery query = compile("select country, count(*) as total from pageview group by 1").get();
+
+        String replay = query.rebuildStatements(Optional.empty());
+        assertTrue(replay.startsWith("LOCK TABLE \"test\".\"pageview\" IN SHARE MODE;\nDELETE FROM \"test\".\"$state_test\";\nINSERT INTO \"test\".\"$state_test\" SELECT "), replay);
+        assertTrue(replay.contains(" FROM \"test\".\"pageview\" \"pageview\" GROUP BY 2"), replay);
+
+        String since = query.rebuildStatements(Optional.of(Instant.ofEpochSecond(1000)));
+        assertTrue(since.contains(" FROM (SELECT * FROM \"test\".\"pageview\" WHERE \"$server_time\" >= to_timestamp(1000)) \"pageview\" GROUP BY 2"), since);
+    }
+
+    private static Optional<IncrementalContinuousQuery> compile(String query)
+    {
+        return IncrementalContinuousQuery.compile("test", new ContinuousQuery("test", "test", query, ImmutableList.of(), ImmutableMap.of()));
+    }
+}
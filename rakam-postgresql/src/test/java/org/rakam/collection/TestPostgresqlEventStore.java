@@ -0,0 +1,148 @@
+package org.rakam.collection;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.eventbus.EventBus;
+import org.rakam.EventBuilder;
+import org.rakam.TestingEnvironment;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.plugin.EventStore;
+import org.rakam.postgresql.analysis.PostgresqlConfig;
+import org.rakam.postgresql.analysis.PostgresqlEventStore;
+import org.rakam.postgresql.analysis.PostgresqlMetastore;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestPostgresqlEventStore
+{
+    private static final String PROJECT_NAME = "copy_test";
+
+    private JDBCPoolDataSource dataSource;
+    private PostgresqlMetastore metastore;
+    private PostgresqlEventStore eventStore;
+
+    @BeforeSuite
+    public void setUp()
+            throws Exception
+    {
+        TestingEnvironment testingEnvironment = new TestingEnvironment();
+        dataSource = JDBCPoolDataSource.getOrCreateDataSource(testingEnvironment.getPostgresqlConfig(), "set time zone 'UTC'");
+        metastore = new PostgresqlMetastore(dataSource, new EventBus());
+        eventStore = new PostgresqlEventStore(dataSource, new FieldDependencyBuilder().build(),
+                new PostgresqlConfig().setCopyProtocolEnabled(true));
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        metastore.deleteProject(PROJECT_NAME);
+    }
+
+    @Test
+    public void testCopy()
+            throws Exception
+    {
+        metastore.createProject(PROJECT_NAME);
+        EventBuilder builder = new EventBuilder(PROJECT_NAME, metastore);
+
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            events.add(builder.createEvent(i % 2 == 0 ? "test0" : "test1", ImmutableMap.<String, Object>builder()
+                    .put("teststr", "test\t" + i + "\n")
+                    .put("testnumber", (double) i)
+                    .put("testbool", i % 2 == 0)
+                    .put("testmap", ImmutableMap.of("test" + i, (double) i))
+                    .put("testarray", ImmutableList.of((double) i))
+                    .put("_time", Instant.ofEpochSecond(i * 100)).build()));
+        }
+
+        assertEquals(eventStore.storeBatch(events), EventStore.SUCCESSFUL_BATCH);
+        assertEquals(count("test0"), 50);
+        assertEquals(count("test1"), 50);
+        assertEquals(query("SELECT teststr FROM \"" + PROJECT_NAME + "\".test0 WHERE testnumber = 2"), "test\t2\n");
+    }
+
+    @Test
+    public void testCopyFailsOnlyTheFailedCollection()
+            throws Exception
+    {
+        metastore.createProject(PROJECT_NAME);
+        EventBuilder builder = new EventBuilder(PROJECT_NAME, metastore);
+
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            events.add(builder.createEvent(i % 2 == 0 ? "test0" : "test1", ImmutableMap.<String, Object>of("testnumber", (double) i)));
+        }
+
+        execute("DROP TABLE \"" + PROJECT_NAME + "\".test1");
+
+        int[] failedIndexes = eventStore.storeBatch(events);
+
+        assertEquals(IntStream.of(failedIndexes).boxed().collect(Collectors.toList()),
+                IntStream.range(0, 10).filter(i -> i % 2 == 1).boxed().collect(Collectors.toList()));
+        assertEquals(count("test0"), 5);
+    }
+
+    @Test
+    public void testCopyRecoversFromInvalidValue()
+            throws Exception
+    {
+        metastore.createProject(PROJECT_NAME);
+        EventBuilder builder = new EventBuilder(PROJECT_NAME, metastore);
+
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            events.add(builder.createEvent(i % 2 == 0 ? "test0" : "test1", ImmutableMap.<String, Object>of("testnumber", (double) i)));
+        }
+        // the writer fails with a ClassCastException instead of an SQLException
+        events.get(0).properties().put("testnumber", "invalid");
+
+        int[] failedIndexes = eventStore.storeBatch(events);
+
+        assertEquals(IntStream.of(failedIndexes).boxed().collect(Collectors.toList()),
+                IntStream.range(0, 10).filter(i -> i % 2 == 0).boxed().collect(Collectors.toList()));
+        assertEquals(count("test1"), 5);
+
+        events.get(0).properties().put("testnumber", 0.0);
+        assertEquals(eventStore.storeBatch(events.stream().filter(e -> e.collection().equals("test0")).collect(Collectors.toList())),
+                EventStore.SUCCESSFUL_BATCH);
+        assertEquals(count("test0"), 5);
+    }
+
+    private long count(String collection)
+            throws SQLException
+    {
+        return Long.parseLong(query("SELECT count(*) FROM \"" + PROJECT_NAME + "\"." + collection));
+    }
+
+    private String query(String query)
+            throws SQLException
+    {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            ResultSet resultSet = statement.executeQuery(query);
+            resultSet.next();
+            return resultSet.getString(1);
+        }
+    }
+
+    private void execute(String query)
+            throws SQLException
+    {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute(query);
+        }
+    }
+}
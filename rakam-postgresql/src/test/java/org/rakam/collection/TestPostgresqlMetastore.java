@@ -0,0 +1,70 @@
+package org.rakam.collection;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.EventBus;
+import org.rakam.TestingEnvironment;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.postgresql.analysis.PostgresqlMetastore;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestPostgresqlMetastore
+{
+    private static final String PROJECT_NAME = "schema_cache_test";
+
+    // the metastores have separate event buses like the metastores of different nodes
+    private PostgresqlMetastore metastore;
+    private PostgresqlMetastore otherNodeMetastore;
+
+    @BeforeSuite
+    public void setUp()
+            throws Exception
+    {
+        TestingEnvironment testingEnvironment = new TestingEnvironment();
+        JDBCPoolDataSource dataSource = JDBCPoolDataSource.getOrCreateDataSource(testingEnvironment.getPostgresqlConfig(), "set time zone 'UTC'");
+        metastore = new PostgresqlMetastore(dataSource, new EventBus());
+        otherNodeMetastore = new PostgresqlMetastore(dataSource, new EventBus());
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        metastore.deleteProject(PROJECT_NAME);
+    }
+
+    @Test
+    public void testMissingCollectionIsNotCached()
+            throws Exception
+    {
+        metastore.createProject(PROJECT_NAME);
+        assertTrue(metastore.getCollection(PROJECT_NAME, "test").isEmpty());
+
+        otherNodeMetastore.getOrCreateCollectionFieldList(PROJECT_NAME, "test", ImmutableSet.of(new SchemaField("test1", STRING)));
+
+        assertTrue(metastore.getCollection(PROJECT_NAME, "test").contains(new SchemaField("test1", STRING)));
+    }
+
+    @Test
+    public void testFieldsOfOtherNodesInvalidateTheSchema()
+            throws Exception
+    {
+        metastore.createProject(PROJECT_NAME);
+        metastore.getOrCreateCollectionFieldList(PROJECT_NAME, "test", ImmutableSet.of(new SchemaField("test1", STRING)));
+        assertEquals(metastore.getCollection(PROJECT_NAME, "test").size(), otherNodeMetastore.getCollection(PROJECT_NAME, "test").size());
+
+        SchemaField newField = new SchemaField("test2", STRING);
+        otherNodeMetastore.getOrCreateCollectionFieldList(PROJECT_NAME, "test", ImmutableSet.of(newField));
+        // no event is received from the other node
+        assertFalse(metastore.getCollection(PROJECT_NAME, "test").contains(newField));
+
+        // the field already exists, the cached schema is invalidated instead of creating it
+        assertTrue(metastore.getOrCreateCollectionFieldList(PROJECT_NAME, "test", ImmutableSet.of(newField)).contains(newField));
+        assertTrue(metastore.getCollection(PROJECT_NAME, "test").contains(newField));
+    }
+}
@@ -7,6 +7,7 @@ import org.rakam.util.ConditionalModule;
 import org.rakam.plugin.EventStore;
 import org.rakam.plugin.stream.EventStream;
 import org.rakam.plugin.RakamModule;
+import org.rakam.plugin.RawEventStore;
 
 import static io.airlift.configuration.ConfigurationModule.bindConfig;
 
@@ -20,7 +21,8 @@ public class KafkaCollectorModule extends RakamModule  {
                 .annotatedWith(Names.named("event.store.kafka"))
                 .prefixedWith("event.store.kafka")
                 .to(KafkaConfig.class);
-        binder.bind(EventStore.class).to(KafkaEventStore.class);
+        binder.bind(EventStore.class).annotatedWith(RawEventStore.class).to(KafkaEventStore.class);
+        binder.bind(KafkaOffsetLeader.class).asEagerSingleton();
         binder.bind(EventStream.class).to(KafkaStream.class);
     }
 
@@ -22,6 +22,8 @@ public class KafkaConfig
     private DataSize kafkaBufferSize = new DataSize(64, DataSize.Unit.KILOBYTE);
     private Duration commitInterval = Duration.valueOf("5s");
     private HostAndPort zookeeperNode;
+    private Duration linger = Duration.valueOf("5ms");
+    private DataSize batchSize = new DataSize(64, DataSize.Unit.KILOBYTE);
 
 //    @Size(min = 1)
     public Set<HostAndPort> getNodes()
@@ -83,6 +85,32 @@ public class KafkaConfig
         return this;
     }
 
+    public Duration getLinger()
+    {
+        return linger;
+    }
+
+    @Config("linger")
+    public KafkaConfig setLinger(String linger)
+    {
+        if(linger != null)
+            this.linger = Duration.valueOf(linger);
+        return this;
+    }
+
+    public DataSize getBatchSize()
+    {
+        return batchSize;
+    }
+
+    @Config("batch-size")
+    public KafkaConfig setBatchSize(String batchSize)
+    {
+        if(batchSize != null)
+            this.batchSize = DataSize.valueOf(batchSize);
+        return this;
+    }
+
     public HostAndPort getZookeeperNode() {
         return zookeeperNode;
     }
@@ -1,127 +1,169 @@
 package org.rakam.kafka.collection;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Sets;
 import com.google.common.net.HostAndPort;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import io.airlift.log.Logger;
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufOutputStream;
-import io.netty.buffer.Unpooled;
-import kafka.common.FailedToSendMessageException;
-import kafka.javaapi.producer.Producer;
-import kafka.producer.KeyedMessage;
-import kafka.producer.ProducerConfig;
+import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.SourceFilteredRecordWriter;
 import org.apache.avro.io.BinaryEncoder;
 import org.apache.avro.io.EncoderFactory;
-import org.apache.curator.framework.CuratorFramework;
-import org.apache.curator.framework.CuratorFrameworkFactory;
-import org.apache.curator.framework.recipes.leader.LeaderSelector;
-import org.apache.curator.framework.recipes.leader.LeaderSelectorListener;
-import org.apache.curator.framework.state.ConnectionState;
-import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.rakam.collection.Event;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.SchemaField;
+import org.rakam.plugin.BatchStoreResult;
 import org.rakam.plugin.EventStore;
-import org.rakam.plugin.SyncEventStore;
+import org.rakam.util.RakamException;
 
 import javax.inject.Inject;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static java.lang.String.format;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
 
 @Singleton
-public class KafkaEventStore implements SyncEventStore, LeaderSelectorListener {
+public class KafkaEventStore implements EventStore {
     private final static Logger LOGGER = Logger.get(KafkaEventStore.class);
-    private final static String ZK_OFFSET_PATH = "/collectionOffsets";
+    // the buffers of the threads that encode large events are not kept
+    private final static int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
 
     private final Producer<byte[], byte[]> producer;
     private final Set<String> sourceFields;
-    private ScheduledExecutorService executorService;
+    // the writers don't keep state between the writes, the schemas are shared by the events of a collection
+    private final LoadingCache<Schema, GenericDatumWriter> writers;
+    private final ThreadLocal<EncodingBuffer> buffers = ThreadLocal.withInitial(EncodingBuffer::new);
 
     @Inject
     public KafkaEventStore(@Named("event.store.kafka") KafkaConfig config, FieldDependencyBuilder.FieldDependency fieldDependency) {
-        config = checkNotNull(config, "config is null");
+        this(fieldDependency, createProducer(checkNotNull(config, "config is null")));
+    }
+
+    public KafkaEventStore(FieldDependencyBuilder.FieldDependency fieldDependency, Producer<byte[], byte[]> producer) {
         this.sourceFields = Sets.union(fieldDependency.dependentFields.keySet(),
                 fieldDependency.constantFields.stream().map(SchemaField::getName)
                         .collect(Collectors.toSet()));
+        this.producer = producer;
+        this.writers = CacheBuilder.newBuilder().weakKeys()
+                .build(CacheLoader.from(schema -> new SourceFilteredRecordWriter(schema, GenericData.get(), sourceFields)));
+    }
 
+    private static Producer<byte[], byte[]> createProducer(KafkaConfig config) {
         Properties props = new Properties();
-        props.put("metadata.broker.list", config.getNodes().stream().map(HostAndPort::toString).collect(Collectors.joining(",")));
-        props.put("serializer.class", config.SERIALIZER);
+        props.put("bootstrap.servers", config.getNodes().stream().map(HostAndPort::toString).collect(Collectors.joining(",")));
+        props.put("linger.ms", String.valueOf(config.getLinger().toMillis()));
+        props.put("batch.size", String.valueOf(config.getBatchSize().toBytes()));
+        props.put("acks", "1");
 
-        ProducerConfig producerConfig = new ProducerConfig(props);
-        this.producer = new Producer(producerConfig);
-
-        CuratorFramework client = CuratorFrameworkFactory.newClient(config.getZookeeperNode().toString(),
-                new ExponentialBackoffRetry(1000, 3));
-        client.start();
-
-        try {
-            if(client.checkExists().forPath(ZK_OFFSET_PATH) == null)
-                client.create().forPath(ZK_OFFSET_PATH);
-        } catch (Exception e) {
-            LOGGER.error(e, format("Couldn't create event offset path %s", ZK_OFFSET_PATH));
-        }
+        return new KafkaProducer<>(props, new ByteArraySerializer(), new ByteArraySerializer());
+    }
 
-        new LeaderSelector(client, ZK_OFFSET_PATH, this).start();
+    @Override
+    public CompletableFuture<Void> storeAsync(Event event) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        send(event, getTopic(event), (metadata, e) -> {
+            if (e != null) {
+                LOGGER.error(e, "Couldn't send event to Kafka");
+                future.completeExceptionally(new RakamException("Couldn't send event to Kafka", INTERNAL_SERVER_ERROR));
+            }
+            else {
+                future.complete(null);
+            }
+        });
+        return future;
     }
 
     @Override
-    public void store(Event event) {
-        GenericDatumWriter writer = new SourceFilteredRecordWriter(event.properties().getSchema(), GenericData.get(), sourceFields);
-        ByteBuf buffer = Unpooled.buffer(100);
+    public CompletableFuture<int[]> storeBatchAsync(List<Event> events) {
+        BatchStoreResult result = new BatchStoreResult(events.size());
+
+        // the events of a topic are sent together so that they end up in the same producer batches
+        Map<String, List<Integer>> topics = new HashMap<>();
+        for (int i = 0; i < events.size(); i++) {
+            topics.computeIfAbsent(getTopic(events.get(i)), topic -> new ArrayList<>()).add(i);
+        }
 
-        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(
-                new ByteBufOutputStream(buffer), null);
+        for (Map.Entry<String, List<Integer>> entry : topics.entrySet()) {
+            for (int index : entry.getValue()) {
+                send(events.get(index), entry.getKey(), (metadata, e) -> {
+                    if (e != null) {
+                        LOGGER.error(e, "Couldn't send event to Kafka");
+                    }
+                    result.complete(index, e == null);
+                });
+            }
+        }
+
+        return result.getFuture();
+    }
 
+    private void send(Event event, String topic, Callback callback) {
+        byte[] data;
         try {
-            writer.write(event.properties(), encoder);
+            data = serialize(event);
         } catch (Exception e) {
-            throw new RuntimeException("Couldn't serialize event", e);
+            callback.onCompletion(null, e);
+            return;
         }
 
         try {
-            producer.send(new KeyedMessage<>(event.project()+"_"+event.collection(), buffer.array()));
-        } catch (FailedToSendMessageException e) {
-            throw new RuntimeException("Couldn't send event to Kafka", e);
+            producer.send(new ProducerRecord<>(topic, data), callback);
+        } catch (Exception e) {
+            callback.onCompletion(null, e);
         }
     }
 
-    @Override
-    public int[] storeBatch(List<Event> events) {
-        // TODO: implement this
-        events.forEach(this::store);
-        return EventStore.SUCCESSFUL_BATCH;
+    private byte[] serialize(Event event) throws IOException {
+        GenericDatumWriter writer = writers.getUnchecked(event.properties().getSchema());
+        EncodingBuffer buffer = buffers.get();
+        buffer.reset();
+        buffer.encoder = EncoderFactory.get().directBinaryEncoder(buffer, buffer.encoder);
+        writer.write(event.properties(), buffer.encoder);
+
+        // the producer keeps the value until the batch is sent, it's the only copy of the encoded event
+        byte[] data = buffer.toByteArray();
+        if (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            buffers.remove();
+        }
+        return data;
     }
 
-    @Override
-    public void takeLeadership(CuratorFramework curatorFramework) throws Exception {
-        if(executorService == null) {
-            ThreadFactory build = new ThreadFactoryBuilder()
-                    .setNameFormat("kafka-offset-worker").build();
-            executorService = Executors.newSingleThreadScheduledExecutor(build);
-        }
-//        executorService.scheduleAtFixedRate(kafkaManager::updateOffsets, updateInterval, updateInterval, TimeUnit.SECONDS);
+    private static String getTopic(Event event) {
+        return event.project() + "_" + event.collection();
     }
 
-    @Override
-    public void stateChanged(CuratorFramework curatorFramework, ConnectionState connectionState) {
-        if (!connectionState.isConnected() && executorService != null) {
-            executorService.shutdown();
-            executorService = null;
+    /**
+     * The per-thread buffer that the events are encoded to, it's reused so that only the value that's passed to
+     * the producer is allocated for an event.
+     */
+    private static class EncodingBuffer extends ByteArrayOutputStream {
+        private BinaryEncoder encoder;
+
+        private EncodingBuffer() {
+            super(256);
+        }
+
+        private int capacity() {
+            return buf.length;
         }
     }
 }
@@ -0,0 +1,93 @@
+package org.rakam.kafka.collection;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import io.airlift.log.Logger;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.leader.LeaderSelector;
+import org.apache.curator.framework.recipes.leader.LeaderSelectorListener;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.String.format;
+
+/**
+ * Elects the node that maintains the collection offsets in Zookeeper. It's independent of the event store
+ * so that the events can be sent to Kafka without a Zookeeper connection.
+ */
+@Singleton
+public class KafkaOffsetLeader implements LeaderSelectorListener {
+    private final static Logger LOGGER = Logger.get(KafkaOffsetLeader.class);
+    private final static String ZK_OFFSET_PATH = "/collectionOffsets";
+
+    private final KafkaConfig config;
+    private CuratorFramework client;
+    private LeaderSelector leaderSelector;
+    private ScheduledExecutorService executorService;
+
+    @Inject
+    public KafkaOffsetLeader(@Named("event.store.kafka") KafkaConfig config) {
+        this.config = checkNotNull(config, "config is null");
+    }
+
+    @PostConstruct
+    public void start() {
+        if (config.getZookeeperNode() == null) {
+            LOGGER.warn("event.store.kafka.zookeeper.connect is not set, the collection offsets are not maintained");
+            return;
+        }
+
+        client = CuratorFrameworkFactory.newClient(config.getZookeeperNode().toString(),
+                new ExponentialBackoffRetry(1000, 3));
+        client.start();
+
+        try {
+            if (client.checkExists().forPath(ZK_OFFSET_PATH) == null) {
+                client.create().forPath(ZK_OFFSET_PATH);
+            }
+        } catch (Exception e) {
+            LOGGER.error(e, format("Couldn't create event offset path %s", ZK_OFFSET_PATH));
+        }
+
+        leaderSelector = new LeaderSelector(client, ZK_OFFSET_PATH, this);
+        leaderSelector.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (leaderSelector != null) {
+            leaderSelector.close();
+        }
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    @Override
+    public void takeLeadership(CuratorFramework curatorFramework) throws Exception {
+        if (executorService == null) {
+            ThreadFactory build = new ThreadFactoryBuilder()
+                    .setNameFormat("kafka-offset-worker").build();
+            executorService = Executors.newSingleThreadScheduledExecutor(build);
+        }
+//        executorService.scheduleAtFixedRate(kafkaManager::updateOffsets, updateInterval, updateInterval, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void stateChanged(CuratorFramework curatorFramework, ConnectionState connectionState) {
+        if (!connectionState.isConnected() && executorService != null) {
+            executorService.shutdown();
+            executorService = null;
+        }
+    }
+}
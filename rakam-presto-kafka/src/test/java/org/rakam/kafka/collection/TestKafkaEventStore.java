@@ -0,0 +1,87 @@
+package org.rakam.kafka.collection;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.rakam.collection.Event;
+import org.rakam.collection.FieldDependencyBuilder;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.AvroUtil;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestKafkaEventStore
+{
+    private static final List<SchemaField> FIELDS = ImmutableList.of(new SchemaField("value", STRING));
+    private static final Schema SCHEMA = AvroUtil.convertAvroSchema(FIELDS);
+
+    @Test
+    public void testStore()
+            throws Exception
+    {
+        MockProducer producer = new MockProducer(true);
+        KafkaEventStore eventStore = new KafkaEventStore(new FieldDependencyBuilder().build(), producer);
+
+        eventStore.storeAsync(event("test", "value")).join();
+
+        List<ProducerRecord<byte[], byte[]>> history = producer.history();
+        assertEquals(history.size(), 1);
+        assertEquals(history.get(0).topic(), "project_test");
+        assertEquals(decode(history.get(0).value()).get("value").toString(), "value");
+    }
+
+    @Test
+    public void testBatchReportsFailedEvents()
+            throws Exception
+    {
+        MockProducer producer = new MockProducer(false);
+        KafkaEventStore eventStore = new KafkaEventStore(new FieldDependencyBuilder().build(), producer);
+
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            events.add(event("test", "value" + i));
+        }
+
+        CompletableFuture<int[]> result = eventStore.storeBatchAsync(events);
+        assertEquals(producer.history().size(), 3);
+
+        assertTrue(producer.completeNext());
+        assertTrue(producer.errorNext(new RuntimeException()));
+        assertFalse(result.isDone());
+        assertTrue(producer.completeNext());
+
+        assertEquals(result.join(), new int[] {1});
+
+        // the reused encoding buffer doesn't leak the previous events into the values
+        for (int i = 0; i < 3; i++) {
+            assertEquals(decode(producer.history().get(i).value()).get("value").toString(), "value" + i);
+        }
+    }
+
+    private static Event event(String collection, String value)
+    {
+        GenericData.Record record = new GenericData.Record(SCHEMA);
+        record.put("value", value);
+        return new Event("project", collection, null, FIELDS, record);
+    }
+
+    private static GenericRecord decode(byte[] value)
+            throws IOException
+    {
+        return new GenericDatumReader<GenericRecord>(SCHEMA).read(null, DecoderFactory.get().binaryDecoder(value, null));
+    }
+}
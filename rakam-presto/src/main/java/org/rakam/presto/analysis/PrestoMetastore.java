@@ -18,7 +18,6 @@ import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
 import org.rakam.config.ProjectConfig;
 import org.rakam.util.NotExistsException;
-import org.rakam.util.ProjectCollection;
 import org.rakam.util.RakamException;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
@@ -60,7 +59,6 @@ public class PrestoMetastore
         extends PrestoAbstractMetastore
 {
     private final DBI dbi;
-    protected final LoadingCache<ProjectCollection, List<SchemaField>> schemaCache;
     protected final LoadingCache<String, Set<String>> collectionCache;
     protected final ConnectionFactory prestoConnectionFactory;
     protected final PrestoConfig config;
@@ -82,26 +80,6 @@ public class PrestoMetastore
                     config.getAddress().getHost(), config.getAddress().getPort()), properties);
         };
 
-        schemaCache = CacheBuilder.newBuilder().expireAfterWrite(20, TimeUnit.MINUTES)
-                .build(new CacheLoader<ProjectCollection, List<SchemaField>>()
-                {
-                    @Override
-                    public List<SchemaField> load(ProjectCollection key)
-                            throws Exception
-                    {
-                        try (Connection conn = prestoConnectionFactory.openConnection()) {
-                            ResultSet dbColumns = conn.getMetaData().getColumns(config.getColdStorageConnector(),
-                                    key.project, key.collection, null);
-                            List<SchemaField> schema = convertToSchema(dbColumns);
-
-                            if (schema == null) {
-                                return ImmutableList.of();
-                            }
-                            return schema;
-                        }
-                    }
-                });
-
         collectionCache = CacheBuilder.newBuilder().expireAfterWrite(20, TimeUnit.MINUTES).build(new CacheLoader<String, Set<String>>()
         {
             @Override
@@ -188,7 +166,7 @@ public class PrestoMetastore
 
         collectionCache.getUnchecked(project).stream()
                 .filter(table -> filter.test(table))
-                .forEach(table -> map.put(table, schemaCache.getUnchecked(new ProjectCollection(project, table))));
+                .forEach(table -> map.put(table, getCollection(project, table)));
 
         return map;
     }
@@ -218,12 +196,19 @@ public class PrestoMetastore
     }
 
     @Override
-    public List<SchemaField> getCollection(String project, String collection)
+    protected List<SchemaField> loadCollection(String project, String collection)
     {
-        try {
-            return schemaCache.get(new ProjectCollection(project, collection));
+        try (Connection conn = prestoConnectionFactory.openConnection()) {
+            ResultSet dbColumns = conn.getMetaData().getColumns(config.getColdStorageConnector(),
+                    project, collection, null);
+            List<SchemaField> schema = convertToSchema(dbColumns);
+
+            if (schema == null) {
+                return ImmutableList.of();
+            }
+            return schema;
         }
-        catch (ExecutionException e) {
+        catch (SQLException e) {
             throw Throwables.propagate(e);
         }
     }
@@ -313,7 +298,6 @@ public class PrestoMetastore
             }
 
             task.run();
-            schemaCache.put(new ProjectCollection(project, collection), currentFields);
             return currentFields;
         }
         catch (SQLException e) {
@@ -332,7 +316,6 @@ public class PrestoMetastore
     public void clearCache()
     {
         collectionCache.cleanUp();
-        schemaCache.cleanUp();
     }
 
 
@@ -7,6 +7,7 @@ import com.facebook.presto.client.StatementClient;
 import com.facebook.presto.client.StatementStats;
 import com.facebook.presto.spi.type.StandardTypes;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.net.HostAndPort;
@@ -22,6 +23,7 @@ import org.rakam.collection.SchemaField;
 import org.rakam.report.QueryError;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryResult;
+import org.rakam.report.QueryResultSink;
 import org.rakam.report.QueryStats;
 import org.rakam.util.LogUtil;
 import org.rakam.util.RakamException;
@@ -77,6 +79,7 @@ public class PrestoQueryExecution
 
     private final List<List<Object>> data = Lists.newArrayList();
     private final String query;
+    private final QueryResultSink sink;
     private List<SchemaField> columns;
 
     private final CompletableFuture<QueryResult> result = new CompletableFuture<>();
@@ -87,9 +90,19 @@ public class PrestoQueryExecution
     private final Instant startTime;
 
     public PrestoQueryExecution(ClientSession session, String query)
+    {
+        this(session, query, null);
+    }
+
+    /**
+     * If the sink is not null, the rows are passed to the sink as the pages are fetched from Presto
+     * instead of the result.
+     */
+    public PrestoQueryExecution(ClientSession session, String query, QueryResultSink sink)
     {
         this.startTime = Instant.now();
         this.query = query;
+        this.sink = sink;
         try {
             QUERY_EXECUTOR.execute(new QueryTracker(session));
         }
@@ -252,6 +265,13 @@ public class PrestoQueryExecution
                 }
                 else {
                     transformAndAdd(client.finalResults());
+                    if (sink != null) {
+                        if (columns == null) {
+                            columns = ImmutableList.of();
+                            sink.columns(columns);
+                        }
+                        sink.finish();
+                    }
 
                     ImmutableMap<String, Object> stats = ImmutableMap.of(
                             QueryResult.EXECUTION_TIME, startTime.until(Instant.now(), ChronoUnit.MILLIS),
@@ -261,6 +281,9 @@ public class PrestoQueryExecution
                 }
             }
             catch (Exception e) {
+                if (!client.isClosed()) {
+                    client.close();
+                }
                 QueryError queryError = QueryError.create(e.getMessage());
                 LogUtil.logQueryError(query, queryError, PrestoQueryExecutor.class);
                 result.complete(QueryResult.errorResult(queryError, query));
@@ -283,6 +306,9 @@ public class PrestoQueryExecution
                                             .map(argument -> argument.getTypeSignature().getRawType()).iterator()));
                         })
                         .collect(Collectors.toList());
+                if (sink != null) {
+                    sink.columns(columns);
+                }
             }
 
             if (result.getData() == null) {
@@ -324,7 +350,12 @@ public class PrestoQueryExecution
                     }
                 }
 
-                data.add(Arrays.asList(row));
+                if (sink != null) {
+                    sink.row(Arrays.asList(row));
+                }
+                else {
+                    data.add(Arrays.asList(row));
+                }
             }
         }
     }
@@ -25,8 +25,10 @@ import org.rakam.presto.PrestoModule.UserConfig;
 import org.rakam.analysis.datasource.CustomDataSource;
 import org.rakam.analysis.datasource.JDBCSchemaConfig;
 import org.rakam.analysis.datasource.SupportedCustomDatabase;
+import org.rakam.report.BufferedStreamingQueryExecution;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutor;
+import org.rakam.report.QueryResultSink;
 import org.rakam.report.QuerySampling;
 import org.rakam.util.JsonHelper;
 import org.rakam.util.RakamException;
@@ -94,6 +96,15 @@ public class PrestoQueryExecutor
         return executeRawQuery(query, timezone, sessionParameters, null, apiKey);
     }
 
+    @Override
+    public QueryExecution executeRawQuery(String query, ZoneId timezone, Map<String, String> sessionParameters, String apiKey, QueryResultSink sink)
+    {
+        if (sessionParameters.containsKey("external.source_options")) {
+            return new BufferedStreamingQueryExecution(executeRawQuery(query, timezone, sessionParameters, apiKey), sink);
+        }
+        return new PrestoQueryExecution(createSession(null, timezone, sessionParameters, apiKey), query, sink);
+    }
+
     @Override
     public QueryExecution executeRawQuery(String query, Map<String, String> sessionProperties)
     {
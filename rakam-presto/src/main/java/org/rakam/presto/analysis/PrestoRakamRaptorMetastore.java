@@ -164,7 +164,7 @@ public class PrestoRakamRaptorMetastore
     public List<SchemaField> getOrCreateCollectionFields(String project, String collection, Set<SchemaField> fields, int tryCount)
     {
         String query;
-        List<SchemaField> schemaFields = getCollection(project, collection);
+        List<SchemaField> schemaFields = loadCollection(project, collection);
         List<SchemaField> lastFields;
         Table tableInformation = dao.getTableInformation(project, collection);
         if (schemaFields.isEmpty() && tableInformation == null) {
@@ -255,7 +255,7 @@ public class PrestoRakamRaptorMetastore
                         }
                     });
 
-            lastFields = getCollection(project, collection);
+            lastFields = loadCollection(project, collection);
         }
 
         super.onCreateCollection(project, collection, schemaFields);
@@ -358,7 +358,7 @@ public class PrestoRakamRaptorMetastore
     }
 
     @Override
-    public List<SchemaField> getCollection(String project, String collection)
+    protected List<SchemaField> loadCollection(String project, String collection)
     {
         return dao.listTableColumns(project, collection).stream()
                 .filter(a -> !a.getColumnName().startsWith("$"))
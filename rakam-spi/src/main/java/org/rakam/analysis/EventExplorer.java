@@ -164,6 +164,7 @@ public interface EventExplorer
         public final Set<String> dimensions;
         public final Set<AggregationType> aggregations;
         public final Set<String> measures;
+        public final boolean countAll;
         public final String tableName;
 
         @JsonCreator
@@ -171,6 +172,7 @@ public interface EventExplorer
                 @ApiParam("dimensions") Set<String> dimensions,
                 @ApiParam("aggregations") Set<AggregationType> aggregations,
                 @ApiParam("measures") Set<String> measures,
+                @ApiParam(value = "countAll", description = "Store the number of events in order to answer the queries that count all the events", required = false) Boolean countAll,
                 @ApiParam("tableName") String tableName)
         {
             checkCollection(tableName);
@@ -178,6 +180,7 @@ public interface EventExplorer
             this.dimensions = dimensions;
             this.aggregations = aggregations;
             this.measures = measures;
+            this.countAll = countAll == null ? false : countAll;
             this.tableName = tableName;
         }
     }
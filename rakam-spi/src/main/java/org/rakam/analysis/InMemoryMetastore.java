@@ -55,7 +55,7 @@ public class InMemoryMetastore extends AbstractMetastore {
     }
 
     @Override
-    public List<SchemaField> getCollection(String project, String collection) {
+    protected List<SchemaField> loadCollection(String project, String collection) {
         return collections.getOrDefault(project, ImmutableMap.of()).getOrDefault(collection, ImmutableList.of());
     }
 
@@ -66,9 +66,13 @@ public class InMemoryMetastore extends AbstractMetastore {
             throw new NotExistsException("Project");
         }
         List<SchemaField> schemaFields = list.computeIfAbsent(collection, (key) -> new ArrayList<>());
-        fields.stream()
+        List<SchemaField> newFields = fields.stream()
                 .filter(field -> !schemaFields.stream().anyMatch(f -> f.getName().equals(field.getName())))
-                .forEach(schemaFields::add);
+                .collect(Collectors.toList());
+        schemaFields.addAll(newFields);
+        if (!newFields.isEmpty()) {
+            super.onCreateCollectionField(project, collection, newFields);
+        }
         return schemaFields;
     }
 
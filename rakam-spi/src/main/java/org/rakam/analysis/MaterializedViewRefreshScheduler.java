@@ -0,0 +1,101 @@
+package org.rakam.analysis;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import org.rakam.plugin.MaterializedView;
+import org.rakam.report.QueryExecution;
+import org.rakam.report.QueryResult;
+import org.rakam.util.ProjectCollection;
+import org.rakam.util.lock.LockService;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+import static java.lang.String.format;
+
+/**
+ * Refreshes the materialized views in the background so that the queries read the last refreshed data instead of
+ * waiting for the refresh. A view is refreshed by at most one thread in the cluster at a time: the refreshes that
+ * are triggered while the view is being refreshed on this node are ignored and the ones on the other nodes
+ * are skipped when they can't acquire the lock of the view.
+ */
+public class MaterializedViewRefreshScheduler
+{
+    private final static Logger LOGGER = Logger.get(MaterializedViewRefreshScheduler.class);
+
+    private final LockService lockService;
+    private final ExecutorService executor;
+    private final Set<ProjectCollection> refreshingViews = ConcurrentHashMap.newKeySet();
+
+    public MaterializedViewRefreshScheduler(LockService lockService, int maxConcurrentRefreshes)
+    {
+        this.lockService = lockService;
+        this.executor = Executors.newFixedThreadPool(maxConcurrentRefreshes, new ThreadFactoryBuilder()
+                .setNameFormat("materialized-view-refresh-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Runs the refresh in the background unless the view is already being refreshed.
+     *
+     * @param refresh starts the refresh query, returns null if the view doesn't need to be refreshed anymore
+     */
+    public void schedule(String project, MaterializedView view, Supplier<QueryExecution> refresh)
+    {
+        ProjectCollection key = new ProjectCollection(project, view.tableName);
+        if (!refreshingViews.add(key)) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    refresh(key, refresh);
+                }
+                finally {
+                    refreshingViews.remove(key);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            refreshingViews.remove(key);
+        }
+    }
+
+    private void refresh(ProjectCollection key, Supplier<QueryExecution> refresh)
+    {
+        LockService.Lock lock;
+        try {
+            lock = lockService.tryLock(format("materialized_view.%s.%s", key.project, key.collection));
+        }
+        catch (Exception e) {
+            LOGGER.error(e, "Unable to acquire the lock of materialized view %s.%s", key.project, key.collection);
+            return;
+        }
+
+        if (lock == null) {
+            return;
+        }
+
+        try {
+            QueryExecution execution = refresh.get();
+            if (execution == null) {
+                return;
+            }
+
+            QueryResult result = execution.getResult().join();
+            if (result.isFailed()) {
+                LOGGER.warn("Error while refreshing materialized view %s.%s: %s", key.project, key.collection, result.getError().message);
+            }
+        }
+        catch (Exception e) {
+            LOGGER.error(e, "Error while refreshing materialized view %s.%s", key.project, key.collection);
+        }
+        finally {
+            lock.release();
+        }
+    }
+}
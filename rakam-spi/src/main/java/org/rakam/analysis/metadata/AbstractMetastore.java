@@ -1,11 +1,15 @@
 package org.rakam.analysis.metadata;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.eventbus.EventBus;
 import org.rakam.collection.FieldDependencyBuilder.FieldDependency;
 import org.rakam.collection.SchemaField;
 import org.rakam.plugin.SystemEvents;
 import org.rakam.plugin.SystemEvents.ProjectCreatedEvent;
 import org.rakam.util.NotExistsException;
+import org.rakam.util.ProjectCollection;
 import org.rakam.util.RakamException;
 import org.rakam.util.ValidationUtil;
 
@@ -16,6 +20,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
@@ -25,12 +30,61 @@ public abstract class AbstractMetastore
         implements Metastore
 {
     private final EventBus eventBus;
+    // the schemas are invalidated when the fields are added. The fields that are added by the other nodes are picked up
+    // when this node sees them, since getOrCreateCollectionFieldList is called for the fields that are not in the schema
+    private final Cache<ProjectCollection, List<SchemaField>> schemaCache = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .build();
+    // incremented on each invalidation so that a schema loaded before the invalidation is not cached
+    private final AtomicLong schemaVersion = new AtomicLong();
 
     public AbstractMetastore(EventBus eventBus)
     {
         this.eventBus = eventBus;
     }
 
+    /**
+     * Reads the schema of the collection from the underlying storage, {@link #getCollection(String, String)}
+     * caches the result until the collection is changed.
+     */
+    protected abstract List<SchemaField> loadCollection(String project, String collection);
+
+    @Override
+    public List<SchemaField> getCollection(String project, String collection)
+    {
+        ProjectCollection key = new ProjectCollection(project, collection);
+        List<SchemaField> fields = schemaCache.getIfPresent(key);
+        if (fields != null) {
+            return fields;
+        }
+
+        long version = schemaVersion.get();
+        fields = ImmutableList.copyOf(loadCollection(project, collection));
+        // the collection may be created by the other nodes, the missing collections are not cached
+        if (fields.isEmpty()) {
+            return fields;
+        }
+
+        synchronized (schemaVersion) {
+            if (schemaVersion.get() == version) {
+                schemaCache.put(key, fields);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * The implementations call it when they find out that the schema is changed without posting an event,
+     * such as when the fields are already created by the other nodes.
+     */
+    protected void invalidateCollection(String project, String collection)
+    {
+        synchronized (schemaVersion) {
+            schemaVersion.incrementAndGet();
+            schemaCache.invalidate(new ProjectCollection(project, collection));
+        }
+    }
+
     protected void onCreateProject(String project)
     {
         eventBus.post(new ProjectCreatedEvent(project));
@@ -38,16 +92,22 @@ public abstract class AbstractMetastore
 
     protected void onDeleteProject(String project)
     {
+        synchronized (schemaVersion) {
+            schemaVersion.incrementAndGet();
+            schemaCache.asMap().keySet().removeIf(key -> key.project.equals(project));
+        }
         eventBus.post(new SystemEvents.ProjectDeletedEvent(project));
     }
 
     protected void onCreateCollection(String project, String collection, List<SchemaField> fields)
     {
+        invalidateCollection(project, collection);
         eventBus.post(new SystemEvents.CollectionCreatedEvent(project, collection, fields));
     }
 
     protected void onCreateCollectionField(String project, String collection, List<SchemaField> fields)
     {
+        invalidateCollection(project, collection);
         eventBus.post(new SystemEvents.CollectionFieldCreatedEvent(project, collection, fields));
     }
 
@@ -56,7 +116,14 @@ public abstract class AbstractMetastore
             throws NotExistsException
     {
         ValidationUtil.checkCollectionValid(collection);
-        return getOrCreateCollectionFields(project, collection, fieldList);
+        List<SchemaField> fields = getOrCreateCollectionFields(project, collection, fieldList);
+
+        // the fields may already be created by the other nodes, in that case no event is posted
+        List<SchemaField> cached = schemaCache.getIfPresent(new ProjectCollection(project, collection));
+        if (cached != null && !cached.containsAll(fields)) {
+            invalidateCollection(project, collection);
+        }
+        return fields;
     }
 
     public abstract List<SchemaField> getOrCreateCollectionFields(String project, String collection, Set<SchemaField> fields);
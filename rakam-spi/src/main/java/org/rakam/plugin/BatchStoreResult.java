@@ -0,0 +1,56 @@
+package org.rakam.plugin;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.rakam.plugin.EventStore.SUCCESSFUL_BATCH;
+
+/**
+ * Collects the asynchronous results of the events of a batch for {@link EventStore#storeBatchAsync(java.util.List)}.
+ * The future completes with the indexes of the failed events after the results of all the events are known.
+ */
+public class BatchStoreResult
+{
+    private final CompletableFuture<int[]> future = new CompletableFuture<>();
+    private final boolean[] failed;
+    private final AtomicInteger remaining;
+
+    public BatchStoreResult(int size)
+    {
+        this.failed = new boolean[size];
+        this.remaining = new AtomicInteger(size);
+        if (size == 0) {
+            future.complete(SUCCESSFUL_BATCH);
+        }
+    }
+
+    public void complete(int index, boolean successful)
+    {
+        if (!successful) {
+            synchronized (failed) {
+                failed[index] = true;
+            }
+        }
+
+        if (remaining.decrementAndGet() == 0) {
+            int[] failedIndexes;
+            synchronized (failed) {
+                failedIndexes = new int[failed.length];
+                int count = 0;
+                for (int i = 0; i < failed.length; i++) {
+                    if (failed[i]) {
+                        failedIndexes[count++] = i;
+                    }
+                }
+                failedIndexes = count == 0 ? SUCCESSFUL_BATCH : Arrays.copyOf(failedIndexes, count);
+            }
+            future.complete(failedIndexes);
+        }
+    }
+
+    public CompletableFuture<int[]> getFuture()
+    {
+        return future;
+    }
+}
@@ -34,7 +34,7 @@ public class DummyEventStore
         @Override
         protected void setup(Binder binder)
         {
-            binder.bind(EventStore.class).to(DummyEventStore.class);
+            binder.bind(EventStore.class).annotatedWith(RawEventStore.class).to(DummyEventStore.class);
         }
 
         @Override
@@ -0,0 +1,16 @@
+package org.rakam.plugin;
+
+import com.google.inject.BindingAnnotation;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * The event store implementation of the storage module. The modules bind their {@link EventStore} with this
+ * annotation and the {@link EventStore} that the other services inject decorates it, so every writer
+ * goes through the decorations.
+ */
+@BindingAnnotation
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RawEventStore {
+}
@@ -14,10 +14,16 @@
 package org.rakam.plugin.stream;
 
 import io.airlift.configuration.Config;
+import io.airlift.units.Duration;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class EventStreamConfig {
     private boolean enabled = false;
+    private int bufferSize = 1000;
+    private int maxBatchSize = 500;
+    private Duration flushInterval = new Duration(3, SECONDS);
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
 
     @Config("event.stream.enabled")
     public void setEventStreamEnabled(boolean enabled) {
@@ -27,4 +33,49 @@ public class EventStreamConfig {
     public boolean getEventStreamEnabled() {
         return enabled;
     }
+
+    @Config("event.stream.buffer-size")
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    @Config("event.stream.max-batch-size")
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    @Config("event.stream.flush-interval")
+    public void setFlushInterval(Duration flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    public Duration getFlushInterval() {
+        return flushInterval;
+    }
+
+    @Config("event.stream.slow-consumer-policy")
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public enum SlowConsumerPolicy {
+        // discard the oldest buffered event to make room for the new one
+        DROP_OLDEST,
+        // discard the new events until the subscriber catches up
+        DROP_NEWEST,
+        // close the subscription when the buffer is full
+        DISCONNECT
+    }
 }
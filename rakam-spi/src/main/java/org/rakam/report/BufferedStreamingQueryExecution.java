@@ -0,0 +1,63 @@
+package org.rakam.report;
+
+import com.google.common.collect.ImmutableList;
+import org.rakam.collection.SchemaField;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Passes the rows of a query that is executed in memory to a {@link QueryResultSink}, it's used for the query
+ * executors that can't stream the rows from the database.
+ */
+public class BufferedStreamingQueryExecution
+        implements QueryExecution
+{
+    private final QueryExecution execution;
+    private final CompletableFuture<QueryResult> result;
+
+    public BufferedStreamingQueryExecution(QueryExecution execution, QueryResultSink sink)
+    {
+        this.execution = execution;
+        this.result = execution.getResult().thenApply(result -> {
+            if (result.isFailed()) {
+                return result;
+            }
+
+            List<SchemaField> metadata = result.getMetadata();
+            sink.columns(metadata == null ? ImmutableList.of() : metadata);
+            if (result.getResult() != null) {
+                for (List<Object> row : result.getResult()) {
+                    sink.row(row);
+                }
+            }
+            sink.finish();
+
+            return new QueryResult(metadata, ImmutableList.of(), result.getProperties());
+        });
+    }
+
+    @Override
+    public QueryStats currentStats()
+    {
+        return execution.currentStats();
+    }
+
+    @Override
+    public boolean isFinished()
+    {
+        return result.isDone();
+    }
+
+    @Override
+    public CompletableFuture<QueryResult> getResult()
+    {
+        return result;
+    }
+
+    @Override
+    public void kill()
+    {
+        execution.kill();
+    }
+}
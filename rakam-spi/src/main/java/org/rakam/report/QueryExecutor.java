@@ -12,6 +12,15 @@ public interface QueryExecutor
 {
     QueryExecution executeRawQuery(String sqlQuery, ZoneId timezone, Map<String, String> sessionParameters, String apiKey);
 
+    /**
+     * Executes the query and passes the rows to the sink as they are fetched instead of keeping them in the result.
+     * The executors that can't stream the rows from the database fetch the result in memory and pass it to the sink.
+     */
+    default QueryExecution executeRawQuery(String sqlQuery, ZoneId timezone, Map<String, String> sessionParameters, String apiKey, QueryResultSink sink)
+    {
+        return new BufferedStreamingQueryExecution(executeRawQuery(sqlQuery, timezone, sessionParameters, apiKey), sink);
+    }
+
     String formatTableReference(String project, QualifiedName name, Optional<QuerySampling> sample, Map<String, String> sessionParameters);
 
     default QueryExecution executeRawQuery(String sqlQuery, ZoneId timezone, Map<String, String> sessionParameters) {
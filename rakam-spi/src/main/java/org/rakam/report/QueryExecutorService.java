@@ -4,10 +4,15 @@ import com.facebook.presto.sql.RakamSqlFormatter;
 import com.facebook.presto.sql.parser.ParsingException;
 import com.facebook.presto.sql.parser.SqlParser;
 import com.facebook.presto.sql.tree.Call;
+import com.facebook.presto.sql.tree.DefaultTraversalVisitor;
 import com.facebook.presto.sql.tree.QualifiedName;
 import com.facebook.presto.sql.tree.Query;
 import com.facebook.presto.sql.tree.QuerySpecification;
 import com.facebook.presto.sql.tree.Statement;
+import com.facebook.presto.sql.tree.Table;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.inject.Inject;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.rakam.analysis.EscapeIdentifier;
@@ -27,12 +32,16 @@ import java.time.Clock;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -45,12 +54,20 @@ public class QueryExecutorService
 {
     public static final int DEFAULT_QUERY_RESULT_COUNT = 50000;
     public static final int MAX_QUERY_RESULT_LIMIT = 1000000;
+    private static final int QUERY_CACHE_SIZE = 1000;
 
     private final QueryExecutor executor;
     private final MaterializedViewService materializedViewService;
     private final Metastore metastore;
     private final char escapeIdentifier;
     private volatile Set<String> projectCache;
+    private QueryResultCache resultCache;
+    // the statements are immutable so the parsed query can be shared by the executions of the same query
+    private final Cache<String, Statement> statementCache = CacheBuilder.newBuilder()
+            .maximumSize(QUERY_CACHE_SIZE).build();
+    // only the queries that are formatted the same way each time are cached, see buildQuery
+    private final Cache<QueryCacheKey, String> formattedQueryCache = CacheBuilder.newBuilder()
+            .maximumSize(QUERY_CACHE_SIZE).build();
 
     @Inject
     public QueryExecutorService(QueryExecutor executor, Metastore metastore, MaterializedViewService materializedViewService, Clock clock, @EscapeIdentifier char escapeIdentifier)
@@ -61,12 +78,27 @@ public class QueryExecutorService
         this.escapeIdentifier = escapeIdentifier;
     }
 
+    @Inject(optional = true)
+    public void setResultCache(QueryResultCache resultCache)
+    {
+        this.resultCache = resultCache;
+    }
+
     public QueryExecution executeQuery(String project, String sqlQuery, Optional<QuerySampling> sample, String defaultSchema, ZoneId zoneId, int limit)
     {
         return executeQuery(project, sqlQuery, sample, defaultSchema, zoneId, limit, null);
     }
 
     public QueryExecution executeQuery(String project, String sqlQuery, Optional<QuerySampling> sample, String defaultSchema, ZoneId zoneId, int limit, String apiKey)
+    {
+        return executeQuery(project, sqlQuery, sample, defaultSchema, zoneId, limit, apiKey, null);
+    }
+
+    /**
+     * If the sink is not null, the rows are passed to the sink as they are fetched and the result of the query
+     * execution doesn't contain the rows.
+     */
+    public QueryExecution executeQuery(String project, String sqlQuery, Optional<QuerySampling> sample, String defaultSchema, ZoneId zoneId, int limit, String apiKey, QueryResultSink sink)
     {
         if (!projectExists(project)) {
             throw new NotExistsException("Project");
@@ -93,12 +125,25 @@ public class QueryExecutorService
 
         QueryExecution execution;
         if (queryExecutions.isEmpty()) {
-            execution = executor.executeRawQuery(query, zoneId, sessionParameters, apiKey);
+            Map<String, Long> collect = materializedViews.entrySet().stream().collect(Collectors.toMap(v -> v.getKey().tableName, v -> v.getKey().lastUpdate != null ? v.getKey().lastUpdate.toEpochMilli() : -1));
+
+            Set<String> collections = null;
+            if (resultCache != null && resultCache.isEnabled() && sink == null && sessionParameters.isEmpty()) {
+                collections = getReferencedCollections(sqlQuery, defaultSchema, materializedViews.keySet());
+            }
+
+            if (collections != null) {
+                execution = resultCache.execute(project, query, zoneId, collections, collect,
+                        () -> executeRawQuery(query, zoneId, sessionParameters, apiKey, null));
+            }
+            else {
+                execution = executeRawQuery(query, zoneId, sessionParameters, apiKey, sink);
+            }
+
             if (materializedViews.isEmpty()) {
                 return execution;
             }
             else {
-                Map<String, Long> collect = materializedViews.entrySet().stream().collect(Collectors.toMap(v -> v.getKey().tableName, v -> v.getKey().lastUpdate != null ? v.getKey().lastUpdate.toEpochMilli() : -1));
                 execution = new DelegateQueryExecution(execution, result -> {
                     result.setProperty("materializedViews", collect);
                     return result;
@@ -126,7 +171,7 @@ public class QueryExecutorService
                     }
                 }
 
-                return executor.executeRawQuery(query, zoneId, sessionParameters, apiKey);
+                return executeRawQuery(query, zoneId, sessionParameters, apiKey, sink);
             }), result -> {
                 if (!result.isFailed()) {
                     Map<String, Long> collect = materializedViews.entrySet().stream()
@@ -144,6 +189,65 @@ public class QueryExecutorService
         return execution;
     }
 
+    private QueryExecution executeRawQuery(String query, ZoneId zoneId, Map<String, String> sessionParameters, String apiKey, QueryResultSink sink)
+    {
+        if (sink == null) {
+            return executor.executeRawQuery(query, zoneId, sessionParameters, apiKey);
+        }
+        return executor.executeRawQuery(query, zoneId, sessionParameters, apiKey, sink);
+    }
+
+    /**
+     * Returns the event collections that the query reads or null if it reads a table whose updates are not
+     * tracked by the result cache. The materialized views are tracked using their last update times, except the
+     * real-time views that also read the events that are collected after their last update, so the collections
+     * of them are returned as well.
+     */
+    @VisibleForTesting
+    Set<String> getReferencedCollections(String query, String defaultSchema, Collection<MaterializedView> materializedViews)
+    {
+        Set<String> collections = new HashSet<>();
+        if (!addReferencedCollections(query, defaultSchema, true, collections)) {
+            return null;
+        }
+
+        for (MaterializedView materializedView : materializedViews) {
+            if (materializedView.realTime && !addReferencedCollections(materializedView.query, "collection", false, collections)) {
+                return null;
+            }
+        }
+
+        return collections;
+    }
+
+    private boolean addReferencedCollections(String query, String defaultSchema, boolean materializedViews, Set<String> collections)
+    {
+        Statement statement = parseStatement(query);
+        if (!(statement instanceof Query)) {
+            return false;
+        }
+
+        AtomicBoolean trackable = new AtomicBoolean(true);
+        new DefaultTraversalVisitor<Void, Void>()
+        {
+            @Override
+            protected Void visitTable(Table node, Void context)
+            {
+                QualifiedName name = node.getName();
+                String schema = name.getPrefix().map(QualifiedName::toString).orElse(defaultSchema);
+                if ("collection".equals(schema) && !name.getSuffix().equals("_users")) {
+                    collections.add(name.getSuffix());
+                }
+                else if (!materializedViews || !"materialized".equals(schema)) {
+                    trackable.set(false);
+                }
+                return null;
+            }
+        }.process(statement, null);
+
+        return trackable.get();
+    }
+
     public QueryExecution executeQuery(String project, String sqlQuery)
     {
         return executeQuery(project, sqlQuery, Optional.empty(), "collection",
@@ -183,10 +287,35 @@ public class QueryExecutorService
     }
 
     public String buildQuery(String project, String query, Optional<QuerySampling> sample, String defaultSchema, Integer maxLimit, Map<MaterializedView, MaterializedViewExecution> materializedViews, Map<String, String> sessionParameters)
+    {
+        QueryCacheKey key = new QueryCacheKey(project, query, sample, defaultSchema, maxLimit);
+        String formattedQuery = formattedQueryCache.getIfPresent(key);
+        if (formattedQuery != null) {
+            return formattedQuery;
+        }
+
+        // the materialized views are refreshed and the _all table depends on the collections while the query
+        // is formatted, the queries that reference them or set session parameters are not cached
+        AtomicBoolean cacheable = new AtomicBoolean(true);
+        Function<QualifiedName, String> mapper = tableNameMapper(project, materializedViews, sample, defaultSchema, sessionParameters);
+        Function<QualifiedName, String> tableNameMapper = name -> {
+            if (name.getSuffix().equals("_all") || name.getPrefix().map(prefix -> prefix.toString().equals("materialized")).orElse(false)) {
+                cacheable.set(false);
+            }
+            return mapper.apply(name);
+        };
+
+        formattedQuery = formatQuery(query, maxLimit, tableNameMapper);
+        if (cacheable.get() && materializedViews.isEmpty() && sessionParameters.isEmpty()) {
+            formattedQueryCache.put(key, formattedQuery);
+        }
+        return formattedQuery;
+    }
+
+    private String formatQuery(String query, Integer maxLimit, Function<QualifiedName, String> tableNameMapper)
     {
         Query statement;
-        Function<QualifiedName, String> tableNameMapper = tableNameMapper(project, materializedViews, sample, defaultSchema, sessionParameters);
-        Statement queryStatement = SqlUtil.parseSql(query);
+        Statement queryStatement = parseStatement(query);
         if ((queryStatement instanceof Query)) {
             statement = (Query) queryStatement;
         }
@@ -225,6 +354,16 @@ public class QueryExecutorService
         return builder.toString();
     }
 
+    private Statement parseStatement(String query)
+    {
+        Statement statement = statementCache.getIfPresent(query);
+        if (statement == null) {
+            statement = SqlUtil.parseSql(query);
+            statementCache.put(query, statement);
+        }
+        return statement;
+    }
+
     private Function<QualifiedName, String> tableNameMapper(String project, Map<MaterializedView, MaterializedViewExecution> materializedViews, Optional<QuerySampling> sample, String defaultSchema, Map<String, String> sessionParameters)
     {
         return (node) -> {
@@ -260,7 +399,7 @@ public class QueryExecutorService
         StringBuilder builder = new StringBuilder();
         Query queryStatement;
         try {
-            queryStatement = (Query) SqlUtil.parseSql(checkNotNull(query, "query is required"));
+            queryStatement = (Query) parseStatement(checkNotNull(query, "query is required"));
         }
         catch (Exception e) {
             throw new RakamException("Unable to parse query: " + e.getMessage(), BAD_REQUEST);
@@ -284,4 +423,49 @@ public class QueryExecutorService
         });
         return f;
     }
+
+    private static class QueryCacheKey
+    {
+        private final String project;
+        private final String query;
+        private final QuerySampling.SampleMethod sampleMethod;
+        private final Integer samplePercentage;
+        private final String defaultSchema;
+        private final Integer maxLimit;
+
+        public QueryCacheKey(String project, String query, Optional<QuerySampling> sample, String defaultSchema, Integer maxLimit)
+        {
+            this.project = project;
+            this.query = query;
+            this.sampleMethod = sample.map(e -> e.method).orElse(null);
+            this.samplePercentage = sample.map(e -> e.percentage).orElse(null);
+            this.defaultSchema = defaultSchema;
+            this.maxLimit = maxLimit;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof QueryCacheKey)) {
+                return false;
+            }
+
+            QueryCacheKey that = (QueryCacheKey) o;
+            return project.equals(that.project) &&
+                    query.equals(that.query) &&
+                    sampleMethod == that.sampleMethod &&
+                    Objects.equals(samplePercentage, that.samplePercentage) &&
+                    Objects.equals(defaultSchema, that.defaultSchema) &&
+                    Objects.equals(maxLimit, that.maxLimit);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(project, query, sampleMethod, samplePercentage, defaultSchema, maxLimit);
+        }
+    }
 }
@@ -0,0 +1,443 @@
+package org.rakam.report;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.Subscribe;
+import org.rakam.collection.Event;
+import org.rakam.plugin.EventStore;
+import org.rakam.plugin.SystemEvents;
+import org.rakam.util.ProjectCollection;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Caches the results of the queries that only read the event collections and the materialized views.
+ * A cached result is used as long as none of the collections that the query reads are written to after
+ * the query is started and the materialized views are not refreshed. The concurrent executions of the same
+ * query share a single execution.
+ * <p>
+ * The writes are only tracked on this node, the cached results expire after
+ * {@link QueryResultCacheConfig#getMaxAge()} so that the events that are collected by the other nodes
+ * eventually become visible.
+ */
+@Singleton
+public class QueryResultCache
+{
+    // the table that contains the events of all the collections in the project
+    public static final String ALL_COLLECTIONS = "_all";
+
+    private final boolean enabled;
+    private final long maxEntrySize;
+    private final Cache<CacheKey, CachedResult> cache;
+    private final ConcurrentMap<CacheKey, SharedQueryExecution> runningQueries = new ConcurrentHashMap<>();
+    private final AtomicLong ticks = new AtomicLong();
+    private final ConcurrentMap<ProjectCollection, Long> collectionWatermarks = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> projectWatermarks = new ConcurrentHashMap<>();
+
+    @Inject
+    public QueryResultCache(QueryResultCacheConfig config)
+    {
+        this.enabled = config.getEnabled();
+        long maxSize = config.getMaxSize().toBytes();
+        // a single large result shouldn't evict the rest of the cache
+        this.maxEntrySize = maxSize / 10;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxSize)
+                .weigher((CacheKey key, CachedResult value) -> value.size)
+                .expireAfterWrite(config.getMaxAge().toMillis(), MILLISECONDS)
+                .build();
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Returns the cached result of the query if it's still fresh, joins the running execution of the same query
+     * or starts a new execution using the executor.
+     *
+     * @param collections the collections that the query reads, {@link #ALL_COLLECTIONS} if it reads all the collections
+     * @param materializedViews the last update times of the materialized views that the query reads
+     */
+    public QueryExecution execute(String project, String query, ZoneId zoneId, Set<String> collections, Map<String, Long> materializedViews, Supplier<QueryExecution> executor)
+    {
+        CacheKey key = new CacheKey(project, query, zoneId);
+
+        CachedResult cached = cache.getIfPresent(key);
+        if (cached != null) {
+            if (isFresh(project, cached.startTick, cached.collections, cached.materializedViews, materializedViews)) {
+                return QueryExecution.completedQueryExecution(query, copy(cached.result));
+            }
+            cache.invalidate(key);
+        }
+
+        while (true) {
+            SharedQueryExecution running = runningQueries.get(key);
+            if (running != null) {
+                QueryExecution execution = null;
+                if (isFresh(project, running.startTick, running.collections, running.materializedViews, materializedViews)) {
+                    execution = running.attach();
+                }
+                if (execution != null) {
+                    return execution;
+                }
+                runningQueries.remove(key, running);
+                continue;
+            }
+
+            SharedQueryExecution created = new SharedQueryExecution(key, ticks.get(), collections, materializedViews);
+            if (runningQueries.putIfAbsent(key, created) == null) {
+                QueryExecution execution = created.attach();
+                created.start(executor);
+                return execution;
+            }
+        }
+    }
+
+    /**
+     * The cached results that read the collections are not used after this call.
+     */
+    public void collectionsUpdated(String project, Set<String> collections)
+    {
+        long tick = ticks.incrementAndGet();
+        for (String collection : collections) {
+            collectionWatermarks.put(new ProjectCollection(project, collection), tick);
+        }
+        projectWatermarks.put(project, tick);
+    }
+
+    /**
+     * Returns an event store that marks the collections as updated when the events are stored.
+     */
+    public EventStore invalidatingEventStore(EventStore eventStore)
+    {
+        if (!enabled) {
+            return eventStore;
+        }
+        return new InvalidatingEventStore(eventStore);
+    }
+
+    @Subscribe
+    public void onCollectionFieldCreated(SystemEvents.CollectionFieldCreatedEvent event)
+    {
+        collectionsUpdated(event.project, ImmutableSet.of(event.collection));
+    }
+
+    @Subscribe
+    public void onProjectDeleted(SystemEvents.ProjectDeletedEvent event)
+    {
+        cache.asMap().keySet().removeIf(key -> key.project.equals(event.project));
+    }
+
+    private boolean isFresh(String project, long startTick, Set<String> collections, Map<String, Long> materializedViews, Map<String, Long> currentMaterializedViews)
+    {
+        if (!materializedViews.equals(currentMaterializedViews)) {
+            return false;
+        }
+
+        for (String collection : collections) {
+            Long watermark = collection.equals(ALL_COLLECTIONS) ?
+                    projectWatermarks.get(project) :
+                    collectionWatermarks.get(new ProjectCollection(project, collection));
+            if (watermark != null && watermark > startTick) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static QueryResult copy(QueryResult result)
+    {
+        // the callers set their own properties to the result
+        return new QueryResult(result.getMetadata(), result.getResult(), new HashMap<>(result.getProperties()));
+    }
+
+    private static long estimateSize(QueryResult result)
+    {
+        long size = 64;
+        for (List<Object> row : result.getResult()) {
+            size += 16 + row.size() * 8;
+            for (Object value : row) {
+                if (value == null) {
+                    continue;
+                }
+                if (value instanceof String) {
+                    size += 40 + ((String) value).length() * 2;
+                }
+                else if (value instanceof Number || value instanceof Boolean) {
+                    size += 16;
+                }
+                else if (value instanceof byte[]) {
+                    size += 16 + ((byte[]) value).length;
+                }
+                else {
+                    size += 64;
+                }
+            }
+        }
+        return size;
+    }
+
+    private class SharedQueryExecution
+    {
+        private final CacheKey key;
+        private final long startTick;
+        private final Set<String> collections;
+        private final Map<String, Long> materializedViews;
+        private final CompletableFuture<QueryResult> result = new CompletableFuture<>();
+        private QueryExecution execution;
+        private int attached;
+        private boolean killed;
+
+        public SharedQueryExecution(CacheKey key, long startTick, Set<String> collections, Map<String, Long> materializedViews)
+        {
+            this.key = key;
+            this.startTick = startTick;
+            this.collections = collections;
+            this.materializedViews = materializedViews;
+        }
+
+        public void start(Supplier<QueryExecution> executor)
+        {
+            QueryExecution execution;
+            try {
+                execution = executor.get();
+            }
+            catch (RuntimeException e) {
+                runningQueries.remove(key, this);
+                result.completeExceptionally(e);
+                throw e;
+            }
+
+            synchronized (this) {
+                this.execution = execution;
+                if (killed) {
+                    execution.kill();
+                }
+            }
+
+            execution.getResult().whenComplete((queryResult, ex) -> {
+                runningQueries.remove(key, this);
+                if (ex != null) {
+                    result.completeExceptionally(ex);
+                    return;
+                }
+
+                if (!queryResult.isFailed() && queryResult.getResult() != null
+                        && isFresh(key.project, startTick, collections, materializedViews, materializedViews)) {
+                    long size = estimateSize(queryResult);
+                    if (size <= maxEntrySize) {
+                        cache.put(key, new CachedResult(copy(queryResult), startTick, collections, materializedViews, size));
+                    }
+                }
+                result.complete(queryResult);
+            });
+        }
+
+        public synchronized QueryExecution attach()
+        {
+            if (killed) {
+                return null;
+            }
+            attached++;
+            return new AttachedQueryExecution(this);
+        }
+
+        public synchronized void detach()
+        {
+            attached--;
+            if (attached == 0 && !result.isDone()) {
+                killed = true;
+                runningQueries.remove(key, this);
+                if (execution != null) {
+                    execution.kill();
+                }
+            }
+        }
+
+        public synchronized QueryStats currentStats()
+        {
+            if (execution == null) {
+                return new QueryStats(QueryStats.State.WAITING_FOR_AVAILABLE_THREAD);
+            }
+            return execution.currentStats();
+        }
+    }
+
+    private static class AttachedQueryExecution
+            implements QueryExecution
+    {
+        private final SharedQueryExecution execution;
+        private boolean killed;
+
+        public AttachedQueryExecution(SharedQueryExecution execution)
+        {
+            this.execution = execution;
+        }
+
+        @Override
+        public QueryStats currentStats()
+        {
+            return execution.currentStats();
+        }
+
+        @Override
+        public boolean isFinished()
+        {
+            return execution.result.isDone();
+        }
+
+        @Override
+        public CompletableFuture<QueryResult> getResult()
+        {
+            return execution.result;
+        }
+
+        @Override
+        public synchronized void kill()
+        {
+            // the query is killed when all the callers that share the execution kill it
+            if (!killed) {
+                killed = true;
+                execution.detach();
+            }
+        }
+    }
+
+    private class InvalidatingEventStore
+            implements EventStore
+    {
+        private final EventStore delegate;
+
+        public InvalidatingEventStore(EventStore delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void store(Event event)
+        {
+            try {
+                delegate.store(event);
+            }
+            finally {
+                collectionsUpdated(event.project(), ImmutableSet.of(event.collection()));
+            }
+        }
+
+        @Override
+        public int[] storeBatch(List<Event> events)
+        {
+            try {
+                return delegate.storeBatch(events);
+            }
+            finally {
+                collectionsUpdated(events);
+            }
+        }
+
+        @Override
+        public void storeBulk(List<Event> events)
+        {
+            try {
+                delegate.storeBulk(events);
+            }
+            finally {
+                collectionsUpdated(events);
+            }
+        }
+
+        @Override
+        public CompletableFuture<int[]> storeBatchAsync(List<Event> events)
+        {
+            return delegate.storeBatchAsync(events).whenComplete((result, ex) -> collectionsUpdated(events));
+        }
+
+        @Override
+        public CompletableFuture<Void> storeAsync(Event event)
+        {
+            return delegate.storeAsync(event).whenComplete((result, ex) ->
+                    collectionsUpdated(event.project(), ImmutableSet.of(event.collection())));
+        }
+
+        private void collectionsUpdated(List<Event> events)
+        {
+            events.stream()
+                    .collect(Collectors.groupingBy(Event::project, Collectors.mapping(Event::collection, Collectors.toSet())))
+                    .forEach(QueryResultCache.this::collectionsUpdated);
+        }
+    }
+
+    private static class CachedResult
+    {
+        private final QueryResult result;
+        private final long startTick;
+        private final Set<String> collections;
+        private final Map<String, Long> materializedViews;
+        private final int size;
+
+        public CachedResult(QueryResult result, long startTick, Set<String> collections, Map<String, Long> materializedViews, long size)
+        {
+            this.result = result;
+            this.startTick = startTick;
+            this.collections = collections;
+            this.materializedViews = ImmutableMap.copyOf(materializedViews);
+            this.size = (int) Math.min(size, Integer.MAX_VALUE);
+        }
+    }
+
+    private static class CacheKey
+    {
+        private final String project;
+        private final String query;
+        private final ZoneId zoneId;
+
+        public CacheKey(String project, String query, ZoneId zoneId)
+        {
+            this.project = project;
+            this.query = query;
+            this.zoneId = zoneId;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+
+            CacheKey that = (CacheKey) o;
+            return project.equals(that.project) &&
+                    query.equals(that.query) &&
+                    Objects.equals(zoneId, that.zoneId);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(project, query, zoneId);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.rakam.report;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.DataSize;
+import io.airlift.units.Duration;
+
+import static io.airlift.units.DataSize.Unit.MEGABYTE;
+
+public class QueryResultCacheConfig
+{
+    private boolean enabled;
+    private DataSize maxSize = new DataSize(100, MEGABYTE);
+    private Duration maxAge = Duration.valueOf("5m");
+
+    @Config("query.result-cache.enabled")
+    @ConfigDescription("Cache the results of the queries that only read the event collections and materialized views")
+    public QueryResultCacheConfig setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+        return this;
+    }
+
+    public boolean getEnabled()
+    {
+        return enabled;
+    }
+
+    @Config("query.result-cache.max-size")
+    @ConfigDescription("The estimated memory usage of the cached results")
+    public QueryResultCacheConfig setMaxSize(DataSize maxSize)
+    {
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    public DataSize getMaxSize()
+    {
+        return maxSize;
+    }
+
+    @Config("query.result-cache.max-age")
+    @ConfigDescription("The events that are collected on the other nodes are visible in the cached results after this duration")
+    public QueryResultCacheConfig setMaxAge(String maxAge)
+    {
+        this.maxAge = Duration.valueOf(maxAge);
+        return this;
+    }
+
+    public Duration getMaxAge()
+    {
+        return maxAge;
+    }
+}
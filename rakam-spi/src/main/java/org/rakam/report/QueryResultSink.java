@@ -0,0 +1,30 @@
+package org.rakam.report;
+
+import org.rakam.collection.SchemaField;
+
+import java.util.List;
+
+/**
+ * Receives the rows of a query as they are fetched from the database so that the result doesn't need to be kept
+ * in memory. The query executions that stream the rows complete their result without any rows, the metadata,
+ * the error and the properties are still available in the {@link QueryResult}.
+ *
+ * The methods are called from the thread that fetches the rows, they may block in order to slow down the query
+ * until the rows are consumed. If one of the methods throws an exception, the query is aborted.
+ */
+public interface QueryResultSink
+{
+    /**
+     * Called once before the first row.
+     */
+    void columns(List<SchemaField> columns);
+
+    void row(List<Object> row);
+
+    /**
+     * Called after the last row, before the result of the query is completed.
+     */
+    default void finish()
+    {
+    }
+}
@@ -1,9 +1,7 @@
 package org.rakam.report.eventexplorer;
 
-import com.facebook.presto.sql.parser.SqlParser;
-import com.facebook.presto.sql.tree.DefaultExpressionTraversalVisitor;
-import com.facebook.presto.sql.tree.Expression;
-import com.facebook.presto.sql.tree.Identifier;
+import com.facebook.presto.sql.parser.ParsingException;
+import com.google.inject.Inject;
 import io.airlift.log.Logger;
 import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.EventExplorer;
@@ -12,10 +10,11 @@ import org.rakam.analysis.MaterializedViewService;
 import org.rakam.config.ProjectConfig;
 import org.rakam.report.DelegateQueryExecution;
 import org.rakam.report.QueryExecution;
+import org.rakam.report.QueryError;
 import org.rakam.report.QueryExecutorService;
 import org.rakam.report.QueryResult;
+import org.rakam.report.eventexplorer.RollupAdvisor.OLAPTableReference;
 import org.rakam.report.realtime.AggregationType;
-import org.rakam.util.JsonHelper;
 import org.rakam.util.MaterializedViewNotExists;
 import org.rakam.util.RakamException;
 import org.rakam.util.ValidationUtil;
@@ -23,7 +22,6 @@ import org.rakam.util.ValidationUtil;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.time.temporal.ChronoUnit;
-import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -31,7 +29,6 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -58,13 +55,13 @@ public abstract class AbstractEventExplorer
     protected final static String TIME_INTERVAL_ERROR_MESSAGE = "Date interval is too big. Please narrow the date range or use different date dimension.";
     protected final Reference DEFAULT_SEGMENT = new Reference(COLUMN, "_collection");
 
-    protected static SqlParser sqlParser = new SqlParser();
     private final QueryExecutorService executor;
 
     private final Map<TimestampTransformation, String> timestampMapping;
     private final MaterializedViewService materializedViewService;
     private final ContinuousQueryService continuousQueryService;
     private final ProjectConfig projectConfig;
+    private RollupAdvisor rollupAdvisor;
 
     public AbstractEventExplorer(
             ProjectConfig projectConfig,
@@ -80,6 +77,12 @@ public abstract class AbstractEventExplorer
         this.continuousQueryService = continuousQueryService;
     }
 
+    @Inject(optional = true)
+    public void setRollupAdvisor(RollupAdvisor rollupAdvisor)
+    {
+        this.rollupAdvisor = rollupAdvisor;
+    }
+
     public static void checkReference(String refValue, LocalDate startDate, LocalDate endDate, int size)
     {
         switch (fromString(refValue.replace(" ", "_"))) {
@@ -172,43 +175,19 @@ public abstract class AbstractEventExplorer
             checkReference(segment.value, startDate, endDate, collections.size());
         }
 
-        Predicate<OLAPTable> groupedMetricsPredicate = options -> {
-            Expression filterExp;
-            if (filterExpression != null) {
-                synchronized (sqlParser) {
-                    filterExp = sqlParser.createExpression(filterExpression);
-                }
-            }
-            else {
-                filterExp = null;
-            }
-
-            if (options.collections.containsAll(collections)) {
-                if (options.aggregations.contains(measure.aggregation)
-                        && measure.column != null && options.measures.contains(measure.column)
-                        && (grouping == null || (grouping.type == REFERENCE || (grouping.type == COLUMN && options.dimensions.contains(grouping.value))))
-                        && (segment == null || (segment.value.equals("_collection") && segment.type == COLUMN && options.collections.size() == 1) || (segment.type == REFERENCE || (segment.type == COLUMN && options.dimensions.contains(segment.value))))
-                        && (filterExp == null || testFilterExpressionForPerComputedTable(filterExp, options))) {
-                    return true;
-                }
-            }
-
-            return false;
-        };
-
-        Optional<Map.Entry<OLAPTable, String>> preComputedTable = materializedViewService.list(project).stream()
-                .filter(view -> view.options != null && view.options.containsKey("olap_table"))
-                .map(view -> JsonHelper.convert(view.options.get("olap_table"), OLAPTable.class))
-                .filter(table -> groupedMetricsPredicate.test(table)).findAny()
-                .map(view -> new AbstractMap.SimpleImmutableEntry<>(view, "materialized." + checkCollection(view.tableName)));
-
-        if (!preComputedTable.isPresent()) {
-            preComputedTable = continuousQueryService.list(project).stream()
-                    .filter(view -> view.options != null && view.options.containsKey("olap_table"))
-                    .map(view -> JsonHelper.convert(view.options.get("olap_table"), OLAPTable.class))
-                    .filter(table -> groupedMetricsPredicate.test(table)).findAny()
-                    .map(view -> new AbstractMap.SimpleImmutableEntry<>(view, "continuous." + checkCollection(view.tableName)));
+        QueryShape shape;
+        try {
+            shape = QueryShape.create(collections, measure, grouping, segment, filterExpression);
         }
+        catch (ParsingException e) {
+            QueryError error = new QueryError(e.getMessage(), null, null, e.getLineNumber(), e.getColumnNumber());
+            return QueryExecution.completedQueryExecution(filterExpression, QueryResult.errorResult(error, filterExpression));
+        }
+
+        Optional<OLAPTableReference> preComputedTable = (rollupAdvisor != null ? rollupAdvisor.getTables(project) :
+                RollupAdvisor.getTables(project, materializedViewService, continuousQueryService)).stream()
+                .filter(table -> table.grouping && shape.isCoveredBy(table.table))
+                .findFirst();
 
         String timeFilter = format(" %s between date '%s' and date '%s' + interval '1' day",
                 checkTableColumn(projectConfig.getTimeColumn()), startDate.format(ISO_DATE), endDate.format(ISO_DATE));
@@ -227,20 +206,13 @@ public abstract class AbstractEventExplorer
 
         String computeQuery;
         if (preComputedTable.isPresent()) {
-            String filters = preComputedTable.get().getKey().dimensions.stream()
-                    .filter(dim -> (grouping == null || grouping.type == REFERENCE && !grouping.value.equals(dim) &&
-                            (segment == null || segment.type == REFERENCE && !segment.value.equals(dim))))
-                    .map(dim -> format("%s is null", dim))
-                    .collect(Collectors.joining(" and "));
-
             computeQuery = format("SELECT %s %s %s as value FROM %s WHERE %s %s",
                     grouping != null ? (getColumnValue(timestampMapping, grouping, true) + " as " + checkTableColumn(getColumnReference(grouping) + "_group") + " ,") : "",
                     segment != null ? (getColumnValue(timestampMapping, segment, true) + " as " + checkTableColumn(getColumnReference(segment) + "_segment") + " ,") : "",
-                    format(getFinalForAggregationFunction(measure), measure.column + "_" + measure.aggregation.name().toLowerCase()),
-                    preComputedTable.get().getValue(),
+                    RollupAdvisor.getRollupMeasure(measure, this),
+                    preComputedTable.get().reference,
                     Stream.of(
-                            collections.size() > 1 ? format("collection IN (%s)", collections.stream().map(c -> "'" + c + "'").collect(Collectors.joining(","))) : "",
-                            filters,
+                            RollupAdvisor.getRollupFilter(preComputedTable.get().table, shape, collections),
                             filterExpression,
                             timeFilter
                     ).filter(e -> e != null && !e.isEmpty()).collect(Collectors.joining(" AND ")),
@@ -338,7 +310,10 @@ public abstract class AbstractEventExplorer
                     computeQuery, bothActive ? 3 : 2);
         }
 
-        String table = preComputedTable.map(e -> e.getValue()).orElse(null);
+        String table = preComputedTable.map(e -> e.reference).orElse(null);
+        if (rollupAdvisor != null) {
+            rollupAdvisor.record(project, shape, table, this);
+        }
 
         return new DelegateQueryExecution(executor.executeQuery(project, query, timezone), result -> {
             if (table != null) {
@@ -369,48 +344,6 @@ public abstract class AbstractEventExplorer
         return selectBuilder.toString();
     }
 
-    private boolean testFilterExpressionForPerComputedTable(Expression filterExp, OLAPTable options)
-    {
-        final boolean[] columnExists = {true};
-
-        new DefaultExpressionTraversalVisitor<Void, Void>()
-        {
-            @Override
-            protected Void visitIdentifier(Identifier node, Void context)
-            {
-                if (!options.dimensions.contains(node.getName())) {
-                    columnExists[0] = false;
-                }
-
-                return null;
-            }
-        }.process(filterExp, null);
-
-        return columnExists[0];
-    }
-
-    private String getFinalForAggregationFunction(Measure aggregation)
-    {
-        switch (aggregation.aggregation) {
-            case AVERAGE:
-                return "cast(sum(%1$s) as double) / count(%1$s)";
-            case MAXIMUM:
-                return "max(%s)";
-            case MINIMUM:
-                return "min(%s)";
-            case COUNT:
-                return "count(%s)";
-            case SUM:
-                return "sum(%s)";
-            case COUNT_UNIQUE:
-                throw new UnsupportedOperationException();
-            case APPROXIMATE_UNIQUE:
-                return getFinalForApproximateUniqueFunction();
-            default:
-                throw new IllegalArgumentException("aggregation type is not supported");
-        }
-    }
-
     @Override
     public CompletableFuture<QueryResult> getEventStatistics(String project,
             Optional<Set<String>> collections,
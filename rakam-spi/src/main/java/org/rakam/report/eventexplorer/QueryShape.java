@@ -0,0 +1,148 @@
+package org.rakam.report.eventexplorer;
+
+import com.facebook.presto.sql.tree.DefaultExpressionTraversalVisitor;
+import com.facebook.presto.sql.tree.Identifier;
+import com.google.common.collect.ImmutableSet;
+import org.rakam.analysis.EventExplorer.Measure;
+import org.rakam.analysis.EventExplorer.OLAPTable;
+import org.rakam.analysis.EventExplorer.Reference;
+import org.rakam.analysis.EventExplorer.TimestampTransformation;
+import org.rakam.report.realtime.AggregationType;
+import org.rakam.util.SqlUtil;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.rakam.analysis.EventExplorer.ReferenceType.COLUMN;
+import static org.rakam.analysis.EventExplorer.ReferenceType.REFERENCE;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.DAY_PART;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.HOUR;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.HOUR_OF_DAY;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.fromString;
+import static org.rakam.report.realtime.AggregationType.APPROXIMATE_UNIQUE;
+import static org.rakam.report.realtime.AggregationType.COUNT;
+import static org.rakam.report.realtime.AggregationType.MAXIMUM;
+import static org.rakam.report.realtime.AggregationType.MINIMUM;
+import static org.rakam.report.realtime.AggregationType.SUM;
+
+/**
+ * The part of an event explorer query that decides whether it can be answered from an OLAP table:
+ * the collections, the measure, the columns that are used as dimensions or in the filter and the time dimension.
+ * The date range doesn't change the shape since the OLAP tables contain all the days.
+ */
+public class QueryShape
+{
+    // the aggregations that can be computed from the daily partial aggregations of the OLAP tables
+    public static final Set<AggregationType> ROLLUP_AGGREGATIONS = ImmutableSet.of(COUNT, SUM, MINIMUM, MAXIMUM, APPROXIMATE_UNIQUE);
+    // the OLAP tables are aggregated daily so they can't be grouped by the hour
+    private static final Set<TimestampTransformation> SUB_DAY_TRANSFORMATIONS = ImmutableSet.of(HOUR, HOUR_OF_DAY, DAY_PART);
+    private static final String DEFAULT_SEGMENT = "_collection";
+
+    public final Set<String> collections;
+    public final String measure;
+    public final AggregationType aggregation;
+    public final Set<String> dimensions;
+    public final Set<String> filterColumns;
+    public final TimestampTransformation timeDimension;
+
+    public QueryShape(Collection<String> collections, String measure, AggregationType aggregation, Set<String> dimensions, Set<String> filterColumns, TimestampTransformation timeDimension)
+    {
+        this.collections = ImmutableSet.copyOf(new TreeSet<>(collections));
+        this.measure = measure;
+        this.aggregation = aggregation;
+        this.dimensions = ImmutableSet.copyOf(new TreeSet<>(dimensions));
+        this.filterColumns = ImmutableSet.copyOf(new TreeSet<>(filterColumns));
+        this.timeDimension = timeDimension;
+    }
+
+    public static QueryShape create(Collection<String> collections, Measure measure, Reference grouping, Reference segment, String filterExpression)
+    {
+        Set<String> dimensions = new HashSet<>();
+        TimestampTransformation timeDimension = null;
+        for (Reference reference : new Reference[] {grouping, segment}) {
+            if (reference == null) {
+                continue;
+            }
+            if (reference.type == COLUMN && !reference.value.equals(DEFAULT_SEGMENT)) {
+                dimensions.add(reference.value);
+            }
+            else if (reference.type == REFERENCE) {
+                timeDimension = fromString(reference.value.replace(" ", "_"));
+            }
+        }
+
+        Set<String> filterColumns = new HashSet<>();
+        if (filterExpression != null) {
+            new DefaultExpressionTraversalVisitor<Void, Void>()
+            {
+                @Override
+                protected Void visitIdentifier(Identifier node, Void context)
+                {
+                    filterColumns.add(node.getName());
+                    return null;
+                }
+            }.process(SqlUtil.parseExpression(filterExpression), null);
+        }
+
+        return new QueryShape(collections,
+                measure == null ? null : measure.column,
+                measure == null ? COUNT : measure.aggregation,
+                dimensions, filterColumns, timeDimension);
+    }
+
+    /**
+     * Whether an OLAP table can be created for the queries that have this shape.
+     */
+    public boolean isRollupCompatible()
+    {
+        return ROLLUP_AGGREGATIONS.contains(aggregation)
+                && (measure != null || aggregation == COUNT)
+                && (timeDimension == null || !SUB_DAY_TRANSFORMATIONS.contains(timeDimension));
+    }
+
+    public boolean isCoveredBy(OLAPTable table)
+    {
+        if (!isRollupCompatible() || !table.collections.containsAll(collections)) {
+            return false;
+        }
+
+        if (measure == null) {
+            if (!table.countAll) {
+                return false;
+            }
+        }
+        else if (!table.measures.contains(measure) || !table.aggregations.contains(aggregation)) {
+            return false;
+        }
+
+        return table.dimensions.containsAll(dimensions) && table.dimensions.containsAll(filterColumns);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof QueryShape)) {
+            return false;
+        }
+
+        QueryShape that = (QueryShape) o;
+        return collections.equals(that.collections) &&
+                Objects.equals(measure, that.measure) &&
+                aggregation == that.aggregation &&
+                dimensions.equals(that.dimensions) &&
+                filterColumns.equals(that.filterColumns) &&
+                timeDimension == that.timeDimension;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(collections, measure, aggregation, dimensions, filterColumns, timeDimension);
+    }
+}
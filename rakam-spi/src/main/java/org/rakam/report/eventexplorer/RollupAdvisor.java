@@ -0,0 +1,556 @@
+package org.rakam.report.eventexplorer;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import org.rakam.analysis.ContinuousQueryService;
+import org.rakam.analysis.EventExplorer;
+import org.rakam.analysis.EventExplorer.Measure;
+import org.rakam.analysis.EventExplorer.OLAPTable;
+import org.rakam.analysis.MaterializedViewService;
+import org.rakam.config.ProjectConfig;
+import org.rakam.plugin.MaterializedView;
+import org.rakam.plugin.SystemEvents;
+import org.rakam.report.QueryResult;
+import org.rakam.report.realtime.AggregationType;
+import org.rakam.util.JsonHelper;
+import org.rakam.util.ProjectCollection;
+import org.rakam.util.RakamException;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static java.lang.String.format;
+import static org.rakam.report.eventexplorer.QueryShape.ROLLUP_AGGREGATIONS;
+import static org.rakam.report.realtime.AggregationType.AVERAGE;
+import static org.rakam.report.realtime.AggregationType.COUNT;
+import static org.rakam.report.realtime.AggregationType.SUM;
+import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkLiteral;
+import static org.rakam.util.ValidationUtil.checkTableColumn;
+
+/**
+ * Records the shapes of the event explorer queries and recommends the OLAP tables that answer the queries
+ * that are not covered by the existing OLAP tables. The recommended tables are created automatically when
+ * {@link RollupAdvisorConfig#getAutoCreate()} is enabled.
+ * <p>
+ * The statistics are kept in memory and only include the queries that are executed on this node.
+ */
+@Singleton
+public class RollupAdvisor
+{
+    private final static Logger LOGGER = Logger.get(RollupAdvisor.class);
+
+    public static final String OLAP_TABLE_OPTION = "olap_table";
+    // the column of the OLAP tables that contains the number of events when OLAPTable.countAll is set
+    public static final String COUNT_ALL_COLUMN = "_count";
+    // the grouping set of the rows of the OLAP tables, see getGroupingId(OLAPTable, QueryShape)
+    public static final String GROUPING_COLUMN = "_grouping";
+    // set for the OLAP tables that have the grouping column, the tables that are created without it are not used
+    private static final String OLAP_GROUPING_OPTION = "olap_grouping";
+    private static final String TABLE_PREFIX = "_olap_";
+    private static final int MAX_SHAPES_PER_PROJECT = 1000;
+
+    private final MaterializedViewService materializedViewService;
+    private final ContinuousQueryService continuousQueryService;
+    private final ProjectConfig projectConfig;
+    private final RollupAdvisorConfig config;
+    private final ConcurrentMap<String, Cache<QueryShape, ShapeCounter>> shapes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ProjectCollection, AtomicLong> tableQueries = new ConcurrentHashMap<>();
+    private final Set<String> evaluatingProjects = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor;
+
+    @Inject
+    public RollupAdvisor(
+            ProjectConfig projectConfig,
+            MaterializedViewService materializedViewService,
+            ContinuousQueryService continuousQueryService,
+            RollupAdvisorConfig config)
+    {
+        this.projectConfig = projectConfig;
+        this.materializedViewService = materializedViewService;
+        this.continuousQueryService = continuousQueryService;
+        this.config = config;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("olap-table-builder").setDaemon(true).build());
+    }
+
+    /**
+     * @param olapTable the OLAP table that is used for the query, null if the query is executed on the collections
+     * @param explorer the event explorer that executes the query, used to create the OLAP tables
+     */
+    public void record(String project, QueryShape shape, String olapTable, EventExplorer explorer)
+    {
+        ShapeCounter counter = shapes.computeIfAbsent(project, k -> CacheBuilder.newBuilder()
+                .maximumSize(MAX_SHAPES_PER_PROJECT).<QueryShape, ShapeCounter>build()).asMap()
+                .computeIfAbsent(shape, k -> new ShapeCounter());
+
+        long queries = counter.queries.incrementAndGet();
+        counter.lastQuery = Instant.now();
+
+        if (olapTable != null) {
+            counter.rollupQueries.incrementAndGet();
+            tableQueries.computeIfAbsent(new ProjectCollection(project, olapTable), k -> new AtomicLong()).incrementAndGet();
+        }
+        else if (config.getAutoCreate() && shape.isRollupCompatible() && queries % Math.max(config.getMinQueries(), 1) == 0) {
+            // listing the existing tables reads the metadata store so the query thread doesn't wait for it
+            if (evaluatingProjects.add(project)) {
+                executor.execute(() -> {
+                    try {
+                        createRecommendedTables(project, explorer);
+                    }
+                    catch (Exception e) {
+                        LOGGER.error(e, "Unable to create the OLAP tables of project %s", project);
+                    }
+                    finally {
+                        evaluatingProjects.remove(project);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Creates the recommended tables and drops the automatically created tables that are superseded by them.
+     * A table is not created when the project would have more than {@link RollupAdvisorConfig#getMaxTables()}
+     * automatically created tables after the superseded tables are dropped.
+     */
+    @VisibleForTesting
+    void createRecommendedTables(String project, EventExplorer explorer)
+    {
+        List<OLAPTableReference> tables = getTables(project);
+        for (OLAPTable table : getRecommendations(project, tables)) {
+            List<OLAPTableReference> autoCreated = tables.stream()
+                    .filter(RollupAdvisor::isAutoCreated)
+                    .collect(Collectors.toList());
+            List<OLAPTableReference> superseded = autoCreated.stream()
+                    .filter(reference -> supersedes(table, reference.table))
+                    .collect(Collectors.toList());
+
+            if (autoCreated.size() - superseded.size() >= config.getMaxTables()) {
+                LOGGER.warn("Not creating OLAP table %s.%s since the project has %d OLAP tables", project, table.tableName, autoCreated.size());
+                continue;
+            }
+
+            create(project, table, explorer).join();
+            for (OLAPTableReference reference : superseded) {
+                QueryResult result = materializedViewService.delete(project, reference.table.tableName).join();
+                if (result.isFailed()) {
+                    LOGGER.warn("Unable to drop OLAP table %s.%s: %s", project, reference.table.tableName, result.getError().message);
+                }
+                else {
+                    tableQueries.remove(new ProjectCollection(project, reference.reference));
+                }
+            }
+
+            tables = getTables(project);
+        }
+    }
+
+    /**
+     * Whether the table can answer all the queries that the other table can answer.
+     */
+    public static boolean supersedes(OLAPTable table, OLAPTable other)
+    {
+        return table.collections.containsAll(other.collections)
+                && table.dimensions.containsAll(other.dimensions)
+                && table.measures.containsAll(other.measures)
+                && table.aggregations.containsAll(other.aggregations)
+                && (table.countAll || !other.countAll);
+    }
+
+    private static boolean isAutoCreated(OLAPTableReference reference)
+    {
+        return reference.reference.startsWith("materialized.") && reference.table.tableName.startsWith(TABLE_PREFIX);
+    }
+
+    /**
+     * Recommends an OLAP table for each set of collections whose queries are not covered by the existing OLAP
+     * tables. The dimensions that are used by the most queries are picked until
+     * {@link RollupAdvisorConfig#getMaxDimensions()} since each dimension multiplies the size of the table.
+     */
+    public List<OLAPTable> getRecommendations(String project)
+    {
+        if (!shapes.containsKey(project)) {
+            return new ArrayList<>();
+        }
+        return getRecommendations(project, getTables(project));
+    }
+
+    private List<OLAPTable> getRecommendations(String project, List<OLAPTableReference> existingTables)
+    {
+        Cache<QueryShape, ShapeCounter> projectShapes = shapes.get(project);
+        if (projectShapes == null) {
+            return new ArrayList<>();
+        }
+
+        List<OLAPTable> tables = existingTables.stream().filter(e -> e.grouping).map(e -> e.table).collect(Collectors.toList());
+
+        Map<Set<String>, Map<QueryShape, Long>> candidates = new HashMap<>();
+        projectShapes.asMap().forEach((shape, counter) -> {
+            // the shapes of COUNT_UNIQUE and AVERAGE can't be answered from the daily partial aggregations
+            if (shape.isRollupCompatible() && tables.stream().noneMatch(shape::isCoveredBy)) {
+                candidates.computeIfAbsent(shape.collections, k -> new HashMap<>()).put(shape, counter.queries.get());
+            }
+        });
+
+        List<OLAPTable> recommendations = new ArrayList<>();
+        candidates.forEach((collections, collectionShapes) -> {
+            if (collectionShapes.values().stream().mapToLong(Long::longValue).sum() < config.getMinQueries()) {
+                return;
+            }
+
+            Map<String, Long> dimensionQueries = new HashMap<>();
+            collectionShapes.forEach((shape, queries) ->
+                    Stream.concat(shape.dimensions.stream(), shape.filterColumns.stream()).distinct()
+                            .forEach(dimension -> dimensionQueries.merge(dimension, queries, Long::sum)));
+
+            Set<String> dimensions = dimensionQueries.entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.<String, Long>comparingByKey()))
+                    .limit(config.getMaxDimensions())
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toCollection(TreeSet::new));
+
+            Set<String> measures = new TreeSet<>();
+            Set<AggregationType> aggregations = new TreeSet<>();
+            boolean countAll = false;
+            for (QueryShape shape : collectionShapes.keySet()) {
+                if (!dimensions.containsAll(shape.dimensions) || !dimensions.containsAll(shape.filterColumns)) {
+                    continue;
+                }
+                if (shape.measure == null) {
+                    countAll = true;
+                }
+                else {
+                    measures.add(shape.measure);
+                    aggregations.add(shape.aggregation);
+                }
+            }
+
+            if (!countAll && measures.isEmpty()) {
+                return;
+            }
+
+            String signature = String.join("|", collections) + ";" + String.join("|", dimensions) + ";" +
+                    String.join("|", measures) + ";" + aggregations + ";" + countAll;
+            String tableName = TABLE_PREFIX + Hashing.murmur3_32().hashString(signature, Charsets.UTF_8);
+
+            recommendations.add(new OLAPTable(collections, dimensions, aggregations, measures, countAll, tableName));
+        });
+
+        return recommendations;
+    }
+
+    public RollupStatistics getStatistics(String project)
+    {
+        Cache<QueryShape, ShapeCounter> projectShapes = shapes.get(project);
+        List<ShapeStatistics> shapeStatistics = projectShapes == null ? new ArrayList<>() :
+                projectShapes.asMap().entrySet().stream()
+                        .map(e -> new ShapeStatistics(e.getKey(), e.getValue().queries.get(), e.getValue().rollupQueries.get(), e.getValue().lastQuery))
+                        .sorted(Comparator.comparing((ShapeStatistics s) -> s.queries).reversed())
+                        .collect(Collectors.toList());
+
+        Instant now = Instant.now();
+        List<TableStatistics> tableStatistics = getTables(project).stream()
+                .map(table -> {
+                    AtomicLong queries = tableQueries.get(new ProjectCollection(project, table.reference));
+                    Long staleness = table.lastUpdate == null ? null : Duration.between(table.lastUpdate, now).getSeconds();
+                    return new TableStatistics(table.reference, table.table, queries == null ? 0 : queries.get(), table.lastUpdate, staleness);
+                })
+                .collect(Collectors.toList());
+
+        long queries = shapeStatistics.stream().mapToLong(s -> s.queries).sum();
+        long rollupQueries = shapeStatistics.stream().mapToLong(s -> s.rollupQueries).sum();
+        return new RollupStatistics(queries, rollupQueries, queries == 0 ? 0 : ((double) rollupQueries) / queries,
+                tableStatistics, shapeStatistics);
+    }
+
+    /**
+     * Creates a materialized view that contains the partial aggregations of the measures for each day and each
+     * combination of the dimensions. The average is computed from the sums and the counts, the other aggregations
+     * must be in {@link QueryShape#ROLLUP_AGGREGATIONS} since they are computed from the daily partial aggregations.
+     */
+    public CompletableFuture<Void> create(String project, OLAPTable table, EventExplorer explorer)
+    {
+        for (AggregationType aggregation : table.aggregations) {
+            if (aggregation != AVERAGE && !ROLLUP_AGGREGATIONS.contains(aggregation)) {
+                throw new RakamException(format("Aggregation %s is not supported by the OLAP tables", aggregation), BAD_REQUEST);
+            }
+        }
+
+        Set<AggregationType> aggregations = new HashSet<>(table.aggregations);
+        if (aggregations.contains(AVERAGE)) {
+            aggregations.add(COUNT);
+            aggregations.add(SUM);
+        }
+        OLAPTable olapTable = new OLAPTable(table.collections, table.dimensions, aggregations, table.measures, table.countAll, table.tableName);
+
+        String dimensions = olapTable.dimensions.stream().collect(Collectors.joining(", "));
+
+        String subQuery;
+        String measures = olapTable.measures.isEmpty() ? "" : (", " + olapTable.measures.stream().collect(Collectors.joining(", ")));
+        String dimension = dimensions.isEmpty() ? "" : ", " + dimensions;
+
+        if (olapTable.collections != null && !olapTable.collections.isEmpty()) {
+            subQuery = olapTable.collections.stream().map(collection ->
+                    format("SELECT cast('%s' as varchar) as _collection, %s %s %s FROM %s",
+                            collection,
+                            checkTableColumn(projectConfig.getTimeColumn()),
+                            dimension,
+                            measures, collection))
+                    .collect(Collectors.joining(" UNION ALL "));
+        }
+        else {
+            subQuery = format("SELECT _collection, %s %s FROM _all",
+                    checkTableColumn(projectConfig.getTimeColumn()), dimension, measures);
+        }
+
+        String metrics = Stream.of(
+                olapTable.measures.stream().flatMap(column -> aggregations.stream()
+                        .map(agg -> getAggregationColumn(agg, explorer).map(e -> format(e, column) + " as " + column + "_" + agg.name().toLowerCase()))
+                        .filter(Optional::isPresent).map(Optional::get)),
+                olapTable.countAll ? Stream.of("count(*) as " + COUNT_ALL_COLUMN) : Stream.<String>empty(),
+                Stream.of(format("grouping(%s) as %s", String.join(", ", getGroupingColumns(olapTable)), GROUPING_COLUMN)))
+                .flatMap(e -> e)
+                .collect(Collectors.joining(", "));
+
+        String query = format("SELECT _collection, _time %s %s FROM " +
+                        "(SELECT _collection, CAST(%s AS DATE) as _time %s %s FROM (%s) data) data " +
+                        "GROUP BY CUBE (_collection, _time %s) ORDER BY 1 ASC",
+                dimension,
+                ", " + metrics,
+                checkTableColumn(projectConfig.getTimeColumn()),
+                dimension,
+                measures,
+                subQuery,
+                dimensions.isEmpty() ? "" : "," + dimensions);
+
+        return materializedViewService.create(project, new MaterializedView(olapTable.tableName, "Olap table", query,
+                Duration.ofHours(1), null, null, ImmutableMap.of(OLAP_TABLE_OPTION, olapTable, OLAP_GROUPING_OPTION, true)));
+    }
+
+    /**
+     * Returns the columns of the grouping column in the order of its bits, from the most significant bit.
+     */
+    private static List<String> getGroupingColumns(OLAPTable table)
+    {
+        List<String> columns = new ArrayList<>();
+        columns.add("_collection");
+        columns.add("_time");
+        columns.addAll(new TreeSet<>(table.dimensions));
+        return columns;
+    }
+
+    /**
+     * Returns the value of the grouping column of the rows that are grouped by the collection, the day and the
+     * dimensions that are used by the query. The bits of the dimensions that the query doesn't use are set since
+     * these rows aggregate all the values of them.
+     */
+    public static long getGroupingId(OLAPTable table, QueryShape shape)
+    {
+        List<String> columns = getGroupingColumns(table);
+        long groupingId = 0;
+        for (String column : columns) {
+            groupingId <<= 1;
+            if (table.dimensions.contains(column) && !shape.dimensions.contains(column) && !shape.filterColumns.contains(column)) {
+                groupingId |= 1;
+            }
+        }
+        return groupingId;
+    }
+
+    /**
+     * Returns the expression that computes the measure from the daily partial aggregations of the OLAP table.
+     */
+    public static String getRollupMeasure(Measure measure, EventExplorer explorer)
+    {
+        String column = measure.column == null ? COUNT_ALL_COLUMN :
+                (measure.column + "_" + measure.aggregation.name().toLowerCase(Locale.ENGLISH));
+        switch (measure.aggregation) {
+            case MAXIMUM:
+                return format("max(%s)", column);
+            case MINIMUM:
+                return format("min(%s)", column);
+            case COUNT:
+                // the OLAP tables contain the partial counts
+            case SUM:
+                return format("sum(%s)", column);
+            case APPROXIMATE_UNIQUE:
+                return format(explorer.getFinalForApproximateUniqueFunction(), column);
+            default:
+                throw new IllegalArgumentException("aggregation type is not supported by the OLAP tables");
+        }
+    }
+
+    /**
+     * Returns the predicate that selects the rows of the OLAP table that contain the aggregations of the query.
+     * The table is grouped by a cube, so a null dimension may either be a null value or the total of the dimension;
+     * the rows are selected by their grouping set instead of the null values.
+     */
+    public static String getRollupFilter(OLAPTable table, QueryShape shape, Collection<String> collections)
+    {
+        return format("_collection IN (%s) AND %s = %d",
+                collections.stream().map(c -> "'" + checkLiteral(c) + "'").collect(Collectors.joining(",")),
+                GROUPING_COLUMN, getGroupingId(table, shape));
+    }
+
+    /**
+     * Returns the materialized views and the continuous queries that have the {@link #OLAP_TABLE_OPTION} option.
+     */
+    public List<OLAPTableReference> getTables(String project)
+    {
+        return getTables(project, materializedViewService, continuousQueryService);
+    }
+
+    public static List<OLAPTableReference> getTables(String project, MaterializedViewService materializedViewService, ContinuousQueryService continuousQueryService)
+    {
+        List<OLAPTableReference> tables = new ArrayList<>();
+        materializedViewService.list(project).stream()
+                .filter(view -> view.options != null && view.options.containsKey(OLAP_TABLE_OPTION))
+                .forEach(view -> tables.add(new OLAPTableReference(
+                        JsonHelper.convert(view.options.get(OLAP_TABLE_OPTION), OLAPTable.class),
+                        "materialized." + checkCollection(view.tableName), view.lastUpdate,
+                        Boolean.TRUE.equals(view.options.get(OLAP_GROUPING_OPTION)))));
+        // the continuous queries are updated in real-time
+        continuousQueryService.list(project).stream()
+                .filter(view -> view.options != null && view.options.containsKey(OLAP_TABLE_OPTION))
+                .forEach(view -> tables.add(new OLAPTableReference(
+                        JsonHelper.convert(view.options.get(OLAP_TABLE_OPTION), OLAPTable.class),
+                        "continuous." + checkCollection(view.tableName), null,
+                        Boolean.TRUE.equals(view.options.get(OLAP_GROUPING_OPTION)))));
+        return tables;
+    }
+
+    @Subscribe
+    public void onProjectDeleted(SystemEvents.ProjectDeletedEvent event)
+    {
+        shapes.remove(event.project);
+        tableQueries.keySet().removeIf(key -> key.project.equals(event.project));
+    }
+
+    private Optional<String> getAggregationColumn(AggregationType agg, EventExplorer explorer)
+    {
+        switch (agg) {
+            case AVERAGE:
+                return Optional.empty();
+            case MAXIMUM:
+                return Optional.of("max(%s)");
+            case MINIMUM:
+                return Optional.of("min(%s)");
+            case COUNT:
+                return Optional.of("count(%s)");
+            case SUM:
+                return Optional.of("sum(%s)");
+            case APPROXIMATE_UNIQUE:
+                return Optional.of(explorer.getIntermediateForApproximateUniqueFunction());
+            default:
+                throw new IllegalArgumentException("aggregation type is not supported by the OLAP tables");
+        }
+    }
+
+    private static class ShapeCounter
+    {
+        private final AtomicLong queries = new AtomicLong();
+        private final AtomicLong rollupQueries = new AtomicLong();
+        private volatile Instant lastQuery;
+    }
+
+    public static class OLAPTableReference
+    {
+        public final OLAPTable table;
+        public final String reference;
+        public final Instant lastUpdate;
+        // the tables without the grouping column can't tell the totals from the null values
+        public final boolean grouping;
+
+        public OLAPTableReference(OLAPTable table, String reference, Instant lastUpdate, boolean grouping)
+        {
+            this.table = table;
+            this.reference = reference;
+            this.lastUpdate = lastUpdate;
+            this.grouping = grouping;
+        }
+    }
+
+    public static class ShapeStatistics
+    {
+        public final QueryShape shape;
+        public final long queries;
+        public final long rollupQueries;
+        public final Instant lastQuery;
+
+        public ShapeStatistics(QueryShape shape, long queries, long rollupQueries, Instant lastQuery)
+        {
+            this.shape = shape;
+            this.queries = queries;
+            this.rollupQueries = rollupQueries;
+            this.lastQuery = lastQuery;
+        }
+    }
+
+    public static class TableStatistics
+    {
+        public final String reference;
+        public final OLAPTable table;
+        public final long queries;
+        public final Instant lastUpdate;
+        // seconds since the last refresh, null for the tables that are updated in real-time
+        public final Long staleness;
+
+        public TableStatistics(String reference, OLAPTable table, long queries, Instant lastUpdate, Long staleness)
+        {
+            this.reference = reference;
+            this.table = table;
+            this.queries = queries;
+            this.lastUpdate = lastUpdate;
+            this.staleness = staleness;
+        }
+    }
+
+    public static class RollupStatistics
+    {
+        public final long queries;
+        public final long rollupQueries;
+        public final double hitRate;
+        public final List<TableStatistics> tables;
+        public final List<ShapeStatistics> shapes;
+
+        public RollupStatistics(long queries, long rollupQueries, double hitRate, List<TableStatistics> tables, List<ShapeStatistics> shapes)
+        {
+            this.queries = queries;
+            this.rollupQueries = rollupQueries;
+            this.hitRate = hitRate;
+            this.tables = tables;
+            this.shapes = shapes;
+        }
+    }
+}
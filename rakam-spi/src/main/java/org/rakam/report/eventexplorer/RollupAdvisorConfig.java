@@ -0,0 +1,64 @@
+package org.rakam.report.eventexplorer;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+
+public class RollupAdvisorConfig
+{
+    private boolean autoCreate;
+    private int minQueries = 20;
+    private int maxDimensions = 4;
+    private int maxTables = 10;
+
+    @Config("event-explorer.rollup.auto-create")
+    @ConfigDescription("Create the recommended OLAP tables automatically")
+    public RollupAdvisorConfig setAutoCreate(boolean autoCreate)
+    {
+        this.autoCreate = autoCreate;
+        return this;
+    }
+
+    public boolean getAutoCreate()
+    {
+        return autoCreate;
+    }
+
+    @Config("event-explorer.rollup.min-queries")
+    @ConfigDescription("The number of event explorer queries that can't be answered from the OLAP tables before an OLAP table is recommended for them")
+    public RollupAdvisorConfig setMinQueries(int minQueries)
+    {
+        this.minQueries = minQueries;
+        return this;
+    }
+
+    public int getMinQueries()
+    {
+        return minQueries;
+    }
+
+    @Config("event-explorer.rollup.max-dimensions")
+    @ConfigDescription("The number of dimensions of the recommended OLAP tables, the size of the tables grows exponentially with the dimensions")
+    public RollupAdvisorConfig setMaxDimensions(int maxDimensions)
+    {
+        this.maxDimensions = maxDimensions;
+        return this;
+    }
+
+    public int getMaxDimensions()
+    {
+        return maxDimensions;
+    }
+
+    @Config("event-explorer.rollup.max-tables")
+    @ConfigDescription("The number of OLAP tables that are created automatically for a project, the tables that are superseded by a new table are dropped")
+    public RollupAdvisorConfig setMaxTables(int maxTables)
+    {
+        this.maxTables = maxTables;
+        return this;
+    }
+
+    public int getMaxTables()
+    {
+        return maxTables;
+    }
+}
@@ -1,14 +1,19 @@
 package org.rakam.report.realtime;
 
 import io.airlift.configuration.Config;
+import io.airlift.units.DataSize;
 import io.airlift.units.Duration;
 import io.airlift.units.MinDuration;
 
+import static io.airlift.units.DataSize.Unit.MEGABYTE;
+
 
 public class RealTimeConfig {
     private boolean enabled;
     private Duration windowInterval = Duration.valueOf("120s");
     private Duration slideInterval = Duration.valueOf("10s");
+    private DataSize maxMemoryPerProject = new DataSize(64, MEGABYTE);
+    private boolean compactClosedSlices = true;
 
     @Config("real-time.enabled")
     public RealTimeConfig setRealtimeModuleEnabled(boolean enabled) {
@@ -38,10 +43,34 @@ public class RealTimeConfig {
         return slideInterval;
     }
 
-    @Config("realtime.window.interval")
+    @Config("realtime.slide.interval")
     public RealTimeConfig setSlideInterval(String slideInterval)
     {
         this.slideInterval = Duration.valueOf(slideInterval);
         return this;
     }
+
+    public DataSize getMaxMemoryPerProject()
+    {
+        return maxMemoryPerProject;
+    }
+
+    @Config("realtime.max-memory-per-project")
+    public RealTimeConfig setMaxMemoryPerProject(DataSize maxMemoryPerProject)
+    {
+        this.maxMemoryPerProject = maxMemoryPerProject;
+        return this;
+    }
+
+    public boolean getCompactClosedSlices()
+    {
+        return compactClosedSlices;
+    }
+
+    @Config("realtime.compact-closed-slices")
+    public RealTimeConfig setCompactClosedSlices(boolean compactClosedSlices)
+    {
+        this.compactClosedSlices = compactClosedSlices;
+        return this;
+    }
 }
@@ -8,12 +8,13 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 public class SqlUtil
 {
-    private final static SqlParser sqlParser = new SqlParser();
+    // each thread uses its own parser so that the queries can be parsed concurrently without a shared lock
+    private final static ThreadLocal<SqlParser> sqlParser = ThreadLocal.withInitial(SqlParser::new);
 
-    public synchronized static Statement parseSql(String query) {
-        return sqlParser.createStatement(checkNotNull(query, "query is required"));
+    public static Statement parseSql(String query) {
+        return sqlParser.get().createStatement(checkNotNull(query, "query is required"));
     }
-    public synchronized static Expression parseExpression(String query) {
-        return sqlParser.createExpression(checkNotNull(query, "query is required"));
+    public static Expression parseExpression(String query) {
+        return sqlParser.get().createExpression(checkNotNull(query, "query is required"));
     }
 }
@@ -0,0 +1,172 @@
+package org.rakam.analysis;
+
+import com.google.common.collect.ImmutableMap;
+import org.rakam.plugin.MaterializedView;
+import org.rakam.report.QueryExecution;
+import org.rakam.report.QueryResult;
+import org.rakam.util.lock.LockService;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestMaterializedViewRefreshScheduler
+{
+    private static final MaterializedView VIEW = new MaterializedView("test", "test", "select 1", null, false, false, ImmutableMap.of());
+    private static final MaterializedView OTHER_VIEW = new MaterializedView("other", "other", "select 1", null, false, false, ImmutableMap.of());
+
+    @Test
+    public void testIgnoresRefreshWhileRefreshing()
+            throws Exception
+    {
+        TestingLockService lockService = new TestingLockService();
+        MaterializedViewRefreshScheduler scheduler = new MaterializedViewRefreshScheduler(lockService, 4);
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        AtomicInteger refreshes = new AtomicInteger();
+        scheduler.schedule("project", VIEW, () -> {
+            refreshes.incrementAndGet();
+            started.countDown();
+            awaitUninterruptibly(finish);
+            return completed();
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        // the view is being refreshed so the triggers are ignored
+        for (int i = 0; i < 10; i++) {
+            scheduler.schedule("project", VIEW, () -> {
+                refreshes.incrementAndGet();
+                return completed();
+            });
+        }
+
+        // the other views are refreshed independently
+        CountDownLatch otherRefreshed = new CountDownLatch(1);
+        scheduler.schedule("project", OTHER_VIEW, () -> {
+            otherRefreshed.countDown();
+            return completed();
+        });
+        assertTrue(otherRefreshed.await(10, TimeUnit.SECONDS));
+
+        finish.countDown();
+        awaitReleased(lockService, 2);
+        assertEquals(refreshes.get(), 1);
+
+        // the view can be refreshed again after the refresh is completed
+        CountDownLatch refreshedAgain = new CountDownLatch(1);
+        scheduler.schedule("project", VIEW, () -> {
+            refreshedAgain.countDown();
+            return completed();
+        });
+        assertTrue(refreshedAgain.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSkipsRefreshWhenLocked()
+            throws Exception
+    {
+        TestingLockService lockService = new TestingLockService();
+        MaterializedViewRefreshScheduler scheduler = new MaterializedViewRefreshScheduler(lockService, 4);
+
+        // an other node is refreshing the view
+        lockService.locked = true;
+        AtomicInteger refreshes = new AtomicInteger();
+        scheduler.schedule("project", VIEW, () -> {
+            refreshes.incrementAndGet();
+            return completed();
+        });
+        awaitLockAttempts(lockService, 1);
+        assertEquals(refreshes.get(), 0);
+
+        // the skipped refresh doesn't block the next one
+        lockService.locked = false;
+        CountDownLatch refreshed = new CountDownLatch(1);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (refreshed.getCount() > 0 && System.currentTimeMillis() < deadline) {
+            scheduler.schedule("project", VIEW, () -> {
+                refreshed.countDown();
+                return completed();
+            });
+            refreshed.await(10, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(refreshed.getCount(), 0);
+        assertEquals(lockService.names.get(0), "materialized_view.project.test");
+    }
+
+    @Test
+    public void testReleasesLockWhenRefreshFails()
+            throws Exception
+    {
+        TestingLockService lockService = new TestingLockService();
+        MaterializedViewRefreshScheduler scheduler = new MaterializedViewRefreshScheduler(lockService, 1);
+
+        scheduler.schedule("project", VIEW, () -> {
+            throw new IllegalStateException("refresh failed");
+        });
+        awaitReleased(lockService, 1);
+    }
+
+    private static QueryExecution completed()
+    {
+        return QueryExecution.completedQueryExecution("", QueryResult.empty());
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch)
+    {
+        try {
+            latch.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void awaitReleased(TestingLockService lockService, int count)
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (lockService.released.get() < count) {
+            assertTrue(System.currentTimeMillis() < deadline, "the locks are not released");
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitLockAttempts(TestingLockService lockService, int count)
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (lockService.names.size() < count) {
+            assertTrue(System.currentTimeMillis() < deadline, "the lock is not requested");
+            Thread.sleep(10);
+        }
+        // the scheduler gives up the refresh after the lock attempt
+        Thread.sleep(100);
+    }
+
+    private static class TestingLockService
+            implements LockService
+    {
+        private final List<String> names = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger released = new AtomicInteger();
+        private volatile boolean locked;
+
+        @Override
+        public Lock tryLock(String name)
+        {
+            names.add(name);
+            if (locked) {
+                return null;
+            }
+            return released::incrementAndGet;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.rakam.report;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.rakam.plugin.MaterializedView;
+import org.testng.annotations.Test;
+
+import java.time.Clock;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class TestQueryExecutorService
+{
+    private final QueryExecutorService service = new QueryExecutorService(null, null, null, Clock.systemUTC(), '"');
+
+    @Test
+    public void testReferencedCollections()
+    {
+        assertEquals(service.getReferencedCollections("select count(*) from pageview join collection.click on (true)", "collection", ImmutableList.of()),
+                ImmutableSet.of("pageview", "click"));
+        assertNull(service.getReferencedCollections("select count(*) from other.pageview", "collection", ImmutableList.of()));
+    }
+
+    @Test
+    public void testMaterializedViewIsTrackedByLastUpdate()
+    {
+        MaterializedView view = new MaterializedView("daily", "daily", "select count(*) from pageview", null, true, false, ImmutableMap.of());
+
+        assertEquals(service.getReferencedCollections("select * from materialized.daily", "collection", ImmutableList.of(view)),
+                ImmutableSet.of());
+    }
+
+    @Test
+    public void testRealTimeMaterializedViewTracksCollections()
+    {
+        // the real-time views read the events that are collected after the last update from the collections
+        MaterializedView view = new MaterializedView("daily", "daily", "select count(*) from pageview", null, true, true, ImmutableMap.of());
+
+        assertEquals(service.getReferencedCollections("select * from materialized.daily join click on (true)", "collection", ImmutableList.of(view)),
+                ImmutableSet.of("pageview", "click"));
+    }
+
+    @Test
+    public void testRealTimeMaterializedViewOfUntrackedTable()
+    {
+        MaterializedView view = new MaterializedView("daily", "daily", "select count(*) from materialized.other", null, true, true, ImmutableMap.of());
+
+        assertNull(service.getReferencedCollections("select * from materialized.daily", "collection", ImmutableList.of(view)));
+    }
+}
@@ -0,0 +1,254 @@
+package org.rakam.report;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import io.airlift.units.DataSize;
+import org.rakam.collection.SchemaField;
+import org.testng.annotations.Test;
+
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static io.airlift.units.DataSize.Unit.KILOBYTE;
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class TestQueryResultCache
+{
+    private static final String PROJECT = "test";
+    private static final String QUERY = "select count(*) from pageview";
+    private static final List<SchemaField> COLUMNS = ImmutableList.of(new SchemaField("value", STRING));
+
+    @Test
+    public void testCachedResult()
+    {
+        QueryResultCache cache = createCache(new DataSize(100, KILOBYTE));
+        TestingExecutor executor = new TestingExecutor();
+
+        execute(cache, QUERY, ImmutableMap.of(), executor);
+        executor.complete(0, result("a"));
+
+        QueryExecution cached = execute(cache, QUERY, ImmutableMap.of(), executor);
+        assertEquals(executor.executions.size(), 1);
+        assertTrue(cached.isFinished());
+        assertEquals(cached.getResult().join().getResult(), result("a").getResult());
+    }
+
+    @Test
+    public void testCollectionUpdateInvalidatesResult()
+    {
+        QueryResultCache cache = createCache(new DataSize(100, KILOBYTE));
+        TestingExecutor executor = new TestingExecutor();
+
+        execute(cache, QUERY, ImmutableMap.of(), executor);
+        executor.complete(0, result("a"));
+
+        // the other collections don't affect the result
+        cache.collectionsUpdated(PROJECT, ImmutableSet.of("click"));
+        execute(cache, QUERY, ImmutableMap.of(), executor);
+        assertEquals(executor.executions.size(), 1);
+
+        cache.collectionsUpdated(PROJECT, ImmutableSet.of("pageview"));
+        execute(cache, QUERY, ImmutableMap.of(), executor);
+        assertEquals(executor.executions.size(), 2);
+    }
+
+    @Test
+    public void testInvalidationRacingRunningQuery()
+    {
+        QueryResultCache cache = createCache(new DataSize(100, KILOBYTE));
+        TestingExecutor executor = new TestingExecutor();
+
+        QueryExecution first = execute(cache, QUERY, ImmutableMap.of(), executor);
+        // the events are stored after the query is started, the result may not contain them
+        cache.collectionsUpdated(PROJECT, ImmutableSet.of("pageview"));
+
+        // the stale execution is not shared with the queries that are started after the update
+        QueryExecution second = execute(cache, QUERY, ImmutableMap.of(), executor);
+        assertEquals(executor.executions.size(), 2);
+
+        executor.complete(0, result("stale"));
+        executor.complete(1, result("fresh"));
+        assertEquals(first.getResult().join().getResult(), result("stale").getResult());
+        assertEquals(second.getResult().join().getResult(), result("fresh").getResult());
+
+        // only the result of the query that is started after the update is cached
+        QueryExecution cached = execute(cache, QUERY, ImmutableMap.of(), executor);
+        assertEquals(executor.executions.size(), 2);
+        assertEquals(cached.getResult().join().getResult(), result("fresh").getResult());
+    }
+
+    @Test
+    public void testInvalidationBeforeCompletionIsNotCached()
+    {
+        QueryResultCache cache = createCache(new DataSize(100, KILOBYTE));
+        TestingExecutor executor = new TestingExecutor();
+
+        execute(cache, QUERY, ImmutableMap.of(), executor);
+        cache.collectionsUpdated(PROJECT, ImmutableSet.of("pageview"));
+        executor.complete(0, result("stale"));
+
+        execute(cache, QUERY, ImmutableMap.of(), executor);
+        assertEquals(executor.executions.size(), 2);
+    }
+
+    @Test
+    public void testMaterializedViewUpdate()
+    {
+        QueryResultCache cache = createCache(new DataSize(100, KILOBYTE));
+        TestingExecutor executor = new TestingExecutor();
+
+        execute(cache, QUERY, ImmutableMap.of("view", 1L), executor);
+        executor.complete(0, result("a"));
+
+        execute(cache, QUERY, ImmutableMap.of("view", 1L), executor);
+        assertEquals(executor.executions.size(), 1);
+
+        execute(cache, QUERY, ImmutableMap.of("view", 2L), executor);
+        assertEquals(executor.executions.size(), 2);
+    }
+
+    @Test
+    public void testSharedExecution()
+    {
+        QueryResultCache cache = createCache(new DataSize(100, KILOBYTE));
+        TestingExecutor executor = new TestingExecutor();
+
+        QueryExecution first = execute(cache, QUERY, ImmutableMap.of(), executor);
+        QueryExecution second = execute(cache, QUERY, ImmutableMap.of(), executor);
+        assertEquals(executor.executions.size(), 1);
+        assertSame(first.getResult(), second.getResult());
+
+        // the query keeps running as long as one of the callers waits for it
+        first.kill();
+        first.kill();
+        assertFalse(executor.executions.get(0).killed);
+
+        executor.complete(0, result("a"));
+        assertEquals(second.getResult().join().getResult(), result("a").getResult());
+    }
+
+    @Test
+    public void testKilledByAllCallers()
+    {
+        QueryResultCache cache = createCache(new DataSize(100, KILOBYTE));
+        TestingExecutor executor = new TestingExecutor();
+
+        QueryExecution first = execute(cache, QUERY, ImmutableMap.of(), executor);
+        QueryExecution second = execute(cache, QUERY, ImmutableMap.of(), executor);
+        first.kill();
+        second.kill();
+        assertTrue(executor.executions.get(0).killed);
+
+        // the killed execution is not shared with the new callers
+        execute(cache, QUERY, ImmutableMap.of(), executor);
+        assertEquals(executor.executions.size(), 2);
+    }
+
+    @Test
+    public void testLargeResultIsNotCached()
+    {
+        // a single result can use a tenth of the cache
+        QueryResultCache cache = createCache(new DataSize(10, KILOBYTE));
+        TestingExecutor executor = new TestingExecutor();
+
+        execute(cache, QUERY, ImmutableMap.of(), executor);
+        executor.complete(0, result(String.join("", Collections.nCopies(1000, "a"))));
+
+        execute(cache, QUERY, ImmutableMap.of(), executor);
+        assertEquals(executor.executions.size(), 2);
+    }
+
+    @Test
+    public void testSizeEviction()
+    {
+        QueryResultCache cache = createCache(new DataSize(10, KILOBYTE));
+        TestingExecutor executor = new TestingExecutor();
+
+        int queries = 100;
+        for (int i = 0; i < queries; i++) {
+            execute(cache, QUERY + " where id = " + i, ImmutableMap.of(), executor);
+            executor.complete(i, result(String.join("", Collections.nCopies(200, "a"))));
+        }
+
+        for (int i = 0; i < queries; i++) {
+            execute(cache, QUERY + " where id = " + i, ImmutableMap.of(), executor);
+        }
+
+        // the results don't fit in the cache so some of them are executed again
+        int executed = executor.executions.size() - queries;
+        assertTrue(executed > queries / 2, "executed again: " + executed);
+        assertTrue(executed < queries, "executed again: " + executed);
+    }
+
+    private static QueryResultCache createCache(DataSize maxSize)
+    {
+        return new QueryResultCache(new QueryResultCacheConfig().setEnabled(true).setMaxSize(maxSize));
+    }
+
+    private static QueryExecution execute(QueryResultCache cache, String query, Map<String, Long> materializedViews, TestingExecutor executor)
+    {
+        return cache.execute(PROJECT, query, ZoneOffset.UTC, ImmutableSet.of("pageview"), materializedViews, executor::execute);
+    }
+
+    private static QueryResult result(String value)
+    {
+        return new QueryResult(COLUMNS, ImmutableList.of(ImmutableList.of(value)));
+    }
+
+    private static class TestingExecutor
+    {
+        private final List<TestingExecution> executions = new ArrayList<>();
+
+        public QueryExecution execute()
+        {
+            TestingExecution execution = new TestingExecution();
+            executions.add(execution);
+            return execution;
+        }
+
+        public void complete(int index, QueryResult result)
+        {
+            executions.get(index).result.complete(result);
+        }
+    }
+
+    private static class TestingExecution
+            implements QueryExecution
+    {
+        private final CompletableFuture<QueryResult> result = new CompletableFuture<>();
+        private boolean killed;
+
+        @Override
+        public QueryStats currentStats()
+        {
+            return new QueryStats(QueryStats.State.RUNNING);
+        }
+
+        @Override
+        public boolean isFinished()
+        {
+            return result.isDone();
+        }
+
+        @Override
+        public CompletableFuture<QueryResult> getResult()
+        {
+            return result;
+        }
+
+        @Override
+        public void kill()
+        {
+            killed = true;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.rakam.report.eventexplorer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.rakam.analysis.EventExplorer.Measure;
+import org.rakam.analysis.EventExplorer.OLAPTable;
+import org.rakam.analysis.EventExplorer.Reference;
+import org.rakam.report.realtime.AggregationType;
+import org.testng.annotations.Test;
+
+import java.util.Set;
+
+import static org.rakam.analysis.EventExplorer.ReferenceType.COLUMN;
+import static org.rakam.analysis.EventExplorer.ReferenceType.REFERENCE;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.DAY_OF_WEEK;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.HOUR;
+import static org.rakam.report.realtime.AggregationType.AVERAGE;
+import static org.rakam.report.realtime.AggregationType.COUNT;
+import static org.rakam.report.realtime.AggregationType.MAXIMUM;
+import static org.rakam.report.realtime.AggregationType.MINIMUM;
+import static org.rakam.report.realtime.AggregationType.SUM;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestQueryShape
+{
+    private static final OLAPTable TABLE = new OLAPTable(ImmutableSet.of("pageview", "click"), ImmutableSet.of("country", "browser"),
+            ImmutableSet.of(SUM, MAXIMUM), ImmutableSet.of("duration"), true, "_olap_test");
+
+    @Test
+    public void testCreate()
+    {
+        QueryShape shape = QueryShape.create(ImmutableList.of("pageview"), new Measure("duration", SUM),
+                new Reference(COLUMN, "country"), new Reference(COLUMN, "_collection"), "browser = 'chrome' and duration > 10");
+
+        assertEquals(shape.collections, ImmutableSet.of("pageview"));
+        assertEquals(shape.measure, "duration");
+        assertEquals(shape.aggregation, SUM);
+        // the collection segment is stored in all the OLAP tables
+        assertEquals(shape.dimensions, ImmutableSet.of("country"));
+        assertEquals(shape.filterColumns, ImmutableSet.of("browser", "duration"));
+        assertNull(shape.timeDimension);
+    }
+
+    @Test
+    public void testCreateTimeDimension()
+    {
+        QueryShape shape = QueryShape.create(ImmutableList.of("pageview"), null,
+                new Reference(REFERENCE, "day of week"), null, null);
+
+        assertNull(shape.measure);
+        assertEquals(shape.aggregation, COUNT);
+        assertTrue(shape.dimensions.isEmpty());
+        assertTrue(shape.filterColumns.isEmpty());
+        assertEquals(shape.timeDimension, DAY_OF_WEEK);
+    }
+
+    @Test
+    public void testCoveredBy()
+    {
+        assertTrue(shape(ImmutableSet.of("pageview"), "duration", SUM, ImmutableSet.of("country"), ImmutableSet.of("browser")).isCoveredBy(TABLE));
+        assertTrue(shape(ImmutableSet.of("pageview", "click"), "duration", MAXIMUM, ImmutableSet.of(), ImmutableSet.of()).isCoveredBy(TABLE));
+        assertTrue(shape(ImmutableSet.of("click"), null, COUNT, ImmutableSet.of("browser"), ImmutableSet.of()).isCoveredBy(TABLE));
+    }
+
+    @Test
+    public void testNotCoveredByMissingCollection()
+    {
+        assertFalse(shape(ImmutableSet.of("pageview", "purchase"), "duration", SUM, ImmutableSet.of(), ImmutableSet.of()).isCoveredBy(TABLE));
+    }
+
+    @Test
+    public void testNotCoveredByMissingMeasure()
+    {
+        assertFalse(shape(ImmutableSet.of("pageview"), "amount", SUM, ImmutableSet.of(), ImmutableSet.of()).isCoveredBy(TABLE));
+        assertFalse(shape(ImmutableSet.of("pageview"), "duration", MINIMUM, ImmutableSet.of(), ImmutableSet.of()).isCoveredBy(TABLE));
+    }
+
+    @Test
+    public void testNotCoveredWithoutCountAll()
+    {
+        OLAPTable table = new OLAPTable(TABLE.collections, TABLE.dimensions, TABLE.aggregations, TABLE.measures, false, "_olap_test");
+
+        assertFalse(shape(ImmutableSet.of("pageview"), null, COUNT, ImmutableSet.of(), ImmutableSet.of()).isCoveredBy(table));
+        assertTrue(shape(ImmutableSet.of("pageview"), "duration", SUM, ImmutableSet.of(), ImmutableSet.of()).isCoveredBy(table));
+    }
+
+    @Test
+    public void testNotCoveredByMissingDimension()
+    {
+        assertFalse(shape(ImmutableSet.of("pageview"), "duration", SUM, ImmutableSet.of("city"), ImmutableSet.of()).isCoveredBy(TABLE));
+        // the filters are applied to the rows of the OLAP table so the filter columns must be dimensions
+        assertFalse(shape(ImmutableSet.of("pageview"), "duration", SUM, ImmutableSet.of("country"), ImmutableSet.of("city")).isCoveredBy(TABLE));
+    }
+
+    @Test
+    public void testNotCoveredBySubDayTimeDimension()
+    {
+        QueryShape hourly = new QueryShape(ImmutableSet.of("pageview"), "duration", SUM, ImmutableSet.of(), ImmutableSet.of(), HOUR);
+        QueryShape weekly = new QueryShape(ImmutableSet.of("pageview"), "duration", SUM, ImmutableSet.of(), ImmutableSet.of(), DAY_OF_WEEK);
+
+        assertFalse(hourly.isRollupCompatible());
+        assertFalse(hourly.isCoveredBy(TABLE));
+        assertTrue(weekly.isCoveredBy(TABLE));
+    }
+
+    @Test
+    public void testNotCoveredByIncompatibleAggregation()
+    {
+        OLAPTable table = new OLAPTable(TABLE.collections, TABLE.dimensions, ImmutableSet.of(AVERAGE), TABLE.measures, true, "_olap_test");
+        QueryShape shape = shape(ImmutableSet.of("pageview"), "duration", AVERAGE, ImmutableSet.of(), ImmutableSet.of());
+
+        // the average of the daily averages is not the average of the events
+        assertFalse(shape.isRollupCompatible());
+        assertFalse(shape.isCoveredBy(table));
+    }
+
+    private static QueryShape shape(Set<String> collections, String measure, AggregationType aggregation, Set<String> dimensions, Set<String> filterColumns)
+    {
+        return new QueryShape(collections, measure, aggregation, dimensions, filterColumns, null);
+    }
+}
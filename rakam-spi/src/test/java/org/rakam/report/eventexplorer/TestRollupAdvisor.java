@@ -0,0 +1,446 @@
+package org.rakam.report.eventexplorer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.rakam.analysis.ContinuousQueryService;
+import org.rakam.analysis.EventExplorer;
+import org.rakam.analysis.EventExplorer.Measure;
+import org.rakam.analysis.EventExplorer.OLAPTable;
+import org.rakam.analysis.InMemoryQueryMetadataStore;
+import org.rakam.analysis.MaterializedViewService;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.ProjectConfig;
+import org.rakam.plugin.ContinuousQuery;
+import org.rakam.plugin.MaterializedView;
+import org.rakam.report.QueryExecution;
+import org.rakam.report.QueryResult;
+import org.rakam.util.RakamException;
+import org.testng.annotations.Test;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static org.rakam.report.realtime.AggregationType.APPROXIMATE_UNIQUE;
+import static org.rakam.report.realtime.AggregationType.AVERAGE;
+import static org.rakam.report.realtime.AggregationType.COUNT;
+import static org.rakam.report.realtime.AggregationType.COUNT_UNIQUE;
+import static org.rakam.report.realtime.AggregationType.MAXIMUM;
+import static org.rakam.report.realtime.AggregationType.MINIMUM;
+import static org.rakam.report.realtime.AggregationType.SUM;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestRollupAdvisor
+{
+    private static final String PROJECT = "test";
+    private static final EventExplorer EXPLORER = new TestingEventExplorer();
+
+    @Test
+    public void testRollupMeasure()
+    {
+        // the OLAP tables contain the daily counts so the counts are summed
+        assertEquals(RollupAdvisor.getRollupMeasure(new Measure(null, COUNT), EXPLORER), "sum(_count)");
+        assertEquals(RollupAdvisor.getRollupMeasure(new Measure("duration", COUNT), EXPLORER), "sum(duration_count)");
+        assertEquals(RollupAdvisor.getRollupMeasure(new Measure("duration", SUM), EXPLORER), "sum(duration_sum)");
+        assertEquals(RollupAdvisor.getRollupMeasure(new Measure("duration", MINIMUM), EXPLORER), "min(duration_minimum)");
+        assertEquals(RollupAdvisor.getRollupMeasure(new Measure("duration", MAXIMUM), EXPLORER), "max(duration_maximum)");
+        assertEquals(RollupAdvisor.getRollupMeasure(new Measure("user_id", APPROXIMATE_UNIQUE), EXPLORER), "merge_hll(user_id_approximate_unique)");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testRollupMeasureUnsupportedAggregation()
+    {
+        RollupAdvisor.getRollupMeasure(new Measure("duration", AVERAGE), EXPLORER);
+    }
+
+    @Test
+    public void testRollupFilter()
+    {
+        OLAPTable table = table(ImmutableSet.of("pageview", "click"), ImmutableSet.of("country", "browser", "city"), true, "_olap_test");
+        QueryShape shape = new QueryShape(ImmutableSet.of("pageview"), null, COUNT, ImmutableSet.of("country"), ImmutableSet.of("browser"), null);
+
+        // the grouping column has the bits of _collection, _time, browser, city and country, the city is aggregated
+        assertEquals(RollupAdvisor.getRollupFilter(table, shape, ImmutableList.of("pageview")),
+                "_collection IN ('pageview') AND _grouping = 2");
+    }
+
+    @Test
+    public void testRollupFilterAllDimensionsUsed()
+    {
+        OLAPTable table = table(ImmutableSet.of("pageview", "click"), ImmutableSet.of("country"), true, "_olap_test");
+        QueryShape shape = new QueryShape(ImmutableSet.of("pageview", "click"), null, COUNT, ImmutableSet.of("country"), ImmutableSet.of(), null);
+
+        assertEquals(RollupAdvisor.getRollupFilter(table, shape, ImmutableList.of("pageview", "it's")),
+                "_collection IN ('pageview','it''s') AND _grouping = 0");
+    }
+
+    @Test
+    public void testRollupFilterNoDimensionUsed()
+    {
+        OLAPTable table = table(ImmutableSet.of("pageview"), ImmutableSet.of("country", "browser"), true, "_olap_test");
+        QueryShape shape = new QueryShape(ImmutableSet.of("pageview"), null, COUNT, ImmutableSet.of(), ImmutableSet.of(), null);
+
+        assertEquals(RollupAdvisor.getRollupFilter(table, shape, ImmutableList.of("pageview")),
+                "_collection IN ('pageview') AND _grouping = 3");
+    }
+
+    @Test
+    public void testRollupWithNullValues()
+    {
+        OLAPTable table = table(ImmutableSet.of("pageview", "click"), ImmutableSet.of("country", "browser"), true, "_olap_test");
+        List<Map<String, Object>> events = ImmutableList.of(
+                event("pageview", "2017-01-01", "US", "chrome"),
+                event("pageview", "2017-01-01", null, "chrome"),
+                event("pageview", "2017-01-02", null, null),
+                event("pageview", "2017-01-02", "TR", null),
+                event("pageview", "2017-01-02", "US", "firefox"),
+                event("click", "2017-01-01", null, "firefox"));
+        // the rows of GROUP BY CUBE (_collection, _time, browser, country), the totals have null in the aggregated columns
+        List<CubeRow> rows = cube(events, ImmutableList.of("_collection", "_time", "browser", "country"));
+
+        for (Set<String> dimensions : ImmutableList.<Set<String>>of(ImmutableSet.of(), ImmutableSet.of("country"),
+                ImmutableSet.of("browser"), ImmutableSet.of("country", "browser"))) {
+            QueryShape shape = new QueryShape(ImmutableSet.of("pageview"), null, COUNT, dimensions, ImmutableSet.of(), null);
+            assertEquals(rollup(rows, table, shape, "pageview"), count(events, shape, "pageview"), dimensions.toString());
+        }
+    }
+
+    @Test
+    public void testSupersedes()
+    {
+        OLAPTable table = new OLAPTable(ImmutableSet.of("pageview", "click"), ImmutableSet.of("country", "browser"),
+                ImmutableSet.of(SUM, MAXIMUM), ImmutableSet.of("duration"), true, "_olap_new");
+
+        assertTrue(RollupAdvisor.supersedes(table, table(ImmutableSet.of("pageview"), ImmutableSet.of("country"), true, "_olap_old")));
+        assertTrue(RollupAdvisor.supersedes(table, new OLAPTable(ImmutableSet.of("click"), ImmutableSet.of(),
+                ImmutableSet.of(SUM), ImmutableSet.of("duration"), false, "_olap_old")));
+
+        assertFalse(RollupAdvisor.supersedes(table, table(ImmutableSet.of("purchase"), ImmutableSet.of(), true, "_olap_old")));
+        assertFalse(RollupAdvisor.supersedes(table, table(ImmutableSet.of("pageview"), ImmutableSet.of("city"), true, "_olap_old")));
+        assertFalse(RollupAdvisor.supersedes(table, new OLAPTable(ImmutableSet.of("pageview"), ImmutableSet.of(),
+                ImmutableSet.of(MINIMUM), ImmutableSet.of("duration"), false, "_olap_old")));
+        assertFalse(RollupAdvisor.supersedes(table, new OLAPTable(ImmutableSet.of("pageview"), ImmutableSet.of(),
+                ImmutableSet.of(SUM), ImmutableSet.of("amount"), false, "_olap_old")));
+
+        OLAPTable withoutCount = new OLAPTable(table.collections, table.dimensions, table.aggregations, table.measures, false, "_olap_new");
+        assertFalse(RollupAdvisor.supersedes(withoutCount, table(ImmutableSet.of("pageview"), ImmutableSet.of(), true, "_olap_old")));
+    }
+
+    @Test
+    public void testDropsSupersededTables()
+    {
+        InMemoryQueryMetadataStore metadataStore = new InMemoryQueryMetadataStore();
+        createView(metadataStore, table(ImmutableSet.of("pageview"), ImmutableSet.of(), true, "_olap_old"));
+        // the tables that are not created automatically are never dropped
+        createView(metadataStore, table(ImmutableSet.of("pageview"), ImmutableSet.of(), true, "daily_pageviews"));
+
+        RollupAdvisor advisor = advisor(metadataStore, 10);
+        advisor.record(PROJECT, countShape("pageview", "country"), null, EXPLORER);
+        advisor.createRecommendedTables(PROJECT, EXPLORER);
+
+        Map<String, OLAPTable> tables = tables(advisor);
+        assertEquals(tables.size(), 2);
+        assertFalse(tables.containsKey("_olap_old"));
+        assertTrue(tables.containsKey("daily_pageviews"));
+
+        OLAPTable created = tables.values().stream().filter(table -> !table.tableName.equals("daily_pageviews")).findAny().get();
+        assertTrue(created.tableName.startsWith("_olap_"));
+        assertEquals(created.dimensions, ImmutableSet.of("country"));
+        assertTrue(created.countAll);
+        assertTrue(advisor.getRecommendations(PROJECT).isEmpty());
+    }
+
+    @Test
+    public void testIgnoresTablesWithoutGroupingColumn()
+    {
+        InMemoryQueryMetadataStore metadataStore = new InMemoryQueryMetadataStore();
+        // the tables that are created before the grouping column can't answer the queries correctly
+        createView(metadataStore, table(ImmutableSet.of("pageview"), ImmutableSet.of("country"), true, "daily_countries"));
+
+        RollupAdvisor advisor = advisor(metadataStore, 10);
+        advisor.record(PROJECT, countShape("pageview", "country"), null, EXPLORER);
+
+        assertFalse(advisor.getTables(PROJECT).get(0).grouping);
+        assertEquals(advisor.getRecommendations(PROJECT).size(), 1);
+
+        advisor.createRecommendedTables(PROJECT, EXPLORER);
+        assertTrue(advisor.getTables(PROJECT).stream().anyMatch(table -> table.grouping));
+        assertTrue(advisor.getRecommendations(PROJECT).isEmpty());
+    }
+
+    @Test
+    public void testCountUniqueIsNotRecommended()
+    {
+        RollupAdvisor advisor = advisor(new InMemoryQueryMetadataStore(), 10);
+        advisor.record(PROJECT, new QueryShape(ImmutableSet.of("pageview"), "user_id", COUNT_UNIQUE, ImmutableSet.of(), ImmutableSet.of(), null), null, EXPLORER);
+        advisor.createRecommendedTables(PROJECT, EXPLORER);
+
+        assertTrue(advisor.getRecommendations(PROJECT).isEmpty());
+        assertTrue(advisor.getTables(PROJECT).isEmpty());
+    }
+
+    @Test(expectedExceptions = RakamException.class)
+    public void testCreateRejectsCountUnique()
+    {
+        RollupAdvisor advisor = advisor(new InMemoryQueryMetadataStore(), 10);
+        advisor.create(PROJECT, new OLAPTable(ImmutableSet.of("pageview"), ImmutableSet.of(), ImmutableSet.of(COUNT_UNIQUE),
+                ImmutableSet.of("user_id"), false, "unique_users"), EXPLORER);
+    }
+
+    @Test
+    public void testMaxTables()
+    {
+        InMemoryQueryMetadataStore metadataStore = new InMemoryQueryMetadataStore();
+        createView(metadataStore, table(ImmutableSet.of("click"), ImmutableSet.of(), true, "_olap_click"));
+
+        RollupAdvisor advisor = advisor(metadataStore, 1);
+        advisor.record(PROJECT, countShape("pageview", "country"), null, EXPLORER);
+        advisor.createRecommendedTables(PROJECT, EXPLORER);
+
+        assertEquals(tables(advisor).keySet(), ImmutableSet.of("_olap_click"));
+        assertEquals(advisor.getRecommendations(PROJECT).size(), 1);
+    }
+
+    @Test
+    public void testMaxTablesReplacesSupersededTable()
+    {
+        InMemoryQueryMetadataStore metadataStore = new InMemoryQueryMetadataStore();
+        createView(metadataStore, table(ImmutableSet.of("pageview"), ImmutableSet.of(), true, "_olap_old"));
+
+        // the new table replaces the superseded one so the number of tables doesn't grow
+        RollupAdvisor advisor = advisor(metadataStore, 1);
+        advisor.record(PROJECT, countShape("pageview", "country"), null, EXPLORER);
+        advisor.createRecommendedTables(PROJECT, EXPLORER);
+
+        Map<String, OLAPTable> tables = tables(advisor);
+        assertEquals(tables.size(), 1);
+        assertNotEquals(tables.keySet().iterator().next(), "_olap_old");
+    }
+
+    private static Map<String, Object> event(String collection, String day, String country, String browser)
+    {
+        Map<String, Object> event = new HashMap<>();
+        event.put("_collection", collection);
+        event.put("_time", day);
+        event.put("country", country);
+        event.put("browser", browser);
+        return event;
+    }
+
+    private static List<CubeRow> cube(List<Map<String, Object>> events, List<String> columns)
+    {
+        List<CubeRow> rows = new ArrayList<>();
+        for (long groupingId = 0; groupingId < 1 << columns.size(); groupingId++) {
+            Map<List<Object>, Long> groups = new HashMap<>();
+            for (Map<String, Object> event : events) {
+                List<Object> key = new ArrayList<>();
+                for (int i = 0; i < columns.size(); i++) {
+                    boolean aggregated = (groupingId & (1 << (columns.size() - 1 - i))) != 0;
+                    key.add(aggregated ? null : event.get(columns.get(i)));
+                }
+                groups.merge(key, 1L, Long::sum);
+            }
+
+            for (Map.Entry<List<Object>, Long> group : groups.entrySet()) {
+                Map<String, Object> values = new HashMap<>();
+                for (int i = 0; i < columns.size(); i++) {
+                    values.put(columns.get(i), group.getKey().get(i));
+                }
+                rows.add(new CubeRow(values, groupingId, group.getValue()));
+            }
+        }
+        return rows;
+    }
+
+    // applies the filter of the rollup query to the rows of the cube
+    private static Map<List<Object>, Long> rollup(List<CubeRow> rows, OLAPTable table, QueryShape shape, String collection)
+    {
+        long groupingId = RollupAdvisor.getGroupingId(table, shape);
+        Map<List<Object>, Long> result = new HashMap<>();
+        for (CubeRow row : rows) {
+            if (collection.equals(row.values.get("_collection")) && row.groupingId == groupingId) {
+                result.merge(key(row.values, shape), row.count, Long::sum);
+            }
+        }
+        return result;
+    }
+
+    private static Map<List<Object>, Long> count(List<Map<String, Object>> events, QueryShape shape, String collection)
+    {
+        Map<List<Object>, Long> result = new HashMap<>();
+        for (Map<String, Object> event : events) {
+            if (collection.equals(event.get("_collection"))) {
+                result.merge(key(event, shape), 1L, Long::sum);
+            }
+        }
+        return result;
+    }
+
+    private static List<Object> key(Map<String, Object> values, QueryShape shape)
+    {
+        List<Object> key = new ArrayList<>();
+        for (String dimension : shape.dimensions) {
+            key.add(values.get(dimension));
+        }
+        return key;
+    }
+
+    private static class CubeRow
+    {
+        private final Map<String, Object> values;
+        private final long groupingId;
+        private final long count;
+
+        private CubeRow(Map<String, Object> values, long groupingId, long count)
+        {
+            this.values = values;
+            this.groupingId = groupingId;
+            this.count = count;
+        }
+    }
+
+    private static QueryShape countShape(String collection, String dimension)
+    {
+        return new QueryShape(ImmutableSet.of(collection), null, COUNT, ImmutableSet.of(dimension), ImmutableSet.of(), null);
+    }
+
+    private static OLAPTable table(Set<String> collections, Set<String> dimensions, boolean countAll, String tableName)
+    {
+        return new OLAPTable(collections, dimensions, ImmutableSet.of(), ImmutableSet.of(), countAll, tableName);
+    }
+
+    private static void createView(InMemoryQueryMetadataStore metadataStore, OLAPTable table)
+    {
+        metadataStore.createMaterializedView(PROJECT, new MaterializedView(table.tableName, table.tableName, "select 1", null, false, false,
+                ImmutableMap.of(RollupAdvisor.OLAP_TABLE_OPTION, table)));
+    }
+
+    private static RollupAdvisor advisor(InMemoryQueryMetadataStore metadataStore, int maxTables)
+    {
+        RollupAdvisorConfig config = new RollupAdvisorConfig().setMinQueries(1).setMaxTables(maxTables);
+        return new RollupAdvisor(new ProjectConfig(), new TestingMaterializedViewService(metadataStore),
+                new TestingContinuousQueryService(metadataStore), config);
+    }
+
+    private static Map<String, OLAPTable> tables(RollupAdvisor advisor)
+    {
+        return advisor.getTables(PROJECT).stream()
+                .collect(Collectors.toMap(reference -> reference.table.tableName, reference -> reference.table));
+    }
+
+    private static class TestingMaterializedViewService
+            extends MaterializedViewService
+    {
+        private final InMemoryQueryMetadataStore metadataStore;
+
+        private TestingMaterializedViewService(InMemoryQueryMetadataStore metadataStore)
+        {
+            super(metadataStore, null, '"');
+            this.metadataStore = metadataStore;
+        }
+
+        @Override
+        public CompletableFuture<Void> create(String project, MaterializedView materializedView)
+        {
+            metadataStore.createMaterializedView(project, materializedView);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<QueryResult> delete(String project, String name)
+        {
+            metadataStore.deleteMaterializedView(project, name);
+            return CompletableFuture.completedFuture(QueryResult.empty());
+        }
+
+        @Override
+        public MaterializedViewExecution lockAndUpdateView(String project, MaterializedView materializedView)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class TestingContinuousQueryService
+            extends ContinuousQueryService
+    {
+        private TestingContinuousQueryService(InMemoryQueryMetadataStore metadataStore)
+        {
+            super(metadataStore);
+        }
+
+        @Override
+        public QueryExecution create(String project, ContinuousQuery report, boolean replayHistoricalData)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Boolean> delete(String project, String tableName)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<String, List<SchemaField>> getSchemas(String project)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean test(String project, String query)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public QueryExecution refresh(String project, String tableName)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class TestingEventExplorer
+            implements EventExplorer
+    {
+        @Override
+        public QueryExecution analyze(String project, List<String> collections, Measure measureType, Reference grouping, Reference segment, String filterExpression, LocalDate startDate, LocalDate endDate, ZoneId timezone)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<QueryResult> getEventStatistics(String project, Optional<Set<String>> collections, Optional<String> dimension, LocalDate startDate, LocalDate endDate, ZoneId timezone)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<String, List<String>> getExtraDimensions(String project)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getIntermediateForApproximateUniqueFunction()
+        {
+            return "approx_set(%s)";
+        }
+
+        @Override
+        public String getFinalForApproximateUniqueFunction()
+        {
+            return "merge_hll(%s)";
+        }
+    }
+}
@@ -42,6 +42,7 @@ import org.rakam.bootstrap.ProxyBootstrap;
 import org.rakam.collection.EventCollectionHttpService;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.FieldDependencyBuilder.FieldDependency;
+import org.rakam.collection.WebHookConfig;
 import org.rakam.collection.WebHookHttpService;
 import org.rakam.config.EncryptionConfig;
 import org.rakam.config.MetadataConfig;
@@ -52,12 +53,16 @@ import org.rakam.http.OptionMethodHttpService;
 import org.rakam.http.WebServiceModule;
 import org.rakam.http.WebServiceModule.ProjectPermissionParameterFactory;
 import org.rakam.plugin.EventMapper;
+import org.rakam.plugin.EventStore;
 import org.rakam.plugin.InjectionHook;
 import org.rakam.plugin.RAsyncHttpClient;
 import org.rakam.plugin.RakamModule;
+import org.rakam.plugin.RawEventStore;
 import org.rakam.plugin.user.AbstractUserService;
 import org.rakam.plugin.user.UserStorage;
 import org.rakam.plugin.user.mailbox.UserMailboxStorage;
+import org.rakam.report.QueryResultCache;
+import org.rakam.report.QueryResultCacheConfig;
 import org.rakam.server.http.HttpRequestHandler;
 import org.rakam.server.http.HttpService;
 import org.rakam.server.http.WebSocketService;
@@ -244,9 +249,13 @@ public final class ServiceStarter
             configBinder(binder).bindConfig(ProjectConfig.class);
             configBinder(binder).bindConfig(EncryptionConfig.class);
             configBinder(binder).bindConfig(CustomDataSourceConfig.class);
+            configBinder(binder).bindConfig(QueryResultCacheConfig.class);
+            configBinder(binder).bindConfig(WebHookConfig.class);
 
             binder.bind(SchemaChecker.class).asEagerSingleton();
 
+            binder.bind(EventStore.class).toProvider(EventStoreProvider.class).in(Scopes.SINGLETON);
+
             binder.bind(RAsyncHttpClient.class)
                     .annotatedWith(Names.named("rakam-client"))
                     .toProvider(() -> {
@@ -266,6 +275,27 @@ public final class ServiceStarter
         }
     }
 
+    public static class EventStoreProvider
+            implements Provider<EventStore>
+    {
+        private final EventStore eventStore;
+        private final QueryResultCache resultCache;
+
+        @Inject
+        public EventStoreProvider(@RawEventStore EventStore eventStore, QueryResultCache resultCache)
+        {
+            this.eventStore = eventStore;
+            this.resultCache = resultCache;
+        }
+
+        @Override
+        public EventStore get()
+        {
+            // the cached query results of the collections are invalidated by all the services that store events
+            return resultCache.invalidatingEventStore(eventStore);
+        }
+    }
+
     public static class ProjectPermissionParameterProvider
             implements Provider<CustomParameter>
     {
@@ -0,0 +1,85 @@
+package org.rakam.analysis;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import org.rakam.report.QueryResultSink;
+
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.NoSuchElementException;
+
+/**
+ * Base class for the sinks that write the rows of a query to an HTTP connection. The query thread waits until
+ * the client reads the data that is written so far, so a slow client slows down the query instead of
+ * the rows being buffered in memory.
+ */
+abstract class ChannelQueryResultSink
+        implements QueryResultSink
+{
+    protected final ChannelHandlerContext context;
+
+    protected ChannelQueryResultSink(ChannelHandlerContext context)
+    {
+        this.context = context;
+    }
+
+    protected void awaitWritable()
+    {
+        Channel channel = context.channel();
+        // the event loop can't be blocked, the data is buffered in that case
+        if (!channel.isWritable() && channel.isActive() && !context.executor().inEventLoop()) {
+            WritabilityListener listener = new WritabilityListener();
+            channel.pipeline().addFirst(listener);
+            try {
+                synchronized (listener) {
+                    // the channel may become writable before the listener is added, so the state is checked again
+                    while (!channel.isWritable() && channel.isActive()) {
+                        listener.wait();
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new InterruptedIOException());
+            }
+            finally {
+                try {
+                    channel.pipeline().remove(listener);
+                }
+                catch (NoSuchElementException e) {
+                    // the pipeline is already destroyed since the channel is closed
+                }
+            }
+        }
+
+        if (!channel.isActive()) {
+            throw new UncheckedIOException(new ClosedChannelException());
+        }
+    }
+
+    private static class WritabilityListener
+            extends ChannelInboundHandlerAdapter
+    {
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx)
+                throws Exception
+        {
+            synchronized (this) {
+                notifyAll();
+            }
+            ctx.fireChannelWritabilityChanged();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx)
+                throws Exception
+        {
+            synchronized (this) {
+                notifyAll();
+            }
+            ctx.fireChannelInactive();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.rakam.analysis;
+
+import com.google.common.collect.ImmutableList;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import org.rakam.collection.SchemaField;
+import org.rakam.plugin.EventStore.CopyType;
+import org.rakam.report.QueryResult;
+import org.rakam.server.http.HttpServer;
+import org.rakam.server.http.RakamHttpRequest;
+import org.rakam.util.ExportUtil;
+import org.rakam.util.ExportUtil.RowEncoder;
+import org.rakam.util.RakamException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+
+import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+/**
+ * Encodes the rows of a query in the export format as they are fetched and sends them to the client using
+ * chunked transfer encoding. The rows are encoded into pooled buffers that are sent when they reach
+ * {@link #CHUNK_SIZE}, so the memory usage doesn't depend on the number of the rows.
+ */
+class ChunkedExportSink
+        extends ChannelQueryResultSink
+{
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final RakamHttpRequest request;
+    private final CopyType type;
+    private final ChunkOutputStream output = new ChunkOutputStream();
+    private RowEncoder encoder;
+
+    public ChunkedExportSink(RakamHttpRequest request, CopyType type)
+    {
+        super(request.context());
+        this.request = request;
+        this.type = type;
+    }
+
+    @Override
+    public void columns(List<SchemaField> columns)
+    {
+        HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+        HttpHeaders.setTransferEncodingChunked(response);
+        response.headers().set(CONTENT_TYPE, getContentType(type));
+        response.headers().set("Content-Disposition", "attachment;filename=\"query_result." + type.name().toLowerCase(Locale.ENGLISH) + "\"");
+        context.write(response);
+
+        encoder = ExportUtil.createEncoder(type, output);
+        try {
+            encoder.writeHeader(columns);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void row(List<Object> row)
+    {
+        try {
+            encoder.writeRow(row);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        if (output.size() >= CHUNK_SIZE) {
+            output.flushChunk();
+        }
+    }
+
+    @Override
+    public void finish()
+    {
+        try {
+            encoder.finish();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Ends the response when the query is completed.
+     */
+    public void complete(QueryResult result, Throwable ex)
+    {
+        if (ex != null || result.isFailed()) {
+            if (encoder == null) {
+                RakamException error = getError(result, ex);
+                HttpServer.returnError(request, error.getMessage(), error.getStatusCode());
+            }
+            else {
+                // the status is already sent, closing the connection before the last chunk lets the client know
+                // that the file is not complete.
+                output.release();
+                context.close();
+            }
+            return;
+        }
+
+        if (encoder == null) {
+            columns(Optional.ofNullable(result.getMetadata()).orElse(ImmutableList.of()));
+            finish();
+        }
+
+        output.flushChunk();
+        ChannelFuture future = context.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        if (!HttpHeaders.isKeepAlive(request)) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * The errors of the query are the user's errors, the other exceptions are unexpected so the details are not
+     * sent to the client.
+     */
+    static RakamException getError(QueryResult result, Throwable ex)
+    {
+        if (ex == null) {
+            return new RakamException(result.getError().message, BAD_REQUEST);
+        }
+
+        Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+        if (cause instanceof RakamException) {
+            return (RakamException) cause;
+        }
+        return new RakamException("Internal error", INTERNAL_SERVER_ERROR);
+    }
+
+    private static String getContentType(CopyType type)
+    {
+        switch (type) {
+            case CSV:
+                return "text/csv; charset=utf-8";
+            case JSON:
+                return "application/json; charset=utf-8";
+            default:
+                return "application/octet-stream";
+        }
+    }
+
+    private class ChunkOutputStream
+            extends OutputStream
+    {
+        private ByteBuf buffer;
+
+        @Override
+        public void write(int b)
+        {
+            buffer().writeByte(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            buffer().writeBytes(b, off, len);
+        }
+
+        public int size()
+        {
+            return buffer == null ? 0 : buffer.readableBytes();
+        }
+
+        public void flushChunk()
+        {
+            if (buffer == null) {
+                return;
+            }
+
+            ByteBuf chunk = buffer;
+            buffer = null;
+            context.writeAndFlush(new DefaultHttpContent(chunk));
+            awaitWritable();
+        }
+
+        public void release()
+        {
+            if (buffer != null) {
+                buffer.release();
+                buffer = null;
+            }
+        }
+
+        private ByteBuf buffer()
+        {
+            if (buffer == null) {
+                buffer = context.alloc().buffer(CHUNK_SIZE);
+            }
+            return buffer;
+        }
+    }
+}
@@ -44,7 +44,6 @@ import org.rakam.server.http.annotations.Authorization;
 import org.rakam.server.http.annotations.BodyParam;
 import org.rakam.server.http.annotations.IgnoreApi;
 import org.rakam.server.http.annotations.JsonRequest;
-import org.rakam.util.ExportUtil;
 import org.rakam.util.JsonHelper;
 import org.rakam.util.LogUtil;
 import org.rakam.util.RakamClient;
@@ -149,32 +148,22 @@ public class QueryHttpService
     @JsonRequest
     public void export(RakamHttpRequest request, @Named("project") String project, @BodyParam QueryRequest query)
     {
-        String apiKey = request.headers().get("read_key");
-        executorService.executeQuery(project, query.query,
+        if (query.exportType == null) {
+            throw new RakamException("export_type is required", BAD_REQUEST);
+        }
+
+        ChunkedExportSink sink = new ChunkedExportSink(request, query.exportType);
+        QueryExecution execution = executorService.executeQuery(project, query.query,
                 query.sample, Optional.ofNullable(query.defaultSchema).orElse("collection"),
                 query.timezone,
-                query.limit == null ? DEFAULT_QUERY_RESULT_COUNT : query.limit)
+                query.limit == null ? DEFAULT_QUERY_RESULT_COUNT : query.limit, null, sink);
 
-                .getResult().thenAccept(result -> {
-            if (result.isFailed()) {
-                throw new RakamException(result.getError().toString(), BAD_REQUEST);
-            }
-            byte[] bytes;
-            switch (query.exportType) {
-                case CSV:
-                    bytes = ExportUtil.exportAsCSV(result);
-                    break;
-                case AVRO:
-                    bytes = ExportUtil.exportAsAvro(result);
-                    break;
-                case JSON:
-                    bytes = JsonHelper.encodeAsBytes(result.getResult());
-                default:
-                    throw new IllegalStateException();
+        request.context().channel().closeFuture().addListener(future -> {
+            if (!execution.isFinished()) {
+                execution.kill();
             }
-
-            request.response(bytes).end();
         });
+        execution.getResult().whenComplete(sink::complete);
     }
 
     @GET
@@ -186,12 +175,14 @@ public class QueryHttpService
     @Path("/execute")
     public void execute(RakamHttpRequest request)
     {
-        handleServerSentQueryExecution(request, QueryRequest.class, (project, query) ->
-                executorService.executeQuery(project, query.query,
-                        query.sample,
-                        Optional.ofNullable(query.defaultSchema).orElse("collection"),
-                        query.timezone,
-                        query.limit == null ? DEFAULT_QUERY_RESULT_COUNT : query.limit));
+        handleServerSentQueryExecution(request, QueryRequest.class, (project, query, response) ->
+                        executorService.executeQuery(project, query.query,
+                                query.sample,
+                                Optional.ofNullable(query.defaultSchema).orElse("collection"),
+                                query.timezone,
+                                query.limit == null ? DEFAULT_QUERY_RESULT_COUNT : query.limit, null,
+                                query.stream ? new ServerSentQueryResultSink(request, response) : null),
+                READ_KEY, true, Optional.empty());
     }
 
     public <T> void handleServerSentQueryExecution(RakamHttpRequest request, Class<T> clazz, BiFunction<String, T, QueryExecution> executorFunction, BiConsumer<T, QueryResult> exceptionCallback)
@@ -207,6 +198,12 @@ public class QueryHttpService
     private static Duration RETRY_DURATION = Duration.ofSeconds(600);
 
     public <T> void handleServerSentQueryExecution(RakamHttpRequest request, Class<T> clazz, BiFunction<String, T, QueryExecution> executorFunction, ApiKeyService.AccessKeyType keyType, boolean killOnConnectionClose, Optional<BiConsumer<T, QueryResult>> exceptionCallback)
+    {
+        handleServerSentQueryExecution(request, clazz, (project, query, response) -> executorFunction.apply(project, query),
+                keyType, killOnConnectionClose, exceptionCallback);
+    }
+
+    private <T> void handleServerSentQueryExecution(RakamHttpRequest request, Class<T> clazz, ServerSentQueryFunction<T> executorFunction, ApiKeyService.AccessKeyType keyType, boolean killOnConnectionClose, Optional<BiConsumer<T, QueryResult>> exceptionCallback)
     {
         if (!Objects.equals(request.headers().get(ACCEPT), "text/event-stream")) {
             request.response("The endpoint only supports text/event-stream as Accept header", HttpResponseStatus.NOT_ACCEPTABLE).end();
@@ -261,7 +258,7 @@ public class QueryHttpService
 
         QueryExecution execute;
         try {
-            execute = executorFunction.apply(project, query);
+            execute = executorFunction.apply(project, query, response);
         }
         catch (RakamException e) {
             LogUtil.logException(request, e);
@@ -348,6 +345,11 @@ public class QueryHttpService
         this.eventLoopGroup = eventLoopGroup;
     }
 
+    private interface ServerSentQueryFunction<T>
+    {
+        QueryExecution apply(String project, T query, RakamHttpRequest.StreamResponse response);
+    }
+
     public static class QueryRequest
     {
         public final String query;
@@ -356,6 +358,7 @@ public class QueryHttpService
         public final Optional<QuerySampling> sample;
         public final CopyType exportType;
         public final ZoneId timezone;
+        public final boolean stream;
 
         @JsonCreator
         public QueryRequest(
@@ -364,7 +367,8 @@ public class QueryHttpService
                 @ApiParam(value = "sampling", required = false, description = "Optional parameter for specifying the sampling on source data") QuerySampling sample,
                 @ApiParam(value = "default_schema", required = false, defaultValue = "collection", description = "The default schema of the query. If the schema is not defined, this schema will be used.") String defaultSchema,
                 @ApiParam(value = "limit", required = false, description = "The maximum rows that can be returned from a query is 500K") Integer limit,
-                @ApiParam(value = "timezone", required = false, description = "") ZoneId timezone)
+                @ApiParam(value = "timezone", required = false, description = "") ZoneId timezone,
+                @ApiParam(value = "stream", required = false, description = "Send the rows in multiple events as they are fetched instead of a single result, it's only used for text/event-stream requests") Boolean stream)
         {
             this.query = requireNonNull(query, "query is empty").trim().replaceAll(";+$", "");
             if (limit != null && limit > MAX_QUERY_RESULT_LIMIT) {
@@ -375,6 +379,7 @@ public class QueryHttpService
             this.sample = Optional.ofNullable(sample);
             this.limit = limit;
             this.timezone = timezone;
+            this.stream = Boolean.TRUE.equals(stream);
         }
     }
 
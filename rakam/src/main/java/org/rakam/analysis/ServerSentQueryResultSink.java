@@ -0,0 +1,60 @@
+package org.rakam.analysis;
+
+import org.rakam.collection.SchemaField;
+import org.rakam.server.http.RakamHttpRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.rakam.util.JsonHelper.encode;
+
+/**
+ * Sends the columns of the query as a "metadata" event and the rows in "rows" events that contain
+ * at most {@link #ROWS_PER_EVENT} rows.
+ */
+class ServerSentQueryResultSink
+        extends ChannelQueryResultSink
+{
+    private static final int ROWS_PER_EVENT = 1000;
+
+    private final RakamHttpRequest.StreamResponse response;
+    private final List<List<Object>> rows = new ArrayList<>(ROWS_PER_EVENT);
+
+    public ServerSentQueryResultSink(RakamHttpRequest request, RakamHttpRequest.StreamResponse response)
+    {
+        super(request.context());
+        this.response = response;
+    }
+
+    @Override
+    public void columns(List<SchemaField> columns)
+    {
+        response.send("metadata", encode(columns));
+    }
+
+    @Override
+    public void row(List<Object> row)
+    {
+        rows.add(row);
+        if (rows.size() >= ROWS_PER_EVENT) {
+            flush();
+        }
+    }
+
+    @Override
+    public void finish()
+    {
+        flush();
+    }
+
+    private void flush()
+    {
+        if (rows.isEmpty()) {
+            return;
+        }
+
+        response.send("rows", encode(rows));
+        rows.clear();
+        awaitWritable();
+    }
+}
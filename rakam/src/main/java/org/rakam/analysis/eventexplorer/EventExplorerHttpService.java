@@ -14,15 +14,13 @@
 package org.rakam.analysis.eventexplorer;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
-import com.google.common.collect.ImmutableMap;
 import org.rakam.analysis.EventExplorer;
 import org.rakam.analysis.EventExplorer.OLAPTable;
-import org.rakam.analysis.MaterializedViewService;
 import org.rakam.analysis.QueryHttpService;
 import org.rakam.config.ProjectConfig;
-import org.rakam.plugin.MaterializedView;
 import org.rakam.report.QueryResult;
-import org.rakam.report.realtime.AggregationType;
+import org.rakam.report.eventexplorer.RollupAdvisor;
+import org.rakam.report.eventexplorer.RollupAdvisor.RollupStatistics;
 import org.rakam.server.http.HttpService;
 import org.rakam.server.http.RakamHttpRequest;
 import org.rakam.server.http.annotations.Api;
@@ -38,7 +36,6 @@ import javax.inject.Named;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 
-import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.ZoneId;
@@ -48,13 +45,8 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.stream.Collectors;
 
-import static java.lang.String.format;
-import static org.rakam.report.realtime.AggregationType.COUNT;
-import static org.rakam.report.realtime.AggregationType.SUM;
 import static org.rakam.util.ValidationUtil.checkArgument;
-import static org.rakam.util.ValidationUtil.checkTableColumn;
 
 @Path("/event-explorer")
 @Api(value = "/event-explorer", nickname = "eventExplorer", description = "Event explorer module", tags = "event-explorer")
@@ -63,20 +55,20 @@ public class EventExplorerHttpService
 {
     private final EventExplorer eventExplorer;
     private final QueryHttpService queryService;
-    private final MaterializedViewService materializedViewService;
     private final ProjectConfig projectConfig;
+    private final RollupAdvisor rollupAdvisor;
 
     @Inject
     public EventExplorerHttpService(
             EventExplorer eventExplorer,
-            MaterializedViewService materializedViewService,
+            RollupAdvisor rollupAdvisor,
             ProjectConfig projectConfig,
             QueryHttpService queryService)
     {
         this.eventExplorer = eventExplorer;
         this.queryService = queryService;
         this.projectConfig = projectConfig;
-        this.materializedViewService = materializedViewService;
+        this.rollupAdvisor = rollupAdvisor;
     }
 
     @ApiOperation(value = "Event statistics",
@@ -148,74 +140,32 @@ public class EventExplorerHttpService
     @Path("/pre_calculate")
     public CompletableFuture<PrecalculatedTable> createPrecomputedTable(@Named("project") String project, @BodyParam OLAPTable table)
     {
-        String dimensions = table.dimensions.stream().collect(Collectors.joining(", "));
-
-        String subQuery;
-        String measures = table.measures.isEmpty() ? "" : (", " + table.measures.stream().collect(Collectors.joining(", ")));
-        String dimension = dimensions.isEmpty() ? "" : ", " + dimensions;
-
-        if (table.collections != null && !table.collections.isEmpty()) {
-            subQuery = table.collections.stream().map(collection ->
-                    format("SELECT cast('%s' as varchar) as _collection, %s %s %s FROM %s",
-                            collection,
-                            checkTableColumn(projectConfig.getTimeColumn()),
-                            dimension,
-                            measures, collection))
-                    .collect(Collectors.joining(" UNION ALL "));
-        }
-        else {
-            subQuery = format("SELECT _collection, %s %s FROM _all",
-                    checkTableColumn(projectConfig.getTimeColumn()), dimension, measures);
-        }
-
-        String name = "Dimensions";
-
-        String metrics = table.measures.stream().map(column -> table.aggregations.stream()
-                .map(agg -> getAggregationColumn(agg, table.aggregations).map(e -> format(e, column) + " as " + column + "_" + agg.name().toLowerCase()))
-                .filter(Optional::isPresent).map(Optional::get).collect(Collectors.joining(", ")))
-                .collect(Collectors.joining(", "));
-        if (metrics.isEmpty()) {
-            metrics = "count(*)";
-        }
-
-        String query = format("SELECT _collection, _time %s %s FROM " +
-                        "(SELECT _collection, CAST(%s AS DATE) as _time %s %s FROM (%s) data) data " +
-                        "GROUP BY CUBE (_collection, _time %s) ORDER BY 1 ASC",
-                dimension,
-                ", " + metrics,
-                checkTableColumn(projectConfig.getTimeColumn()),
-                dimension,
-                measures,
-                subQuery,
-                dimensions.isEmpty() ? "" : "," + dimensions);
+        return rollupAdvisor.create(project, table, eventExplorer)
+                .thenApply(v -> new PrecalculatedTable("Dimensions", table.tableName));
+    }
 
-        return materializedViewService.create(project, new MaterializedView(table.tableName, "Olap table", query,
-                Duration.ofHours(1), null, null, ImmutableMap.of("olap_table", table)))
-                .thenApply(v -> new PrecalculatedTable(name, table.tableName));
+    @GET
+    @ApiOperation(value = "Recommended pre-computed tables",
+            notes = "Returns the pre-computed tables that answer the event explorer queries that are executed frequently and can't be answered from the existing pre-computed tables",
+            authorizations = @Authorization(value = "master_key")
+    )
+    @JsonRequest
+    @Path("/pre_calculate/recommendations")
+    public List<OLAPTable> getPrecomputedTableRecommendations(@Named("project") String project)
+    {
+        return rollupAdvisor.getRecommendations(project);
     }
 
-    private Optional<String> getAggregationColumn(AggregationType agg, Set<AggregationType> aggregations)
+    @GET
+    @ApiOperation(value = "Pre-computed table statistics",
+            notes = "Returns the number of event explorer queries that are answered from the pre-computed tables and the last update time of the tables",
+            authorizations = @Authorization(value = "master_key")
+    )
+    @JsonRequest
+    @Path("/pre_calculate/statistics")
+    public RollupStatistics getPrecomputedTableStatistics(@Named("project") String project)
     {
-        switch (agg) {
-            case AVERAGE:
-                aggregations.add(COUNT);
-                aggregations.add(SUM);
-                return Optional.empty();
-            case MAXIMUM:
-                return Optional.of("max(%s)");
-            case MINIMUM:
-                return Optional.of("min(%s)");
-            case COUNT:
-                return Optional.of("count(%s)");
-            case SUM:
-                return Optional.of("sum(%s)");
-            case COUNT_UNIQUE:
-                throw new UnsupportedOperationException("Not supported yet.");
-            case APPROXIMATE_UNIQUE:
-                return Optional.of(eventExplorer.getIntermediateForApproximateUniqueFunction());
-            default:
-                throw new IllegalArgumentException("aggregation type is not supported");
-        }
+        return rollupAdvisor.getStatistics(project);
     }
 
     @ApiOperation(value = "Perform simple query on event data",
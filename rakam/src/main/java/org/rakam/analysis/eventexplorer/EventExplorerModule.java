@@ -11,9 +11,12 @@ import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.RakamModule;
 import org.rakam.plugin.TimestampEventMapper;
 import org.rakam.report.eventexplorer.EventExplorerConfig;
+import org.rakam.report.eventexplorer.RollupAdvisorConfig;
 import org.rakam.server.http.HttpService;
 import org.rakam.util.ConditionalModule;
 
+import static io.airlift.configuration.ConfigBinder.configBinder;
+
 @AutoService(RakamModule.class)
 @ConditionalModule(config = "event-explorer.enabled", value = "true")
 public class EventExplorerModule extends RakamModule {
@@ -25,6 +28,8 @@ public class EventExplorerModule extends RakamModule {
         Multibinder<EventMapper> timeMapper = Multibinder.newSetBinder(binder, EventMapper.class);
         timeMapper.permitDuplicates().addBinding().to(TimestampEventMapper.class).in(Scopes.SINGLETON);
 
+        configBinder(binder).bindConfig(RollupAdvisorConfig.class);
+
         Multibinder<Tag> tags = Multibinder.newSetBinder(binder, Tag.class);
         tags.addBinding().toInstance(new Tag().name("event-explorer").description("Event Explorer").externalDocs(MetadataConfig.centralDocs));
 
@@ -0,0 +1,68 @@
+package org.rakam.analysis.realtime;
+
+import org.rakam.analysis.realtime.RealtimeEventProcessor.AbstractMetric;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable slice of a closed time interval. The dimension keys and the metrics of each measure are stored
+ * in parallel arrays instead of hash map nodes.
+ */
+public class CompactRealtimeSlice
+        implements RealtimeSlice
+{
+    private final long id = IDS.incrementAndGet();
+    private final DimensionKey[] keys;
+    private final AbstractMetric[][] columns;
+    private final int size;
+    private final long estimatedBytes;
+
+    public CompactRealtimeSlice(DimensionKey[] keys, AbstractMetric[][] columns, int size)
+    {
+        this.keys = keys;
+        this.columns = columns;
+        this.size = size;
+
+        long bytes = 0;
+        for (int row = 0; row < size; row++) {
+            bytes += 16 + keys[row].size() * 16;
+        }
+        for (AbstractMetric[] column : columns) {
+            for (int row = 0; row < size; row++) {
+                bytes += column[row].estimatedBytes();
+            }
+        }
+        this.estimatedBytes = bytes;
+    }
+
+    @Override
+    public long id()
+    {
+        return id;
+    }
+
+    @Override
+    public void forEach(int measureIndex, BiConsumer<DimensionKey, AbstractMetric> consumer)
+    {
+        if (size == 0) {
+            return;
+        }
+
+        AbstractMetric[] column = columns[measureIndex];
+        for (int row = 0; row < size; row++) {
+            consumer.accept(keys[row], column[row]);
+        }
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public long estimatedBytes()
+    {
+        return estimatedBytes;
+    }
+}
@@ -0,0 +1,57 @@
+package org.rakam.analysis.realtime;
+
+import java.util.Arrays;
+
+/**
+ * Dimension values of a realtime table row. The values are kept in a flat array and the hash code
+ * is computed once since the key is looked up for every event.
+ */
+public final class DimensionKey
+{
+    public static final DimensionKey EMPTY = new DimensionKey(new Object[0]);
+
+    private final Object[] values;
+    private final int hashCode;
+
+    public DimensionKey(Object[] values)
+    {
+        this.values = values;
+        this.hashCode = Arrays.hashCode(values);
+    }
+
+    public Object get(int index)
+    {
+        return values[index];
+    }
+
+    public int size()
+    {
+        return values.length;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DimensionKey)) {
+            return false;
+        }
+
+        DimensionKey that = (DimensionKey) o;
+        return hashCode == that.hashCode && Arrays.equals(values, that.values);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hashCode;
+    }
+
+    @Override
+    public String toString()
+    {
+        return Arrays.toString(values);
+    }
+}
@@ -0,0 +1,131 @@
+package org.rakam.analysis.realtime;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * HyperLogLog sketch with a fixed number of registers that can be updated concurrently without locks.
+ * Each register is six bits wide in practice, four registers are packed into an int so that a sketch
+ * takes {@code 2^INDEX_BITS} bytes regardless of the number of distinct values.
+ */
+public class HyperLogLog
+{
+    // 2048 registers, the standard error is 1.04 / sqrt(2048) ~ 2.3%
+    static final int INDEX_BITS = 11;
+    static final int REGISTERS = 1 << INDEX_BITS;
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    private final AtomicIntegerArray registers;
+
+    public HyperLogLog()
+    {
+        this.registers = new AtomicIntegerArray(REGISTERS / 4);
+    }
+
+    public void add(Object value)
+    {
+        addHash(hash(value));
+    }
+
+    void addHash(long hash)
+    {
+        int index = (int) (hash >>> (Long.SIZE - INDEX_BITS));
+        // the sentinel bit bounds the rank when the remaining bits are all zero
+        long remaining = (hash << INDEX_BITS) | (1L << (INDEX_BITS - 1));
+        int rank = Long.numberOfLeadingZeros(remaining) + 1;
+        update(index, rank);
+    }
+
+    public void merge(HyperLogLog other)
+    {
+        for (int slot = 0; slot < registers.length(); slot++) {
+            int packed = other.registers.get(slot);
+            if (packed == 0) {
+                continue;
+            }
+            for (int i = 0; i < 4; i++) {
+                int rank = (packed >>> (i * 8)) & 0xFF;
+                if (rank > 0) {
+                    update(slot * 4 + i, rank);
+                }
+            }
+        }
+    }
+
+    public HyperLogLog copy()
+    {
+        HyperLogLog copy = new HyperLogLog();
+        for (int slot = 0; slot < registers.length(); slot++) {
+            copy.registers.set(slot, registers.get(slot));
+        }
+        return copy;
+    }
+
+    public long cardinality()
+    {
+        double sum = 0;
+        int zeros = 0;
+        for (int slot = 0; slot < registers.length(); slot++) {
+            int packed = registers.get(slot);
+            for (int i = 0; i < 4; i++) {
+                int rank = (packed >>> (i * 8)) & 0xFF;
+                if (rank == 0) {
+                    zeros++;
+                }
+                sum += 1.0 / (1L << rank);
+            }
+        }
+
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            // linear counting is more accurate for the small cardinalities
+            estimate = REGISTERS * Math.log(REGISTERS / (double) zeros);
+        }
+
+        return Math.round(estimate);
+    }
+
+    public static long estimatedBytes()
+    {
+        return REGISTERS + 32;
+    }
+
+    private void update(int index, int rank)
+    {
+        int slot = index >>> 2;
+        int shift = (index & 3) * 8;
+        while (true) {
+            int packed = registers.get(slot);
+            int current = (packed >>> shift) & 0xFF;
+            if (current >= rank) {
+                return;
+            }
+
+            int updated = (packed & ~(0xFF << shift)) | (rank << shift);
+            if (registers.compareAndSet(slot, packed, updated)) {
+                return;
+            }
+        }
+    }
+
+    static long hash(Object value)
+    {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return HASH.hashLong(((Number) value).longValue()).asLong();
+        }
+        if (value instanceof ByteBuffer) {
+            ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return HASH.hashBytes(bytes).asLong();
+        }
+        // Avro strings (Utf8) and java strings must hash to the same value
+        return HASH.hashString(value.toString(), StandardCharsets.UTF_8).asLong();
+    }
+}
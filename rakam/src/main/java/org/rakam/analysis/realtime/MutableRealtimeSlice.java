@@ -0,0 +1,137 @@
+package org.rakam.analysis.realtime;
+
+import org.rakam.analysis.realtime.RealtimeEventProcessor.AbstractMetric;
+import org.rakam.report.realtime.RealTimeReport;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * The slice that receives the events of the current time interval. The writers must call {@link #startWrite()}
+ * and {@link #endWrite()} around the updates so that the slice is not compacted while the metrics are being updated.
+ */
+public class MutableRealtimeSlice
+        implements RealtimeSlice
+{
+    // object header, hash map node and the dimension array
+    static final int KEY_OVERHEAD = 96;
+
+    private final long id = IDS.incrementAndGet();
+    private final ConcurrentHashMap<DimensionKey, AbstractMetric[]> metrics;
+    private final AtomicInteger writers = new AtomicInteger();
+    private volatile boolean closed;
+
+    public MutableRealtimeSlice()
+    {
+        this.metrics = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public long id()
+    {
+        return id;
+    }
+
+    /**
+     * Returns false if the slice is compacted, the events must not be written to the slice in that case.
+     */
+    public boolean startWrite()
+    {
+        writers.incrementAndGet();
+        if (closed) {
+            writers.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public void endWrite()
+    {
+        writers.decrementAndGet();
+    }
+
+    public AbstractMetric[] get(DimensionKey key)
+    {
+        return metrics.get(key);
+    }
+
+    public AbstractMetric[] getOrCreate(DimensionKey key, List<RealTimeReport.Measure> measures)
+    {
+        // avoid the locking in computeIfAbsent for the existing keys
+        AbstractMetric[] existing = metrics.get(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        return metrics.computeIfAbsent(key, k -> {
+            AbstractMetric[] created = new AbstractMetric[measures.size()];
+            for (int i = 0; i < created.length; i++) {
+                created[i] = RealtimeEventProcessor.createMetric(measures.get(i));
+            }
+            return created;
+        });
+    }
+
+    @Override
+    public void forEach(int measureIndex, BiConsumer<DimensionKey, AbstractMetric> consumer)
+    {
+        for (Map.Entry<DimensionKey, AbstractMetric[]> entry : metrics.entrySet()) {
+            consumer.accept(entry.getKey(), entry.getValue()[measureIndex]);
+        }
+    }
+
+    @Override
+    public int size()
+    {
+        return metrics.size();
+    }
+
+    @Override
+    public long estimatedBytes()
+    {
+        long bytes = 0;
+        for (Map.Entry<DimensionKey, AbstractMetric[]> entry : metrics.entrySet()) {
+            bytes += KEY_OVERHEAD + entry.getKey().size() * 16;
+            for (AbstractMetric metric : entry.getValue()) {
+                bytes += metric.estimatedBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Converts the slice to the immutable form once the time interval of the slice is closed.
+     */
+    public CompactRealtimeSlice compact()
+    {
+        // the writers that start after this point skip the slice, wait for the ones that already started
+        // so that neither the new keys nor the updates of the existing metrics are lost
+        closed = true;
+        while (writers.get() > 0) {
+            Thread.yield();
+        }
+
+        int size = metrics.size();
+        DimensionKey[] keys = new DimensionKey[size];
+        AbstractMetric[][] columns = null;
+
+        int row = 0;
+        for (Map.Entry<DimensionKey, AbstractMetric[]> entry : metrics.entrySet()) {
+            AbstractMetric[] values = entry.getValue();
+            if (columns == null) {
+                columns = new AbstractMetric[values.length][size];
+            }
+
+            keys[row] = entry.getKey();
+            for (int i = 0; i < values.length; i++) {
+                columns[i][row] = (AbstractMetric) values[i].copy();
+            }
+            row++;
+        }
+
+        return new CompactRealtimeSlice(keys, columns == null ? new AbstractMetric[0][] : columns, row);
+    }
+}
@@ -1,6 +1,7 @@
 package org.rakam.analysis.realtime;
 
 import com.google.inject.Singleton;
+import org.rakam.analysis.realtime.RealtimeEventProcessor.MemoryStats;
 import org.rakam.analysis.realtime.RealtimeService.RealTimeQueryResult;
 import org.rakam.report.realtime.RealTimeReport;
 import org.rakam.server.http.HttpService;
@@ -93,6 +94,14 @@ public class RealTimeHttpService
         return realtimeService.query(project, tableName, filter, measure, dimensions, aggregate, dateStart, dateEnd);
     }
 
+    @JsonRequest
+    @ApiOperation(value = "Get memory usage", authorizations = @Authorization(value = "master_key"))
+    @Path("/memory")
+    public MemoryStats getMemoryStats(@Named("project") String project)
+    {
+        return realtimeService.getMemoryStats(project);
+    }
+
     @JsonRequest
     @ApiOperation(value = "Delete report", authorizations = @Authorization(value = "master_key"))
     @Path("/delete")
@@ -11,32 +11,36 @@ import org.rakam.report.realtime.AggregationType;
 import org.rakam.report.realtime.RealTimeConfig;
 import org.rakam.report.realtime.RealTimeReport;
 import org.rakam.util.RakamException;
+import org.weakref.jmx.internal.guava.cache.Cache;
 import org.weakref.jmx.internal.guava.cache.CacheBuilder;
 import org.weakref.jmx.internal.guava.cache.CacheLoader;
 import org.weakref.jmx.internal.guava.cache.LoadingCache;
 import org.weakref.jmx.internal.guava.collect.ImmutableList;
+import org.weakref.jmx.internal.guava.collect.ImmutableMap;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import java.net.InetAddress;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static io.netty.handler.codec.http.HttpResponseStatus.NOT_IMPLEMENTED;
@@ -51,23 +55,34 @@ import static org.rakam.util.ValidationUtil.checkNotNull;
 public class RealtimeEventProcessor
         implements EventMapper
 {
-    private final Map<RealtimeTable, Map<Integer, Map<List<Object>, List<AbstractMetric>>>> tables;
+    private final Map<RealtimeTable, ConcurrentSkipListMap<Integer, RealtimeSlice>> tables;
+    private final Map<String, ProjectMemory> memory;
     private final RealTimeConfig config;
     private ScheduledExecutorService scheduledExecutor;
-    private ExecutorService executorService;
     private final LoadingCache<String, List<RealTimeReport>> reports;
     private final RealtimeMetadataService metadata;
     private final long sliceIntervalInMillis;
     private final int sliceIntervalInSeconds;
+    private final long maxMemoryPerProject;
+    private final Cache<MergedSliceKey, Map<List<Object>, AbstractMetric>> mergedSlices;
+    private final ForkJoinPool queryPool;
 
     @Inject
     public RealtimeEventProcessor(RealTimeConfig config, RealtimeMetadataService metadata)
     {
         this.tables = new ConcurrentHashMap<>();
+        this.memory = new ConcurrentHashMap<>();
         this.config = config;
         this.metadata = metadata;
         sliceIntervalInMillis = config.getSlideInterval().toMillis();
         sliceIntervalInSeconds = (int) config.getSlideInterval().getValue(SECONDS);
+        maxMemoryPerProject = config.getMaxMemoryPerProject().toBytes();
+        // the merged metrics of the closed slices don't change, dashboards that poll the same range reuse them
+        mergedSlices = CacheBuilder.newBuilder()
+                .maximumSize(1000)
+                .expireAfterWrite(config.getSlideInterval().toMillis() * 2, MILLISECONDS)
+                .build();
+        queryPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
         reports = CacheBuilder.newBuilder()
                 .expireAfterAccess(15, MINUTES)
                 .build(new CacheLoader<String, List<RealTimeReport>>()
@@ -85,26 +100,100 @@ public class RealtimeEventProcessor
     public void start()
     {
         scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
-        executorService = Executors.newSingleThreadExecutor();
         scheduledExecutor.scheduleWithFixedDelay(this::expire,
                 config.getSlideInterval().toMillis(),
                 config.getSlideInterval().toMillis(), MILLISECONDS);
     }
 
+    @PreDestroy
+    public void close()
+    {
+        if (scheduledExecutor != null) {
+            scheduledExecutor.shutdownNow();
+        }
+        queryPool.shutdown();
+    }
+
     private void expire()
     {
-        long expiredEpoch = (Instant.now().toEpochMilli() - config.getWindowInterval().toMillis()) / config.getSlideInterval().toMillis();
-        for (Map.Entry<RealtimeTable, Map<Integer, Map<List<Object>, List<AbstractMetric>>>> entry : tables.entrySet()) {
-            Iterator<Map.Entry<Integer, Map<List<Object>, List<AbstractMetric>>>> iterator = entry.getValue().entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry<Integer, Map<List<Object>, List<AbstractMetric>>> next = iterator.next();
-                if (next.getKey() <= expiredEpoch) {
-//                    executorService.execute(iterator::remove);
+        long now = System.currentTimeMillis();
+        int currentSlice = Ints.checkedCast(now / sliceIntervalInMillis);
+        int expiredSlice = Ints.checkedCast((now - config.getWindowInterval().toMillis()) / sliceIntervalInMillis);
+
+        Map<String, List<ConcurrentSkipListMap<Integer, RealtimeSlice>>> tablesByProject = new HashMap<>();
+        for (Map.Entry<RealtimeTable, ConcurrentSkipListMap<Integer, RealtimeSlice>> entry : tables.entrySet()) {
+            ConcurrentSkipListMap<Integer, RealtimeSlice> slices = entry.getValue();
+            slices.headMap(expiredSlice, true).clear();
+
+            if (config.getCompactClosedSlices()) {
+                // the previous slice may still receive the events that are mapped right before the interval is changed
+                for (Map.Entry<Integer, RealtimeSlice> slice : slices.headMap(currentSlice - 1).entrySet()) {
+                    if (slice.getValue() instanceof MutableRealtimeSlice) {
+                        slices.replace(slice.getKey(), slice.getValue(), ((MutableRealtimeSlice) slice.getValue()).compact());
+                    }
+                }
+            }
+
+            tablesByProject.computeIfAbsent(entry.getKey().project, k -> new ArrayList<>()).add(slices);
+        }
+
+        for (Map.Entry<String, List<ConcurrentSkipListMap<Integer, RealtimeSlice>>> entry : tablesByProject.entrySet()) {
+            ProjectMemory projectMemory = memory.computeIfAbsent(entry.getKey(), k -> new ProjectMemory());
+
+            long bytes = 0;
+            for (ConcurrentSkipListMap<Integer, RealtimeSlice> slices : entry.getValue()) {
+                for (RealtimeSlice slice : slices.values()) {
+                    bytes += slice.estimatedBytes();
+                }
+            }
+
+            // evict the oldest closed slices of the project until it fits into the budget
+            while (bytes > maxMemoryPerProject) {
+                ConcurrentSkipListMap<Integer, RealtimeSlice> oldest = null;
+                int oldestSlice = currentSlice;
+                for (ConcurrentSkipListMap<Integer, RealtimeSlice> slices : entry.getValue()) {
+                    Map.Entry<Integer, RealtimeSlice> first = slices.firstEntry();
+                    if (first != null && first.getKey() < oldestSlice) {
+                        oldest = slices;
+                        oldestSlice = first.getKey();
+                    }
+                }
+
+                if (oldest == null) {
+                    break;
+                }
+
+                RealtimeSlice removed = oldest.remove(oldestSlice);
+                if (removed != null) {
+                    bytes -= removed.estimatedBytes();
+                    projectMemory.evictedSlices.increment();
                 }
             }
+
+            projectMemory.estimatedBytes = bytes;
+            // only the current slice is left, stop creating new dimension values until the next interval
+            projectMemory.overBudget = bytes > maxMemoryPerProject;
         }
     }
 
+    public MemoryStats getMemoryStats(String project)
+    {
+        ProjectMemory projectMemory = memory.get(project);
+        if (projectMemory == null) {
+            return new MemoryStats(0, maxMemoryPerProject, false, 0, 0);
+        }
+
+        return new MemoryStats(projectMemory.estimatedBytes, maxMemoryPerProject, projectMemory.overBudget,
+                projectMemory.evictedSlices.sum(), projectMemory.droppedEvents.sum());
+    }
+
+    public void invalidate(String project, String tableName)
+    {
+        reports.invalidate(project);
+        tables.remove(new RealtimeTable(project, tableName));
+        mergedSlices.invalidateAll();
+    }
+
     public CompletableFuture<RealTimeQueryResult> query(String project,
             String tableName,
             String filter,
@@ -118,141 +207,251 @@ public class RealtimeEventProcessor
             throw new RakamException("Filter in real-table query is not supported.", NOT_IMPLEMENTED);
         }
 
-        Map<Integer, Map<List<Object>, List<AbstractMetric>>> map = tables.get(new RealtimeTable(project, tableName));
-        Object result;
+        RealtimeTable table = new RealtimeTable(project, tableName);
+        ConcurrentSkipListMap<Integer, RealtimeSlice> map = tables.get(table);
         if (map == null || map.isEmpty()) {
-            result = aggregate && dimensions.isEmpty() ? null : ImmutableList.of();
+            Object result = aggregate && dimensions.isEmpty() ? null : ImmutableList.of();
+            return CompletableFuture.completedFuture(new RealTimeQueryResult(
+                    dateStart.getEpochSecond(), dateEnd.getEpochSecond(), sliceIntervalInSeconds, result));
         }
-        else {
-            RealTimeReport realTimeReport = metadata.get(project, tableName);
-            List<String> dimensionList = realTimeReport.dimensions;
-            int measureIndex = realTimeReport.measures.indexOf(measure);
-
-            int[] collect = Optional.ofNullable(dimensions).orElse(ImmutableList.of())
-                    .stream()
-                    .mapToInt(e -> {
-                        int i = dimensionList.indexOf(e);
-                        if (i < 0) {
-                            throw new RakamException("Dimension doesn't exist", BAD_REQUEST);
-                        }
-                        return i;
-                    })
-                    .toArray();
-
-            HashMap<List<Object>, AbstractMetric> dimensionMap = new HashMap<>();
-            int columnSize = (aggregate ? 0 : 1) + (dimensions != null ? dimensions.size() : 0);
-
-            Integer end = Ints.checkedCast(dateEnd.toEpochMilli() / sliceIntervalInMillis);
-            Integer cursor = Ints.checkedCast(dateStart.toEpochMilli() / sliceIntervalInMillis);
-            while (cursor++ < end) {
-                Map<List<Object>, List<AbstractMetric>> values = map.get(cursor);
-
-                if (values == null) {
-                    continue;
-                }
 
-                ArrayList<Object> objects = new ArrayList<>(columnSize);
-                if (!aggregate) {
-                    objects.add(cursor * sliceIntervalInSeconds);
-                }
+        RealTimeReport realTimeReport = metadata.get(project, tableName);
+        List<String> dimensionList = Optional.ofNullable(realTimeReport.dimensions).orElse(ImmutableList.of());
+        int measureIndex = realTimeReport.measures.indexOf(measure);
 
-                for (Map.Entry<List<Object>, List<AbstractMetric>> entry : values.entrySet()) {
-                    List<Object> key = entry.getKey();
-                    for (int integer : collect) {
-                        Object e = key.get(integer);
-                        objects.add(e == null ? "(not set)" : e);
+        int[] collect = Optional.ofNullable(dimensions).orElse(ImmutableList.of())
+                .stream()
+                .mapToInt(e -> {
+                    int i = dimensionList.indexOf(e);
+                    if (i < 0) {
+                        throw new RakamException("Dimension doesn't exist", BAD_REQUEST);
                     }
+                    return i;
+                })
+                .toArray();
 
-                    AbstractMetric metric = entry.getValue().get(measureIndex);
+        int columnSize = (aggregate ? 0 : 1) + (dimensions != null ? dimensions.size() : 0);
+        SliceMerger merger = new SliceMerger(measureIndex, collect, aggregate, columnSize);
 
-                    AbstractMetric o = dimensionMap.get(objects);
-                    if (o == null) {
-                        o = metric;
-                        dimensionMap.put(objects, o);
-                    }
-                    else {
-                        o.merge(metric);
-                    }
+        // the range doesn't include the first slice
+        int start = Ints.checkedCast(dateStart.toEpochMilli() / sliceIntervalInMillis) + 1;
+        int end = Ints.checkedCast(dateEnd.toEpochMilli() / sliceIntervalInMillis);
+        // the slices before the previous one don't receive events anymore, see expire()
+        int lastClosedSlice = Math.min(end, Ints.checkedCast(System.currentTimeMillis() / sliceIntervalInMillis) - 2);
+
+        CompletableFuture<Map<List<Object>, AbstractMetric>> closed;
+        if (start > lastClosedSlice) {
+            closed = CompletableFuture.completedFuture(ImmutableMap.of());
+        }
+        else {
+            // the slices are replaced when they're compacted or evicted, the cached metrics are only valid for the same slices
+            ConcurrentSkipListMap<Integer, RealtimeSlice> closedSlices = new ConcurrentSkipListMap<>(map.subMap(start, true, lastClosedSlice, true));
+            long[] sliceIds = closedSlices.values().stream().mapToLong(RealtimeSlice::id).toArray();
+            MergedSliceKey key = new MergedSliceKey(table, measureIndex, collect, aggregate, sliceIds);
+            Map<List<Object>, AbstractMetric> cached = mergedSlices.getIfPresent(key);
+            if (cached != null) {
+                closed = CompletableFuture.completedFuture(cached);
+            }
+            else {
+                closed = merger.merge(closedSlices)
+                        .thenApply(merged -> {
+                            mergedSlices.put(key, merged);
+                            return merged;
+                        });
+            }
+        }
+
+        int openStart = Math.max(start, lastClosedSlice + 1);
+        CompletableFuture<Map<List<Object>, AbstractMetric>> open = openStart > end ?
+                CompletableFuture.completedFuture(ImmutableMap.of()) :
+                merger.merge(map.subMap(openStart, true, end, true));
+
+        return closed.thenCombine(open, (closedMetrics, openMetrics) -> {
+            // the cached metrics are shared between the queries, merge the open slices into copies of them
+            Map<List<Object>, AbstractMetric> merged = new HashMap<>(openMetrics);
+            for (Map.Entry<List<Object>, AbstractMetric> entry : closedMetrics.entrySet()) {
+                AbstractMetric metric = merged.get(entry.getKey());
+                if (metric == null) {
+                    merged.put(entry.getKey(), entry.getValue());
+                }
+                else {
+                    metric.merge(entry.getValue());
                 }
             }
 
-            List<List<Object>> value = new ArrayList<>(dimensionMap.size());
-            for (Map.Entry<List<Object>, AbstractMetric> entry : dimensionMap.entrySet()) {
-                ArrayList<Object> objects = new ArrayList<>(columnSize);
+            List<List<Object>> value = new ArrayList<>(merged.size());
+            for (Map.Entry<List<Object>, AbstractMetric> entry : merged.entrySet()) {
+                ArrayList<Object> objects = new ArrayList<>(columnSize + 1);
                 objects.addAll(entry.getKey());
                 objects.add(entry.getValue().value());
                 value.add(objects);
             }
 
-            result = value;
-        }
-
-        return CompletableFuture.completedFuture(new RealTimeQueryResult(
-                dateStart.getEpochSecond(), dateEnd.getEpochSecond(), sliceIntervalInSeconds, result));
+            return new RealTimeQueryResult(dateStart.getEpochSecond(), dateEnd.getEpochSecond(), sliceIntervalInSeconds, value);
+        });
     }
 
-    @Override
-    public CompletableFuture<List<Cookie>> mapAsync(Event event, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
+    /**
+     * Merges the metrics of the slices into new metric instances, the metrics that are stored in the slices
+     * are never modified by the queries. Each slice is grouped in a separate fork-join task and the partial
+     * results are combined pairwise.
+     */
+    private class SliceMerger
     {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                List<RealTimeReport> realTimeReports = reports.getUnchecked(event.project());
-                if (realTimeReports == null) {
-                    return null;
+        private final int measureIndex;
+        private final int[] dimensions;
+        private final boolean aggregate;
+        private final int columnSize;
+
+        private SliceMerger(int measureIndex, int[] dimensions, boolean aggregate, int columnSize)
+        {
+            this.measureIndex = measureIndex;
+            this.dimensions = dimensions;
+            this.aggregate = aggregate;
+            this.columnSize = columnSize;
+        }
+
+        public CompletableFuture<Map<List<Object>, AbstractMetric>> merge(Map<Integer, RealtimeSlice> slices)
+        {
+            if (slices.isEmpty()) {
+                return CompletableFuture.completedFuture(ImmutableMap.of());
+            }
+
+            List<Map.Entry<Integer, RealtimeSlice>> entries = new ArrayList<>(slices.entrySet());
+            CompletableFuture<Map<List<Object>, AbstractMetric>> future = new CompletableFuture<>();
+            queryPool.execute(() -> {
+                try {
+                    future.complete(entries.parallelStream()
+                            .map(entry -> group(entry.getKey(), entry.getValue()))
+                            .reduce(this::combine)
+                            .orElseGet(HashMap::new));
                 }
+                catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+            return future;
+        }
 
-                Predicate<GenericRecord> filter = (record) -> true;
+        private Map<List<Object>, AbstractMetric> group(int slice, RealtimeSlice values)
+        {
+            Map<List<Object>, AbstractMetric> result = new HashMap<>();
+            int sliceTime = slice * sliceIntervalInSeconds;
 
-                for (RealTimeReport report : realTimeReports) {
-                    RealtimeTable key = new RealtimeTable(event.project(), report.table_name);
-                    Map<Integer, Map<List<Object>, List<AbstractMetric>>> table = tables.get(key);
+            values.forEach(measureIndex, (key, metric) -> {
+                List<Object> objects = new ArrayList<>(columnSize);
+                if (!aggregate) {
+                    objects.add(sliceTime);
+                }
 
-                    if (report.collections.isEmpty() && !report.collections.contains(event.collection())) {
-                        continue;
-                    }
+                for (int dimension : dimensions) {
+                    Object e = key.get(dimension);
+                    objects.add(e == null ? "(not set)" : e);
+                }
 
-                    if (!filter.test(event.properties())) {
-                        continue;
-                    }
+                AbstractMetric existing = result.get(objects);
+                if (existing == null) {
+                    result.put(objects, (AbstractMetric) metric.copy());
+                }
+                else {
+                    existing.merge(metric);
+                }
+            });
 
-                    if (table == null) {
-                        table = new ConcurrentHashMap<>();
-                        tables.put(key, table);
-                    }
+            return result;
+        }
 
-                    Integer now = Ints.checkedCast(System.currentTimeMillis() / config.getSlideInterval().toMillis());
-                    Map<List<Object>, List<AbstractMetric>> bucket = table.get(now);
+        private Map<List<Object>, AbstractMetric> combine(Map<List<Object>, AbstractMetric> left, Map<List<Object>, AbstractMetric> right)
+        {
+            // both maps are created by group() so their metrics can be modified
+            if (left.size() < right.size()) {
+                return combine(right, left);
+            }
 
-                    if (bucket == null) {
-                        bucket = new ConcurrentHashMap<>();
-                        table.put(now, bucket);
-                    }
+            for (Map.Entry<List<Object>, AbstractMetric> entry : right.entrySet()) {
+                AbstractMetric existing = left.putIfAbsent(entry.getKey(), entry.getValue());
+                if (existing != null) {
+                    existing.merge(entry.getValue());
+                }
+            }
+            return left;
+        }
+    }
 
-                    List<Object> dimensions = report.dimensions.stream()
-                            .map(s -> event.properties().get(s))
-                            .collect(Collectors.toList());
+    /**
+     * The metrics are updated on the thread that maps the event. The accumulators are striped
+     * (LongAdder, DoubleAdder) so that concurrent Netty workers don't contend on the same memory location
+     * and the aggregation scales with the number of worker threads.
+     */
+    @Override
+    public CompletableFuture<List<Cookie>> mapAsync(Event event, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
+    {
+        List<RealTimeReport> realTimeReports = reports.getUnchecked(event.project());
+        if (realTimeReports == null || realTimeReports.isEmpty()) {
+            return COMPLETED_EMPTY_FUTURE;
+        }
+
+        int now = Ints.checkedCast(System.currentTimeMillis() / sliceIntervalInMillis);
+        GenericRecord properties = event.properties();
+        ProjectMemory projectMemory = memory.get(event.project());
 
-                    List<AbstractMetric> metrics = bucket.get(dimensions);
+        for (RealTimeReport report : realTimeReports) {
+            if (!report.collections.contains(event.collection())) {
+                continue;
+            }
+
+            ConcurrentSkipListMap<Integer, RealtimeSlice> table = tables.computeIfAbsent(new RealtimeTable(event.project(), report.table_name),
+                    key -> new ConcurrentSkipListMap<>());
+            RealtimeSlice slice = table.computeIfAbsent(now, key -> new MutableRealtimeSlice());
+            if (!(slice instanceof MutableRealtimeSlice)) {
+                // the clock of the node is moved back, the slice is already closed
+                continue;
+            }
+
+            DimensionKey dimensions;
+            if (report.dimensions == null || report.dimensions.isEmpty()) {
+                dimensions = DimensionKey.EMPTY;
+            }
+            else {
+                Object[] values = new Object[report.dimensions.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = properties.get(report.dimensions.get(i));
+                }
+                dimensions = new DimensionKey(values);
+            }
+
+            MutableRealtimeSlice mutableSlice = (MutableRealtimeSlice) slice;
+            if (!mutableSlice.startWrite()) {
+                // the slice is being compacted, see expire()
+                continue;
+            }
+
+            try {
+                AbstractMetric[] metrics;
+                if (projectMemory != null && projectMemory.overBudget) {
+                    metrics = mutableSlice.get(dimensions);
                     if (metrics == null) {
-                        metrics = report.measures.stream()
-                                .map(measure -> createMetric(measure))
-                                .collect(Collectors.toList());
-                        bucket.put(dimensions, metrics);
+                        projectMemory.droppedEvents.increment();
+                        continue;
                     }
+                }
+                else {
+                    metrics = mutableSlice.getOrCreate(dimensions, report.measures);
+                }
 
-                    for (AbstractMetric metric : metrics) {
-                        metric.apply(event.properties());
-                    }
+                for (AbstractMetric metric : metrics) {
+                    metric.apply(properties);
                 }
             }
-            catch (Exception e) {
-                e.printStackTrace();
+            finally {
+                mutableSlice.endWrite();
             }
-            return null;
-        }, executorService);
+        }
+
+        return COMPLETED_EMPTY_FUTURE;
     }
 
-    private AbstractMetric createMetric(RealTimeReport.Measure e)
+    static AbstractMetric createMetric(RealTimeReport.Measure e)
     {
         if (e.aggregation == AggregationType.SUM) {
             return new SumMetric(e.column);
@@ -274,7 +473,11 @@ public class RealtimeEventProcessor
             return new MaximumMinimumMetric(e.column, false);
         }
 
-        if (e.aggregation == APPROXIMATE_UNIQUE || e.aggregation == COUNT_UNIQUE) {
+        if (e.aggregation == APPROXIMATE_UNIQUE) {
+            return new ApproximateUniqueMetric(e.column);
+        }
+
+        if (e.aggregation == COUNT_UNIQUE) {
             return new UniqueCountMetric(e.column);
         }
 
@@ -294,33 +497,38 @@ public class RealtimeEventProcessor
 
         public abstract T copy();
 
+        /**
+         * Called concurrently by the event mapper threads, the implementations must not block.
+         */
         public abstract void apply(GenericRecord record);
 
         public abstract void merge(T metric);
+
+        public abstract long estimatedBytes();
     }
 
     public static class SumMetric
             extends AbstractMetric<SumMetric>
     {
-
-        private double value;
+        private final DoubleAdder value;
 
         public SumMetric(String fieldName)
         {
             super(fieldName);
+            value = new DoubleAdder();
         }
 
         @Override
         public Number value()
         {
-            return value;
+            return value.sum();
         }
 
         @Override
         public SumMetric copy()
         {
             SumMetric sumMetric = new SumMetric(fieldName);
-            sumMetric.value = value;
+            sumMetric.value.add(value.sum());
             return sumMetric;
         }
 
@@ -329,41 +537,45 @@ public class RealtimeEventProcessor
         {
             Object o = record.get(fieldName);
             if (o instanceof Number) {
-                synchronized (this) {
-                    value += ((Number) o).doubleValue();
-                }
+                value.add(((Number) o).doubleValue());
             }
         }
 
+        @Override
+        public long estimatedBytes()
+        {
+            return 64;
+        }
+
         @Override
         public void merge(SumMetric metric)
         {
-            value += metric.value;
+            value.add(metric.value.sum());
         }
     }
 
     public static class CountMetric
             extends AbstractMetric<CountMetric>
     {
-
-        private double value;
+        private final LongAdder value;
 
         public CountMetric(String fieldName)
         {
             super(fieldName);
+            value = new LongAdder();
         }
 
         @Override
         public Number value()
         {
-            return value;
+            return value.sum();
         }
 
         @Override
         public CountMetric copy()
         {
             CountMetric countMetric = new CountMetric(fieldName);
-            countMetric.value += value;
+            countMetric.value.add(value.sum());
             return countMetric;
         }
 
@@ -372,42 +584,47 @@ public class RealtimeEventProcessor
         {
             Object o = record.get(fieldName);
             if (o != null) {
-                synchronized (this) {
-                    value += 1;
-                }
+                value.increment();
             }
         }
 
+        @Override
+        public long estimatedBytes()
+        {
+            return 64;
+        }
+
         @Override
         public void merge(CountMetric metric)
         {
-            value += metric.value;
+            value.add(metric.value.sum());
         }
     }
 
     public static class AverageMetric
             extends AbstractMetric<AverageMetric>
     {
-        private long sum;
-        private long count;
+        private final DoubleAdder sum;
+        private final LongAdder count;
 
         public AverageMetric(String fieldName)
         {
             super(fieldName);
+            sum = new DoubleAdder();
+            count = new LongAdder();
         }
 
         @Override
         public Number value()
         {
-            return sum / (double) count;
+            return sum.sum() / (double) count.sum();
         }
 
         @Override
         public AverageMetric copy()
         {
             AverageMetric averageMetric = new AverageMetric(fieldName);
-            averageMetric.count = count;
-            averageMetric.sum = sum;
+            averageMetric.merge(this);
             return averageMetric;
         }
 
@@ -416,30 +633,34 @@ public class RealtimeEventProcessor
         {
             Object o = record.get(fieldName);
             if (o instanceof Number) {
-                synchronized (this) {
-                    sum += ((Number) o).doubleValue();
-                    count += 1;
-                }
+                sum.add(((Number) o).doubleValue());
+                count.increment();
             }
         }
 
+        @Override
+        public long estimatedBytes()
+        {
+            return 112;
+        }
+
         @Override
         public void merge(AverageMetric metric)
         {
-            sum += metric.sum;
-            count += metric.count;
+            sum.add(metric.sum.sum());
+            count.add(metric.count.sum());
         }
     }
 
     public static class UniqueCountMetric
             extends AbstractMetric<UniqueCountMetric>
     {
-        private Set<Object> set;
+        private final Set<Object> set;
 
         public UniqueCountMetric(String fieldName)
         {
             super(fieldName);
-            set = new HashSet<>();
+            set = ConcurrentHashMap.newKeySet();
         }
 
         @Override
@@ -452,7 +673,7 @@ public class RealtimeEventProcessor
         public UniqueCountMetric copy()
         {
             UniqueCountMetric uniqueCountMetric = new UniqueCountMetric(fieldName);
-            uniqueCountMetric.set = set;
+            uniqueCountMetric.set.addAll(set);
             return uniqueCountMetric;
         }
 
@@ -461,43 +682,104 @@ public class RealtimeEventProcessor
         {
             Object o = record.get(fieldName);
             if (o != null) {
-                synchronized (this) {
-                    set.add(o);
-                }
+                set.add(o);
             }
         }
 
+        @Override
+        public long estimatedBytes()
+        {
+            return 64 + set.size() * 56L;
+        }
+
         @Override
         public void merge(UniqueCountMetric metric)
         {
-            metric.set.addAll(metric.set);
+            set.addAll(metric.set);
+        }
+    }
+
+    /**
+     * Keeps a HyperLogLog sketch instead of the values so the memory of the metric doesn't depend on the cardinality
+     * of the column.
+     */
+    public static class ApproximateUniqueMetric
+            extends AbstractMetric<ApproximateUniqueMetric>
+    {
+        private final HyperLogLog sketch;
+
+        public ApproximateUniqueMetric(String fieldName)
+        {
+            this(fieldName, new HyperLogLog());
+        }
+
+        private ApproximateUniqueMetric(String fieldName, HyperLogLog sketch)
+        {
+            super(fieldName);
+            this.sketch = sketch;
+        }
+
+        @Override
+        public Number value()
+        {
+            return sketch.cardinality();
+        }
+
+        @Override
+        public ApproximateUniqueMetric copy()
+        {
+            return new ApproximateUniqueMetric(fieldName, sketch.copy());
+        }
+
+        @Override
+        public void apply(GenericRecord record)
+        {
+            Object o = record.get(fieldName);
+            if (o != null) {
+                sketch.add(o);
+            }
+        }
+
+        @Override
+        public long estimatedBytes()
+        {
+            return 32 + HyperLogLog.estimatedBytes();
+        }
+
+        @Override
+        public void merge(ApproximateUniqueMetric metric)
+        {
+            sketch.merge(metric.sketch);
         }
     }
 
     public static class MaximumMinimumMetric
             extends AbstractMetric<MaximumMinimumMetric>
     {
-
         private final boolean maximum;
-        private Number value;
+        private final DoubleAccumulator value;
+        private final LongAdder count;
 
         public MaximumMinimumMetric(String fieldName, boolean maximum)
         {
             super(fieldName);
             this.maximum = maximum;
+            this.value = maximum ? new DoubleAccumulator(Math::max, Double.NEGATIVE_INFINITY) :
+                    new DoubleAccumulator(Math::min, Double.POSITIVE_INFINITY);
+            this.count = new LongAdder();
         }
 
         @Override
         public Number value()
         {
-            return value;
+            return count.sum() == 0 ? null : value.get();
         }
 
         @Override
         public MaximumMinimumMetric copy()
         {
             MaximumMinimumMetric maximumMinimumMetric = new MaximumMinimumMetric(fieldName, maximum);
-            maximumMinimumMetric.value = value;
+            maximumMinimumMetric.merge(this);
             return maximumMinimumMetric;
         }
 
@@ -505,27 +787,26 @@ public class RealtimeEventProcessor
         public void apply(GenericRecord record)
         {
             Object o = record.get(fieldName);
-            if (o instanceof Number && pass(((Number) o).doubleValue())) {
-                synchronized (this) {
-                    value = ((Number) o);
-                }
+            if (o instanceof Number) {
+                value.accumulate(((Number) o).doubleValue());
+                count.increment();
             }
         }
 
         @Override
-        public void merge(MaximumMinimumMetric metric)
+        public long estimatedBytes()
         {
-            if (pass(metric.value.doubleValue())) {
-                value = metric.value;
-            }
+            return 128;
         }
 
-        private boolean pass(double value)
+        @Override
+        public void merge(MaximumMinimumMetric metric)
         {
-            if (this.value == null) {
-                return true;
+            long otherCount = metric.count.sum();
+            if (otherCount > 0) {
+                value.accumulate(metric.value.get());
+                count.add(otherCount);
             }
-            return maximum ? value > this.value.doubleValue() : value < this.value.doubleValue();
         }
     }
 
@@ -598,5 +879,84 @@ public class RealtimeEventProcessor
         {
             throw new UnsupportedOperationException();
         }
+
+        @Override
+        public long estimatedBytes()
+        {
+            return 0;
+        }
+    }
+
+    private static class MergedSliceKey
+    {
+        private final RealtimeTable table;
+        private final int measureIndex;
+        private final int[] dimensions;
+        private final boolean aggregate;
+        private final long[] sliceIds;
+
+        private MergedSliceKey(RealtimeTable table, int measureIndex, int[] dimensions, boolean aggregate, long[] sliceIds)
+        {
+            this.table = table;
+            this.measureIndex = measureIndex;
+            this.dimensions = dimensions;
+            this.aggregate = aggregate;
+            this.sliceIds = sliceIds;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MergedSliceKey)) {
+                return false;
+            }
+
+            MergedSliceKey that = (MergedSliceKey) o;
+            return measureIndex == that.measureIndex &&
+                    aggregate == that.aggregate &&
+                    table.equals(that.table) &&
+                    Arrays.equals(dimensions, that.dimensions) &&
+                    Arrays.equals(sliceIds, that.sliceIds);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = table.hashCode();
+            result = 31 * result + measureIndex;
+            result = 31 * result + Arrays.hashCode(dimensions);
+            result = 31 * result + (aggregate ? 1 : 0);
+            result = 31 * result + Arrays.hashCode(sliceIds);
+            return result;
+        }
+    }
+
+    private static class ProjectMemory
+    {
+        private volatile long estimatedBytes;
+        private volatile boolean overBudget;
+        private final LongAdder evictedSlices = new LongAdder();
+        private final LongAdder droppedEvents = new LongAdder();
+    }
+
+    public static class MemoryStats
+    {
+        public final long estimatedBytes;
+        public final long maxBytes;
+        public final boolean overBudget;
+        public final long evictedSlices;
+        public final long droppedEvents;
+
+        public MemoryStats(long estimatedBytes, long maxBytes, boolean overBudget, long evictedSlices, long droppedEvents)
+        {
+            this.estimatedBytes = estimatedBytes;
+            this.maxBytes = maxBytes;
+            this.overBudget = overBudget;
+            this.evictedSlices = evictedSlices;
+            this.droppedEvents = droppedEvents;
+        }
     }
 }
@@ -1,6 +1,7 @@
 package org.rakam.analysis.realtime;
 
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.inject.name.Named;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.report.realtime.RealTimeReport;
@@ -31,7 +32,12 @@ public class RealtimeMetadataService
 
     @Inject
     public RealtimeMetadataService(@Named("report.metadata.store.jdbc") JDBCPoolDataSource dataSource) {
-        dbi = new DBI(dataSource);
+        this(new DBI(dataSource));
+    }
+
+    @VisibleForTesting
+    RealtimeMetadataService(DBI dbi) {
+        this.dbi = dbi;
     }
 
     @PostConstruct
@@ -34,6 +34,7 @@ public class RealtimeService
     public CompletableFuture<QueryError> delete(String project, String tableName)
     {
         metadataService.delete(project, tableName);
+        processor.invalidate(project, tableName);
         return CompletableFuture.completedFuture(null);
     }
 
@@ -65,6 +66,11 @@ public class RealtimeService
         return metadataService.list(project);
     }
 
+    public RealtimeEventProcessor.MemoryStats getMemoryStats(String project)
+    {
+        return processor.getMemoryStats(project);
+    }
+
     public static class RealTimeQueryResult
     {
         public final long start;
@@ -0,0 +1,26 @@
+package org.rakam.analysis.realtime;
+
+import org.rakam.analysis.realtime.RealtimeEventProcessor.AbstractMetric;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Metrics of a realtime table for a single time slice, grouped by the dimension values.
+ */
+public interface RealtimeSlice
+{
+    // the slices are identified by the ids instead of the references so that the caches don't retain the evicted slices
+    AtomicLong IDS = new AtomicLong();
+
+    /**
+     * The unique id of the slice instance, a slice that replaces another one such as the compacted form has a new id.
+     */
+    long id();
+
+    void forEach(int measureIndex, BiConsumer<DimensionKey, AbstractMetric> consumer);
+
+    int size();
+
+    long estimatedBytes();
+}
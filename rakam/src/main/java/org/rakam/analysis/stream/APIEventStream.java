@@ -2,44 +2,75 @@ package org.rakam.analysis.stream;
 
 import com.facebook.presto.spi.type.Type;
 import com.facebook.presto.sql.parser.SqlParser;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
+import io.airlift.log.Logger;
+import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericRecord;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.analysis.stream.APIEventStreamModule.CollectionStreamHolder;
 import org.rakam.analysis.stream.APIEventStreamModule.CollectionStreamHolder.CollectionFilter;
-import org.rakam.collection.Event;
+import org.rakam.analysis.stream.StreamBuffer.StreamEvent;
 import org.rakam.collection.SchemaField;
 import org.rakam.plugin.stream.CollectionStreamQuery;
 import org.rakam.plugin.stream.EventStream;
+import org.rakam.plugin.stream.EventStreamConfig;
 import org.rakam.plugin.stream.StreamResponse;
 import org.rakam.util.JsonHelper;
 
 import javax.inject.Inject;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
 import java.util.AbstractMap.SimpleImmutableEntry;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
+import static java.util.concurrent.TimeUnit.HOURS;
 import static org.rakam.presto.analysis.PrestoRakamRaptorMetastore.toType;
 
 public class APIEventStream
         implements EventStream
 {
-    private final Map<String, List<CollectionStreamHolder>> holder;
+    private final static Logger LOGGER = Logger.get(APIEventStream.class);
+
+    private final StreamSubscriptions subscriptions;
     private final ExpressionCompiler expressionCompiler;
     private final Metastore metastore;
+    private final EventStreamConfig config;
+    private final LoadingCache<FilterKey, Predicate<GenericRecord>> filters;
 
     @Inject
-    public APIEventStream(Map<String, List<CollectionStreamHolder>> holder, Metastore metastore, ExpressionCompiler expressionCompiler)
+    public APIEventStream(StreamSubscriptions subscriptions, Metastore metastore, ExpressionCompiler expressionCompiler, EventStreamConfig config)
     {
-        this.holder = holder;
+        this.subscriptions = subscriptions;
         this.expressionCompiler = expressionCompiler;
         this.metastore = metastore;
+        this.config = config;
+        // the subscriptions that use the same filter share the compiled class
+        this.filters = CacheBuilder.newBuilder()
+                .maximumSize(10000)
+                .expireAfterAccess(1, HOURS)
+                .build(new CacheLoader<FilterKey, Predicate<GenericRecord>>()
+                {
+                    @Override
+                    public Predicate<GenericRecord> load(FilterKey key)
+                    {
+                        List<Map.Entry<String, Type>> columns = key.schema.stream()
+                                .map((Function<SchemaField, Map.Entry<String, Type>>) f ->
+                                        new SimpleImmutableEntry<>(f.getName(), toType(f.getType())))
+                                .collect(Collectors.toList());
+
+                        return expressionCompiler.generate(new SqlParser().createExpression(key.expression), columns);
+                    }
+                });
     }
 
     @Override
@@ -52,17 +83,11 @@ public class APIEventStream
 
                 if(item.getCollection() == null) {
                     predicate = (val) -> true;
+                } else if (item.getFilter() == null) {
+                    predicate = null;
                 } else {
-                    List<Map.Entry<String, Type>> collect = metastore.getCollection(project, item.getCollection())
-                            .stream()
-                            .map((Function<SchemaField, Map.Entry<String, Type>>) f ->
-                                    new SimpleImmutableEntry<>(f.getName(), toType(f.getType())))
-                            .collect(Collectors.toList());
-
-                    predicate = Optional.ofNullable(item.getFilter())
-                            .map(value -> new SqlParser().createExpression(item.getFilter()))
-                            .map(expression -> expressionCompiler.generate(expression, collect))
-                            .orElse(null);
+                    List<SchemaField> schema = metastore.getCollection(project, item.getCollection());
+                    predicate = filters.getUnchecked(new FilterKey(project, item.getCollection(), item.getFilter(), schema));
                 }
 
                 return new CollectionFilter(item.getCollection(), predicate);
@@ -71,49 +96,173 @@ public class APIEventStream
             collect1 = ImmutableList.of(new CollectionFilter(null, null));
         }
 
-        CollectionStreamHolder streamHolder = new CollectionStreamHolder(collect1);
-        List<CollectionStreamHolder> holders = this.holder.computeIfAbsent(project, s -> new ArrayList<>());
-        synchronized (this) {
-            holders.add(streamHolder);
-        }
+        String[] projection = columns == null || columns.isEmpty() ? null : columns.toArray(new String[columns.size()]);
+        CollectionStreamHolder streamHolder = new CollectionStreamHolder(collect1, projection,
+                new StreamBuffer(config.getBufferSize(), config.getSlowConsumerPolicy()));
+        subscriptions.add(project, streamHolder);
+
+        StreamEvent[] batch = new StreamEvent[config.getMaxBatchSize()];
 
         return new EventStreamer()
         {
             @Override
             public void sync()
             {
-                Event message = streamHolder.messageQueue.poll();
-                StringBuilder builder = new StringBuilder("[");
-
-                boolean isFirst = true;
-                while (message != null) {
-                    if (!isFirst) {
-                        builder.append(",");
-                    }
-
-                    builder.append("{\"project\":")
-                            .append(JsonHelper.encode(message.project()))
-                            .append(", \"collection\":")
-                            .append(JsonHelper.encode(message.collection()))
-                            .append(", \"properties\": ")
-                            .append(message.properties().toString()).append("}");
-
-                    isFirst = false;
-                    message = streamHolder.messageQueue.poll();
+                if (streamHolder.buffer.isOverflowed()) {
+                    response.send("error", "The subscriber couldn't keep up with the event stream").end();
+                    shutdown();
+                    return;
                 }
 
-                builder.append("]");
+                long dropped = streamHolder.buffer.takeDropped();
+                if (dropped > 0) {
+                    response.send("dropped", Long.toString(dropped));
+                }
 
-                response.send("data", builder.toString());
+                // send the buffered events in chunks so that a single message doesn't contain the whole buffer
+                int count;
+                while ((count = streamHolder.buffer.drain(batch)) > 0) {
+                    response.send("data", encode(project, streamHolder.columns, batch, count));
+                }
             }
 
             @Override
             public void shutdown()
             {
-                synchronized (this) {
-                    holder.remove(holder);
-                }
+                subscriptions.remove(project, streamHolder);
             }
         };
     }
+
+    private static class FilterKey
+    {
+        private final String project;
+        private final String collection;
+        private final String expression;
+        // the fields are only appended to the schemas, so the number of fields identifies the version of the schema
+        private final int schemaVersion;
+        private final List<SchemaField> schema;
+
+        private FilterKey(String project, String collection, String expression, List<SchemaField> schema)
+        {
+            this.project = project;
+            this.collection = collection;
+            this.expression = expression;
+            this.schemaVersion = schema.size();
+            this.schema = schema;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FilterKey)) {
+                return false;
+            }
+
+            FilterKey that = (FilterKey) o;
+            return schemaVersion == that.schemaVersion &&
+                    project.equals(that.project) &&
+                    collection.equals(that.collection) &&
+                    expression.equals(that.expression);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = project.hashCode();
+            result = 31 * result + collection.hashCode();
+            result = 31 * result + expression.hashCode();
+            result = 31 * result + schemaVersion;
+            return result;
+        }
+    }
+
+    private static String encode(String project, String[] columns, StreamEvent[] events, int count)
+    {
+        // the SSE response only accepts strings so the events are encoded to characters directly
+        StringWriter writer = new StringWriter();
+        try {
+            try (JsonGenerator generator = JsonHelper.getMapper().getFactory().createGenerator(writer)) {
+                generator.writeStartArray();
+                for (int i = 0; i < count; i++) {
+                    StreamEvent event = events[i];
+                    events[i] = null;
+
+                    generator.writeStartObject();
+                    generator.writeStringField("project", project);
+                    generator.writeStringField("collection", event.collection);
+                    generator.writeFieldName("properties");
+                    generator.writeStartObject();
+                    if (event.values != null) {
+                        for (int c = 0; c < columns.length; c++) {
+                            generator.writeFieldName(columns[c]);
+                            writeValue(generator, event.values[c]);
+                        }
+                    }
+                    else {
+                        for (Schema.Field field : event.record.getSchema().getFields()) {
+                            generator.writeFieldName(field.name());
+                            writeValue(generator, event.record.get(field.pos()));
+                        }
+                    }
+                    generator.writeEndObject();
+                    generator.writeEndObject();
+                }
+                generator.writeEndArray();
+            }
+
+            return writer.toString();
+        }
+        catch (IOException e) {
+            LOGGER.error(e, "Unable to encode the events");
+            return "[]";
+        }
+    }
+
+    private static void writeValue(JsonGenerator generator, Object value)
+            throws IOException
+    {
+        if (value == null) {
+            generator.writeNull();
+        }
+        else if (value instanceof CharSequence) {
+            generator.writeString(value.toString());
+        }
+        else if (value instanceof Long || value instanceof Integer) {
+            generator.writeNumber(((Number) value).longValue());
+        }
+        else if (value instanceof Number) {
+            generator.writeNumber(((Number) value).doubleValue());
+        }
+        else if (value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof List) {
+            generator.writeStartArray();
+            for (Object item : (List) value) {
+                writeValue(generator, item);
+            }
+            generator.writeEndArray();
+        }
+        else if (value instanceof Map) {
+            generator.writeStartObject();
+            for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet()) {
+                generator.writeFieldName(entry.getKey().toString());
+                writeValue(generator, entry.getValue());
+            }
+            generator.writeEndObject();
+        }
+        else if (value instanceof ByteBuffer) {
+            ByteBuffer byteBuffer = ((ByteBuffer) value).duplicate();
+            byte[] bytes = new byte[byteBuffer.remaining()];
+            byteBuffer.get(bytes);
+            generator.writeBinary(bytes);
+        }
+        else {
+            generator.writeString(value.toString());
+        }
+    }
 }
@@ -5,34 +5,30 @@ import com.facebook.presto.metadata.MetadataManager;
 import com.facebook.presto.transaction.TransactionManager;
 import com.google.auto.service.AutoService;
 import com.google.inject.Binder;
-import com.google.inject.TypeLiteral;
+import com.google.inject.Scopes;
 import com.google.inject.multibindings.Multibinder;
 import org.apache.avro.generic.GenericRecord;
-import org.rakam.collection.Event;
 import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.RakamModule;
 import org.rakam.plugin.stream.EventStream;
+import org.rakam.plugin.stream.EventStreamConfig;
 import org.rakam.util.ConditionalModule;
 
 import java.util.List;
-import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Predicate;
 
+import static io.airlift.configuration.ConfigBinder.configBinder;
+
 @AutoService(RakamModule.class)
 @ConditionalModule(config = "event-stream", value = "server")
 public class APIEventStreamModule
         extends RakamModule
 {
-    private static final int MAXIMUM_QUEUE_CAPACITY = 1000;
-
     @Override
     protected void setup(Binder binder)
     {
-        binder.bind(new TypeLiteral<Map<String, List<CollectionStreamHolder>>>() {})
-                .toInstance(new ConcurrentHashMap<>());
+        configBinder(binder).bindConfig(EventStreamConfig.class);
+        binder.bind(StreamSubscriptions.class).in(Scopes.SINGLETON);
         binder.bind(EventStream.class).to(APIEventStream.class);
         Multibinder<EventMapper> mapperMultibinder = Multibinder.newSetBinder(binder, EventMapper.class);
         mapperMultibinder.addBinding().to(EventListenerMapper.class);
@@ -56,12 +52,15 @@ public class APIEventStreamModule
     public static class CollectionStreamHolder
     {
         public final List<CollectionFilter> collections;
-        public final Queue<Event> messageQueue;
+        // null if all the columns are subscribed
+        public final String[] columns;
+        public final StreamBuffer buffer;
 
-        public CollectionStreamHolder(List<CollectionFilter> collections)
+        public CollectionStreamHolder(List<CollectionFilter> collections, String[] columns, StreamBuffer buffer)
         {
             this.collections = collections;
-            this.messageQueue = new ArrayBlockingQueue<>(MAXIMUM_QUEUE_CAPACITY);
+            this.columns = columns;
+            this.buffer = buffer;
         }
 
         public static class CollectionFilter
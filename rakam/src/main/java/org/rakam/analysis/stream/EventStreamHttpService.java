@@ -13,6 +13,7 @@ import org.rakam.analysis.ApiKeyService;
 import org.rakam.http.ForHttpServer;
 import org.rakam.plugin.stream.CollectionStreamQuery;
 import org.rakam.plugin.stream.EventStream;
+import org.rakam.plugin.stream.EventStreamConfig;
 import org.rakam.server.http.HttpService;
 import org.rakam.server.http.RakamHttpRequest;
 import org.rakam.server.http.annotations.Api;
@@ -50,12 +51,14 @@ public class EventStreamHttpService
     private final EventStream stream;
     private final SqlParser sqlParser;
     private final ApiKeyService apiKeyService;
+    private final long flushIntervalMillis;
     private EventLoopGroup eventLoopGroup;
 
     @Inject
-    public EventStreamHttpService(EventStream stream, ApiKeyService apiKeyService)
+    public EventStreamHttpService(EventStream stream, ApiKeyService apiKeyService, EventStreamConfig config)
     {
         this.stream = stream;
+        this.flushIntervalMillis = config.getFlushInterval().toMillis();
         this.apiKeyService = apiKeyService;
         this.sqlParser = new SqlParser();
     }
@@ -145,10 +148,10 @@ public class EventStreamHttpService
                         LOGGER.error(e);
                         subscribe.shutdown();
                     }
-                    eventLoopGroup.schedule(this, 3, TimeUnit.SECONDS);
+                    eventLoopGroup.schedule(this, flushIntervalMillis, TimeUnit.MILLISECONDS);
                 }
             }
-        }, 3, TimeUnit.SECONDS);
+        }, flushIntervalMillis, TimeUnit.MILLISECONDS);
     }
 
     @Inject
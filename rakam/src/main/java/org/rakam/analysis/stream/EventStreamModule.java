@@ -24,11 +24,14 @@ import org.rakam.util.ConditionalModule;
 import org.rakam.plugin.RakamModule;
 import org.rakam.server.http.HttpService;
 
+import static io.airlift.configuration.ConfigBinder.configBinder;
+
 @AutoService(RakamModule.class)
 @ConditionalModule(config="event.stream.enabled", value = "true")
 public class EventStreamModule extends RakamModule {
     @Override
     protected void setup(Binder binder) {
+        configBinder(binder).bindConfig(EventStreamConfig.class);
         Multibinder<HttpService> httpServices = Multibinder.newSetBinder(binder, HttpService.class);
         httpServices.addBinding().to(EventStreamHttpService.class);
 
@@ -93,12 +93,14 @@ public class ExpressionCompiler
         FilterContext filterContext = analyze(expression, columns);
 
         ImmutableList<Type> types = copyOf(filterContext.sourceTypes.values());
-        AvroRecordCursor cursor = new AvroRecordCursor(types, filterContext.projections);
+        // the predicate is shared by the subscriptions and called by the event mapper threads concurrently
+        ThreadLocal<AvroRecordCursor> cursors = ThreadLocal.withInitial(() -> new AvroRecordCursor(types, filterContext.projections));
         Filter filter = filterContext.filter;
 
         ConnectorSession connectorSession = session.toConnectorSession();
 
         return genericRecord -> {
+            AvroRecordCursor cursor = cursors.get();
             cursor.setRecord(genericRecord);
             return filter.filter(connectorSession, cursor);
         };
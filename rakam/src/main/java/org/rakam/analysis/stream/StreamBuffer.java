@@ -0,0 +1,127 @@
+package org.rakam.analysis.stream;
+
+import org.apache.avro.generic.GenericRecord;
+import org.rakam.collection.Event;
+import org.rakam.plugin.stream.EventStreamConfig.SlowConsumerPolicy;
+
+/**
+ * Fixed size ring buffer of a stream subscription. The event mappers add the events concurrently and the
+ * subscription drains them periodically, when the subscriber can't keep up the events are dropped according
+ * to the {@link SlowConsumerPolicy} instead of growing the buffer.
+ */
+public class StreamBuffer
+{
+    private final StreamEvent[] events;
+    private final SlowConsumerPolicy policy;
+
+    private int head;
+    private int size;
+    private long dropped;
+    private boolean overflowed;
+
+    public StreamBuffer(int capacity, SlowConsumerPolicy policy)
+    {
+        this.events = new StreamEvent[capacity];
+        this.policy = policy;
+    }
+
+    public synchronized void offer(StreamEvent event)
+    {
+        if (overflowed) {
+            dropped++;
+            return;
+        }
+
+        if (size == events.length) {
+            switch (policy) {
+                case DROP_OLDEST:
+                    events[head] = null;
+                    head = (head + 1) % events.length;
+                    size--;
+                    dropped++;
+                    break;
+                case DROP_NEWEST:
+                    dropped++;
+                    return;
+                case DISCONNECT:
+                    overflowed = true;
+                    dropped++;
+                    return;
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+
+        events[(head + size) % events.length] = event;
+        size++;
+    }
+
+    /**
+     * Moves at most {@code target.length} events to the target array and returns the number of the events.
+     */
+    public synchronized int drain(StreamEvent[] target)
+    {
+        int count = Math.min(size, target.length);
+        for (int i = 0; i < count; i++) {
+            target[i] = events[head];
+            events[head] = null;
+            head = (head + 1) % events.length;
+        }
+        size -= count;
+        return count;
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public synchronized boolean isOverflowed()
+    {
+        return overflowed;
+    }
+
+    /**
+     * Returns the number of the events that are dropped since the last call.
+     */
+    public synchronized long takeDropped()
+    {
+        long value = dropped;
+        dropped = 0;
+        return value;
+    }
+
+    /**
+     * Creates the buffered form of the event, the subscribers only receive the columns that they subscribed
+     * so the whole record is not kept in the buffer.
+     */
+    public static StreamEvent project(Event event, String[] columns)
+    {
+        if (columns == null) {
+            return new StreamEvent(event.collection(), event.properties(), null);
+        }
+
+        GenericRecord properties = event.properties();
+        Object[] values = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            values[i] = properties.get(columns[i]);
+        }
+        return new StreamEvent(event.collection(), null, values);
+    }
+
+    public static class StreamEvent
+    {
+        public final String collection;
+        // null if the subscription projects the columns
+        public final GenericRecord record;
+        // the values of the subscribed columns, in the same order with the columns
+        public final Object[] values;
+
+        public StreamEvent(String collection, GenericRecord record, Object[] values)
+        {
+            this.collection = collection;
+            this.record = record;
+            this.values = values;
+        }
+    }
+}
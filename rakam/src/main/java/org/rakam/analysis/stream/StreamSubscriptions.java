@@ -0,0 +1,117 @@
+package org.rakam.analysis.stream;
+
+import com.google.common.collect.ImmutableList;
+import org.rakam.analysis.stream.APIEventStreamModule.CollectionStreamHolder;
+import org.rakam.analysis.stream.APIEventStreamModule.CollectionStreamHolder.CollectionFilter;
+import org.rakam.collection.Event;
+
+import javax.inject.Singleton;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Index of the live stream subscriptions by project and collection. An event only visits the subscriptions
+ * of its collection and the ones that subscribe all collections, so the cost of mapping an event doesn't depend
+ * on the number of subscriptions of the other collections.
+ */
+@Singleton
+public class StreamSubscriptions
+{
+    private final Map<String, ProjectSubscriptions> projects = new ConcurrentHashMap<>();
+
+    public void add(String project, CollectionStreamHolder holder)
+    {
+        ProjectSubscriptions subscriptions = projects.computeIfAbsent(project, k -> new ProjectSubscriptions());
+
+        // the subscriptions that include all the collections are not indexed, otherwise an event could be delivered twice
+        if (holder.collections.stream().anyMatch(filter -> filter.collection == null)) {
+            subscriptions.allCollections.add(new Subscription(holder, holder.collections));
+            return;
+        }
+
+        Map<String, List<CollectionFilter>> filters = new HashMap<>();
+        for (CollectionFilter filter : holder.collections) {
+            filters.computeIfAbsent(filter.collection, k -> new ArrayList<>()).add(filter);
+        }
+
+        for (Map.Entry<String, List<CollectionFilter>> entry : filters.entrySet()) {
+            subscriptions.collections.computeIfAbsent(entry.getKey(), k -> new CopyOnWriteArrayList<>())
+                    .add(new Subscription(holder, ImmutableList.copyOf(entry.getValue())));
+        }
+    }
+
+    public void remove(String project, CollectionStreamHolder holder)
+    {
+        ProjectSubscriptions subscriptions = projects.get(project);
+        if (subscriptions == null) {
+            return;
+        }
+
+        subscriptions.allCollections.removeIf(subscription -> subscription.holder == holder);
+        for (List<Subscription> list : subscriptions.collections.values()) {
+            list.removeIf(subscription -> subscription.holder == holder);
+        }
+    }
+
+    /**
+     * Offers the event to the buffers of the matching subscriptions.
+     */
+    public void dispatch(Event event)
+    {
+        ProjectSubscriptions subscriptions = projects.get(event.project());
+        if (subscriptions == null) {
+            return;
+        }
+
+        List<Subscription> list = subscriptions.collections.get(event.collection());
+        if (list != null) {
+            for (Subscription subscription : list) {
+                subscription.offer(event);
+            }
+        }
+
+        for (Subscription subscription : subscriptions.allCollections) {
+            subscription.offer(event);
+        }
+    }
+
+    private static class ProjectSubscriptions
+    {
+        private final Map<String, List<Subscription>> collections = new ConcurrentHashMap<>();
+        // the mappers iterate the lists without locking, so they're copied on each subscription change
+        private final List<Subscription> allCollections = new CopyOnWriteArrayList<>();
+    }
+
+    private static class Subscription
+    {
+        private final CollectionStreamHolder holder;
+        private final List<CollectionFilter> filters;
+
+        private Subscription(CollectionStreamHolder holder, List<CollectionFilter> filters)
+        {
+            this.holder = holder;
+            this.filters = filters;
+        }
+
+        private void offer(Event event)
+        {
+            for (CollectionFilter item : filters) {
+                if (item.collection != null && !item.collection.equals(event.collection())) {
+                    continue;
+                }
+
+                if (item.filter != null && !item.filter.test(event.properties())) {
+                    continue;
+                }
+
+                holder.buffer.offer(StreamBuffer.project(event, holder.columns));
+                return;
+            }
+        }
+    }
+}
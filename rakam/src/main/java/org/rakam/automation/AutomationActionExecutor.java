@@ -0,0 +1,199 @@
+package org.rakam.automation;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Provider;
+import io.airlift.log.Logger;
+import org.rakam.plugin.user.User;
+import org.rakam.plugin.user.UserStorage;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Runs the actions of the fired automation rules outside of the event collection path. The actions are queued
+ * to a bounded queue and the workers process them in batches, the users of a batch are fetched once and
+ * cached per project so that the rules that fire for the same users don't hit the user storage repeatedly.
+ * If the queue is full the actions are dropped instead of blocking the event mappers.
+ */
+@Singleton
+public class AutomationActionExecutor
+{
+    private final static Logger LOGGER = Logger.get(AutomationActionExecutor.class);
+
+    private final Provider<UserStorage> userStorageProvider;
+    private final BlockingQueue<PendingAction> queue;
+    private final Cache<UserKey, Optional<User>> users;
+    private final ExecutorService workers;
+    private final int batchSize;
+    private final AtomicLong droppedActions;
+    private volatile boolean closed;
+
+    @Inject
+    public AutomationActionExecutor(Provider<UserStorage> userStorageProvider, AutomationConfig config)
+    {
+        this.userStorageProvider = userStorageProvider;
+        this.queue = new ArrayBlockingQueue<>(config.getActionQueueSize());
+        this.batchSize = config.getActionBatchSize();
+        this.droppedActions = new AtomicLong();
+        this.users = CacheBuilder.newBuilder()
+                .maximumSize(config.getUserCacheSize())
+                .expireAfterWrite(config.getUserCacheExpiration().toMillis(), MILLISECONDS)
+                .build();
+
+        this.workers = Executors.newFixedThreadPool(config.getActionThreads(), new ThreadFactoryBuilder()
+                .setNameFormat("automation-action-worker-%d").setDaemon(true).build());
+        for (int i = 0; i < config.getActionThreads(); i++) {
+            workers.execute(this::run);
+        }
+    }
+
+    public void submit(String project, Object user, AutomationRule.SerializableAction action)
+    {
+        // avro strings are not equal to java strings
+        Object userId = user instanceof CharSequence ? user.toString() : user;
+        if (!queue.offer(new PendingAction(project, userId, action))) {
+            if (droppedActions.incrementAndGet() % 1000 == 1) {
+                LOGGER.warn("Automation action queue is full, %d actions are dropped so far", droppedActions.get());
+            }
+        }
+    }
+
+    public long getDroppedActions()
+    {
+        return droppedActions.get();
+    }
+
+    @PreDestroy
+    public void close()
+    {
+        closed = true;
+        workers.shutdownNow();
+    }
+
+    private void run()
+    {
+        List<PendingAction> batch = new ArrayList<>(batchSize);
+        while (!closed) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                process(batch);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (Throwable e) {
+                LOGGER.error(e, "Error while processing automation actions");
+            }
+            finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void process(List<PendingAction> batch)
+    {
+        // the user is only fetched if an action of the user needs it
+        Map<UserKey, Supplier<User>> suppliers = new HashMap<>();
+        for (PendingAction pending : batch) {
+            Supplier<User> user = suppliers.computeIfAbsent(new UserKey(pending.project, pending.user), this::userSupplier);
+            try {
+                pending.action.getAction().process(pending.project, user, pending.action.value);
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Error while running automation action %s", pending.action.type);
+            }
+        }
+    }
+
+    private Supplier<User> userSupplier(UserKey key)
+    {
+        return new Supplier<User>()
+        {
+            private User user;
+            private boolean fetched;
+
+            @Override
+            public User get()
+            {
+                if (!fetched && key.user != null) {
+                    try {
+                        user = users.get(key, () -> Optional.ofNullable(userStorageProvider.get().getUser(key.project, key.user).join()))
+                                .orElse(null);
+                    }
+                    catch (ExecutionException e) {
+                        LOGGER.error(e.getCause(), "Unable to fetch the user of automation action");
+                    }
+                }
+                fetched = true;
+                return user;
+            }
+        };
+    }
+
+    private static class PendingAction
+    {
+        private final String project;
+        private final Object user;
+        private final AutomationRule.SerializableAction action;
+
+        private PendingAction(String project, Object user, AutomationRule.SerializableAction action)
+        {
+            this.project = project;
+            this.user = user;
+            this.action = action;
+        }
+    }
+
+    private static class UserKey
+    {
+        private final String project;
+        private final Object user;
+
+        private UserKey(String project, Object user)
+        {
+            this.project = project;
+            this.user = user;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof UserKey)) {
+                return false;
+            }
+
+            UserKey userKey = (UserKey) o;
+            return project.equals(userKey.project) && Objects.equals(user, userKey.user);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * project.hashCode() + Objects.hashCode(user);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.rakam.automation;
+
+import io.airlift.configuration.Config;
+import io.airlift.units.Duration;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+public class AutomationConfig
+{
+    private int actionThreads = 4;
+    private int actionQueueSize = 10000;
+    private int actionBatchSize = 100;
+    private int userCacheSize = 10000;
+    private Duration userCacheExpiration = new Duration(1, MINUTES);
+
+    @Config("automation.action-threads")
+    public AutomationConfig setActionThreads(int actionThreads)
+    {
+        this.actionThreads = actionThreads;
+        return this;
+    }
+
+    public int getActionThreads()
+    {
+        return actionThreads;
+    }
+
+    @Config("automation.action-queue-size")
+    public AutomationConfig setActionQueueSize(int actionQueueSize)
+    {
+        this.actionQueueSize = actionQueueSize;
+        return this;
+    }
+
+    public int getActionQueueSize()
+    {
+        return actionQueueSize;
+    }
+
+    @Config("automation.action-batch-size")
+    public AutomationConfig setActionBatchSize(int actionBatchSize)
+    {
+        this.actionBatchSize = actionBatchSize;
+        return this;
+    }
+
+    public int getActionBatchSize()
+    {
+        return actionBatchSize;
+    }
+
+    @Config("automation.user-cache-size")
+    public AutomationConfig setUserCacheSize(int userCacheSize)
+    {
+        this.userCacheSize = userCacheSize;
+        return this;
+    }
+
+    public int getUserCacheSize()
+    {
+        return userCacheSize;
+    }
+
+    @Config("automation.user-cache-expiration")
+    public AutomationConfig setUserCacheExpiration(Duration userCacheExpiration)
+    {
+        this.userCacheExpiration = userCacheExpiration;
+        return this;
+    }
+
+    public Duration getUserCacheExpiration()
+    {
+        return userCacheExpiration;
+    }
+}
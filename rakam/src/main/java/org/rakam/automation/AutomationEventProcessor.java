@@ -1,6 +1,5 @@
 package org.rakam.automation;
 
-import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
@@ -11,64 +10,58 @@ import org.rakam.Mapper;
 import org.rakam.collection.Event;
 import org.rakam.config.EncryptionConfig;
 import org.rakam.plugin.EventMapper;
-import org.rakam.plugin.SyncEventMapper;
-import org.rakam.plugin.user.User;
-import org.rakam.plugin.user.UserStorage;
 import org.rakam.util.CryptUtil;
 
-import javax.annotation.PostConstruct;
 import javax.inject.Inject;
-import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.util.ArrayList;
-import java.util.Base64;
 import java.util.List;
-import java.util.function.Supplier;
+import java.util.concurrent.CompletableFuture;
 
 @Singleton
 @Mapper(name = "Automation Event Processor", description = "Processes automation rules and take action if the user is completed the steps")
-public class AutomationEventProcessor implements SyncEventMapper
+public class AutomationEventProcessor implements EventMapper
 {
     private static final String PROPERTY_KEY = "_auto";
-    private static final String PROPERTY_ACTION_KEY = "_auto_action";
 
-    private final Provider<UserStorage> userStorageProvider;
     private final Provider<UserAutomationService> serviceProvider;
+    private final AutomationActionExecutor actionExecutor;
 
     private UserAutomationService service;
-    private UserStorage userStorage;
     private final EncryptionConfig encryptionConfig;
 
-    private static final List<Cookie> clearData;
+    private static final CompletableFuture<List<Cookie>> clearData;
 
     static {
         DefaultCookie defaultCookie = new DefaultCookie(PROPERTY_KEY, "");
         defaultCookie.setMaxAge(0);
-        clearData = ImmutableList.of(defaultCookie);
+        clearData = CompletableFuture.completedFuture(ImmutableList.of(defaultCookie));
     }
 
     @Inject
     public AutomationEventProcessor(
             Provider<UserAutomationService> service,
-            Provider<UserStorage> storage,
+            AutomationActionExecutor actionExecutor,
             EncryptionConfig encryptionConfig) {
         this.encryptionConfig = encryptionConfig;
-        this.userStorageProvider = storage;
         this.serviceProvider = service;
+        this.actionExecutor = actionExecutor;
     }
 
     @Override
     public void init()
     {
-        this.userStorage = userStorageProvider.get();
         this.service = serviceProvider.get();
     }
 
+    /**
+     * Only the state of the rules is updated on the event collection path, the actions of the fired rules
+     * are run by {@link AutomationActionExecutor} so the response doesn't wait for the user storage.
+     */
     @Override
-    public List<Cookie> map(Event event, RequestParams extraProperties, InetAddress sourceAddress, HttpHeaders responseHeaders) {
-        final List<AutomationRule> automationRules = service.list(event.project());
-        if (automationRules == null) {
-            return null;
+    public CompletableFuture<List<Cookie>> mapAsync(Event event, RequestParams extraProperties, InetAddress sourceAddress, HttpHeaders responseHeaders) {
+        final List<AutomationRule> automationRules = service.list(event.project(), event.collection());
+        if (automationRules.isEmpty()) {
+            return COMPLETED_EMPTY_FUTURE;
         }
 
         ScenarioState[] value;
@@ -79,7 +72,6 @@ public class AutomationEventProcessor implements SyncEventMapper
         }
 
         boolean stateChanged = false;
-        List<String> actions = null;
 
         ScenarioState[] newStates = null;
         int newIdx = 0;
@@ -99,7 +91,8 @@ public class AutomationEventProcessor implements SyncEventMapper
 
             if (state == null) {
                 if (newStates == null) {
-                    newStates = new ScenarioState[automationRules.size()];
+                    // the states of the rules of the other collections are kept as well
+                    newStates = new ScenarioState[automationRules.size() + (value == null ? 0 : value.length)];
 
                     if (value != null) {
                         for (ScenarioState scenarioState : value) {
@@ -119,53 +112,20 @@ public class AutomationEventProcessor implements SyncEventMapper
                 if (state.state >= automationRule.scenarios.size()) {
                     state.state = 0;
                     state.threshold = 0;
-                    // state is already changed
-                    if (actions == null) {
-                        actions = new ArrayList<>();
-                    }
 
+                    Object user = event.getAttribute("_user");
                     for (AutomationRule.SerializableAction action : automationRule.actions) {
-                        Supplier<User> supplier = new Supplier<User>() {
-                            private User user;
-
-                            @Override
-                            public User get() {
-                                if (user == null) {
-                                    String userAttr = event.getAttribute("_user");
-                                    if (userAttr != null) {
-                                        user = userStorage.getUser(event.project(), userAttr).join();
-                                    }
-                                }
-                                return user;
-                            }
-                        };
-
-                        action.getAction().process(event.project(), supplier, action.value);
+                        actionExecutor.submit(event.project(), user, action);
                     }
                 }
             }
         }
 
-        if (actions != null) {
-            StringBuilder builder = new StringBuilder();
-            Base64.Encoder encoder = Base64.getEncoder();
-
-            for (String action : actions) {
-                if (builder.length() != 0) {
-                    builder.append(',');
-                }
-                try {
-                    builder.append(encoder.encodeToString(action.getBytes("UTF-8")));
-                } catch (UnsupportedEncodingException e) {
-                    throw Throwables.propagate(e);
-                }
-
-            }
-
-            responseHeaders.set(PROPERTY_ACTION_KEY, builder.toString());
+        if (!stateChanged) {
+            return COMPLETED_EMPTY_FUTURE;
         }
 
-        return stateChanged ? ImmutableList.of(new DefaultCookie(PROPERTY_KEY, encodeState(newStates == null ? value : newStates))) : null;
+        return CompletableFuture.completedFuture(ImmutableList.of(new DefaultCookie(PROPERTY_KEY, encodeState(newStates == null ? value : newStates))));
     }
 
     private String encodeState(ScenarioState[] states) {
@@ -20,11 +20,13 @@ public class AutomationModule extends RakamModule {
     @Override
     protected void setup(Binder binder) {
         configBinder(binder).bindConfig(EncryptionConfig.class);
+        configBinder(binder).bindConfig(AutomationConfig.class);
         Multibinder<EventMapper> eventProcessors = Multibinder.newSetBinder(binder, EventMapper.class);
         eventProcessors.addBinding().to(AutomationEventProcessor.class).in(Scopes.SINGLETON);
         Multibinder.newSetBinder(binder, UserActionService.class);
 
         binder.bind(UserAutomationService.class);
+        binder.bind(AutomationActionExecutor.class).in(Scopes.SINGLETON);
 
         Multibinder<AutomationAction> automationActions = Multibinder.newSetBinder(binder, AutomationAction.class);
         for (AutomationActionType automationActionType : AutomationActionType.values()) {
@@ -1,6 +1,5 @@
 package org.rakam.automation;
 
-import com.facebook.presto.sql.parser.SqlParser;
 import com.facebook.presto.sql.tree.AstVisitor;
 import com.facebook.presto.sql.tree.ComparisonExpression;
 import com.facebook.presto.sql.tree.ComparisonExpressionType;
@@ -14,9 +13,15 @@ import com.facebook.presto.sql.tree.LogicalBinaryExpression;
 import com.facebook.presto.sql.tree.Node;
 import com.facebook.presto.sql.tree.StringLiteral;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import net.openhft.compiler.CompilerUtils;
 import org.rakam.collection.Event;
+import org.rakam.util.SqlUtil;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
 
 import static org.rakam.util.ValidationUtil.checkTableColumn;
@@ -24,7 +29,11 @@ import static org.rakam.util.ValidationUtil.checkTableColumn;
 public final class ExpressionCompiler
 {
 
-    private static final SqlParser sqlParser = new SqlParser();
+    private static final AtomicInteger classId = new AtomicInteger();
+    // the rules are reloaded periodically, the same expressions are not compiled again
+    private static final Cache<String, Predicate<Event>> predicates = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .build();
 
     private ExpressionCompiler()
             throws InstantiationException
@@ -36,22 +45,34 @@ public final class ExpressionCompiler
             throws UnsupportedOperationException
     {
         final Expression expression;
-        synchronized (sqlParser) {
-            expression = sqlParser.createExpression(expressionStr);
+        expression = SqlUtil.parseExpression(expressionStr);
+
+        try {
+            return predicates.get(expression.toString(), () -> compile(expression));
+        }
+        catch (ExecutionException | UncheckedExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), UnsupportedOperationException.class);
+            throw Throwables.propagate(e.getCause());
         }
+    }
+
+    private static Predicate<Event> compile(Expression expression)
+    {
         final String javaExp = new JavaSourceAstVisitor().process(expression, false);
-        String className = "org.rakam.automation.compiled.Predicate1";
+        // the compiler caches the classes by name, each expression needs a separate class
+        String simpleName = "Predicate" + classId.incrementAndGet();
+        String className = "org.rakam.automation.compiled." + simpleName;
         String javaCode = String.format("package org.rakam.automation.compiled;\n" +
                 "import org.rakam.collection.Event;\n" +
                 "import org.apache.avro.generic.GenericRecord;\n" +
                 "import java.lang.Comparable;\n" +
                 "import java.util.function.Predicate;\n" +
-                "public class Predicate1 implements Predicate<Event> {\n" +
+                "public class %s implements Predicate<Event> {\n" +
                 "    public boolean test(Event event) {\n" +
                 "        GenericRecord props = event.properties();\n" +
                 "        return %s;\n" +
                 "    }\n" +
-                "}\n", javaExp);
+                "}\n", simpleName, javaExp);
 
         try {
             Class aClass = CompilerUtils.CACHED_COMPILER.loadFromJava(className, javaCode);
@@ -3,6 +3,7 @@ package org.rakam.automation;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
 import com.google.inject.name.Named;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.util.JsonHelper;
@@ -12,8 +13,11 @@ import org.skife.jdbi.v2.Handle;
 import javax.inject.Inject;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
@@ -21,7 +25,7 @@ import java.util.concurrent.TimeUnit;
 public class UserAutomationService {
 
     private final DBI dbi;
-    private final LoadingCache<String, List<AutomationRule>> rules;
+    private final LoadingCache<String, ProjectRules> rules;
     private final Set<AutomationAction> automationActions;
 
     @Inject
@@ -29,11 +33,11 @@ public class UserAutomationService {
         dbi = new DBI(dataSource);
         this.automationActions = automationActions;
 
-        rules = CacheBuilder.newBuilder().refreshAfterWrite(1, TimeUnit.MINUTES).build(new CacheLoader<String, List<AutomationRule>>() {
+        rules = CacheBuilder.newBuilder().refreshAfterWrite(1, TimeUnit.MINUTES).build(new CacheLoader<String, ProjectRules>() {
             @Override
-            public List<AutomationRule> load(String project) throws Exception {
+            public ProjectRules load(String project) throws Exception {
                 try(Handle handle = dbi.open()) {
-                    return handle.createQuery("SELECT id, is_active, event_filters, actions, custom_data FROM automation_rules WHERE project = :project")
+                    return new ProjectRules(handle.createQuery("SELECT id, is_active, event_filters, actions, custom_data FROM automation_rules WHERE project = :project")
                             .bind("project", project)
                             .map((i, resultSet, statementContext) -> {
                                 List<AutomationRule.SerializableAction> actions = Arrays.asList(JsonHelper.read(resultSet.getString(4), AutomationRule.SerializableAction[].class));
@@ -49,7 +53,7 @@ public class UserAutomationService {
                                         actions,
                                         resultSet.getString(5));
                             })
-                            .list();
+                            .list());
                 }
             }
         });
@@ -88,7 +92,7 @@ public class UserAutomationService {
                     .bind("project", project)
                     .bind("id", id).execute();
         }
-        Optional<AutomationRule> any = rules.getUnchecked(project).stream().filter(r -> r.id == id).findAny();
+        Optional<AutomationRule> any = rules.getUnchecked(project).rules.stream().filter(r -> r.id == id).findAny();
         if(any.isPresent()) {
             any.get().setActive(false);
         } else {
@@ -102,7 +106,7 @@ public class UserAutomationService {
                     .bind("project", project)
                     .bind("id", id).execute();
         }
-        Optional<AutomationRule> any = rules.getUnchecked(project).stream().filter(r -> r.id == id).findAny();
+        Optional<AutomationRule> any = rules.getUnchecked(project).rules.stream().filter(r -> r.id == id).findAny();
         if(any.isPresent()) {
             any.get().setActive(true);
         } else {
@@ -141,6 +145,29 @@ public class UserAutomationService {
 
 
     public List<AutomationRule> list(String project) {
-        return rules.getUnchecked(project);
+        return rules.getUnchecked(project).rules;
+    }
+
+    /**
+     * Returns the rules that have a scenario step for the collection, the other rules can't be affected by the events of the collection.
+     */
+    public List<AutomationRule> list(String project, String collection) {
+        return rules.getUnchecked(project).byCollection.getOrDefault(collection, ImmutableList.of());
+    }
+
+    private static class ProjectRules {
+        private final List<AutomationRule> rules;
+        private final Map<String, List<AutomationRule>> byCollection;
+
+        private ProjectRules(List<AutomationRule> rules) {
+            this.rules = rules;
+
+            Map<String, List<AutomationRule>> index = new HashMap<>();
+            for (AutomationRule rule : rules) {
+                rule.scenarios.stream().map(step -> step.collection).distinct()
+                        .forEach(collection -> index.computeIfAbsent(collection, k -> new ArrayList<>()).add(rule));
+            }
+            this.byCollection = index;
+        }
     }
 }
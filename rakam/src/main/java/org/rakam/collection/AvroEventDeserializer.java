@@ -26,6 +26,11 @@ public class AvroEventDeserializer {
     }
 
     public EventList deserialize(String project, String collection, SliceInput slice) throws IOException {
+        EventChunkReader reader = createChunkReader(project, collection, slice);
+        return new EventList(reader.api(), project, reader.read(Integer.MAX_VALUE));
+    }
+
+    public EventChunkReader createChunkReader(String project, String collection, SliceInput slice) throws IOException {
         String json = slice.readSlice(slice.readInt()).toStringUtf8();
         Schema schema = new Schema.Parser().parse(json);
         int records = slice.readInt();
@@ -37,12 +42,35 @@ public class AvroEventDeserializer {
 
         GenericDatumReader<GenericRecord> reader = new GenericDatumReader(schema, avroSchema);
 
-        List<Event> list = new ArrayList<>(records);
-        for (int i = 0; i < records; i++) {
-            GenericRecord record = reader.read(null, binaryDecoder);
-            list.add(new Event(project, collection, null, fields, record));
-        }
+        return new EventChunkReader() {
+            private int readRecords;
+
+            @Override
+            public Event.EventContext api() {
+                return Event.EventContext.empty();
+            }
+
+            @Override
+            public String project() {
+                return project;
+            }
+
+            @Override
+            public List<Event> read(int maxEvents) throws IOException {
+                int count = Math.min(maxEvents, records - readRecords);
+                List<Event> list = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    GenericRecord record = reader.read(null, binaryDecoder);
+                    list.add(new Event(project, collection, null, fields, record));
+                }
+                readRecords += count;
+                return list;
+            }
 
-        return new EventList(Event.EventContext.empty(), project, list);
+            @Override
+            public void close() throws IOException {
+                slice.close();
+            }
+        };
     }
 }
@@ -85,9 +85,20 @@ public class CsvEventDeserializer
 
         boolean useheader = Boolean.FALSE != ctxt.getAttribute("useHeader");
 
+        EventChunkReader reader = createChunkReader((CsvParser) jp, project, collection, apiKey, useheader);
+        return new EventList(reader.api(), project, reader.read(Integer.MAX_VALUE));
+    }
+
+    public EventChunkReader createChunkReader(CsvParser jp, String project, String collection, String apiKey, boolean useHeader)
+            throws IOException
+    {
+        if (jp.getCurrentToken() == null) {
+            jp.nextToken();
+        }
+
         Map.Entry<List<SchemaField>, int[]> header;
-        if (useheader) {
-            header = readHeader((CsvParser) jp, project, collection);
+        if (useHeader) {
+            header = readHeader(jp, project, collection);
         }
         else {
             List<SchemaField> vall = metastore.getCollection(project, collection);
@@ -100,36 +111,79 @@ public class CsvEventDeserializer
                 .mapToObj(i -> header.getKey().get(i).getType()).collect(Collectors.toList());
 
         Schema schema = convertAvroSchema(fields);
-        GenericData.Record record = new GenericData.Record(schema);
-        int idx = 0;
-
-        List<Event> list = new ArrayList<>();
-        while (true) {
-            JsonToken t = jp.nextToken();
+        Event.EventContext api = Event.EventContext.apiKey(apiKey);
+        // the parser is already at the start of the first row if there is no header
+        boolean firstRowStarted = !useHeader && jp.getCurrentToken() == JsonToken.START_ARRAY;
+
+        return new EventChunkReader()
+        {
+            private GenericData.Record record;
+            private int idx;
+            private boolean pendingRow = firstRowStarted;
+
+            @Override
+            public Event.EventContext api()
+            {
+                return api;
+            }
 
-            if (t == null) {
-                break;
+            @Override
+            public String project()
+            {
+                return project;
             }
 
-            switch (t.id()) {
-                case JsonTokenId.ID_START_ARRAY:
+            @Override
+            public List<Event> read(int maxEvents)
+                    throws IOException
+            {
+                List<Event> list = new ArrayList<>();
+                if (pendingRow) {
+                    pendingRow = false;
                     idx = 0;
                     record = new GenericData.Record(schema);
                     list.add(new Event(project, collection, null, fields, record));
-                    break;
-                case JsonTokenId.ID_END_ARRAY:
-                    continue;
-                default:
-                    if (idx >= indexes.length) {
-                        throw new RakamException(String.format("Table has %d columns but csv file has more than %d columns", indexes.length, indexes.length), HttpResponseStatus.BAD_REQUEST);
+                }
+
+                while (true) {
+                    JsonToken t = jp.nextToken();
+
+                    if (t == null) {
+                        break;
+                    }
+
+                    switch (t.id()) {
+                        case JsonTokenId.ID_START_ARRAY:
+                            idx = 0;
+                            record = new GenericData.Record(schema);
+                            list.add(new Event(project, collection, null, fields, record));
+                            break;
+                        case JsonTokenId.ID_END_ARRAY:
+                            // the chunk ends after a complete row
+                            if (list.size() >= maxEvents) {
+                                return list;
+                            }
+                            continue;
+                        default:
+                            if (idx >= indexes.length) {
+                                throw new RakamException(String.format("Table has %d columns but csv file has more than %d columns", indexes.length, indexes.length), HttpResponseStatus.BAD_REQUEST);
+                            }
+                            record.put(indexes[idx], getValue(types.get(idx), jp));
+                            idx += 1;
+                            break;
                     }
-                    record.put(indexes[idx], getValue(types.get(idx), jp));
-                    idx += 1;
-                    break;
+                }
+
+                return list;
             }
-        }
 
-        return new EventList(Event.EventContext.apiKey(apiKey), project, list);
+            @Override
+            public void close()
+                    throws IOException
+            {
+                jp.close();
+            }
+        };
     }
 
     public Map.Entry<List<SchemaField>, int[]> readHeader(CsvParser jp, String project, String collection)
@@ -0,0 +1,23 @@
+package org.rakam.collection;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Reads the events of a bulk request incrementally so that the whole request doesn't need to be deserialized
+ * before the events are stored.
+ */
+public interface EventChunkReader
+        extends Closeable
+{
+    Event.EventContext api();
+
+    String project();
+
+    /**
+     * Reads at most {@code maxEvents} events, returns an empty list if there are no more events.
+     */
+    List<Event> read(int maxEvents)
+            throws IOException;
+}
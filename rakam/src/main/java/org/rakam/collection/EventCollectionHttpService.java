@@ -7,9 +7,9 @@ import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.Version;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.cfg.ContextAttributes;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvParser;
 import com.fasterxml.jackson.dataformat.csv.CsvSchema;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -113,6 +113,8 @@ public class EventCollectionHttpService
     private final byte[] OK_MESSAGE = "1".getBytes(UTF_8);
     private final byte[] gif1x1 = Base64.getDecoder().decode("R0lGODlhAQABAIAAAAAAAP///yH5BAEAAAAALAAAAAABAAEAAAIBRAA7");
     private static final int[] FAILED_SINGLE_EVENT = new int[] {0};
+    // the number of the events that the bulk requests parse and store at once
+    private static final int BULK_CHUNK_SIZE = 5000;
 
     private final ObjectMapper jsonMapper;
     private final ObjectMapper csvMapper;
@@ -121,6 +123,8 @@ public class EventCollectionHttpService
     private final ApiKeyService apiKeyService;
     private final AvroEventDeserializer avroEventDeserializer;
     private final JsonEventDeserializer jsonEventDeserializer;
+    private final EventListDeserializer eventListDeserializer;
+    private final CsvEventDeserializer csvEventDeserializer;
 
     @Inject
     public EventCollectionHttpService(
@@ -153,6 +157,8 @@ public class EventCollectionHttpService
 
         this.avroEventDeserializer = avroEventDeserializer;
         this.jsonEventDeserializer = deserializer;
+        this.eventListDeserializer = eventListDeserializer;
+        this.csvEventDeserializer = csvEventDeserializer;
         csvMapper = new CsvMapper();
         csvMapper.registerModule(new SimpleModule().addDeserializer(EventList.class, csvEventDeserializer));
     }
@@ -396,48 +402,25 @@ public class EventCollectionHttpService
 
     public void bulkEvents(RakamHttpRequest request, boolean mapEvents)
     {
-        storeEventsSync(request,
+        storeEventChunks(request,
                 buff -> {
                     String contentType = request.headers().get(CONTENT_TYPE);
                     if (contentType == null || contentType.isEmpty() || "application/json".equals(contentType)) {
-                        return jsonMapper.readerFor(EventList.class).readValue(buff);
+                        return eventListDeserializer.createChunkReader(jsonMapper.getFactory().createParser(buff), null);
                     }
                     else if ("application/json".equals(contentType)) {
                         String apiKey = getParam(request.params(), MASTER_KEY.getKey());
                         String project = apiKeyService.getProjectOfApiKey(apiKey, MASTER_KEY);
                         String collection = getParam(request.params(), "collection");
 
-                        JsonParser parser = jsonMapper.getFactory().createParser(buff);
-                        ArrayList<Event> events = new ArrayList<>();
-
-                        JsonToken t = parser.nextToken();
-                        if (t == JsonToken.START_OBJECT) {
-                            while (t == JsonToken.START_OBJECT) {
-                                Map.Entry<List<SchemaField>, GenericData.Record> entry = jsonEventDeserializer.parseProperties(project, collection, parser, true);
-                                events.add(new Event(project, collection, null, entry.getKey(), entry.getValue()));
-                                t = parser.nextToken();
-                            }
-                        }
-                        else if (t == JsonToken.START_ARRAY) {
-                            t = parser.nextToken();
-
-                            for (; t == START_OBJECT; t = parser.nextToken()) {
-                                Map.Entry<List<SchemaField>, GenericData.Record> entry = jsonEventDeserializer.parseProperties(project, collection, parser, true);
-                                events.add(new Event(project, collection, null, entry.getKey(), entry.getValue()));
-                            }
-                        }
-                        else {
-                            throw new RakamException("The body must be an array of events or line-separated events", BAD_REQUEST);
-                        }
-
-                        return new EventList(EventContext.apiKey(apiKey), project, events);
+                        return createJsonChunkReader(jsonMapper.getFactory().createParser(buff), apiKey, project, collection);
                     }
                     else if ("application/avro".equals(contentType)) {
                         String apiKey = getParam(request.params(), MASTER_KEY.getKey());
                         String project = apiKeyService.getProjectOfApiKey(apiKey, MASTER_KEY);
                         String collection = getParam(request.params(), "collection");
 
-                        return avroEventDeserializer.deserialize(project, collection, new InputStreamSliceInput(buff));
+                        return avroEventDeserializer.createChunkReader(project, collection, new InputStreamSliceInput(buff));
                     }
                     else if ("text/csv".equals(contentType)) {
                         String apiKey = getParam(request.params(), MASTER_KEY.getKey());
@@ -459,38 +442,61 @@ public class EventCollectionHttpService
                             // do not set CsvSchema setUseHeader, it has extra overhead and the deserializer cannot handle that.
                         }
 
-                        return csvMapper.readerFor(EventList.class)
-                                .with(ContextAttributes.getEmpty()
-                                        .withSharedAttribute("project", project)
-                                        .withSharedAttribute("useHeader", useHeader)
-                                        .withSharedAttribute("collection", collection)
-                                        .withSharedAttribute("apiKey", apiKey))
-                                .with(builder.build()).readValue(buff);
+                        CsvParser parser = (CsvParser) csvMapper.getFactory().createParser(buff);
+                        parser.setSchema(builder.build());
+                        return csvEventDeserializer.createChunkReader(parser, project, collection, apiKey, useHeader);
                     }
 
                     throw new RakamException("Unsupported content type: " + contentType, BAD_REQUEST);
                 },
-                (events, responseHeaders) -> {
-                    if (events.size() > 0) {
-                        try {
-                            eventStore.storeBulk(events);
-                        }
-                        catch (Throwable e) {
-                            List<Event> sample = events.size() > 5 ? events.subList(0, 2) : events;
-                            LOGGER.error(new RuntimeException("Error executing EventStore bulk method.",
-                                            new RuntimeException(sample.toString().substring(0, 200), e)),
-                                    "Error while storing event.");
-
-                            return new HeaderDefaultFullHttpResponse(HTTP_1_1, INTERNAL_SERVER_ERROR,
-                                    Unpooled.wrappedBuffer(encodeAsBytes(errorMessage("An error occurred: " + e.getMessage(), INTERNAL_SERVER_ERROR))),
-                                    responseHeaders);
-                        }
-                    }
+                encodeAsBytes(SuccessMessage.success()), mapEvents);
+    }
+
+    private EventChunkReader createJsonChunkReader(JsonParser parser, String apiKey, String project, String collection)
+            throws IOException
+    {
+        JsonToken first = parser.nextToken();
+        if (first != JsonToken.START_OBJECT && first != JsonToken.START_ARRAY) {
+            throw new RakamException("The body must be an array of events or line-separated events", BAD_REQUEST);
+        }
+        EventContext api = EventContext.apiKey(apiKey);
 
-                    return new HeaderDefaultFullHttpResponse(HTTP_1_1, OK,
-                            Unpooled.wrappedBuffer(encodeAsBytes(SuccessMessage.success())),
-                            responseHeaders);
-                }, mapEvents);
+        return new EventChunkReader()
+        {
+            // the line-separated events start with an object, the arrays start with the first element
+            private JsonToken t = first == JsonToken.START_ARRAY ? parser.nextToken() : first;
+
+            @Override
+            public EventContext api()
+            {
+                return api;
+            }
+
+            @Override
+            public String project()
+            {
+                return project;
+            }
+
+            @Override
+            public List<Event> read(int maxEvents)
+                    throws IOException
+            {
+                List<Event> events = new ArrayList<>();
+                for (; t == START_OBJECT && events.size() < maxEvents; t = parser.nextToken()) {
+                    Map.Entry<List<SchemaField>, GenericData.Record> entry = jsonEventDeserializer.parseProperties(project, collection, parser, true);
+                    events.add(new Event(project, collection, null, entry.getKey(), entry.getValue()));
+                }
+                return events;
+            }
+
+            @Override
+            public void close()
+                    throws IOException
+            {
+                parser.close();
+            }
+        };
     }
 
     @POST
@@ -512,7 +518,7 @@ public class EventCollectionHttpService
 
     public void bulkEventsRemote(RakamHttpRequest request, boolean mapEvents)
     {
-        storeEventsSync(request,
+        storeEventChunks(request,
                 buff -> {
                     BulkEventRemote query = JsonHelper.read(buff, BulkEventRemote.class);
                     String masterKey = Optional.ofNullable(request.params().get("master_key"))
@@ -531,7 +537,7 @@ public class EventCollectionHttpService
 
                     URL url = query.urls.get(0);
                     if (query.type == JSON) {
-                        return jsonMapper.readValue(url, EventList.class);
+                        return eventListDeserializer.createChunkReader(jsonMapper.getFactory().createParser(url), null);
                     }
                     else if (query.type == CSV) {
                         CsvSchema.Builder builder = CsvSchema.builder();
@@ -549,13 +555,9 @@ public class EventCollectionHttpService
                             // do not set CsvSchema setUseHeader, it has extra overhead and the deserializer cannot handle that.
                         }
 
-                        return csvMapper.readerFor(EventList.class)
-                                .with(ContextAttributes.getEmpty()
-                                        .withSharedAttribute("project", project)
-                                        .withSharedAttribute("useHeader", useHeader)
-                                        .withSharedAttribute("collection", query.collection)
-                                        .withSharedAttribute("apiKey", masterKey))
-                                .with(builder.build()).readValue(url);
+                        CsvParser parser = (CsvParser) csvMapper.getFactory().createParser(url);
+                        parser.setSchema(builder.build());
+                        return csvEventDeserializer.createChunkReader(parser, project, query.collection, masterKey, useHeader);
                     }
                     else if (query.type == AVRO) {
                         URLConnection conn = url.openConnection();
@@ -563,30 +565,154 @@ public class EventCollectionHttpService
                         conn.setReadTimeout(5000);
                         conn.connect();
 
-                        return avroEventDeserializer.deserialize(project, query.collection,
+                        return avroEventDeserializer.createChunkReader(project, query.collection,
                                 new InputStreamSliceInput(conn.getInputStream()));
                     }
 
                     throw new RakamException("Unsupported or missing type.", BAD_REQUEST);
                 },
-                (events, responseHeaders) -> {
-                    try {
-                        eventStore.storeBulk(events);
-                    }
-                    catch (Exception e) {
-                        List<Event> sample = events.size() > 5 ? events.subList(0, 5) : events;
-                        LOGGER.error(new RuntimeException("Error executing EventStore bulkRemote method.",
-                                        new RuntimeException(sample.toString().substring(0, 200), e)),
-                                "Error while storing event.");
-                        return new HeaderDefaultFullHttpResponse(HTTP_1_1, INTERNAL_SERVER_ERROR,
-                                Unpooled.wrappedBuffer(encodeAsBytes(errorMessage("An error occurred", INTERNAL_SERVER_ERROR))),
-                                responseHeaders);
+                OK_MESSAGE, mapEvents);
+    }
+
+    /**
+     * Parses the events of the bulk requests incrementally and stores them in chunks. The next chunk is read after
+     * the previous chunk is stored so the memory usage doesn't depend on the number of the events. If a chunk can't
+     * be stored, the remaining chunks are still processed and the failed chunks are reported in the response.
+     */
+    private void storeEventChunks(RakamHttpRequest request, ChunkReaderFunction readerFunction, byte[] successMessage, boolean mapEvents)
+    {
+        request.bodyHandler(buff -> {
+            DefaultHttpHeaders responseHeaders = new DefaultHttpHeaders();
+            responseHeaders.set(ACCESS_CONTROL_ALLOW_CREDENTIALS, "true");
+            if (request.headers().contains(ORIGIN)) {
+                responseHeaders.set(ACCESS_CONTROL_ALLOW_ORIGIN, request.headers().get(ORIGIN));
+            }
+
+            BulkResult result;
+            List<Cookie> cookies = new ArrayList<>();
+            try (EventChunkReader reader = readerFunction.apply(buff)) {
+                result = storeChunks(request, reader, mapEvents, responseHeaders, cookies);
+            }
+            catch (Throwable e) {
+                handleCollectionError(request, e);
+                return;
+            }
+
+            String headerList = getHeaderList(responseHeaders.iterator());
+            if (headerList != null) {
+                responseHeaders.set(ACCESS_CONTROL_EXPOSE_HEADERS, headerList);
+            }
+
+            responseHeaders.add(CONTENT_TYPE, "application/json");
+            if (!cookies.isEmpty()) {
+                responseHeaders.add(SET_COOKIE, STRICT.encode(cookies));
+            }
+
+            FullHttpResponse response;
+            if (result.failedChunks.isEmpty()) {
+                response = new HeaderDefaultFullHttpResponse(HTTP_1_1, OK,
+                        Unpooled.wrappedBuffer(successMessage), responseHeaders);
+            }
+            else if (result.storedEvents == 0) {
+                response = new HeaderDefaultFullHttpResponse(HTTP_1_1, INTERNAL_SERVER_ERROR,
+                        Unpooled.wrappedBuffer(encodeAsBytes(errorMessage("An error occurred: " + result.failedChunks.get(0).message, INTERNAL_SERVER_ERROR))),
+                        responseHeaders);
+            }
+            else {
+                response = new HeaderDefaultFullHttpResponse(HTTP_1_1, CONFLICT,
+                        Unpooled.wrappedBuffer(encodeAsBytes(result)), responseHeaders);
+            }
+
+            request.response(response).end();
+        });
+    }
+
+    private BulkResult storeChunks(RakamHttpRequest request, EventChunkReader reader, boolean mapEvents, HttpHeaders responseHeaders, List<Cookie> cookies)
+            throws IOException
+    {
+        InetAddress remoteAddress = getRemoteAddress(request.getRemoteAddress());
+        HttpRequestParams requestParams = new HttpRequestParams(request);
+
+        List<FailedChunk> failedChunks = new ArrayList<>();
+        long storedEvents = 0;
+        long offset = 0;
+        int chunk = 0;
+
+        while (true) {
+            List<Event> events;
+            try {
+                events = reader.read(BULK_CHUNK_SIZE);
+            }
+            catch (Exception e) {
+                // the request is invalid, nothing is stored yet
+                if (chunk == 0) {
+                    throw e;
+                }
+                failedChunks.add(new FailedChunk(chunk, offset, 0, e.getMessage()));
+                break;
+            }
+
+            if (events.isEmpty()) {
+                break;
+            }
+
+            try {
+                if (mapEvents) {
+                    EventList eventList = new EventList(reader.api(), reader.project(), events);
+                    List<Cookie> mapperCookies = mapEvent(eventMappers, (m) -> m.mapAsync(eventList, requestParams,
+                            remoteAddress, responseHeaders)).join();
+                    if (mapperCookies != null) {
+                        cookies.addAll(mapperCookies);
                     }
+                }
+
+                eventStore.storeBulk(events);
+                storedEvents += events.size();
+            }
+            catch (Throwable e) {
+                List<Event> sample = events.size() > 5 ? events.subList(0, 2) : events;
+                String sampleString = sample.toString();
+                LOGGER.error(new RuntimeException("Error executing EventStore bulk method.",
+                                new RuntimeException(sampleString.substring(0, Math.min(200, sampleString.length())), e)),
+                        "Error while storing event.");
+                failedChunks.add(new FailedChunk(chunk, offset, events.size(), e.getMessage()));
+            }
+
+            offset += events.size();
+            chunk++;
+            LOGGER.debug("Processed chunk %d of the bulk request of project %s, %d events are stored so far",
+                    chunk, reader.project(), storedEvents);
+        }
+
+        return new BulkResult(storedEvents, chunk, failedChunks);
+    }
 
-                    return new HeaderDefaultFullHttpResponse(HTTP_1_1, OK,
-                            Unpooled.wrappedBuffer(OK_MESSAGE),
-                            responseHeaders);
-                }, mapEvents);
+    private static void handleCollectionError(RakamHttpRequest request, Throwable e)
+    {
+        if (e instanceof JsonMappingException) {
+            returnError(request, "JSON couldn't parsed: " + ((JsonMappingException) e).getOriginalMessage(), BAD_REQUEST);
+        }
+        else if (e instanceof JsonParseException) {
+            returnError(request, "JSON couldn't parsed: " + ((JsonParseException) e).getOriginalMessage(), BAD_REQUEST);
+        }
+        else if (e instanceof IOException) {
+            returnError(request, "JSON couldn't parsed: " + e.getMessage(), BAD_REQUEST);
+        }
+        else if (e instanceof RakamException) {
+            LogUtil.logException(request, (RakamException) e);
+            returnError(request, e.getMessage(), ((RakamException) e).getStatusCode());
+        }
+        else if (e instanceof HttpRequestException) {
+            returnError(request, e.getMessage(), ((HttpRequestException) e).getStatusCode());
+        }
+        else if (e instanceof IllegalArgumentException) {
+            LogUtil.logException(request, (IllegalArgumentException) e);
+            returnError(request, e.getMessage(), BAD_REQUEST);
+        }
+        else {
+            LOGGER.error(e, "Error while collecting event");
+            returnError(request, "An error occurred", INTERNAL_SERVER_ERROR);
+        }
     }
 
     private String getParam(Map<String, List<String>> params, String param)
@@ -628,6 +754,10 @@ public class EventCollectionHttpService
                                 errorIndexes = eventStore.storeBatchAsync(events);
                             }
                         }
+                        catch (RakamException e) {
+                            // the event store rejects the events when it's overloaded, let the client know the reason
+                            throw e;
+                        }
                         catch (Exception e) {
                             List<Event> sample = events.size() > 5 ? events.subList(0, 5) : events;
                             LOGGER.error(new RuntimeException(sample.toString(), e), "Error executing EventStore " + (single ? "store" : "batch") + " method.");
@@ -654,12 +784,6 @@ public class EventCollectionHttpService
         );
     }
 
-    public void storeEventsSync(RakamHttpRequest request, ThrowableFunction mapper, BiFunction<List<Event>, HttpHeaders, FullHttpResponse> responseFunction, boolean mapEvents)
-    {
-        storeEvents(request, mapper,
-                (events, entries) -> completedFuture(responseFunction.apply(events, entries)), mapEvents);
-    }
-
     public void storeEvents(RakamHttpRequest request, ThrowableFunction mapper, BiFunction<List<Event>, HttpHeaders, CompletableFuture<FullHttpResponse>> responseFunction, boolean mapEvents)
     {
         request.bodyHandler(buff -> {
@@ -686,32 +810,8 @@ public class EventCollectionHttpService
 
                 response = responseFunction.apply(events.events, responseHeaders);
             }
-            catch (JsonMappingException | JsonParseException e) {
-                returnError(request, "JSON couldn't parsed: " + e.getOriginalMessage(), BAD_REQUEST);
-                return;
-            }
-            catch (IOException e) {
-                returnError(request, "JSON couldn't parsed: " + e.getMessage(), BAD_REQUEST);
-                return;
-            }
-            catch (RakamException e) {
-                LogUtil.logException(request, e);
-                returnError(request, e.getMessage(), e.getStatusCode());
-                return;
-            }
-            catch (HttpRequestException e) {
-                returnError(request, e.getMessage(), e.getStatusCode());
-                return;
-            }
-            catch (IllegalArgumentException e) {
-                LogUtil.logException(request, e);
-                returnError(request, e.getMessage(), BAD_REQUEST);
-                return;
-            }
             catch (Throwable e) {
-                LOGGER.error(e, "Error while collecting event");
-
-                returnError(request, "An error occurred", INTERNAL_SERVER_ERROR);
+                handleCollectionError(request, e);
                 return;
             }
 
@@ -769,6 +869,43 @@ public class EventCollectionHttpService
                 throws IOException;
     }
 
+    interface ChunkReaderFunction
+    {
+        EventChunkReader apply(InputStream buffer)
+                throws IOException;
+    }
+
+    public static class BulkResult
+    {
+        public final long storedEvents;
+        public final int chunks;
+        public final List<FailedChunk> failedChunks;
+
+        public BulkResult(long storedEvents, int chunks, List<FailedChunk> failedChunks)
+        {
+            this.storedEvents = storedEvents;
+            this.chunks = chunks;
+            this.failedChunks = failedChunks;
+        }
+    }
+
+    public static class FailedChunk
+    {
+        public final int chunk;
+        // the index of the first event of the chunk in the request
+        public final long offset;
+        public final int events;
+        public final String message;
+
+        public FailedChunk(int chunk, long offset, int events, String message)
+        {
+            this.chunk = chunk;
+            this.offset = offset;
+            this.events = events;
+            this.message = message;
+        }
+    }
+
     public static class HttpRequestParams
             implements EventMapper.RequestParams
     {
@@ -4,6 +4,7 @@ import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.util.TokenBuffer;
 import com.google.common.primitives.Ints;
 import org.rakam.analysis.ApiKeyService;
@@ -13,7 +14,6 @@ import javax.inject.Inject;
 import javax.xml.bind.DatatypeConverter;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -47,8 +47,22 @@ public class EventListDeserializer
     @Override
     public EventList deserialize(JsonParser jp, DeserializationContext deserializationContext)
             throws IOException
+    {
+        EventChunkReader reader = createChunkReader(jp, deserializationContext.getAttribute("apiKey"));
+        return new EventList(reader.api(), reader.project(), reader.read(Integer.MAX_VALUE));
+    }
+
+    /**
+     * Creates a reader that deserializes the events incrementally. The events are streamed if the 'api' property
+     * comes before the 'events' property, otherwise the events are buffered until the 'api' property is read.
+     */
+    public EventChunkReader createChunkReader(JsonParser jp, Object apiKey)
+            throws IOException
     {
         JsonToken t = jp.getCurrentToken();
+        if (t == null) {
+            t = jp.nextToken();
+        }
 
         if (t != START_OBJECT) {
             throw new IllegalArgumentException("Body must be an object");
@@ -59,7 +73,7 @@ public class EventListDeserializer
         t = jp.nextToken();
 
         if (t != FIELD_NAME) {
-            deserializationContext.reportWrongTokenException(jp, JsonToken.FIELD_NAME, null);
+            throw wrongToken(jp, FIELD_NAME);
         }
         String fieldName = jp.getCurrentName();
         jp.nextToken();
@@ -69,7 +83,6 @@ public class EventListDeserializer
             context = jp.readValueAs(Event.EventContext.class);
         }
         else if (fieldName.equals("events")) {
-            InputStream stream = (InputStream) deserializationContext.getAttribute("stream");
             eventsBuffer = jp.readValueAs(TokenBuffer.class);
         }
         else {
@@ -78,7 +91,7 @@ public class EventListDeserializer
 
         t = jp.nextToken();
         if (t != FIELD_NAME) {
-            deserializationContext.reportWrongTokenException(jp, JsonToken.FIELD_NAME, null);
+            throw wrongToken(jp, FIELD_NAME);
         }
         fieldName = jp.getCurrentName();
         jp.nextToken();
@@ -95,36 +108,29 @@ public class EventListDeserializer
 
             JsonParser eventJp = eventsBuffer.asParser(jp);
             eventJp.nextToken();
-            return readEvents(eventJp, context, deserializationContext);
+            return readEvents(eventJp, context, apiKey);
         }
         else if (fieldName.equals("events")) {
             if (eventsBuffer != null) {
                 throw new RakamException("multiple 'events' property", BAD_REQUEST);
             }
 
-            return readEvents(jp, context, deserializationContext);
+            return readEvents(jp, context, apiKey);
         }
         else {
             throw new RakamException(format("Invalid property '%s'", fieldName), BAD_REQUEST);
         }
     }
 
-    private EventList readEvents(JsonParser jp, Event.EventContext context, DeserializationContext deserializationContext)
+    private EventChunkReader readEvents(JsonParser jp, Event.EventContext context, Object apiKey)
             throws IOException
     {
-        Object inputSource = jp.getInputSource();
-
         long start = jp.getTokenLocation().getByteOffset();
 
-        List<Event> list = new ArrayList<>();
-
         if (jp.getCurrentToken() != JsonToken.START_ARRAY) {
             throw new RakamException("events field must be array", BAD_REQUEST);
         }
 
-        JsonToken t = jp.nextToken();
-
-        Object apiKey = deserializationContext.getAttribute("apiKey");
         String project = null;
         boolean masterKey = false;
 
@@ -155,20 +161,78 @@ public class EventListDeserializer
             }
         }
 
-        for (; t == START_OBJECT; t = jp.nextToken()) {
-            list.add(eventDeserializer.deserializeWithProject(jp, project, context, masterKey));
+        return new JsonEventChunkReader(jp, context, project, masterKey, start);
+    }
+
+    private class JsonEventChunkReader
+            implements EventChunkReader
+    {
+        private final JsonParser jp;
+        private final Event.EventContext context;
+        private final String project;
+        private final boolean masterKey;
+        private final long start;
+        private JsonToken t;
+
+        private JsonEventChunkReader(JsonParser jp, Event.EventContext context, String project, boolean masterKey, long start)
+                throws IOException
+        {
+            this.jp = jp;
+            this.context = context;
+            this.project = project;
+            this.masterKey = masterKey;
+            this.start = start;
+            this.t = jp.nextToken();
+        }
+
+        @Override
+        public Event.EventContext api()
+        {
+            return context;
+        }
+
+        @Override
+        public String project()
+        {
+            return project;
         }
 
-        long end = jp.getTokenLocation().getByteOffset();
+        @Override
+        public List<Event> read(int maxEvents)
+                throws IOException
+        {
+            List<Event> list = new ArrayList<>();
+            if (t != START_OBJECT) {
+                return list;
+            }
+
+            for (; t == START_OBJECT && list.size() < maxEvents; t = jp.nextToken()) {
+                list.add(eventDeserializer.deserializeWithProject(jp, project, context, masterKey));
+            }
 
-        if (context.checksum != null) {
-            Object sourceRef = jp.getTokenLocation().getSourceRef();
-            if (sourceRef instanceof byte[]) {
-                validateChecksum((byte[]) sourceRef, start, end, context);
+            // the checksum can only be validated if the whole body is in memory
+            if (t != START_OBJECT && context.checksum != null) {
+                long end = jp.getTokenLocation().getByteOffset();
+                Object sourceRef = jp.getTokenLocation().getSourceRef();
+                if (sourceRef instanceof byte[]) {
+                    validateChecksum((byte[]) sourceRef, start, end, context);
+                }
             }
+
+            return list;
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            jp.close();
         }
+    }
 
-        return new EventList(context, project, list);
+    private static JsonMappingException wrongToken(JsonParser jp, JsonToken expected)
+    {
+        return new JsonMappingException(jp, format("Unexpected token (%s), expected %s", jp.getCurrentToken(), expected));
     }
 
     private void validateChecksum(byte[] sourceRef, long start, long end, Event.EventContext context)
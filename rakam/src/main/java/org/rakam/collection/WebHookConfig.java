@@ -0,0 +1,51 @@
+package org.rakam.collection;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+public class WebHookConfig
+{
+    private int enginesPerWebhook = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    private int maxPendingCalls = 1000;
+    private Duration timeout = Duration.valueOf("3s");
+
+    @Config("webhook.engines-per-webhook")
+    @ConfigDescription("The number of script engines of a webhook, a webhook can't use more threads than its engines")
+    public WebHookConfig setEnginesPerWebhook(int enginesPerWebhook)
+    {
+        this.enginesPerWebhook = enginesPerWebhook;
+        return this;
+    }
+
+    public int getEnginesPerWebhook()
+    {
+        return enginesPerWebhook;
+    }
+
+    @Config("webhook.max-pending-calls")
+    @ConfigDescription("The number of calls that wait for an engine of a webhook before the calls are rejected")
+    public WebHookConfig setMaxPendingCalls(int maxPendingCalls)
+    {
+        this.maxPendingCalls = maxPendingCalls;
+        return this;
+    }
+
+    public int getMaxPendingCalls()
+    {
+        return maxPendingCalls;
+    }
+
+    @Config("webhook.timeout")
+    @ConfigDescription("The engine that runs a webhook call longer than this duration is replaced with a new one")
+    public WebHookConfig setTimeout(String timeout)
+    {
+        this.timeout = Duration.valueOf(timeout);
+        return this;
+    }
+
+    public Duration getTimeout()
+    {
+        return timeout;
+    }
+}
@@ -0,0 +1,201 @@
+package org.rakam.collection;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.rakam.util.RakamException;
+
+import javax.annotation.Nullable;
+import javax.script.Invocable;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+/**
+ * Script engines of a webhook. The engines are not safe for concurrent invocations, so each call borrows an
+ * engine exclusively. The engines are created lazily up to the pool size, when all of them are busy the calls
+ * wait in a bounded queue and run when an engine is released, so a slow webhook can't occupy more
+ * threads than its pool size. The calls that run longer than the timeout fail with {@link TimeoutException}
+ * and their engines are replaced since the scripts can't be interrupted.
+ * <p>
+ * The scripts run on the threads of the pool, so a hung script can't block the other webhooks or the timeouts
+ * that are scheduled on the shared scheduler. A hung engine keeps its thread until the script returns, the
+ * pool replaces at most pool size hung engines and then waits for them, so a webhook uses at most twice as
+ * many threads as its pool size. The idle threads are stopped after a minute.
+ */
+public class WebHookEnginePool
+{
+    private final Supplier<Invocable> engineFactory;
+    private final ScheduledExecutorService timeoutScheduler;
+    private final ThreadPoolExecutor executor;
+    private final int maxEngines;
+    private final int maxPendingCalls;
+    private final long timeoutMillis;
+
+    private final Deque<Invocable> idle = new ArrayDeque<>();
+    private final Deque<Call> pending = new ArrayDeque<>();
+    private int engines;
+    // the timed out engines that are replaced but still run the script
+    private int hungEngines;
+
+    public WebHookEnginePool(Invocable initialEngine, Supplier<Invocable> engineFactory, ScheduledExecutorService timeoutScheduler, int maxEngines, int maxPendingCalls, long timeoutMillis)
+    {
+        this.engineFactory = engineFactory;
+        this.timeoutScheduler = timeoutScheduler;
+        this.executor = new ThreadPoolExecutor(maxEngines * 2, maxEngines * 2, 1, MINUTES, new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("webhook-js-executor-%d").setDaemon(true).build());
+        this.executor.allowCoreThreadTimeOut(true);
+        this.maxEngines = maxEngines;
+        this.maxPendingCalls = maxPendingCalls;
+        this.timeoutMillis = timeoutMillis;
+        this.idle.add(initialEngine);
+        this.engines = 1;
+    }
+
+    public CompletableFuture<Object> invoke(String function, Object... args)
+    {
+        Call call = new Call(function, args);
+
+        Invocable engine;
+        synchronized (this) {
+            engine = idle.poll();
+            if (engine == null) {
+                if (engines < maxEngines) {
+                    engines++;
+                }
+                else if (pending.size() < maxPendingCalls) {
+                    pending.add(call);
+                    return call.future;
+                }
+                else {
+                    throw new RakamException("The webhook is busy, please try again later", SERVICE_UNAVAILABLE);
+                }
+            }
+        }
+
+        start(engine, call);
+        return call.future;
+    }
+
+    public synchronized int getEngineCount()
+    {
+        return engines;
+    }
+
+    public synchronized int getPendingCalls()
+    {
+        return pending.size();
+    }
+
+    public synchronized int getHungEngineCount()
+    {
+        return hungEngines;
+    }
+
+    public int getThreadCount()
+    {
+        return executor.getPoolSize();
+    }
+
+    // the engine is created if it's null, the caller must have already counted it in the engines
+    private void start(@Nullable Invocable engine, Call call)
+    {
+        executor.execute(() -> {
+            Invocable current = engine;
+            if (current == null) {
+                try {
+                    current = engineFactory.get();
+                }
+                catch (Throwable e) {
+                    synchronized (this) {
+                        engines--;
+                    }
+                    call.future.completeExceptionally(e);
+                    return;
+                }
+            }
+            run(current, call);
+        });
+    }
+
+    private void run(Invocable engine, Call call)
+    {
+        while (call != null) {
+            Call current = call;
+            ScheduledFuture<?> timeout = timeoutScheduler.schedule(() -> timeout(current), timeoutMillis, MILLISECONDS);
+            try {
+                current.future.complete(engine.invokeFunction(current.function, current.args));
+            }
+            catch (Throwable e) {
+                current.future.completeExceptionally(e);
+            }
+            timeout.cancel(false);
+
+            // keep the engine busy with the waiting calls instead of releasing it
+            synchronized (this) {
+                if (current.replaced) {
+                    // the engine is already replaced, see timeout(Call)
+                    hungEngines--;
+                    return;
+                }
+                call = pending.poll();
+                if (call == null) {
+                    idle.add(engine);
+                }
+            }
+        }
+    }
+
+    private void timeout(Call call)
+    {
+        Call next;
+        synchronized (this) {
+            if (call.future.isDone()) {
+                return;
+            }
+            if (hungEngines >= maxEngines) {
+                // the engine is kept and runs the waiting calls when the script returns
+                next = null;
+            }
+            else {
+                // the script may never return, the engine is discarded and a new one runs the waiting calls
+                call.replaced = true;
+                hungEngines++;
+                next = pending.poll();
+                if (next == null) {
+                    engines--;
+                }
+            }
+        }
+
+        call.future.completeExceptionally(new TimeoutException());
+        if (next != null) {
+            start(null, next);
+        }
+    }
+
+    private static class Call
+    {
+        private final String function;
+        private final Object[] args;
+        private final CompletableFuture<Object> future;
+        // guarded by the pool
+        private boolean replaced;
+
+        private Call(String function, Object[] args)
+        {
+            this.function = function;
+            this.args = args;
+            this.future = new CompletableFuture<>();
+        }
+    }
+}
@@ -12,7 +12,10 @@ import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import io.airlift.log.Logger;
@@ -69,7 +72,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
@@ -78,6 +88,7 @@ import static io.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
 import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
 import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
 import static io.netty.handler.codec.http.HttpResponseStatus.NO_CONTENT;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.rakam.analysis.ApiKeyService.AccessKeyType.WRITE_KEY;
 import static org.rakam.server.http.HttpServer.errorMessage;
 import static org.rakam.server.http.HttpServer.returnError;
@@ -93,14 +104,22 @@ public class WebHookHttpService
     private final EventExecutorGroup executor = new DefaultEventExecutorGroup(
             Runtime.getRuntime().availableProcessors(),
             new ThreadFactoryBuilder()
-                    .setNameFormat("webhook-js-executor")
+                    .setNameFormat("webhook-js-executor-%d")
                     .build());
-    private final LoadingCache<WebHookIdentifier, Invocable> functions;
+    // the webhook scripts run on the threads of their engine pools, this thread only fails the timed out calls
+    private final ScheduledExecutorService timeoutScheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("webhook-timeout")
+                    .setDaemon(true)
+                    .build());
+    private final LoadingCache<WebHookIdentifier, CompiledWebHook> functions;
+    private final Map<WebHookIdentifier, WebHookStats> stats;
     private final ApiKeyService apiKeyService;
     private final EventStore eventStore;
     private final ObjectMapper jsonMapper;
     private final JSCodeCompiler jsCodeCompiler;
     private final JSCodeLoggerService loggerService;
+    private final WebHookConfig config;
 
     @Inject
     public WebHookHttpService(
@@ -109,39 +128,38 @@ public class WebHookHttpService
             ApiKeyService apiKeyService,
             JSCodeCompiler jsCodeCompiler,
             JSCodeLoggerService loggerService,
-            EventStore eventStore)
+            EventStore eventStore,
+            WebHookConfig config)
     {
         this.apiKeyService = apiKeyService;
+        this.config = config;
         this.jsCodeCompiler = jsCodeCompiler;
         this.loggerService = loggerService;
-        functions = CacheBuilder.newBuilder().softValues().build(new CacheLoader<WebHookIdentifier, Invocable>()
-        {
+        this.stats = new ConcurrentHashMap<>();
+        // the webhooks may be updated by the other nodes, the definitions are reloaded periodically
+        // and the engines are kept if the code is not changed.
+        functions = CacheBuilder.newBuilder()
+                .expireAfterAccess(1, TimeUnit.HOURS)
+                .refreshAfterWrite(1, TimeUnit.MINUTES)
+                .build(new CacheLoader<WebHookIdentifier, CompiledWebHook>()
+                {
+                    @Override
+                    public CompiledWebHook load(WebHookIdentifier key)
+                    {
+                        WebHook webHook = get(key.project, key.identifier);
+                        return compile(key, webHook);
+                    }
 
-            @Override
-            public Invocable load(WebHookIdentifier key)
-                    throws Exception
-            {
-                WebHook webHook = get(key.project, key.identifier);
-                String prefix = "webhook." + key.project + "." + key.identifier;
-                return jsCodeCompiler.createEngine(
-                        webHook.script,
-                        loggerService.createLogger(key.project, prefix),
-                        null,
-                        jsCodeCompiler.createConfigManager(key.project, prefix), (engine, bindings) -> {
-                            Map<String, Parameter> parameters = webHook.parameters;
-                            Map<String, Object> map = new HashMap<>();
-                            parameters.forEach((k,v) -> map.put(k, v.value));
-
-                            bindings.put("$$params", map);
-                            try {
-                                engine.eval("var $$module = function(queryParams, body, headers) { return module(queryParams, body, $$params, headers)}");
-                            }
-                            catch (ScriptException e) {
-                                throw Throwables.propagate(e);
-                            }
-                        });
-            }
-        });
+                    @Override
+                    public ListenableFuture<CompiledWebHook> reload(WebHookIdentifier key, CompiledWebHook oldValue)
+                    {
+                        WebHook webHook = get(key.project, key.identifier);
+                        if (oldValue.codeHash.equals(hash(webHook))) {
+                            return Futures.immediateFuture(oldValue);
+                        }
+                        return Futures.immediateFuture(compile(key, webHook));
+                    }
+                });
         this.dbi = new DBI(dataSource);
         this.eventStore = eventStore;
         jsonMapper = new ObjectMapper();
@@ -202,10 +220,51 @@ public class WebHookHttpService
         });
     }
 
+    private CompiledWebHook compile(WebHookIdentifier key, WebHook webHook)
+    {
+        String prefix = "webhook." + key.project + "." + key.identifier;
+        // the script is compiled once and the engines of the pool share the compiled code
+        Supplier<Invocable> engineFactory;
+        try {
+            engineFactory = jsCodeCompiler.createEngineFactory(
+                    webHook.script,
+                    loggerService.createLogger(key.project, prefix),
+                    null,
+                    jsCodeCompiler.createConfigManager(key.project, prefix), (engine, bindings) -> {
+                        Map<String, Parameter> parameters = webHook.parameters;
+                        Map<String, Object> map = new HashMap<>();
+                        parameters.forEach((k, v) -> map.put(k, v.value));
+
+                        bindings.put("$$params", map);
+                        try {
+                            engine.eval("var $$module = function(queryParams, body, headers) { return module(queryParams, body, $$params, headers)}", bindings);
+                        }
+                        catch (ScriptException e) {
+                            throw Throwables.propagate(e);
+                        }
+                    });
+        }
+        catch (ScriptException e) {
+            throw new RakamException("Unable to compile Javascript code: " + e.getMessage(), BAD_REQUEST);
+        }
+
+        // create the first engine eagerly so that the errors in the script are reported on the first call
+        return new CompiledWebHook(hash(webHook), new WebHookEnginePool(engineFactory.get(), engineFactory,
+                timeoutScheduler, config.getEnginesPerWebhook(), config.getMaxPendingCalls(), config.getTimeout().toMillis()));
+    }
+
+    private static String hash(WebHook webHook)
+    {
+        return Hashing.sha256().newHasher()
+                .putString(Optional.ofNullable(webHook.script).orElse(""), UTF_8)
+                .putString(JsonHelper.encode(webHook.parameters), UTF_8)
+                .hash().toString();
+    }
+
     private void call(RakamHttpRequest request, String project, String identifier, Map<String, List<String>> queryParams, HttpHeaders headers, String data)
     {
-        WebHookIdentifier key = new WebHookIdentifier(project, identifier, UUID.randomUUID().toString());
-        Invocable function;
+        WebHookIdentifier key = new WebHookIdentifier(project, identifier);
+        CompiledWebHook function;
         try {
             function = functions.getUnchecked(key);
         }
@@ -213,98 +272,104 @@ public class WebHookHttpService
             throw Throwables.propagate(e.getCause());
         }
 
-        Future<Object> f = executor.submit(() ->
-                function.invokeFunction("$$module", queryParams, data, headers));
+        WebHookStats webHookStats = stats.computeIfAbsent(key, k -> new WebHookStats());
+        long startTime = System.nanoTime();
 
-        f.addListener(new FutureListener<Object>()
-        {
+        CompletableFuture<Object> result = function.pool.invoke("$$module", queryParams, data, headers);
 
-            @Override
-            public void operationComplete(Future<Object> future)
-                    throws Exception
-            {
-                if (future.await(3, TimeUnit.SECONDS)) {
-                    Object body;
-                    try {
-                        body = future.get();
-                    }
-                    catch (Throwable e) {
-                        returnError(request, "Error executing callback code", INTERNAL_SERVER_ERROR);
-                        LOGGER.warn(e, "Error executing webhook callback");
-                        String prefix = "webhook." + key.project + "." + key.identifier;
-                        String collect = headers.entries().stream()
-                                .map(header -> header.getKey() + " : " + header.getValue())
-                                .collect(Collectors.joining("\n"));
-
-                        loggerService.createLogger(key.project, prefix, key.requestId)
-                                .error(e.getMessage() + "\n" + request.getUri() + "\n" + collect + "Body:\n" + data + "\n--------\n");
-                        return;
-                    }
+        result.whenComplete((body, ex) -> {
+            webHookStats.calls.increment();
+            webHookStats.latencyNanos.add(System.nanoTime() - startTime);
 
-                    boolean saved = false;
+            if (ex instanceof TimeoutException) {
+                webHookStats.timeouts.increment();
+                byte[] bytes = JsonHelper.encodeAsBytes(errorMessage("Webhook code timeouts.",
+                        INTERNAL_SERVER_ERROR));
 
-                    if (body == null || body.equals("null")) {
-                        saved = false;
-                    }
-                    else {
-                        if (!(body instanceof ScriptObjectMirror)) {
-                            returnError(request, "The script must return an object {collection: '', properties: {}}", BAD_REQUEST);
-                        }
+                request.response(bytes, INTERNAL_SERVER_ERROR).end();
+                return;
+            }
 
-                        ScriptObjectMirror json = (ScriptObjectMirror) ((ScriptObjectMirror) body).eval("JSON");
-                        Object stringify = json.callMember("stringify", body);
+            if (ex != null) {
+                webHookStats.errors.increment();
+                returnError(request, "Error executing callback code", INTERNAL_SERVER_ERROR);
+                LOGGER.warn(ex, "Error executing webhook callback");
+                String prefix = "webhook." + key.project + "." + key.identifier;
+                String collect = headers.entries().stream()
+                        .map(header -> header.getKey() + " : " + header.getValue())
+                        .collect(Collectors.joining("\n"));
 
+                loggerService.createLogger(key.project, prefix, UUID.randomUUID().toString())
+                        .error(ex.getMessage() + "\n" + request.getUri() + "\n" + collect + "Body:\n" + data + "\n--------\n");
+                return;
+            }
 
-                        try {
-                            Event event = jsonMapper.readerFor(Event.class)
-                                    .with(ContextAttributes.getEmpty()
-                                            .withSharedAttribute("project", key.project))
-                                    .readValue(stringify.toString());
-                            if (event != null) {
-                                saved = true;
-                                eventStore.store(event);
-                            }
-                        }
-                        catch (JsonMappingException e) {
-                            String message = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
-                            returnError(request, "JSON couldn't parsed: " + message, BAD_REQUEST);
-                            return;
-                        }
-                        catch (IOException e) {
-                            returnError(request, "JSON couldn't parsed: " + e.getMessage(), BAD_REQUEST);
-                            return;
-                        }
-                        catch (RakamException e) {
-                            LogUtil.logException(request, e);
-                            returnError(request, e.getMessage(), e.getStatusCode());
-                            return;
-                        }
-                        catch (HttpRequestException e) {
-                            returnError(request, e.getMessage(), e.getStatusCode());
-                            return;
-                        }
-                        catch (IllegalArgumentException e) {
-                            LogUtil.logException(request, e);
-                            returnError(request, e.getMessage(), BAD_REQUEST);
-                            return;
-                        }
-                        catch (Exception e) {
-                            LOGGER.error(e, "Error while collecting event");
+            boolean saved = false;
 
-                            returnError(request, "An error occurred", INTERNAL_SERVER_ERROR);
-                            return;
-                        }
-                    }
+            if (body == null || body.equals("null")) {
+                saved = false;
+            }
+            else {
+                if (!(body instanceof ScriptObjectMirror)) {
+                    webHookStats.errors.increment();
+                    returnError(request, "The script must return an object {collection: '', properties: {}}", BAD_REQUEST);
+                    return;
+                }
+
+                ScriptObjectMirror json = (ScriptObjectMirror) ((ScriptObjectMirror) body).eval("JSON");
+                Object stringify = json.callMember("stringify", body);
 
-                    request.response(saved ? "1" : "0").end();
+                try {
+                    Event event = jsonMapper.readerFor(Event.class)
+                            .with(ContextAttributes.getEmpty()
+                                    .withSharedAttribute("project", key.project))
+                            .readValue(stringify.toString());
+                    if (event != null) {
+                        saved = true;
+                        eventStore.store(event);
+                    }
                 }
-                else {
-                    byte[] bytes = JsonHelper.encodeAsBytes(errorMessage("Webhook code timeouts.",
-                            INTERNAL_SERVER_ERROR));
+                catch (JsonMappingException e) {
+                    webHookStats.errors.increment();
+                    String message = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+                    returnError(request, "JSON couldn't parsed: " + message, BAD_REQUEST);
+                    return;
+                }
+                catch (IOException e) {
+                    webHookStats.errors.increment();
+                    returnError(request, "JSON couldn't parsed: " + e.getMessage(), BAD_REQUEST);
+                    return;
+                }
+                catch (RakamException e) {
+                    webHookStats.errors.increment();
+                    LogUtil.logException(request, e);
+                    returnError(request, e.getMessage(), e.getStatusCode());
+                    return;
+                }
+                catch (HttpRequestException e) {
+                    webHookStats.errors.increment();
+                    returnError(request, e.getMessage(), e.getStatusCode());
+                    return;
+                }
+                catch (IllegalArgumentException e) {
+                    webHookStats.errors.increment();
+                    LogUtil.logException(request, e);
+                    returnError(request, e.getMessage(), BAD_REQUEST);
+                    return;
+                }
+                catch (Exception e) {
+                    webHookStats.errors.increment();
+                    LOGGER.error(e, "Error while collecting event");
 
-                    request.response(bytes, INTERNAL_SERVER_ERROR).end();
+                    returnError(request, "An error occurred", INTERNAL_SERVER_ERROR);
+                    return;
                 }
             }
+
+            if (saved) {
+                webHookStats.events.increment();
+            }
+            request.response(saved ? "1" : "0").end();
         });
     }
 
@@ -348,6 +413,7 @@ public class WebHookHttpService
                         .bind("image", hook.image)
                         .bind("parameters", JsonHelper.encode(hook.parameters))
                         .execute();
+                invalidate(project, hook.identifier);
                 return SuccessMessage.success();
             }
             catch (Exception e) {
@@ -359,6 +425,7 @@ public class WebHookHttpService
                             .bind("image", hook.image)
                             .bind("parameters", JsonHelper.encode(hook.parameters))
                             .execute();
+                    invalidate(project, hook.identifier);
                     return SuccessMessage.success();
                 }
                 throw e;
@@ -378,10 +445,39 @@ public class WebHookHttpService
             if (execute == 0) {
                 throw new RakamException(NOT_FOUND);
             }
+            invalidate(project, identifier);
             return SuccessMessage.success();
         }
     }
 
+    private void invalidate(String project, String identifier)
+    {
+        WebHookIdentifier key = new WebHookIdentifier(project, identifier);
+        functions.invalidate(key);
+        stats.remove(key);
+    }
+
+    @ApiOperation(value = "Get hook statistics", authorizations = @Authorization(value = "master_key"))
+    @Path("/stats")
+    @JsonRequest
+    public WebHookStatistics getStats(@Named("project") String project, @ApiParam("identifier") String identifier)
+    {
+        WebHookIdentifier key = new WebHookIdentifier(project, identifier);
+        WebHookStats webHookStats = stats.get(key);
+        CompiledWebHook compiled = functions.getIfPresent(key);
+        int engines = compiled == null ? 0 : compiled.pool.getEngineCount();
+        int pendingCalls = compiled == null ? 0 : compiled.pool.getPendingCalls();
+
+        if (webHookStats == null) {
+            return new WebHookStatistics(0, 0, 0, 0, 0, engines, pendingCalls);
+        }
+
+        long calls = webHookStats.calls.sum();
+        double averageLatency = calls == 0 ? 0 : webHookStats.latencyNanos.sum() / (double) calls / 1000000;
+        return new WebHookStatistics(calls, webHookStats.events.sum(), webHookStats.errors.sum(),
+                webHookStats.timeouts.sum(), averageLatency, engines, pendingCalls);
+    }
+
     @ApiOperation(value = "Get hook", authorizations = @Authorization(value = "master_key"))
     @Path("/get")
     @JsonRequest
@@ -524,13 +620,11 @@ public class WebHookHttpService
     {
         public final String project;
         public final String identifier;
-        public final String requestId;
 
-        public WebHookIdentifier(String project, String identifier, String requestId)
+        public WebHookIdentifier(String project, String identifier)
         {
             this.identifier = identifier;
             this.project = project;
-            this.requestId = requestId;
         }
 
         @Override
@@ -560,6 +654,49 @@ public class WebHookHttpService
         }
     }
 
+    private static class CompiledWebHook
+    {
+        private final String codeHash;
+        private final WebHookEnginePool pool;
+
+        private CompiledWebHook(String codeHash, WebHookEnginePool pool)
+        {
+            this.codeHash = codeHash;
+            this.pool = pool;
+        }
+    }
+
+    private static class WebHookStats
+    {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder events = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder latencyNanos = new LongAdder();
+    }
+
+    public static class WebHookStatistics
+    {
+        public final long calls;
+        public final long events;
+        public final long errors;
+        public final long timeouts;
+        public final double averageLatencyMillis;
+        public final int engines;
+        public final int pendingCalls;
+
+        public WebHookStatistics(long calls, long events, long errors, long timeouts, double averageLatencyMillis, int engines, int pendingCalls)
+        {
+            this.calls = calls;
+            this.events = events;
+            this.errors = errors;
+            this.timeouts = timeouts;
+            this.averageLatencyMillis = averageLatencyMillis;
+            this.engines = engines;
+            this.pendingCalls = pendingCalls;
+        }
+    }
+
     public static class WebHook
     {
         public final String identifier;
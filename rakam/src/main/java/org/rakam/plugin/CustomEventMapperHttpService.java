@@ -3,16 +3,15 @@ package org.rakam.plugin;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.type.TypeReference;
-import com.google.common.base.Function;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterators;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.airlift.log.Logger;
 import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.HttpHeaders;
@@ -26,6 +25,7 @@ import org.apache.avro.AvroRuntimeException;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericArray;
 import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.collection.Event;
@@ -56,7 +56,6 @@ import org.skife.jdbi.v2.GeneratedKeys;
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
 
-import javax.annotation.Nullable;
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -70,19 +69,22 @@ import java.sql.SQLException;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
 import static java.lang.String.format;
 import static java.util.Optional.ofNullable;
 import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.rakam.report.QueryExecutorService.DEFAULT_QUERY_RESULT_COUNT;
 import static org.rakam.util.AvroUtil.generateAvroSchema;
@@ -101,6 +103,9 @@ public class CustomEventMapperHttpService
     private final Metastore metastore;
     private final JSCodeLoggerService loggerService;
     private final QueryExecutorService queryExecutorService;
+    private final long timeBudgetNanos;
+    private final long timeBudgetPerEventNanos;
+    private final long suspendDurationMillis;
 
     public class JSSQLExecutor {
 
@@ -142,17 +147,23 @@ public class CustomEventMapperHttpService
             Metastore metastore,
             JSCodeCompiler jsCodeCompiler,
             JSCodeLoggerService loggerService,
-            QueryExecutorService queryExecutorService)
+            QueryExecutorService queryExecutorService,
+            JSEventMapperConfig config)
     {
         this.dbi = new DBI(dataSource);
         this.jsCodeCompiler = jsCodeCompiler;
         this.loggerService = loggerService;
         this.metastore = metastore;
+        // the mappers are CPU bound, the batches wait in a bounded queue instead of creating new threads
         this.executor = new ThreadPoolExecutor(
-                0,
-                Runtime.getRuntime().availableProcessors() * 4,
+                config.getThreads(),
+                config.getThreads(),
                 60L, SECONDS,
-                new SynchronousQueue<>());
+                new ArrayBlockingQueue<>(config.getQueueSize()),
+                new ThreadFactoryBuilder().setNameFormat("custom-event-mapper-%d").build());
+        this.timeBudgetNanos = config.getTimeBudget().roundTo(NANOSECONDS);
+        this.timeBudgetPerEventNanos = config.getTimeBudgetPerEvent().roundTo(NANOSECONDS);
+        this.suspendDurationMillis = config.getSuspendDuration().toMillis();
 
         this.scripts = CacheBuilder.newBuilder()
                 .expireAfterWrite(2, MINUTES)
@@ -349,60 +360,15 @@ public class CustomEventMapperHttpService
     @Override
     public CompletableFuture<List<Cookie>> mapAsync(Event event, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
     {
-        return mapInternal(event.project(), new EventsProxy()
-        {
-            @Override
-            public Event.EventContext api()
-            {
-                return event.api();
-            }
-
-            @Override
-            public String project()
-            {
-                return event.project();
-            }
-
-            @Override
-            public Iterator<EventProxy> events()
-            {
-                return Iterators.singletonIterator(new ListEventProxy(event));
-            }
-        }, requestParams, sourceAddress, responseHeaders);
+        return mapInternal(new BatchEventsProxy(event.project(), event.api(), ImmutableList.of(event)),
+                requestParams, sourceAddress, responseHeaders);
     }
 
     @Override
     public CompletableFuture<List<Cookie>> mapAsync(EventList events, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
     {
-        EventsProxy eventsProxy = new EventsProxy()
-        {
-            @Override
-            public Event.EventContext api()
-            {
-                return events.api;
-            }
-
-            @Override
-            public String project()
-            {
-                return events.project;
-            }
-
-            @Override
-            public Iterator<EventProxy> events()
-            {
-                return Iterators.transform(events.events.iterator(), new Function<Event, EventProxy>()
-                {
-                    @Nullable
-                    @Override
-                    public EventProxy apply(@Nullable Event f)
-                    {
-                        return new ListEventProxy(f);
-                    }
-                });
-            }
-        };
-        return mapInternal(events.project, eventsProxy, requestParams, sourceAddress, responseHeaders);
+        return mapInternal(new BatchEventsProxy(events.project, events.api, events.events),
+                requestParams, sourceAddress, responseHeaders);
     }
 
     private static class NewField
@@ -443,56 +409,86 @@ public class CustomEventMapperHttpService
         }
     }
 
-    public CompletableFuture<List<Cookie>> mapInternal(String project, EventsProxy events, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
+    private CompletableFuture<List<Cookie>> mapInternal(BatchEventsProxy events, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
     {
-        List<JSEventMapperCompiledCode> unchecked = scripts.getUnchecked(project);
-        CompletableFuture<Object>[] futures = new CompletableFuture[unchecked.size()];
-        for (int i = 0; i < unchecked.size(); i++) {
-            JSEventMapperCompiledCode compiledCode = unchecked.get(i);
+        List<JSEventMapperCompiledCode> mappers = scripts.getUnchecked(events.project());
+        if (mappers.isEmpty()) {
+            return COMPLETED_EMPTY_FUTURE;
+        }
 
-            futures[i] = CompletableFuture.supplyAsync(() -> {
+        CompletableFuture<List<Cookie>> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
                 try {
-                    return compiledCode.code.invokeFunction("mapper",
-                            events,
-                            requestParams,
-                            sourceAddress,
-                            responseHeaders,
-                            new JSSQLExecutor(project),
-                            compiledCode.parameters);
-                }
-                catch (ScriptException e) {
-                    logger.warn(e, "Error executing event mapper function.");
-                }
-                catch (NoSuchMethodException e) {
-                    logger.warn(e, "'mapper' function does not exist in event mapper function.");
+                    future.complete(map(mappers, events, requestParams, sourceAddress, responseHeaders));
                 }
                 catch (Throwable e) {
-                    logger.warn(e, "Unknown error executing the js mapper.");
+                    future.completeExceptionally(e);
                 }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            throw new RakamException("Event mappers are busy, please try again later", SERVICE_UNAVAILABLE);
+        }
 
-                return null;
-            }, executor);
-        }
-
-        return CompletableFuture.allOf(futures)
-                .thenApply(aVoid -> {
-                    List<Cookie> list = new ArrayList<>();
-
-                    for (CompletableFuture<Object> result : futures) {
-                        Object join = result.join();
-                        if (join != null) {
-                            if (join instanceof Map) {
-                                ((Map) join).forEach((o, o2) ->
-                                        list.add(new DefaultCookie(o.toString(), o2.toString())));
-                            }
-                            else {
-                                logger.warn(format("Event mapper didn't return a map, it returned %s", join.getClass().getName()));
-                            }
-                        }
-                    }
+        return future;
+    }
+
+    private List<Cookie> map(List<JSEventMapperCompiledCode> mappers, BatchEventsProxy events, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
+    {
+        List<Cookie> list = new ArrayList<>();
+        JSSQLExecutor sqlExecutor = new JSSQLExecutor(events.project());
+
+        // the mappers modify the same events so they run one after another
+        for (JSEventMapperCompiledCode compiledCode : mappers) {
+            if (compiledCode.isSuspended()) {
+                logger.warn("Event mapper %d of project %s is suspended, %d events are stored without mapping",
+                        compiledCode.id, events.project(), events.size());
+                continue;
+            }
+
+            long startTime = System.nanoTime();
+            Object result = null;
+            try {
+                result = compiledCode.code.invokeFunction("mapper",
+                        events,
+                        requestParams,
+                        sourceAddress,
+                        responseHeaders,
+                        sqlExecutor,
+                        compiledCode.parameters);
+            }
+            catch (ScriptException e) {
+                logger.warn(e, "Error executing event mapper function.");
+            }
+            catch (NoSuchMethodException e) {
+                logger.warn(e, "'mapper' function does not exist in event mapper function.");
+            }
+            catch (Throwable e) {
+                logger.warn(e, "Unknown error executing the js mapper.");
+            }
 
-                    return list;
-                });
+            // the large batches get a larger budget so that they don't suspend the mappers that are fast enough
+            long elapsed = System.nanoTime() - startTime;
+            if (elapsed > timeBudgetNanos + timeBudgetPerEventNanos * events.size()) {
+                compiledCode.suspend(suspendDurationMillis);
+                logger.warn("Event mapper %d of project %s took %dms for %d events, it's suspended for %dms",
+                        compiledCode.id, events.project(), NANOSECONDS.toMillis(elapsed), events.size(), suspendDurationMillis);
+            }
+
+            if (result != null) {
+                if (result instanceof Map) {
+                    ((Map) result).forEach((o, o2) ->
+                            list.add(new DefaultCookie(o.toString(), o2.toString())));
+                }
+                else {
+                    logger.warn(format("Event mapper didn't return a map, it returned %s", result.getClass().getName()));
+                }
+            }
+        }
+
+        events.applyNewFields();
+        return list;
     }
 
     public static class JSEventMapperCode
@@ -525,6 +521,7 @@ public class CustomEventMapperHttpService
         public final Invocable code;
         public final Map<String, Object> parameters;
         public int codeHashCode;
+        private volatile long suspendedUntil;
 
         public JSEventMapperCompiledCode(int id, Invocable code, Map<String, Object> parameters, int codeHashCode)
         {
@@ -533,6 +530,16 @@ public class CustomEventMapperHttpService
             this.parameters = parameters;
             this.codeHashCode = codeHashCode;
         }
+
+        public boolean isSuspended()
+        {
+            return suspendedUntil > System.currentTimeMillis();
+        }
+
+        public void suspend(long durationMillis)
+        {
+            suspendedUntil = System.currentTimeMillis() + durationMillis;
+        }
     }
 
     private static class TestEventsProxy
@@ -611,13 +618,106 @@ public class CustomEventMapperHttpService
         }
     }
 
+    private class BatchEventsProxy
+            implements EventsProxy
+    {
+        private final String project;
+        private final Event.EventContext api;
+        private final ListEventProxy[] events;
+        // the fields that the mappers add to the collections, they're created once for the batch
+        private Map<String, Map<String, FieldType>> newFields;
+        // the fields that are set with different types in the batch, the conflicts are logged once per field
+        private Set<String> conflictingFields;
+
+        public BatchEventsProxy(String project, Event.EventContext api, List<Event> events)
+        {
+            this.project = project;
+            this.api = api;
+            this.events = new ListEventProxy[events.size()];
+            for (int i = 0; i < this.events.length; i++) {
+                this.events[i] = new ListEventProxy(this, events.get(i));
+            }
+        }
+
+        @Override
+        public Event.EventContext api()
+        {
+            return api;
+        }
+
+        @Override
+        public String project()
+        {
+            return project;
+        }
+
+        @Override
+        public Iterator<EventProxy> events()
+        {
+            return Iterators.<EventProxy>forArray(events);
+        }
+
+        public int size()
+        {
+            return events.length;
+        }
+
+        private boolean addField(String collection, String attr, FieldType type)
+        {
+            if (newFields == null) {
+                newFields = new HashMap<>();
+            }
+            FieldType existingType = newFields.computeIfAbsent(collection, k -> new HashMap<>()).putIfAbsent(attr, type);
+            if (existingType == null || existingType == type) {
+                return true;
+            }
+
+            if (conflictingFields == null) {
+                conflictingFields = new HashSet<>();
+            }
+            if (conflictingFields.add(collection + "." + attr)) {
+                logger.warn("Event mappers of project %s set the new field %s of collection %s as both %s and %s, the %s values are discarded",
+                        project, attr, collection, existingType, type, type);
+            }
+            return false;
+        }
+
+        public void applyNewFields()
+        {
+            if (newFields == null) {
+                return;
+            }
+
+            for (Map.Entry<String, Map<String, FieldType>> entry : newFields.entrySet()) {
+                Set<SchemaField> fields = entry.getValue().entrySet().stream()
+                        .map(e -> new SchemaField(e.getKey(), e.getValue()))
+                        .collect(Collectors.toSet());
+                List<SchemaField> schema = metastore.getOrCreateCollectionFieldList(project, entry.getKey(), fields);
+
+                // the events of a collection usually share the same schema so the new schema is created once
+                Map<Schema, Schema> schemas = new IdentityHashMap<>();
+                for (ListEventProxy event : events) {
+                    if (event.newValues != null && event.collection().equals(entry.getKey())) {
+                        event.applyNewValues(schema, schemas);
+                    }
+                }
+            }
+
+            newFields = null;
+        }
+    }
+
     private class ListEventProxy
             implements EventProxy
     {
+        private final BatchEventsProxy batch;
         private final Event event;
+        // the values of the fields that don't exist in the schema of the event yet
+        private Map<String, Object> newValues;
 
-        public ListEventProxy(Event event)
+        public ListEventProxy(BatchEventsProxy batch, Event event)
         {
+            this.batch = batch;
             this.event = event;
         }
 
@@ -630,6 +730,9 @@ public class CustomEventMapperHttpService
         @Override
         public Object get(String attr)
         {
+            if (newValues != null && newValues.containsKey(attr)) {
+                return newValues.get(attr);
+            }
             return event.getAttribute(attr);
         }
 
@@ -640,48 +743,66 @@ public class CustomEventMapperHttpService
                 event.properties().put(attr, value);
             }
             catch (AvroRuntimeException e) {
-                // field not exists, create it
+                // field not exists, it will be created after the mappers process the batch
                 NewField attrValue = getValue(value);
 
-                if (attrValue == null) {
+                if (attrValue == null || !batch.addField(event.collection(), attr, attrValue.fieldType)) {
                     return;
                 }
 
-                List<SchemaField> fields = metastore.getOrCreateCollectionFieldList(event.project(), event.collection(),
-                        ImmutableSet.of(new SchemaField(attr, attrValue.fieldType)));
+                if (newValues == null) {
+                    newValues = new HashMap<>();
+                }
+                newValues.put(attr, attrValue.value);
+            }
+        }
 
-                List<Schema.Field> oldFields = event.properties().getSchema().getFields();
+        private void applyNewValues(List<SchemaField> fields, Map<Schema, Schema> schemas)
+        {
+            GenericRecord properties = event.properties();
+            Schema schema = schemas.computeIfAbsent(properties.getSchema(), oldSchema -> createSchema(oldSchema, fields));
 
-                ImmutableList.Builder<Schema.Field> objectBuilder = ImmutableList.builder();
+            GenericData.Record record = new GenericData.Record(schema);
+            for (Schema.Field field : properties.getSchema().getFields()) {
+                record.put(field.pos(), properties.get(field.pos()));
+            }
 
-                for (Schema.Field oldField : oldFields) {
-                    objectBuilder.add(new Schema.Field(oldField.name(),
-                            oldField.schema(),
-                            oldField.doc(),
-                            oldField.defaultValue(),
-                            oldField.order()));
+            newValues.forEach((attr, value) -> {
+                if (schema.getField(attr) != null) {
+                    record.put(attr, value);
                 }
+            });
 
-                outer:
-                for (SchemaField field : fields) {
-                    for (Schema.Field oldField : oldFields) {
-                        if (oldField.name().equals(field.getName())) {
-                            continue outer;
-                        }
-                    }
+            newValues = null;
+            event.properties(record, fields);
+        }
 
-                    objectBuilder.add(AvroUtil.generateAvroField(field));
-                }
+        private Schema createSchema(Schema oldSchema, List<SchemaField> fields)
+        {
+            List<Schema.Field> oldFields = oldSchema.getFields();
 
-                GenericData.Record record = new GenericData.Record(Schema.createRecord(objectBuilder.build()));
+            ImmutableList.Builder<Schema.Field> objectBuilder = ImmutableList.builder();
+
+            for (Schema.Field oldField : oldFields) {
+                objectBuilder.add(new Schema.Field(oldField.name(),
+                        oldField.schema(),
+                        oldField.doc(),
+                        oldField.defaultValue(),
+                        oldField.order()));
+            }
 
-                for (Schema.Field field : event.properties().getSchema().getFields()) {
-                    record.put(field.name(), event.getAttribute(field.name()));
+            outer:
+            for (SchemaField field : fields) {
+                for (Schema.Field oldField : oldFields) {
+                    if (oldField.name().equals(field.getName())) {
+                        continue outer;
+                    }
                 }
 
-                record.put(attr, attrValue.value);
-                event.properties(record, fields);
+                objectBuilder.add(AvroUtil.generateAvroField(field));
             }
+
+            return Schema.createRecord(objectBuilder.build());
         }
 
         private NewField getValue(Object value)
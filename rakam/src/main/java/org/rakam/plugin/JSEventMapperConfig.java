@@ -0,0 +1,77 @@
+package org.rakam.plugin;
+
+import io.airlift.configuration.Config;
+import io.airlift.units.Duration;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+public class JSEventMapperConfig
+{
+    private int threads = Runtime.getRuntime().availableProcessors() * 2;
+    private int queueSize = 1000;
+    private Duration timeBudget = new Duration(2, SECONDS);
+    private Duration timeBudgetPerEvent = new Duration(5, MILLISECONDS);
+    private Duration suspendDuration = new Duration(1, MINUTES);
+
+    @Config("js-event-mapper.threads")
+    public JSEventMapperConfig setThreads(int threads)
+    {
+        this.threads = threads;
+        return this;
+    }
+
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    @Config("js-event-mapper.queue-size")
+    public JSEventMapperConfig setQueueSize(int queueSize)
+    {
+        this.queueSize = queueSize;
+        return this;
+    }
+
+    public int getQueueSize()
+    {
+        return queueSize;
+    }
+
+    @Config("js-event-mapper.time-budget")
+    public JSEventMapperConfig setTimeBudget(Duration timeBudget)
+    {
+        this.timeBudget = timeBudget;
+        return this;
+    }
+
+    public Duration getTimeBudget()
+    {
+        return timeBudget;
+    }
+
+    @Config("js-event-mapper.time-budget-per-event")
+    public JSEventMapperConfig setTimeBudgetPerEvent(Duration timeBudgetPerEvent)
+    {
+        this.timeBudgetPerEvent = timeBudgetPerEvent;
+        return this;
+    }
+
+    public Duration getTimeBudgetPerEvent()
+    {
+        return timeBudgetPerEvent;
+    }
+
+    @Config("js-event-mapper.suspend-duration")
+    public JSEventMapperConfig setSuspendDuration(Duration suspendDuration)
+    {
+        this.suspendDuration = suspendDuration;
+        return this;
+    }
+
+    public Duration getSuspendDuration()
+    {
+        return suspendDuration;
+    }
+}
@@ -7,6 +7,8 @@ import com.google.inject.multibindings.Multibinder;
 import org.rakam.server.http.HttpService;
 import org.rakam.util.ConditionalModule;
 
+import static io.airlift.configuration.ConfigBinder.configBinder;
+
 @AutoService(RakamModule.class)
 @ConditionalModule(config = "js-event-mapper.enabled", value = "true")
 public class JSEventMapperModule extends RakamModule
@@ -14,6 +16,7 @@ public class JSEventMapperModule extends RakamModule
     @Override
     protected void setup(Binder binder)
     {
+        configBinder(binder).bindConfig(JSEventMapperConfig.class);
         Multibinder<HttpService> httpServices = Multibinder.newSetBinder(binder, HttpService.class);
         httpServices.addBinding().to(CustomEventMapperHttpService.class).in(Scopes.SINGLETON);
     }
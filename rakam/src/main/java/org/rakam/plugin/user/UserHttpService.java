@@ -1,6 +1,5 @@
 package org.rakam.plugin.user;
 
-import com.facebook.presto.sql.parser.SqlParser;
 import com.facebook.presto.sql.tree.Expression;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.google.common.collect.ImmutableList;
@@ -37,6 +36,7 @@ import org.rakam.util.AllowCookie;
 import org.rakam.util.JsonHelper;
 import org.rakam.util.SuccessMessage;
 import org.rakam.util.RakamException;
+import org.rakam.util.SqlUtil;
 import org.rakam.util.LogUtil;
 
 import javax.inject.Inject;
@@ -87,7 +87,6 @@ public class UserHttpService
     private final byte[] OK_MESSAGE = "1".getBytes(UTF_8);
 
     private final UserPluginConfig config;
-    private final static SqlParser sqlParser = new SqlParser();
     private final AbstractUserService service;
     private final Set<UserPropertyMapper> mappers;
     private final QueryHttpService queryService;
@@ -154,9 +153,7 @@ public class UserHttpService
     {
         if (filter != null) {
             try {
-                synchronized (sqlParser) {
-                    return sqlParser.createExpression(filter);
-                }
+                return SqlUtil.parseExpression(filter);
             }
             catch (Exception e) {
                 throw new RakamException(format("filter expression '%s' couldn't parsed", filter),
@@ -221,9 +218,7 @@ public class UserHttpService
 
         Expression expression = null;
         if (filterExpression != null) {
-            synchronized (sqlParser) {
-                expression = sqlParser.createExpression(filterExpression);
-            }
+            expression = SqlUtil.parseExpression(filterExpression);
         }
 
         service.createSegment(project, name, tableName, expression, eventFilters, duration);
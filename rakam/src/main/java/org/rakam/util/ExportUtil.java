@@ -1,5 +1,6 @@
 package org.rakam.util;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Iterables;
 import org.apache.avro.Schema;
@@ -13,13 +14,15 @@ import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.QuoteMode;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
+import org.rakam.plugin.EventStore.CopyType;
 import org.rakam.report.QueryResult;
 
 import javax.xml.bind.DatatypeConverter;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalTime;
@@ -28,27 +31,32 @@ import java.util.Map;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.rakam.plugin.EventStore.CopyType.AVRO;
+import static org.rakam.plugin.EventStore.CopyType.CSV;
+
 public class ExportUtil
 {
     public static byte[] exportAsCSV(QueryResult result)
     {
-        final ByteArrayOutputStream out = new ByteArrayOutputStream();
-        final CSVPrinter csvPrinter;
+        return export(result, CSV);
+    }
+
+    public static byte[] exportAsAvro(QueryResult result)
+    {
+        return export(result, AVRO);
+    }
+
+    private static byte[] export(QueryResult result, CopyType type)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            final CSVFormat format = CSVFormat.DEFAULT.withQuoteMode(QuoteMode.NON_NUMERIC);
-            csvPrinter = new CSVPrinter(new PrintWriter(out), format);
-            csvPrinter.printRecord(result.getMetadata().stream().map(SchemaField::getName)
-                    .collect(Collectors.toList()));
-            csvPrinter.printRecords(Iterables.transform(result.getResult(), input -> Iterables.transform(input, input1 -> {
-                if (input1 instanceof List || input1 instanceof Map) {
-                    return JsonHelper.encode(input1);
-                }
-                if (input1 instanceof byte[]) {
-                    return DatatypeConverter.printBase64Binary((byte[]) input1);
-                }
-                return input1;
-            })));
-            csvPrinter.flush();
+            RowEncoder encoder = createEncoder(type, out);
+            encoder.writeHeader(result.getMetadata());
+            for (List<Object> row : result.getResult()) {
+                encoder.writeRow(row);
+            }
+            encoder.finish();
         }
         catch (IOException e) {
             throw Throwables.propagate(e);
@@ -57,21 +65,111 @@ public class ExportUtil
         return out.toByteArray();
     }
 
-    public static byte[] exportAsAvro(QueryResult result)
+    /**
+     * Creates an encoder that writes the rows to the output stream one by one so that the result can be exported
+     * without keeping the whole file in memory.
+     */
+    public static RowEncoder createEncoder(CopyType type, OutputStream out)
     {
-        Schema avroSchema = AvroUtil.convertAvroSchema(result.getMetadata());
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        switch (type) {
+            case CSV:
+                return new CsvRowEncoder(out);
+            case AVRO:
+                return new AvroRowEncoder(out);
+            case JSON:
+                return new JsonRowEncoder(out);
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    public interface RowEncoder
+    {
+        void writeHeader(List<SchemaField> columns)
+                throws IOException;
+
+        void writeRow(List<Object> row)
+                throws IOException;
+
+        /**
+         * Writes the buffered data to the output stream, the output stream is not closed.
+         */
+        void finish()
+                throws IOException;
+    }
+
+    private static class CsvRowEncoder
+            implements RowEncoder
+    {
+        private final CSVPrinter csvPrinter;
+
+        public CsvRowEncoder(OutputStream out)
+        {
+            try {
+                csvPrinter = new CSVPrinter(new OutputStreamWriter(out, UTF_8), CSVFormat.DEFAULT.withQuoteMode(QuoteMode.NON_NUMERIC));
+            }
+            catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
 
-        DatumWriter writer = new FilteredRecordWriter(avroSchema, GenericData.get());
+        @Override
+        public void writeHeader(List<SchemaField> columns)
+                throws IOException
+        {
+            csvPrinter.printRecord(columns.stream().map(SchemaField::getName).collect(Collectors.toList()));
+        }
 
-        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, null);
-        GenericData.Record record = new GenericData.Record(avroSchema);
+        @Override
+        public void writeRow(List<Object> row)
+                throws IOException
+        {
+            csvPrinter.printRecord(Iterables.transform(row, value -> {
+                if (value instanceof List || value instanceof Map) {
+                    return JsonHelper.encode(value);
+                }
+                if (value instanceof byte[]) {
+                    return DatatypeConverter.printBase64Binary((byte[]) value);
+                }
+                return value;
+            }));
+        }
 
-        for (List<Object> row : result.getResult()) {
-            List<SchemaField> metadata = result.getMetadata();
+        @Override
+        public void finish()
+                throws IOException
+        {
+            csvPrinter.flush();
+        }
+    }
 
+    private static class AvroRowEncoder
+            implements RowEncoder
+    {
+        private final BinaryEncoder encoder;
+        private List<SchemaField> columns;
+        private DatumWriter writer;
+        private GenericData.Record record;
+
+        public AvroRowEncoder(OutputStream out)
+        {
+            this.encoder = EncoderFactory.get().directBinaryEncoder(out, null);
+        }
+
+        @Override
+        public void writeHeader(List<SchemaField> columns)
+        {
+            Schema avroSchema = AvroUtil.convertAvroSchema(columns);
+            this.columns = columns;
+            this.writer = new FilteredRecordWriter(avroSchema, GenericData.get());
+            this.record = new GenericData.Record(avroSchema);
+        }
+
+        @Override
+        public void writeRow(List<Object> row)
+        {
             for (int i = 0; i < row.size(); i++) {
-                record.put(i, getAvroValue(row.get(i), metadata.get(i).getType()));
+                record.put(i, getAvroValue(row.get(i), columns.get(i).getType()));
             }
 
             try {
@@ -82,7 +180,50 @@ public class ExportUtil
             }
         }
 
-        return out.toByteArray();
+        @Override
+        public void finish()
+                throws IOException
+        {
+            encoder.flush();
+        }
+    }
+
+    private static class JsonRowEncoder
+            implements RowEncoder
+    {
+        private final JsonGenerator generator;
+
+        public JsonRowEncoder(OutputStream out)
+        {
+            try {
+                generator = JsonHelper.getMapper().getFactory().createGenerator(out);
+            }
+            catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+
+        @Override
+        public void writeHeader(List<SchemaField> columns)
+                throws IOException
+        {
+            generator.writeStartArray();
+        }
+
+        @Override
+        public void writeRow(List<Object> row)
+                throws IOException
+        {
+            generator.writeObject(row);
+        }
+
+        @Override
+        public void finish()
+                throws IOException
+        {
+            generator.writeEndArray();
+            generator.flush();
+        }
     }
 
     private static Object getAvroValue(Object value, FieldType type)
@@ -123,7 +264,7 @@ public class ExportUtil
                                 {
                                     return (String) entry.getKey();
                                 }
-                            }, e -> getAvroValue(e, type.getMapValueType())));
+                            }, e -> getAvroValue(e.getValue(), type.getMapValueType())));
                 }
                 throw new IllegalStateException("unsupported type");
         }
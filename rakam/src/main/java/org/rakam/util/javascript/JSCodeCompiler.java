@@ -12,6 +12,7 @@ import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.util.CharsetUtil;
 import jdk.nashorn.api.scripting.ClassFilter;
 import jdk.nashorn.api.scripting.NashornScriptEngineFactory;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
 import org.rakam.analysis.ConfigManager;
 import org.rakam.collection.Event;
 import org.rakam.collection.EventCollectionHttpService;
@@ -29,6 +30,8 @@ import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
 import javax.script.Invocable;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
@@ -48,6 +51,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 import static com.fasterxml.jackson.core.JsonToken.START_OBJECT;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
@@ -193,6 +197,46 @@ public class JSCodeCompiler
 
     public Invocable createEngine(String code, ILogger logger, JSEventStore eventStore, IJSConfigManager configManager, BiConsumer<ScriptEngine, Bindings> binding)
             throws ScriptException
+    {
+        checkCustomCode(code);
+        ScriptEngine engine = factory.getScriptEngine(args, classLoader, classFilter);
+        Bindings bindings = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+        setupBindings(engine, bindings, logger, eventStore, configManager);
+
+        engine.eval(code);
+        binding.accept(engine, bindings);
+
+        return (Invocable) engine;
+    }
+
+    /**
+     * Compiles the code once and returns the factory of the engines that run it. The engines share the compiled code
+     * but each of them has its own global scope, so they can be invoked concurrently.
+     */
+    public Supplier<Invocable> createEngineFactory(String code, ILogger logger, JSEventStore eventStore, IJSConfigManager configManager, BiConsumer<ScriptEngine, Bindings> binding)
+            throws ScriptException
+    {
+        checkCustomCode(code);
+        ScriptEngine engine = factory.getScriptEngine(args, classLoader, classFilter);
+        CompiledScript compiled = ((Compilable) engine).compile(code);
+
+        return () -> {
+            // the bindings are the mirror of a new global object
+            ScriptObjectMirror global = (ScriptObjectMirror) engine.createBindings();
+            try {
+                setupBindings(engine, global, logger, eventStore, configManager);
+                compiled.eval(global);
+            }
+            catch (ScriptException e) {
+                throw Throwables.propagate(e);
+            }
+            binding.accept(engine, global);
+
+            return new GlobalInvocable(global);
+        };
+    }
+
+    private void checkCustomCode(String code)
     {
         if (!customEnabled) {
             int firstLineBreak = code.indexOf("\n");
@@ -203,12 +247,12 @@ public class JSCodeCompiler
             if(!substring.startsWith("//@ sourceURL=rakam-ui/src/main/resources/")) {
                 throw new RakamException("Custom javascript code is not allowed in trial mode.", BAD_REQUEST);
             }
-
-            String path = substring.substring("//@ sourceURL=rakam-ui/src/main/resources/".length());
         }
-        ScriptEngine engine = factory.getScriptEngine(args, classLoader, classFilter);
-        Bindings bindings = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+    }
 
+    private void setupBindings(ScriptEngine engine, Bindings bindings, ILogger logger, JSEventStore eventStore, IJSConfigManager configManager)
+            throws ScriptException
+    {
         bindings.remove("print");
         if (!loadAllowed) {
             bindings.remove("load");
@@ -226,14 +270,54 @@ public class JSCodeCompiler
         bindings.put("config", configManager);
         if (eventStore != null) {
             bindings.put("$$eventStore", eventStore);
-            engine.eval("var eventStore = {store: function(call) { $$eventStore.store(JSON.stringify(call)); }}");
+            engine.eval("var eventStore = {store: function(call) { $$eventStore.store(JSON.stringify(call)); }}", bindings);
         }
         bindings.put("http", httpClient);
+    }
 
-        engine.eval(code);
-        binding.accept(engine, bindings);
+    /**
+     * Invokes the functions that are defined in a global scope of the engine created by {@link #createEngineFactory}.
+     */
+    private static class GlobalInvocable
+            implements Invocable
+    {
+        private final ScriptObjectMirror global;
 
-        return (Invocable) engine;
+        private GlobalInvocable(ScriptObjectMirror global)
+        {
+            this.global = global;
+        }
+
+        @Override
+        public Object invokeMethod(Object thiz, String name, Object... args)
+        {
+            if (!(thiz instanceof ScriptObjectMirror)) {
+                throw new IllegalArgumentException("The object is not a script object");
+            }
+            return ((ScriptObjectMirror) thiz).callMember(name, args);
+        }
+
+        @Override
+        public Object invokeFunction(String name, Object... args)
+                throws NoSuchMethodException
+        {
+            if (!global.hasMember(name)) {
+                throw new NoSuchMethodException(name);
+            }
+            return global.callMember(name, args);
+        }
+
+        @Override
+        public <T> T getInterface(Class<T> clasz)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> T getInterface(Object thiz, Class<T> clasz)
+        {
+            throw new UnsupportedOperationException();
+        }
     }
 
     public static class TestLogger
@@ -0,0 +1,161 @@
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvParser;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.eventbus.EventBus;
+import org.rakam.TestingConfigManager;
+import org.rakam.analysis.ApiKeyService;
+import org.rakam.analysis.InMemoryApiKeyService;
+import org.rakam.analysis.InMemoryMetastore;
+import org.rakam.analysis.metadata.SchemaChecker;
+import org.rakam.collection.CsvEventDeserializer;
+import org.rakam.collection.Event;
+import org.rakam.collection.EventChunkReader;
+import org.rakam.collection.EventListDeserializer;
+import org.rakam.collection.FieldDependencyBuilder;
+import org.rakam.collection.JsonEventDeserializer;
+import org.rakam.config.ProjectConfig;
+import org.rakam.util.JsonHelper;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestEventChunkReader
+{
+    private ObjectMapper mapper;
+    private CsvMapper csvMapper;
+    private InMemoryMetastore metastore;
+    private InMemoryApiKeyService apiKeyService;
+    private JsonEventDeserializer eventDeserializer;
+    private EventListDeserializer eventListDeserializer;
+    private CsvEventDeserializer csvEventDeserializer;
+    private ApiKeyService.ProjectApiKeys apiKeys;
+
+    @BeforeSuite
+    public void setUp()
+            throws Exception
+    {
+        FieldDependencyBuilder.FieldDependency fieldDependency = new FieldDependencyBuilder().build();
+        apiKeyService = new InMemoryApiKeyService();
+        metastore = new InMemoryMetastore(apiKeyService, new EventBus());
+
+        SchemaChecker schemaChecker = new SchemaChecker(metastore, fieldDependency);
+        eventDeserializer = new JsonEventDeserializer(metastore, apiKeyService, new TestingConfigManager(), schemaChecker, new ProjectConfig(), fieldDependency);
+        eventListDeserializer = new EventListDeserializer(apiKeyService, eventDeserializer);
+        csvEventDeserializer = new CsvEventDeserializer(metastore, new ProjectConfig(), new TestingConfigManager(), schemaChecker, fieldDependency);
+
+        mapper = JsonHelper.getMapper();
+        mapper.registerModule(new SimpleModule().addDeserializer(Event.class, eventDeserializer));
+        csvMapper = new CsvMapper();
+    }
+
+    @BeforeMethod
+    public void setupMethod()
+    {
+        metastore.createProject("test");
+        apiKeys = apiKeyService.createApiKeys("test");
+    }
+
+    @AfterMethod
+    public void tearDownMethod()
+    {
+        metastore.deleteProject("test");
+        eventDeserializer.cleanCache();
+    }
+
+    @Test
+    public void testJsonChunks()
+            throws Exception
+    {
+        byte[] bytes = mapper.writeValueAsBytes(ImmutableMap.of(
+                "api", Event.EventContext.apiKey(apiKeys.writeKey()),
+                "events", events(5)));
+
+        try (EventChunkReader reader = eventListDeserializer.createChunkReader(mapper.getFactory().createParser(bytes), null)) {
+            assertEquals(reader.project(), "test");
+            assertEquals(reader.api().apiKey, apiKeys.writeKey());
+            assertChunks(reader, 2, ImmutableList.of(2, 2, 1));
+        }
+    }
+
+    @Test
+    public void testJsonChunksBeforeApi()
+            throws Exception
+    {
+        // the events are buffered until the api property is read
+        byte[] bytes = mapper.writeValueAsBytes(ImmutableMap.of(
+                "events", events(5),
+                "api", Event.EventContext.apiKey(apiKeys.writeKey())));
+
+        try (EventChunkReader reader = eventListDeserializer.createChunkReader(mapper.getFactory().createParser(bytes), null)) {
+            assertEquals(reader.project(), "test");
+            assertChunks(reader, 3, ImmutableList.of(3, 2));
+        }
+    }
+
+    @Test
+    public void testCsvChunks()
+            throws Exception
+    {
+        String csv = "product,price\n" +
+                "product0,1\n" +
+                "product1,2\n" +
+                "product2,3\n" +
+                "product3,4\n" +
+                "product4,5\n";
+
+        CsvParser parser = (CsvParser) csvMapper.getFactory().createParser(csv);
+        parser.setSchema(CsvSchema.builder().build());
+
+        try (EventChunkReader reader = csvEventDeserializer.createChunkReader(parser, "test", "test", apiKeys.writeKey(), true)) {
+            List<Event> events = new ArrayList<>();
+            assertChunks(reader, 2, ImmutableList.of(2, 2, 1), events);
+
+            assertEquals(events.stream().map(event -> event.getAttribute("product")).collect(Collectors.toList()),
+                    ImmutableList.of("product0", "product1", "product2", "product3", "product4"));
+        }
+    }
+
+    private static List<Map<String, Object>> events(int count)
+    {
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            events.add(ImmutableMap.of("collection", "test", "properties", ImmutableMap.of("index", i)));
+        }
+        return events;
+    }
+
+    private static void assertChunks(EventChunkReader reader, int chunkSize, List<Integer> expectedSizes)
+            throws IOException
+    {
+        assertChunks(reader, chunkSize, expectedSizes, new ArrayList<>());
+    }
+
+    private static void assertChunks(EventChunkReader reader, int chunkSize, List<Integer> expectedSizes, List<Event> events)
+            throws IOException
+    {
+        List<Integer> sizes = new ArrayList<>();
+        while (true) {
+            List<Event> chunk = reader.read(chunkSize);
+            if (chunk.isEmpty()) {
+                break;
+            }
+            sizes.add(chunk.size());
+            events.addAll(chunk);
+        }
+
+        assertEquals(sizes, expectedSizes);
+    }
+}
@@ -4,8 +4,13 @@ import org.rakam.util.javascript.JSCodeCompiler;
 import org.rakam.plugin.RAsyncHttpClient;
 import org.testng.annotations.Test;
 
+import javax.script.Invocable;
 import javax.script.ScriptException;
 
+import java.util.function.Supplier;
+
+import static org.testng.Assert.assertEquals;
+
 public class TestJSCodeCompiler
 {
     @Test
@@ -18,4 +23,24 @@ public class TestJSCodeCompiler
                 (project, prefix) -> new JSCodeCompiler.TestLogger(), false, true);
 //        jsCodeCompiler.createEngine("test", "new Array(100000000).concat(new Array(100000000));", "");
     }
+
+    @Test
+    public void testEngineFactoryGlobals()
+            throws Exception
+    {
+        JSCodeCompiler jsCodeCompiler = new JSCodeCompiler(new TestingConfigManager(),
+                new RAsyncHttpClient(new OkHttpClient()),
+                (project, prefix) -> new JSCodeCompiler.TestLogger(), false, true);
+
+        Supplier<Invocable> factory = jsCodeCompiler.createEngineFactory("var counter = 0; function increment(value) { counter += value; return counter; }",
+                new JSCodeCompiler.TestLogger(), null, new JSCodeCompiler.MemoryConfigManager(), (engine, bindings) -> bindings.put("$$params", 1));
+
+        Invocable first = factory.get();
+        Invocable second = factory.get();
+
+        // the engines share the compiled code but not the global variables
+        assertEquals(((Number) first.invokeFunction("increment", 2)).intValue(), 2);
+        assertEquals(((Number) first.invokeFunction("increment", 2)).intValue(), 4);
+        assertEquals(((Number) second.invokeFunction("increment", 3)).intValue(), 3);
+    }
 }
@@ -0,0 +1,211 @@
+package org.rakam.analysis;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalEventLoopGroup;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.rakam.collection.SchemaField;
+import org.rakam.report.QueryError;
+import org.rakam.report.QueryResult;
+import org.rakam.util.RakamException;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestChannelQueryResultSink
+{
+    private static final LocalAddress ADDRESS = new LocalAddress("test-channel-query-result-sink");
+
+    private EventLoopGroup group;
+    private Channel server;
+    private Channel client;
+    private ChannelHandlerContext context;
+
+    @BeforeClass
+    public void setUp()
+            throws Exception
+    {
+        group = new LocalEventLoopGroup(2);
+        server = new ServerBootstrap()
+                .group(group)
+                .channel(LocalServerChannel.class)
+                .childHandler(new ChannelInboundHandlerAdapter()
+                {
+                    @Override
+                    public void channelRead(ChannelHandlerContext ctx, Object msg)
+                    {
+                        ReferenceCountUtil.release(msg);
+                    }
+                })
+                .bind(ADDRESS).sync().channel();
+    }
+
+    @AfterClass
+    public void tearDown()
+            throws Exception
+    {
+        server.close().sync();
+        group.shutdownGracefully().sync();
+    }
+
+    @BeforeMethod
+    public void connect()
+            throws Exception
+    {
+        CompletableFuture<ChannelHandlerContext> handlerContext = new CompletableFuture<>();
+        client = new Bootstrap()
+                .group(group)
+                .channel(LocalChannel.class)
+                .handler(new ChannelInboundHandlerAdapter()
+                {
+                    @Override
+                    public void handlerAdded(ChannelHandlerContext ctx)
+                    {
+                        handlerContext.complete(ctx);
+                    }
+                })
+                .connect(ADDRESS).sync().channel();
+        context = handlerContext.get(10, TimeUnit.SECONDS);
+
+        client.config().setWriteBufferLowWaterMark(8);
+        client.config().setWriteBufferHighWaterMark(16);
+    }
+
+    @AfterMethod
+    public void close()
+            throws Exception
+    {
+        client.close().sync();
+    }
+
+    @Test
+    public void testWritableChannelDoesNotBlock()
+    {
+        new TestingSink(context).awaitWritable();
+    }
+
+    @Test
+    public void testWaitsUntilWritable()
+            throws Exception
+    {
+        makeUnwritable();
+
+        CompletableFuture<Void> await = CompletableFuture.runAsync(new TestingSink(context)::awaitWritable);
+        Thread.sleep(200);
+        assertFalse(await.isDone());
+
+        // the pending data is written to the peer and the channel becomes writable again
+        client.flush();
+        await.get(10, TimeUnit.SECONDS);
+        assertTrue(client.isWritable());
+    }
+
+    @Test
+    public void testFailsWhenChannelIsClosed()
+            throws Exception
+    {
+        makeUnwritable();
+
+        CompletableFuture<Void> await = CompletableFuture.runAsync(new TestingSink(context)::awaitWritable);
+        Thread.sleep(200);
+        assertFalse(await.isDone());
+
+        client.close();
+        try {
+            await.get(10, TimeUnit.SECONDS);
+            fail("the sink must fail when the channel is closed");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UncheckedIOException);
+            assertTrue(e.getCause().getCause() instanceof ClosedChannelException);
+        }
+    }
+
+    @Test
+    public void testQueryErrorIsBadRequest()
+    {
+        RakamException error = ChunkedExportSink.getError(QueryResult.errorResult(QueryError.create("syntax error")), null);
+
+        assertEquals(error.getStatusCode(), BAD_REQUEST);
+        assertEquals(error.getMessage(), "syntax error");
+    }
+
+    @Test
+    public void testRakamExceptionIsKept()
+    {
+        RakamException error = ChunkedExportSink.getError(null,
+                new CompletionException(new RakamException("not allowed", FORBIDDEN)));
+
+        assertEquals(error.getStatusCode(), FORBIDDEN);
+        assertEquals(error.getMessage(), "not allowed");
+    }
+
+    @Test
+    public void testUnexpectedExceptionIsInternalError()
+    {
+        RakamException error = ChunkedExportSink.getError(null, new CompletionException(new IllegalStateException("bug")));
+        assertEquals(error.getStatusCode(), INTERNAL_SERVER_ERROR);
+        assertEquals(error.getMessage(), "Internal error");
+
+        assertEquals(ChunkedExportSink.getError(null, new NullPointerException()).getStatusCode(), INTERNAL_SERVER_ERROR);
+    }
+
+    private void makeUnwritable()
+            throws InterruptedException
+    {
+        // the data is not flushed so it stays in the outbound buffer above the high water mark
+        client.write(Unpooled.wrappedBuffer(new byte[64]));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (client.isWritable()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("the channel didn't become unwritable");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static class TestingSink
+            extends ChannelQueryResultSink
+    {
+        private TestingSink(ChannelHandlerContext context)
+        {
+            super(context);
+        }
+
+        @Override
+        public void columns(List<SchemaField> columns)
+        {
+        }
+
+        @Override
+        public void row(List<Object> row)
+        {
+        }
+    }
+}
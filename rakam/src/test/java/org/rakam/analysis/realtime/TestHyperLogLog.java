@@ -0,0 +1,62 @@
+package org.rakam.analysis.realtime;
+
+import org.apache.avro.util.Utf8;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestHyperLogLog
+{
+    @Test
+    public void testSmallCardinality()
+    {
+        HyperLogLog sketch = new HyperLogLog();
+        for (int i = 0; i < 100; i++) {
+            sketch.add("user" + (i % 10));
+        }
+
+        assertEquals(sketch.cardinality(), 10);
+    }
+
+    @Test
+    public void testLargeCardinality()
+    {
+        HyperLogLog sketch = new HyperLogLog();
+        for (long i = 0; i < 1000000; i++) {
+            sketch.add(i);
+        }
+
+        assertError(sketch.cardinality(), 1000000);
+    }
+
+    @Test
+    public void testMerge()
+    {
+        HyperLogLog first = new HyperLogLog();
+        HyperLogLog second = new HyperLogLog();
+        for (long i = 0; i < 100000; i++) {
+            first.add(i);
+            second.add(i + 50000);
+        }
+
+        HyperLogLog merged = first.copy();
+        merged.merge(second);
+
+        assertError(merged.cardinality(), 150000);
+        // the source sketches are not modified
+        assertError(first.cardinality(), 100000);
+    }
+
+    @Test
+    public void testAvroString()
+    {
+        assertEquals(HyperLogLog.hash(new Utf8("rakam")), HyperLogLog.hash("rakam"));
+    }
+
+    private static void assertError(long estimate, long actual)
+    {
+        double error = Math.abs(estimate - actual) / (double) actual;
+        assertTrue(error < 0.05, "estimate: " + estimate + ", actual: " + actual);
+    }
+}
@@ -0,0 +1,63 @@
+package org.rakam.analysis.realtime;
+
+import com.google.common.collect.ImmutableList;
+import org.rakam.report.realtime.AggregationType;
+import org.rakam.report.realtime.RealTimeReport;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestMutableRealtimeSlice
+{
+    private static final List<RealTimeReport.Measure> MEASURES = ImmutableList.of(new RealTimeReport.Measure(null, AggregationType.COUNT));
+
+    @Test
+    public void testCompactWaitsForWriters()
+            throws Exception
+    {
+        MutableRealtimeSlice slice = new MutableRealtimeSlice();
+        slice.getOrCreate(key(0), MEASURES);
+
+        assertTrue(slice.startWrite());
+        CompletableFuture<CompactRealtimeSlice> compacted = CompletableFuture.supplyAsync(slice::compact);
+
+        Thread.sleep(100);
+        assertFalse(compacted.isDone());
+
+        // the key is added by the writer that started before the compaction
+        slice.getOrCreate(key(1), MEASURES);
+        slice.endWrite();
+
+        assertEquals(keys(compacted.get()).size(), 2);
+        assertFalse(slice.startWrite());
+    }
+
+    @Test
+    public void testCompactedSliceHasNewId()
+    {
+        MutableRealtimeSlice slice = new MutableRealtimeSlice();
+        slice.getOrCreate(key(0), MEASURES);
+
+        assertNotEquals(slice.compact().id(), slice.id());
+        assertNotEquals(new MutableRealtimeSlice().id(), slice.id());
+    }
+
+    private static DimensionKey key(int value)
+    {
+        return new DimensionKey(new Object[] {value});
+    }
+
+    private static List<DimensionKey> keys(RealtimeSlice slice)
+    {
+        List<DimensionKey> keys = new ArrayList<>();
+        slice.forEach(0, (key, metric) -> keys.add(key));
+        return keys;
+    }
+}
@@ -0,0 +1,106 @@
+package org.rakam.analysis.realtime;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.rakam.analysis.realtime.RealtimeService.RealTimeQueryResult;
+import org.rakam.collection.Event;
+import org.rakam.plugin.EventMapper;
+import org.rakam.report.realtime.AggregationType;
+import org.rakam.report.realtime.RealTimeConfig;
+import org.rakam.report.realtime.RealTimeReport;
+import org.skife.jdbi.v2.DBI;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.apache.avro.Schema.Type.LONG;
+import static org.testng.Assert.assertEquals;
+
+public class TestRealtimeEventProcessor
+{
+    private static final int THREADS = 8;
+    private static final int EVENTS_PER_THREAD = 1000;
+
+    private static final RealTimeReport.Measure MEASURE = new RealTimeReport.Measure("value", AggregationType.COUNT);
+    private static final RealTimeReport REPORT = new RealTimeReport("test", ImmutableList.of(MEASURE), "test",
+            ImmutableSet.of("pageview"), null, ImmutableList.of());
+
+    @Test
+    public void testConcurrentMapAndQuery()
+            throws Exception
+    {
+        RealtimeEventProcessor processor = new RealtimeEventProcessor(new RealTimeConfig().setSlideInterval("1s"), new TestingMetadataService());
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS * 2);
+        Instant start = Instant.now().minusSeconds(60);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < EVENTS_PER_THREAD; j++) {
+                        processor.mapAsync(createEvent(j), EventMapper.RequestParams.EMPTY_PARAMS, InetAddress.getLoopbackAddress(), null).join();
+                    }
+                }));
+                // the slices are merged on the query pool while the mapper threads update them
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < 100; j++) {
+                        query(processor, start);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            assertEquals(query(processor, start).result, ImmutableList.of(ImmutableList.of((long) THREADS * EVENTS_PER_THREAD)));
+        }
+        finally {
+            executor.shutdownNow();
+            processor.close();
+        }
+    }
+
+    private static RealTimeQueryResult query(RealtimeEventProcessor processor, Instant start)
+    {
+        return processor.query("test", "test", null, MEASURE, ImmutableList.of(), true, start, Instant.now().plusSeconds(60)).join();
+    }
+
+    private static Event createEvent(long value)
+    {
+        GenericData.Record properties = new GenericData.Record(Schema.createRecord(ImmutableList.of(
+                new Schema.Field("value", Schema.create(LONG), null, null))));
+        properties.put("value", value);
+        return new Event("test", "pageview", null, null, properties);
+    }
+
+    private static class TestingMetadataService
+            extends RealtimeMetadataService
+    {
+        public TestingMetadataService()
+        {
+            super(new DBI(() -> {
+                throw new SQLException("The reports are not stored");
+            }));
+        }
+
+        @Override
+        public List<RealTimeReport> list(String project)
+        {
+            return ImmutableList.of(REPORT);
+        }
+
+        @Override
+        public RealTimeReport get(String project, String tableName)
+        {
+            return REPORT;
+        }
+    }
+}
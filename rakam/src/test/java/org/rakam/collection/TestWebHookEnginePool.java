@@ -0,0 +1,164 @@
+package org.rakam.collection;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.script.Invocable;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestWebHookEnginePool
+{
+    private ScheduledExecutorService executor;
+
+    @BeforeMethod
+    public void setUp()
+    {
+        // the same scheduler as WebHookHttpService, the scripts run on the threads of the pools
+        executor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testEnginesAreReused()
+            throws Exception
+    {
+        AtomicInteger created = new AtomicInteger();
+        WebHookEnginePool pool = new WebHookEnginePool(engine(null), () -> {
+            created.incrementAndGet();
+            return engine(null);
+        }, executor, 2, 10, 10000);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(pool.invoke("test", i).get(10, SECONDS), i);
+        }
+
+        assertEquals(created.get(), 0);
+        assertEquals(pool.getEngineCount(), 1);
+    }
+
+    @Test
+    public void testTimedOutEngineIsReplaced()
+            throws Exception
+    {
+        CountDownLatch blocked = new CountDownLatch(1);
+        WebHookEnginePool pool = new WebHookEnginePool(engine(blocked), () -> engine(null), executor, 1, 10, 100);
+
+        CompletableFuture<Object> timedOut = pool.invoke("test", 1);
+        // waits for the engine until the first call is timed out
+        CompletableFuture<Object> pending = pool.invoke("test", 2);
+
+        try {
+            timedOut.get(10, SECONDS);
+            fail();
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        assertEquals(pending.get(10, SECONDS), 2);
+        assertEquals(pool.getEngineCount(), 1);
+
+        // the blocked engine is discarded when the script returns
+        blocked.countDown();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(pool.invoke("test", i).get(10, SECONDS), i);
+        }
+        assertEquals(pool.getEngineCount(), 1);
+    }
+
+    @Test
+    public void testHungEnginesAreLimited()
+            throws Exception
+    {
+        CountDownLatch blocked = new CountDownLatch(1);
+        WebHookEnginePool pool = new WebHookEnginePool(engine(blocked), () -> engine(blocked), executor, 1, 10, 100);
+
+        // the engine is replaced when the first call is timed out
+        assertTimedOut(pool.invoke("test", 1));
+        assertEquals(pool.getHungEngineCount(), 1);
+
+        // the replacement hangs as well, it's kept since the pool already has a hung engine
+        assertTimedOut(pool.invoke("test", 2));
+        assertEquals(pool.getHungEngineCount(), 1);
+        assertEquals(pool.getEngineCount(), 1);
+
+        CompletableFuture<Object> pending = pool.invoke("test", 3);
+        Thread.sleep(300);
+        assertFalse(pending.isDone());
+        assertTrue(pool.getThreadCount() <= 2);
+
+        blocked.countDown();
+        assertEquals(pending.get(10, SECONDS), 3);
+        assertEquals(pool.getEngineCount(), 1);
+    }
+
+    private static void assertTimedOut(CompletableFuture<Object> future)
+            throws Exception
+    {
+        try {
+            future.get(10, SECONDS);
+            fail();
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    // returns the first argument, blocks until the latch is released if it's not null
+    private static Invocable engine(CountDownLatch latch)
+    {
+        return new Invocable()
+        {
+            @Override
+            public Object invokeMethod(Object thiz, String name, Object... args)
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Object invokeFunction(String name, Object... args)
+            {
+                if (latch != null) {
+                    try {
+                        latch.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return args[0];
+            }
+
+            @Override
+            public <T> T getInterface(Class<T> clasz)
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public <T> T getInterface(Object thiz, Class<T> clasz)
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,139 @@
+package org.rakam.util;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.rakam.collection.SchemaField;
+import org.rakam.plugin.EventStore.CopyType;
+import org.rakam.util.ExportUtil.RowEncoder;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.rakam.collection.FieldType.ARRAY_STRING;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.MAP_LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.plugin.EventStore.CopyType.AVRO;
+import static org.rakam.plugin.EventStore.CopyType.CSV;
+import static org.rakam.plugin.EventStore.CopyType.JSON;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestExportUtil
+{
+    private static final List<SchemaField> COLUMNS = ImmutableList.of(
+            new SchemaField("name", STRING),
+            new SchemaField("count", LONG),
+            new SchemaField("tags", ARRAY_STRING),
+            new SchemaField("values", MAP_LONG));
+
+    private static final List<List<Object>> ROWS = ImmutableList.of(
+            Arrays.asList("a", 1L, ImmutableList.of("x", "y"), ImmutableMap.of("k", 2L)),
+            Arrays.asList("b", null, null, null));
+
+    @Test
+    public void testCsv()
+            throws IOException
+    {
+        String[] lines = new String(encode(CSV), UTF_8).split("\r\n");
+
+        assertEquals(lines.length, 3);
+        assertEquals(lines[0], "\"name\",\"count\",\"tags\",\"values\"");
+        // the numbers are not quoted, the arrays and maps are encoded as JSON
+        assertEquals(lines[1], "\"a\",1,\"[\"\"x\"\",\"\"y\"\"]\",\"{\"\"k\"\":2}\"");
+    }
+
+    @Test
+    public void testJson()
+            throws IOException
+    {
+        List<List<Object>> rows = JsonHelper.read(encode(JSON), new TypeReference<List<List<Object>>>() {});
+
+        assertEquals(rows.size(), 2);
+        assertEquals(rows.get(0), Arrays.asList("a", 1, ImmutableList.of("x", "y"), ImmutableMap.of("k", 2)));
+        assertEquals(rows.get(1), Arrays.asList("b", null, null, null));
+    }
+
+    @Test
+    public void testJsonWithoutRows()
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RowEncoder encoder = ExportUtil.createEncoder(JSON, out);
+        encoder.writeHeader(COLUMNS);
+        encoder.finish();
+
+        assertEquals(new String(out.toByteArray(), UTF_8), "[]");
+    }
+
+    @Test
+    public void testAvro()
+            throws IOException
+    {
+        GenericDatumReader<GenericRecord> reader = new GenericDatumReader<>(AvroUtil.convertAvroSchema(COLUMNS));
+        BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(encode(AVRO), null);
+
+        List<GenericRecord> records = new ArrayList<>();
+        while (!decoder.isEnd()) {
+            records.add(reader.read(null, decoder));
+        }
+
+        assertEquals(records.size(), 2);
+        GenericRecord first = records.get(0);
+        assertEquals(first.get("name").toString(), "a");
+        assertEquals(first.get("count"), 1L);
+        assertEquals(((List<?>) first.get("tags")).stream().map(Object::toString).toArray(), new Object[] {"x", "y"});
+        Map<?, ?> values = (Map<?, ?>) first.get("values");
+        assertEquals(values.size(), 1);
+        assertEquals(values.entrySet().iterator().next().getKey().toString(), "k");
+        assertEquals(values.entrySet().iterator().next().getValue(), 2L);
+
+        GenericRecord second = records.get(1);
+        assertEquals(second.get("name").toString(), "b");
+        assertNull(second.get("count"));
+        assertNull(second.get("tags"));
+        assertNull(second.get("values"));
+    }
+
+    @Test
+    public void testEncoderDoesNotBufferRows()
+            throws IOException
+    {
+        // the rows must reach the output stream before the encoder is finished, otherwise the export is kept in memory
+        for (CopyType type : new CopyType[] {CSV, AVRO}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            RowEncoder encoder = ExportUtil.createEncoder(type, out);
+            encoder.writeHeader(COLUMNS);
+            int headerSize = out.size();
+            for (int i = 0; i < 10000; i++) {
+                encoder.writeRow(ROWS.get(0));
+            }
+            assertTrue(out.size() > headerSize, type.name());
+        }
+    }
+
+    private static byte[] encode(CopyType type)
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RowEncoder encoder = ExportUtil.createEncoder(type, out);
+        encoder.writeHeader(COLUMNS);
+        for (List<Object> row : ROWS) {
+            encoder.writeRow(row);
+        }
+        encoder.finish();
+        return out.toByteArray();
+    }
+}